@@ -0,0 +1,140 @@
+package org.smssecure.smssecure.crypto;
+
+import org.smssecure.smssecure.SMSSecureTestCase;
+
+import org.whispersystems.libaxolotl.InvalidMessageException;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MasterCipherTest extends SMSSecureTestCase {
+  private static final String BODY = "Hey, are we still on for lunch tomorrow?";
+
+  private MasterSecret masterSecret;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    masterSecret = createMasterSecret();
+  }
+
+  public void testCachedInstanceRoundTrip() throws Exception {
+    String ciphertext = MasterCipher.getInstance(masterSecret).encryptBody(BODY);
+
+    assertThat(MasterCipher.getInstance(masterSecret).decryptBody(ciphertext)).isEqualTo(BODY);
+    assertThat(new MasterCipher(masterSecret).decryptBody(ciphertext)).isEqualTo(BODY);
+  }
+
+  public void testCachedInstanceIsReusedForEqualSecret() throws Exception {
+    MasterCipher first  = MasterCipher.getInstance(masterSecret);
+    MasterCipher second = MasterCipher.getInstance(masterSecret.parcelClone());
+
+    assertThat(second).isSameAs(first);
+  }
+
+  public void testCachedInstanceIsReplacedForOtherSecret() throws Exception {
+    MasterCipher first  = MasterCipher.getInstance(masterSecret);
+    MasterCipher second = MasterCipher.getInstance(createMasterSecret());
+
+    assertThat(second).isNotSameAs(first);
+  }
+
+  public void testCachedInstanceIsDroppedWhenCleared() throws Exception {
+    MasterCipher first = MasterCipher.getInstance(masterSecret);
+    MasterCipher.clearCachedInstances();
+
+    assertThat(MasterCipher.getInstance(masterSecret)).isNotSameAs(first);
+  }
+
+  public void testRangedDecryptInPlace() throws Exception {
+    MasterCipher cipher     = MasterCipher.getInstance(masterSecret);
+    byte[]       plaintext  = BODY.getBytes("UTF-8");
+    byte[]       ciphertext = cipher.encryptBytes(plaintext);
+    byte[]       buffer     = new byte[ciphertext.length + 8];
+
+    assertThat(ciphertext.length).isEqualTo(cipher.getEncryptedLength(plaintext.length));
+
+    System.arraycopy(ciphertext, 0, buffer, 4, ciphertext.length);
+    int length = cipher.decryptBytes(buffer, 4, ciphertext.length, buffer, 4);
+
+    assertThat(length).isEqualTo(plaintext.length);
+    assertThat(Arrays.copyOfRange(buffer, 4, 4 + length)).isEqualTo(plaintext);
+  }
+
+  public void testByteBufferDecrypt() throws Exception {
+    MasterCipher cipher     = MasterCipher.getInstance(masterSecret);
+    byte[]       plaintext  = BODY.getBytes("UTF-8");
+    byte[]       ciphertext = cipher.encryptBytes(plaintext);
+    ByteBuffer   input      = ByteBuffer.allocateDirect(ciphertext.length);
+    ByteBuffer   output     = ByteBuffer.allocateDirect(cipher.getMaxDecryptedLength(ciphertext.length));
+
+    input.put(ciphertext).flip();
+
+    assertThat(cipher.decryptBytes(input, output)).isEqualTo(plaintext.length);
+    assertThat(input.hasRemaining()).isFalse();
+
+    byte[] decrypted = new byte[plaintext.length];
+    output.flip();
+    output.get(decrypted);
+
+    assertThat(decrypted).isEqualTo(plaintext);
+  }
+
+  public void testRangedDecryptRejectsBadMac() throws Exception {
+    MasterCipher cipher     = MasterCipher.getInstance(masterSecret);
+    byte[]       ciphertext = cipher.encryptBytes(BODY.getBytes("UTF-8"));
+
+    ciphertext[ciphertext.length - 1] ^= 0x01;
+
+    try {
+      cipher.decryptBytes(ciphertext, 0, ciphertext.length, new byte[ciphertext.length], 0);
+      fail("Expected InvalidMessageException");
+    } catch (InvalidMessageException e) {
+      // expected
+    }
+  }
+
+  public void testClearReleasesOtherThreadsInstances() throws Exception {
+    final MasterCipher[] other = new MasterCipher[1];
+
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        other[0] = MasterCipher.getInstance(masterSecret);
+      }
+    };
+
+    thread.start();
+    thread.join();
+
+    String ciphertext = other[0].encryptBody(BODY);
+
+    MasterCipher.clearCachedInstances();
+
+    try {
+      other[0].decryptBody(ciphertext);
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+
+    assertThat(MasterCipher.getInstance(masterSecret).decryptBody(ciphertext)).isEqualTo(BODY);
+  }
+
+  private MasterSecret createMasterSecret() {
+    SecureRandom random        = new SecureRandom();
+    byte[]       encryptionKey = new byte[16];
+    byte[]       macKey        = new byte[20];
+
+    random.nextBytes(encryptionKey);
+    random.nextBytes(macKey);
+
+    return new MasterSecret(new SecretKeySpec(encryptionKey, "AES"),
+                            new SecretKeySpec(macKey, "HmacSHA1"));
+  }
+}
@@ -0,0 +1,79 @@
+package org.smssecure.smssecure.crypto.storage;
+
+import org.smssecure.smssecure.SMSSecureTestCase;
+import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.database.KeyRecordDatabase;
+import org.whispersystems.libaxolotl.state.SessionRecord;
+
+import java.security.SecureRandom;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SessionRecordCacheTest extends SMSSecureTestCase {
+
+  private static final String NAME = "session-cache-test";
+
+  private MasterSecret       masterSecret;
+  private SessionRecordCache cache;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    masterSecret = createMasterSecret();
+    cache        = SessionRecordCache.getInstance(getInstrumentation().getTargetContext());
+
+    cache.remove(NAME);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    cache.remove(NAME);
+    super.tearDown();
+  }
+
+  public void testPutWritesThrough() throws Exception {
+    SessionRecord record = new SessionRecord();
+
+    cache.put(NAME, masterSecret, new SessionRecord().serialize());
+    record.archiveCurrentState();
+    cache.put(NAME, masterSecret, record.serialize());
+
+    KeyRecordDatabase.Record stored = KeyRecordDatabase.getInstance(getInstrumentation().getTargetContext())
+                                                       .get(KeyRecordDatabase.TYPE_SESSION, NAME);
+
+    assertThat(SMSSecureSessionStore.decryptRecord(masterSecret, stored)).isEqualTo(record.serialize());
+    assertThat(cache.get(NAME, masterSecret)).isEqualTo(record.serialize());
+  }
+
+  public void testClearReloadsFromDatabase() throws Exception {
+    byte[] record = new SessionRecord().serialize();
+
+    cache.put(NAME, masterSecret, record);
+    cache.clear();
+
+    assertThat(cache.contains(NAME)).isTrue();
+    assertThat(cache.get(NAME, masterSecret)).isEqualTo(record);
+  }
+
+  public void testRemoveDeletesRecord() throws Exception {
+    cache.put(NAME, masterSecret, new SessionRecord().serialize());
+    cache.remove(NAME);
+
+    assertThat(cache.contains(NAME)).isFalse();
+    assertThat(cache.get(NAME, masterSecret)).isNull();
+  }
+
+  private MasterSecret createMasterSecret() {
+    SecureRandom random        = new SecureRandom();
+    byte[]       encryptionKey = new byte[16];
+    byte[]       macKey        = new byte[20];
+
+    random.nextBytes(encryptionKey);
+    random.nextBytes(macKey);
+
+    return new MasterSecret(new SecretKeySpec(encryptionKey, "AES"),
+                            new SecretKeySpec(macKey, "HmacSHA1"));
+  }
+}
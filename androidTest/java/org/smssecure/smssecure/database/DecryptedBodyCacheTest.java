@@ -0,0 +1,75 @@
+package org.smssecure.smssecure.database;
+
+import org.smssecure.smssecure.SMSSecureTestCase;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DecryptedBodyCacheTest extends SMSSecureTestCase {
+  private static final String CIPHERTEXT       = "dGhpcyBpcyBub3QgcmVhbGx5IGNpcGhlcnRleHQsIGJ1dCBpdCdzIGxvbmcgZW5vdWdo";
+  private static final String OTHER_CIPHERTEXT = "dGhpcyBpcyBub3QgcmVhbGx5IGNpcGhlcnRleHQsIGJ1dCBpdCdzIGxvbmcgZW5vdWdi";
+
+  private DecryptedBodyCache cache;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    cache = new DecryptedBodyCache(64 * 1024);
+  }
+
+  public void testHitAndMissCounts() {
+    assertThat(cache.get(DecryptedBodyCache.TYPE_SMS, 1, CIPHERTEXT)).isNull();
+
+    cache.put(DecryptedBodyCache.TYPE_SMS, 1, CIPHERTEXT, "hello", cache.getGeneration());
+
+    assertThat(cache.get(DecryptedBodyCache.TYPE_SMS, 1, CIPHERTEXT)).isEqualTo("hello");
+    assertThat(cache.getHitCount()).isEqualTo(1);
+    assertThat(cache.getMissCount()).isEqualTo(1);
+  }
+
+  public void testTypesDoNotCollide() {
+    cache.put(DecryptedBodyCache.TYPE_SMS, 1, CIPHERTEXT, "sms", cache.getGeneration());
+    cache.put(DecryptedBodyCache.TYPE_MMS, 1, CIPHERTEXT, "mms", cache.getGeneration());
+
+    assertThat(cache.get(DecryptedBodyCache.TYPE_SMS, 1, CIPHERTEXT)).isEqualTo("sms");
+    assertThat(cache.get(DecryptedBodyCache.TYPE_MMS, 1, CIPHERTEXT)).isEqualTo("mms");
+    assertThat(cache.get(DecryptedBodyCache.TYPE_SNIPPET, 1, CIPHERTEXT)).isNull();
+  }
+
+  public void testChangedCiphertextMisses() {
+    cache.put(DecryptedBodyCache.TYPE_SNIPPET, 1, CIPHERTEXT, "old snippet", cache.getGeneration());
+
+    assertThat(cache.get(DecryptedBodyCache.TYPE_SNIPPET, 1, OTHER_CIPHERTEXT)).isNull();
+  }
+
+  public void testRemove() {
+    cache.put(DecryptedBodyCache.TYPE_SMS, 1, CIPHERTEXT, "hello", cache.getGeneration());
+    cache.remove(DecryptedBodyCache.TYPE_SMS, 1);
+
+    assertThat(cache.get(DecryptedBodyCache.TYPE_SMS, 1, CIPHERTEXT)).isNull();
+    assertThat(cache.getSize()).isEqualTo(0);
+  }
+
+  public void testPutFromBeforeClearIsDropped() {
+    long generation = cache.getGeneration();
+
+    cache.clear();
+    cache.put(DecryptedBodyCache.TYPE_SMS, 1, CIPHERTEXT, "hello", generation);
+
+    assertThat(cache.get(DecryptedBodyCache.TYPE_SMS, 1, CIPHERTEXT)).isNull();
+    assertThat(cache.getSize()).isEqualTo(0);
+
+    cache.put(DecryptedBodyCache.TYPE_SMS, 1, CIPHERTEXT, "hello", cache.getGeneration());
+
+    assertThat(cache.get(DecryptedBodyCache.TYPE_SMS, 1, CIPHERTEXT)).isEqualTo("hello");
+  }
+
+  public void testSizeStaysWithinBudget() {
+    for (int i=0;i<10000;i++) {
+      cache.put(DecryptedBodyCache.TYPE_SMS, i, CIPHERTEXT, "message body number " + i, cache.getGeneration());
+    }
+
+    assertThat(cache.getSize()).isLessThanOrEqualTo(64 * 1024);
+    assertThat(cache.get(DecryptedBodyCache.TYPE_SMS, 9999, CIPHERTEXT)).isEqualTo("message body number 9999");
+    assertThat(cache.get(DecryptedBodyCache.TYPE_SMS, 0, CIPHERTEXT)).isNull();
+  }
+}
@@ -0,0 +1,173 @@
+package org.smssecure.smssecure.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.smssecure.smssecure.SMSSecureTestCase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class EncryptedBackupExporterTest extends SMSSecureTestCase {
+
+  private File dataDirectory;
+  private File exportDirectory;
+  private File restoreDirectory;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    File cache = getInstrumentation().getTargetContext().getCacheDir();
+
+    dataDirectory    = new File(cache, "backup-test-data");
+    exportDirectory  = new File(cache, "backup-test-export");
+    restoreDirectory = new File(cache, "backup-test-restore");
+
+    deleteAll();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    deleteAll();
+    super.tearDown();
+  }
+
+  public void testOnlyCopiesChangedFiles() throws IOException {
+    write(new File(dataDirectory, "parts/part1.mms"), "one");
+    write(new File(dataDirectory, "parts/part2.mms"), "two");
+    write(new File(dataDirectory, "files/identity"), "key");
+
+    assertThat(EncryptedBackupExporter.exportDirectory(dataDirectory, exportDirectory)).isEqualTo(3);
+    assertThat(EncryptedBackupExporter.exportDirectory(dataDirectory, exportDirectory)).isEqualTo(0);
+
+    write(new File(dataDirectory, "parts/part2.mms"), "two, again");
+    assertThat(new File(dataDirectory, "parts/part1.mms").delete()).isTrue();
+
+    assertThat(EncryptedBackupExporter.exportDirectory(dataDirectory, exportDirectory)).isEqualTo(1);
+    assertThat(read(new File(exportDirectory, "parts/part2.mms"))).isEqualTo("two, again");
+    assertThat(new File(exportDirectory, "parts/part1.mms").exists()).isFalse();
+  }
+
+  public void testRestoresVerifiedBackup() throws IOException {
+    write(new File(dataDirectory, "parts/part1.mms"), "one");
+    write(new File(dataDirectory, "files/identity"), "key");
+
+    EncryptedBackupExporter.exportDirectory(dataDirectory, exportDirectory);
+    EncryptedBackupExporter.importDirectory(exportDirectory, restoreDirectory);
+
+    assertThat(read(new File(restoreDirectory, "parts/part1.mms"))).isEqualTo("one");
+    assertThat(read(new File(restoreDirectory, "files/identity"))).isEqualTo("key");
+  }
+
+  public void testRejectsCorruptBackup() throws IOException {
+    write(new File(dataDirectory, "parts/part1.mms"), "one");
+    write(new File(dataDirectory, "files/identity"), "key");
+    write(new File(restoreDirectory, "files/identity"), "old");
+
+    EncryptedBackupExporter.exportDirectory(dataDirectory, exportDirectory);
+    write(new File(exportDirectory, "parts/part1.mms"), "eno");
+
+    try {
+      EncryptedBackupExporter.importDirectory(exportDirectory, restoreDirectory);
+      fail("Imported a corrupt backup");
+    } catch (IOException e) {
+      // expected
+    }
+
+    assertThat(read(new File(restoreDirectory, "files/identity"))).isEqualTo("old");
+    assertThat(new File(restoreDirectory, "parts/part1.mms").exists()).isFalse();
+  }
+
+  public void testSnapshotsWriteAheadLoggedDatabase() throws IOException {
+    File           database = new File(dataDirectory, "databases/messages.db");
+    SQLiteDatabase db;
+
+    assertThat(database.getParentFile().mkdirs()).isTrue();
+    write(new File(dataDirectory, "databases/notes"), "not a database");
+
+    db = SQLiteDatabase.openOrCreateDatabase(database, null);
+
+    try {
+      assertThat(db.enableWriteAheadLogging()).isTrue();
+      db.execSQL("CREATE TABLE messages (body TEXT)");
+      insert(db, "one");
+
+      assertThat(new File(database.getPath() + "-wal").length()).isGreaterThan(0);
+      assertThat(EncryptedBackupExporter.exportDirectory(dataDirectory, exportDirectory)).isEqualTo(2);
+      assertThat(new File(exportDirectory, "databases").list()).containsOnly("messages.db", "notes");
+      assertThat(read(new File(exportDirectory, "databases/notes"))).isEqualTo("not a database");
+      assertThat(countMessages(new File(exportDirectory, "databases/messages.db"))).isEqualTo(1);
+
+      char[] body = new char[64 * 1024];
+      Arrays.fill(body, 'x');
+      insert(db, new String(body));
+
+      assertThat(EncryptedBackupExporter.exportDirectory(dataDirectory, exportDirectory)).isEqualTo(1);
+      assertThat(countMessages(new File(exportDirectory, "databases/messages.db"))).isEqualTo(2);
+    } finally {
+      db.close();
+    }
+  }
+
+  private static void insert(SQLiteDatabase db, String body) {
+    ContentValues values = new ContentValues(1);
+    values.put("body", body);
+
+    assertThat(db.insert("messages", null, values)).isGreaterThan(0);
+  }
+
+  private static int countMessages(File database) {
+    SQLiteDatabase db     = SQLiteDatabase.openDatabase(database.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.rawQuery("SELECT COUNT(*) FROM messages", null);
+      assertThat(cursor.moveToFirst()).isTrue();
+      return cursor.getInt(0);
+    } finally {
+      if (cursor != null) cursor.close();
+      db.close();
+    }
+  }
+
+  private void deleteAll() {
+    delete(dataDirectory);
+    delete(exportDirectory);
+    delete(restoreDirectory);
+  }
+
+  private static void delete(File file) {
+    File[] contents = file.listFiles();
+
+    if (contents != null) {
+      for (File child : contents) delete(child);
+    }
+
+    file.delete();
+  }
+
+  private static void write(File file, String contents) throws IOException {
+    assertThat(file.getParentFile().mkdirs() || file.getParentFile().isDirectory()).isTrue();
+
+    FileWriter writer = new FileWriter(file);
+    writer.write(contents);
+    writer.close();
+  }
+
+  private static String read(File file) throws IOException {
+    BufferedReader reader = new BufferedReader(new FileReader(file));
+
+    try {
+      return reader.readLine();
+    } finally {
+      reader.close();
+    }
+  }
+}
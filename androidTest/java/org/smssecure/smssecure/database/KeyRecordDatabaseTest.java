@@ -0,0 +1,89 @@
+package org.smssecure.smssecure.database;
+
+import org.smssecure.smssecure.SMSSecureTestCase;
+import org.smssecure.smssecure.util.Conversions;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class KeyRecordDatabaseTest extends SMSSecureTestCase {
+  private static final String NAME        = "900001.2";
+  private static final byte[] CIPHERTEXT  = new byte[] {1, 2, 3, 4, 5};
+  private static final byte[] CIPHERTEXT2 = new byte[] {6, 7, 8};
+
+  private KeyRecordDatabase db;
+  private File              directory;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    this.db        = KeyRecordDatabase.getInstance(getInstrumentation().getTargetContext());
+    this.directory = new File(getInstrumentation().getTargetContext().getCacheDir(), "key-record-test");
+
+    db.delete(KeyRecordDatabase.TYPE_SESSION, NAME);
+    directory.mkdirs();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    db.delete(KeyRecordDatabase.TYPE_SESSION, NAME);
+
+    File[] files = directory.listFiles();
+
+    if (files != null) {
+      for (File file : files) file.delete();
+    }
+
+    directory.delete();
+    super.tearDown();
+  }
+
+  public void testPutReplacesRecord() throws Exception {
+    db.put(KeyRecordDatabase.TYPE_SESSION, NAME, new KeyRecordDatabase.Record(1, CIPHERTEXT));
+    db.put(KeyRecordDatabase.TYPE_SESSION, NAME, new KeyRecordDatabase.Record(2, CIPHERTEXT2));
+
+    KeyRecordDatabase.Record record = db.get(KeyRecordDatabase.TYPE_SESSION, NAME);
+
+    assertThat(record.getVersion()).isEqualTo(2);
+    assertThat(record.getData()).isEqualTo(CIPHERTEXT2);
+    assertThat(db.contains(KeyRecordDatabase.TYPE_SESSION, NAME)).isTrue();
+    assertThat(db.contains(KeyRecordDatabase.TYPE_PRE_KEY, NAME)).isFalse();
+    assertThat(db.getNames(KeyRecordDatabase.TYPE_SESSION)).contains(NAME);
+  }
+
+  public void testDeleteRemovesRecord() throws Exception {
+    db.put(KeyRecordDatabase.TYPE_SESSION, NAME, new KeyRecordDatabase.Record(1, CIPHERTEXT));
+    db.delete(KeyRecordDatabase.TYPE_SESSION, NAME);
+
+    assertThat(db.get(KeyRecordDatabase.TYPE_SESSION, NAME)).isNull();
+    assertThat(db.getNames(KeyRecordDatabase.TYPE_SESSION)).doesNotContain(NAME);
+  }
+
+  public void testMigrateLegacyRecords() throws Exception {
+    File legacy = new File(directory, NAME);
+    File index  = new File(directory, "index.dat");
+
+    writeLegacyRecord(legacy, 2, CIPHERTEXT);
+    writeLegacyRecord(index, 1, CIPHERTEXT2);
+
+    db.migrateLegacyRecords(directory, KeyRecordDatabase.TYPE_SESSION);
+
+    KeyRecordDatabase.Record record = db.get(KeyRecordDatabase.TYPE_SESSION, NAME);
+
+    assertThat(record.getVersion()).isEqualTo(2);
+    assertThat(record.getData()).isEqualTo(CIPHERTEXT);
+    assertThat(legacy.exists()).isFalse();
+    assertThat(index.exists()).isTrue();
+  }
+
+  private void writeLegacyRecord(File file, int version, byte[] ciphertext) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(Conversions.intToByteArray(version));
+    out.write(Conversions.intToByteArray(ciphertext.length));
+    out.write(ciphertext);
+    out.close();
+  }
+}
@@ -0,0 +1,84 @@
+package org.smssecure.smssecure.database;
+
+import org.smssecure.smssecure.SMSSecureTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ThumbnailCacheDiskIndexTest extends SMSSecureTestCase {
+
+  private File directory;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    directory = new File(getInstrumentation().getTargetContext().getCacheDir(), "thumbnail-index-test");
+    new ThumbnailCache.DiskIndex(directory, 0).clear();
+    assertThat(directory.mkdirs() || directory.isDirectory()).isTrue();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    new ThumbnailCache.DiskIndex(directory, 0).clear();
+    super.tearDown();
+  }
+
+  public void testEvictsLeastRecentlyUsed() throws IOException {
+    ThumbnailCache.DiskIndex index = new ThumbnailCache.DiskIndex(directory, 300);
+
+    put(index, "1_0", 100);
+    put(index, "2_0", 100);
+    put(index, "3_0", 100);
+
+    assertThat(index.get("1_0")).isNotNull();
+
+    put(index, "4_0", 100);
+
+    assertThat(index.get("2_0")).isNull();
+    assertThat(new File(directory, "2_0").exists()).isFalse();
+    assertThat(index.get("1_0")).isNotNull();
+    assertThat(index.getSize()).isEqualTo(300);
+  }
+
+  public void testReplacingKeepsSizeAccurate() throws IOException {
+    ThumbnailCache.DiskIndex index = new ThumbnailCache.DiskIndex(directory, 1000);
+
+    put(index, "1_0", 100);
+    put(index, "1_0", 250);
+
+    assertThat(index.getSize()).isEqualTo(250);
+
+    index.remove("1_0");
+
+    assertThat(index.getSize()).isEqualTo(0);
+    assertThat(new File(directory, "1_0").exists()).isFalse();
+  }
+
+  public void testReloadsFromDirectory() throws IOException {
+    ThumbnailCache.DiskIndex index = new ThumbnailCache.DiskIndex(directory, 1000);
+
+    put(index, "1_0", 100);
+    put(index, "2_0", 100);
+    index.createTempFile("3_0");
+
+    ThumbnailCache.DiskIndex reloaded = new ThumbnailCache.DiskIndex(directory, 1000);
+
+    assertThat(reloaded.getSize()).isEqualTo(200);
+    assertThat(reloaded.get("1_0")).isNotNull();
+    assertThat(reloaded.get("2_0")).isNotNull();
+    assertThat(directory.list()).containsOnly("1_0", "2_0");
+  }
+
+  private static void put(ThumbnailCache.DiskIndex index, String name, int length) throws IOException {
+    File             temp = index.createTempFile(name);
+    FileOutputStream out  = new FileOutputStream(temp);
+
+    out.write(new byte[length]);
+    out.close();
+
+    index.put(name, temp);
+  }
+}
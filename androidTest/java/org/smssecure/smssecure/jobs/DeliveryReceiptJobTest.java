@@ -34,7 +34,7 @@ public class DeliveryReceiptJobTest extends SMSSecureTestCase {
     ObjectGraph objectGraph = ObjectGraph.create(new TestModule(textSecureMessageSender));
     objectGraph.inject(deliveryReceiptJob);
 
-    deliveryReceiptJob.onRun();
+    deliveryReceiptJob.onContextRun();
 
     ArgumentCaptor<TextSecureAddress> captor = ArgumentCaptor.forClass(TextSecureAddress.class);
     verify(textSecureMessageSender).sendDeliveryReceipt(captor.capture(), eq(timestamp));
@@ -60,7 +60,7 @@ public class DeliveryReceiptJobTest extends SMSSecureTestCase {
     objectGraph.inject(deliveryReceiptJob);
 
     try {
-      deliveryReceiptJob.onRun();
+      deliveryReceiptJob.onContextRun();
       throw new AssertionError();
     } catch (IOException e) {
       assertTrue(deliveryReceiptJob.onShouldRetry(e));
@@ -71,7 +71,7 @@ public class DeliveryReceiptJobTest extends SMSSecureTestCase {
            .sendDeliveryReceipt(any(TextSecureAddress.class), eq(timestamp));
 
     try {
-      deliveryReceiptJob.onRun();
+      deliveryReceiptJob.onContextRun();
       throw new AssertionError();
     } catch (IOException e) {
       assertFalse(deliveryReceiptJob.onShouldRetry(e));
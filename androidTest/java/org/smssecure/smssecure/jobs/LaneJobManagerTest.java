@@ -0,0 +1,39 @@
+package org.smssecure.smssecure.jobs;
+
+import org.smssecure.smssecure.SMSSecureTestCase;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LaneJobManagerTest extends SMSSecureTestCase {
+
+  public void testLanes() {
+    assertThat(LaneJobManager.getLane(new SmsSendJob(getContext(), 1, "foo"))).isEqualTo(LaneJobManager.Lane.MESSAGES);
+    assertThat(LaneJobManager.getLane(new MmsSendJob(getContext(), 1))).isEqualTo(LaneJobManager.Lane.MMS);
+    assertThat(LaneJobManager.getLane(new MmsDownloadJob(getContext(), 1, 1, true))).isEqualTo(LaneJobManager.Lane.MMS);
+    assertThat(LaneJobManager.getLane(new AttachmentDownloadJob(getContext(), 1))).isEqualTo(LaneJobManager.Lane.ATTACHMENTS);
+    assertThat(LaneJobManager.getLane(new TrimThreadJob(getContext(), 1))).isEqualTo(LaneJobManager.Lane.BULK);
+  }
+
+  public void testSubclassesShareLane() {
+    assertThat(LaneJobManager.getLane(new SmsSendJob(getContext(), 1, "foo") {})).isEqualTo(LaneJobManager.Lane.MESSAGES);
+    assertThat(LaneJobManager.getLane(new TrimThreadJob(getContext(), 1) {})).isEqualTo(LaneJobManager.Lane.BULK);
+  }
+
+  public void testMetrics() {
+    LaneJobManager.LaneMetrics metrics = new LaneJobManager.LaneMetrics(LaneJobManager.Lane.BULK);
+    TrimThreadJob              first   = new TrimThreadJob(getContext(), 1);
+    TrimThreadJob              second  = new TrimThreadJob(getContext(), 2);
+
+    first.onQueued(metrics);
+    second.onQueued(metrics);
+
+    assertThat(metrics.getQueueDepth()).isEqualTo(2);
+
+    first.onStarted();
+    first.onStarted();
+
+    assertThat(metrics.getQueueDepth()).isEqualTo(1);
+    assertThat(metrics.getStartedCount()).isEqualTo(1);
+    assertThat(metrics.getMaxWaitMillis()).isGreaterThanOrEqualTo(metrics.getAverageWaitMillis());
+  }
+}
@@ -0,0 +1,78 @@
+package org.smssecure.smssecure.jobs;
+
+import android.content.Context;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.smssecure.smssecure.SMSSecureTestCase;
+import org.smssecure.smssecure.crypto.SmsCipher;
+import org.smssecure.smssecure.database.EncryptingSmsDatabase;
+import org.smssecure.smssecure.database.model.DisplayRecord;
+import org.smssecure.smssecure.database.model.SmsMessageRecord;
+import org.smssecure.smssecure.recipients.Recipient;
+import org.smssecure.smssecure.recipients.Recipients;
+import org.smssecure.smssecure.sms.IncomingTextMessage;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SmsDecryptJobTest extends SMSSecureTestCase {
+
+  private static final String BAD_BODY = "bad";
+
+  public void testBadMessageDoesNotStopSession() throws Exception {
+    SmsCipher                          cipher = mock(SmsCipher.class);
+    EncryptingSmsDatabase.DecryptBatch batch  = mock(EncryptingSmsDatabase.DecryptBatch.class);
+
+    doAnswer(new Answer<IncomingTextMessage>() {
+      @Override
+      public IncomingTextMessage answer(InvocationOnMock invocation) {
+        IncomingTextMessage message = (IncomingTextMessage)invocation.getArguments()[1];
+
+        if (BAD_BODY.equals(message.getMessageBody())) throw new AssertionError("Unknown version");
+        else                                           return message.withMessageBody("plaintext " + message.getMessageBody());
+      }
+    }).when(cipher).decrypt(any(Context.class), any(IncomingTextMessage.class));
+
+    new SmsDecryptJob(getContext(), 1).decryptSession(null, cipher, batch, new HashSet<Long>(),
+                                                      Arrays.asList(createSecureRecord(1, "one"),
+                                                                    createSecureRecord(2, BAD_BODY),
+                                                                    createSecureRecord(3, "three")));
+
+    verify(batch).updateMessageBody(1, "plaintext one");
+    verify(batch).markAsDecryptFailed(2);
+    verify(batch).updateMessageBody(3, "plaintext three");
+    verify(batch, never()).markAsDecryptFailed(1);
+    verify(batch, never()).markAsDecryptFailed(3);
+    verify(batch, never()).updateMessageBody(eq(2L), any(String.class));
+    verify(batch, never()).markAsNoSession(anyLong());
+  }
+
+  private SmsMessageRecord createSecureRecord(long id, String body) {
+    SmsMessageRecord record     = mock(SmsMessageRecord.class);
+    Recipients       recipients = mock(Recipients.class);
+    Recipient        recipient  = mock(Recipient.class);
+
+    when(recipient.getNumber()).thenReturn("+14152222222");
+    when(recipients.getPrimaryRecipient()).thenReturn(recipient);
+
+    when(record.getId()).thenReturn(id);
+    when(record.getThreadId()).thenReturn(1L);
+    when(record.getRecipients()).thenReturn(recipients);
+    when(record.getRecipientDeviceId()).thenReturn(1);
+    when(record.getDateSent()).thenReturn(id);
+    when(record.getBody()).thenReturn(new DisplayRecord.Body(body, true));
+    when(record.isSecure()).thenReturn(true);
+
+    return record;
+  }
+}
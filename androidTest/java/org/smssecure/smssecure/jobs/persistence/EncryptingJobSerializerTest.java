@@ -0,0 +1,39 @@
+package org.smssecure.smssecure.jobs.persistence;
+
+import org.smssecure.smssecure.SMSSecureTestCase;
+import org.smssecure.smssecure.jobs.DeliveryReceiptJob;
+import org.whispersystems.jobqueue.Job;
+import org.whispersystems.jobqueue.persistence.JavaJobSerializer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class EncryptingJobSerializerTest extends SMSSecureTestCase {
+
+  private EncryptingJobSerializer serializer;
+
+  public void setUp() throws Exception {
+    super.setUp();
+    this.serializer = new EncryptingJobSerializer(getInstrumentation().getTargetContext());
+  }
+
+  public void testBinaryRoundTrip() throws Exception {
+    Job    job        = new DeliveryReceiptJob(getContext(), "+14152222222", 1234L, "foo");
+    String serialized = serializer.serialize(job);
+    Job    read       = serializer.deserialize(null, false, serialized);
+
+    assertThat(read).isInstanceOf(DeliveryReceiptJob.class);
+    assertThat(read.isPersistent()).isTrue();
+    assertThat(read.getRetryCount()).isEqualTo(job.getRetryCount());
+    assertThat(read.getRequirements()).hasSameSizeAs(job.getRequirements());
+    assertThat(serializer.serialize(read)).isEqualTo(serialized);
+  }
+
+  public void testReadsJavaSerializedJobs() throws Exception {
+    Job    job        = new DeliveryReceiptJob(getContext(), "+14152222222", 1234L, "foo");
+    String serialized = new JavaJobSerializer().serialize(job);
+    Job    read       = serializer.deserialize(null, false, serialized);
+
+    assertThat(read).isInstanceOf(DeliveryReceiptJob.class);
+    assertThat(serializer.serialize(read)).isEqualTo(serializer.serialize(job));
+  }
+}
@@ -0,0 +1,74 @@
+package org.smssecure.smssecure.sms;
+
+import org.smssecure.smssecure.SMSSecureTestCase;
+import org.smssecure.smssecure.protocol.SecureMessageWirePrefix;
+import org.smssecure.smssecure.util.Base64;
+import org.whispersystems.libaxolotl.util.guava.Optional;
+import org.whispersystems.textsecure.api.messages.TextSecureGroup;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MultipartSmsMessageHandlerTest extends SMSSecureTestCase {
+
+  private static byte[] payload(int length) {
+    byte[] payload = new byte[length];
+    new Random(length).nextBytes(payload);
+    payload[0] = 0x22;
+    return payload;
+  }
+
+  private static IncomingTextMessage fragment(String sender, String body) {
+    return new IncomingTextMessage(sender, 1, 0, body, Optional.<TextSecureGroup>absent());
+  }
+
+  public void testReassemblesOutOfOrderFragments() {
+    MultipartSmsMessageHandler handler   = new MultipartSmsMessageHandler();
+    byte[]                     payload   = payload(500);
+    List<String>               fragments = MultipartSmsTransportMessage.getEncoded(payload, new SecureMessageWirePrefix(), (byte)7);
+
+    assertThat(fragments.size()).isGreaterThan(2);
+
+    for (int i=fragments.size()-1;i>0;i--) {
+      assertThat(handler.processPotentialMultipartMessage(fragment("+15555550100", fragments.get(i)))).isNull();
+    }
+
+    IncomingTextMessage message = handler.processPotentialMultipartMessage(fragment("+15555550100", fragments.get(0)));
+
+    assertThat(message).isInstanceOf(IncomingEncryptedMessage.class);
+    assertThat(message.getMessageBody()).isEqualTo(Base64.encodeBytesWithoutPadding(payload));
+    assertThat(handler.getPendingByteCount()).isEqualTo(0);
+  }
+
+  public void testSendersDoNotCollide() {
+    MultipartSmsMessageHandler handler = new MultipartSmsMessageHandler();
+    List<String>               first   = MultipartSmsTransportMessage.getEncoded(payload(300), new SecureMessageWirePrefix(), (byte)12);
+    List<String>               second  = MultipartSmsTransportMessage.getEncoded(payload(301), new SecureMessageWirePrefix(), (byte)2);
+
+    assertThat(handler.processPotentialMultipartMessage(fragment("+1555", first.get(0)))).isNull();
+    assertThat(handler.processPotentialMultipartMessage(fragment("+15551", second.get(1)))).isNull();
+
+    for (int i=1;i<first.size()-1;i++) {
+      handler.processPotentialMultipartMessage(fragment("+1555", first.get(i)));
+    }
+
+    assertThat(handler.processPotentialMultipartMessage(fragment("+1555", first.get(first.size()-1)))).isNotNull();
+    assertThat(handler.getOrphanedMessageCount()).isEqualTo(0);
+  }
+
+  public void testDropsOldestPartialsOverBudget() {
+    MultipartSmsMessageHandler handler = new MultipartSmsMessageHandler(400);
+
+    for (int i=0;i<10;i++) {
+      List<String> fragments = MultipartSmsTransportMessage.getEncoded(payload(600), new SecureMessageWirePrefix(), (byte)i);
+      handler.processPotentialMultipartMessage(fragment("+1555555010" + i, fragments.get(0)));
+
+      assertThat(handler.getPendingByteCount()).isLessThanOrEqualTo(400);
+    }
+
+    assertThat(handler.getOrphanedMessageCount()).isGreaterThan(0);
+    assertThat(handler.getOrphanedFragmentCount()).isEqualTo(handler.getOrphanedMessageCount());
+  }
+}
@@ -0,0 +1,115 @@
+package ws.com.google.android.mms.pdu;
+
+import org.smssecure.smssecure.SMSSecureTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PduInputStreamTest extends SMSSecureTestCase {
+
+  private static byte[] sequence(int length) {
+    byte[] data = new byte[length];
+    for (int i=0;i<length;i++) data[i] = (byte)i;
+    return data;
+  }
+
+  private static InputStream trickle(byte[] data) {
+    return new FilterInputStream(new ByteArrayInputStream(data)) {
+      @Override
+      public int read(byte[] buffer, int offset, int length) throws IOException {
+        return super.read(buffer, offset, Math.min(length, 7));
+      }
+    };
+  }
+
+  public void testAvailableCountsDownWithUnknownLength() {
+    PduInputStream in    = new PduInputStream(trickle(sequence(100)), -1);
+    int            start = in.available();
+
+    in.skip(10);
+    assertThat(start - in.available()).isEqualTo(10);
+
+    in.skip(90);
+    assertThat(in.available()).isEqualTo(0);
+    assertThat(in.read()).isEqualTo(-1);
+  }
+
+  public void testResetAcrossRefill() {
+    byte[]         data = sequence(10000);
+    PduInputStream in   = new PduInputStream(trickle(data), data.length);
+
+    in.skip(4090);
+    in.mark(1);
+
+    byte[] first = new byte[20];
+    assertThat(in.read(first, 0, first.length)).isEqualTo(20);
+
+    in.reset();
+
+    byte[] second = new byte[20];
+    assertThat(in.read(second, 0, second.length)).isEqualTo(20);
+    assertThat(second).isEqualTo(first);
+    assertThat(in.getPosition()).isEqualTo(4110);
+  }
+
+  public void testResetAfterBulkRead() {
+    byte[]         data = sequence(20000);
+    PduInputStream in   = new PduInputStream(trickle(data), data.length);
+
+    in.skip(100);
+    in.mark(1);
+
+    byte[] first = new byte[10000];
+    assertThat(in.read(first, 0, first.length)).isEqualTo(first.length);
+
+    in.reset();
+
+    byte[] second = new byte[10000];
+    assertThat(in.read(second, 0, second.length)).isEqualTo(second.length);
+    assertThat(second).isEqualTo(first);
+    assertThat(in.getPosition()).isEqualTo(10100);
+    assertThat(in.read()).isEqualTo(data[10100] & 0xff);
+  }
+
+  public void testBulkReadFillsBuffer() {
+    byte[]         data   = sequence(20000);
+    PduInputStream in     = new PduInputStream(trickle(data), -1);
+    byte[]         buffer = new byte[data.length];
+
+    assertThat(in.read(buffer, 0, buffer.length)).isEqualTo(data.length);
+    assertThat(buffer).isEqualTo(data);
+  }
+
+  public void testClosingLimitSkipsRemainder() throws IOException {
+    PduInputStream in    = new PduInputStream(sequence(100));
+    InputStream    limit = in.limit(50);
+
+    assertThat(limit.read()).isEqualTo(0);
+    assertThat(limit.read(new byte[100], 0, 100)).isEqualTo(49);
+    assertThat(limit.read()).isEqualTo(-1);
+
+    in.limit(25).close();
+
+    assertThat(in.read()).isEqualTo(75);
+  }
+
+  public void testSourceErrorsAreWrapped() {
+    PduInputStream in = new PduInputStream(new InputStream() {
+      @Override
+      public int read() throws IOException {
+        throw new IOException("gone");
+      }
+    }, -1);
+
+    try {
+      in.read();
+      fail("expected PduStreamException");
+    } catch (PduInputStream.PduStreamException e) {
+      assertThat(e.getCause()).hasMessage("gone");
+    }
+  }
+}
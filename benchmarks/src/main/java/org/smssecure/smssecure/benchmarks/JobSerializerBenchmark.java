@@ -0,0 +1,158 @@
+package org.smssecure.smssecure.benchmarks;
+
+import android.content.Context;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.smssecure.smssecure.jobs.persistence.BinaryJobSerializer;
+import org.smssecure.smssecure.jobs.persistence.JobCodec;
+import org.smssecure.smssecure.util.Base64;
+import org.whispersystems.jobqueue.Job;
+import org.whispersystems.jobqueue.JobParameters;
+import org.whispersystems.jobqueue.requirements.Requirement;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialize and deserialize cost of a persisted send job, shaped like PushTextSendJob with
+ * a master secret and network requirement, a group id and a message id, written the way
+ * JavaJobSerializer writes it and with BinaryJobSerializer.  Both end up Base64 encoded, as
+ * EncryptingJobSerializer stores them.  Encryption costs the same either way, so it's left
+ * out.  The serialized sizes are printed once per fork.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JobSerializerBenchmark {
+
+  private BinaryJobSerializer binarySerializer;
+  private SendJob             job;
+  private String              javaSerialized;
+  private String              binarySerialized;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    Context context = new Context();
+
+    binarySerializer = new BinaryJobSerializer(context)
+        .addRequirement(1, ContextRequirement.class, new BinaryJobSerializer.RequirementFactory() {
+          @Override
+          public Requirement create(Context context) {
+            return new ContextRequirement(context);
+          }
+        })
+        .addRequirement(2, NetworkRequirement.class, new BinaryJobSerializer.RequirementFactory() {
+          @Override
+          public Requirement create(Context context) {
+            return new NetworkRequirement();
+          }
+        })
+        .addJob(1, SendJob.class, SendJob.CODEC);
+
+    job = new SendJob(JobParameters.newBuilder()
+                                   .withPersistence()
+                                   .withRequirement(new ContextRequirement(context))
+                                   .withRequirement(new NetworkRequirement())
+                                   .withGroupId("+14155550123")
+                                   .create(), 1234567L);
+
+    javaSerialized   = serializeJava();
+    binarySerialized = serializeBinary();
+
+    if (((SendJob)deserializeBinary()).messageId != job.messageId) {
+      throw new AssertionError("Binary round trip lost the message id");
+    }
+
+    System.out.println("Java serialized: "   + javaSerialized.length()   + " chars, " +
+                       "binary serialized: " + binarySerialized.length() + " chars");
+  }
+
+  @Benchmark
+  public String serializeJava() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream    out   = new ObjectOutputStream(bytes);
+
+    out.writeObject(job);
+    out.close();
+
+    return Base64.encodeBytes(bytes.toByteArray());
+  }
+
+  @Benchmark
+  public String serializeBinary() throws IOException {
+    return Base64.encodeBytes(binarySerializer.serialize(job));
+  }
+
+  @Benchmark
+  public Job deserializeJava() throws IOException, ClassNotFoundException {
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(Base64.decode(javaSerialized)));
+    return (Job)in.readObject();
+  }
+
+  @Benchmark
+  public Job deserializeBinary() throws IOException {
+    return binarySerializer.deserialize(null, Base64.decode(binarySerialized));
+  }
+
+  public static class SendJob extends Job {
+
+    public static final JobCodec<SendJob> CODEC = new JobCodec<SendJob>() {
+      @Override
+      public void write(SendJob job, DataOutput out) throws IOException {
+        out.writeLong(job.messageId);
+      }
+
+      @Override
+      public SendJob read(Context context, JobParameters parameters, DataInput in) throws IOException {
+        return new SendJob(parameters, in.readLong());
+      }
+    };
+
+    private final long messageId;
+
+    public SendJob(JobParameters parameters, long messageId) {
+      super(parameters);
+      this.messageId = messageId;
+    }
+  }
+
+  public static class ContextRequirement implements Requirement {
+
+    private transient Context context;
+
+    public ContextRequirement(Context context) {
+      this.context = context;
+    }
+
+    @Override
+    public boolean isPresent() {
+      return context != null;
+    }
+  }
+
+  public static class NetworkRequirement implements Requirement {
+    @Override
+    public boolean isPresent() {
+      return true;
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package org.smssecure.smssecure.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.smssecure.smssecure.crypto.MasterCipher;
+import org.smssecure.smssecure.crypto.MasterSecret;
+import org.whispersystems.libaxolotl.InvalidMessageException;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Per message cost of decrypting a body with a new MasterCipher, as every caller used to,
+ * and with the instance getInstance() caches for the calling thread.  Run with -t to see
+ * the cached instances scale across threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MasterCipherBenchmark {
+
+  private static final String BODY = "Hey, are we still on for lunch tomorrow?";
+
+  private MasterSecret masterSecret;
+  private String       ciphertext;
+
+  @Setup(Level.Trial)
+  public void setUp() throws InvalidMessageException {
+    SecureRandom random        = new SecureRandom();
+    byte[]       encryptionKey = new byte[16];
+    byte[]       macKey        = new byte[20];
+
+    random.nextBytes(encryptionKey);
+    random.nextBytes(macKey);
+
+    masterSecret = new MasterSecret(new SecretKeySpec(encryptionKey, "AES"),
+                                    new SecretKeySpec(macKey, "HmacSHA1"));
+    ciphertext   = new MasterCipher(masterSecret).encryptBody(BODY);
+
+    if (!BODY.equals(MasterCipher.getInstance(masterSecret).decryptBody(ciphertext))) {
+      throw new AssertionError("Round trip lost the body");
+    }
+  }
+
+  @Benchmark
+  public String decryptNewInstance() throws InvalidMessageException {
+    return new MasterCipher(masterSecret).decryptBody(ciphertext);
+  }
+
+  @Benchmark
+  public String decryptCachedInstance() throws InvalidMessageException {
+    return MasterCipher.getInstance(masterSecret).decryptBody(ciphertext);
+  }
+
+  @Benchmark
+  public String encryptCachedInstance() {
+    return MasterCipher.getInstance(masterSecret).encryptBody(BODY);
+  }
+}
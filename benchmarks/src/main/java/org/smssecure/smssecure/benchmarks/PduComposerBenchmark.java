@@ -0,0 +1,77 @@
+package org.smssecure.smssecure.benchmarks;
+
+import android.content.Context;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import ws.com.google.android.mms.pdu.GenericPdu;
+import ws.com.google.android.mms.pdu.PduComposer;
+import ws.com.google.android.mms.pdu.PduParser;
+import ws.com.google.android.mms.pdu.SendReq;
+
+/**
+ * Compose throughput for the SendReqs in the {@link PduCorpus}: in memory, streamed from a
+ * PartDataSource the way MmsSendJob sends them, and a compose/parse round trip.
+ * Run with {@code -prof gc} for allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PduComposerBenchmark {
+
+  @Param({PduCorpus.TEXT_SEND_REQ, PduCorpus.IMAGE_SEND_REQ, PduCorpus.GROUP_SEND_REQ})
+  public String pdu;
+
+  private final Context      context = new Context();
+  private final OutputStream discard = new OutputStream() {
+    @Override public void write(int b) {}
+    @Override public void write(byte[] b, int off, int len) {}
+  };
+
+  private SendReq                    inMemory;
+  private SendReq                    streamed;
+  private PduComposer.PartDataSource source;
+
+  @Setup
+  public void setUp() {
+    PduCorpus corpus = new PduCorpus();
+
+    inMemory = corpus.getSendReq(pdu, true);
+    streamed = corpus.getSendReq(pdu, false);
+    source   = corpus.getPartDataSource();
+  }
+
+  @Benchmark
+  public byte[] compose() {
+    return new PduComposer(context, inMemory).make();
+  }
+
+  @Benchmark
+  public long composeStreaming() throws IOException {
+    PduComposer.ComposedPdu composed = new PduComposer(context, streamed).make(source);
+    composed.writeTo(discard);
+    return composed.getLength();
+  }
+
+  @Benchmark
+  public GenericPdu roundTrip() {
+    return new PduParser(new PduComposer(context, inMemory).make()).parse();
+  }
+}
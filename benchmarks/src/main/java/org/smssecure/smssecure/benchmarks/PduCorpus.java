@@ -0,0 +1,239 @@
+package org.smssecure.smssecure.benchmarks;
+
+import android.content.Context;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import ws.com.google.android.mms.pdu.CharacterSets;
+import ws.com.google.android.mms.pdu.EncodedStringValue;
+import ws.com.google.android.mms.pdu.PduBody;
+import ws.com.google.android.mms.pdu.PduComposer;
+import ws.com.google.android.mms.pdu.PduHeaders;
+import ws.com.google.android.mms.pdu.PduPart;
+import ws.com.google.android.mms.pdu.SendReq;
+
+/**
+ * Representative PDUs, built deterministically so that results are comparable across runs.
+ *
+ * <ul>
+ *   <li>{@value #TEXT_SEND_REQ}: a short text message with its SMIL layout.</li>
+ *   <li>{@value #IMAGE_SEND_REQ}: a caption and a 280KB JPEG.</li>
+ *   <li>{@value #GROUP_SEND_REQ}: ten recipients, a caption, an image and an audio clip.</li>
+ *   <li>{@value #IMAGE_RETRIEVE_CONF}: the image message as it's retrieved from an MMSC.</li>
+ *   <li>{@value #NOTIFICATION_IND}: a WAP push notification, i.e. headers only.</li>
+ * </ul>
+ */
+public class PduCorpus {
+
+  public static final String TEXT_SEND_REQ       = "text-send-req";
+  public static final String IMAGE_SEND_REQ      = "image-send-req";
+  public static final String GROUP_SEND_REQ      = "group-send-req";
+  public static final String IMAGE_RETRIEVE_CONF = "image-retrieve-conf";
+  public static final String NOTIFICATION_IND    = "notification-ind";
+
+  private static final int    IMAGE_SIZE = 280 * 1024;
+  private static final int    AUDIO_SIZE = 60 * 1024;
+  private static final String CAPTION    = "Here's the photo from Saturday, the rest are on the way. " +
+                                           "Let me know if you can't open it!";
+
+  private final Context              context = new Context();
+  private final Map<PduPart, byte[]> data    = new IdentityHashMap<>();
+
+  public byte[] getPdu(String name) {
+    switch (name) {
+      case IMAGE_RETRIEVE_CONF: return toRetrieveConf(compose(getSendReq(IMAGE_SEND_REQ, true)));
+      case NOTIFICATION_IND:    return getNotificationInd();
+      default:                  return compose(getSendReq(name, true));
+    }
+  }
+
+  /**
+   * @param inMemory whether media parts carry their data, or only a size to be
+   *                 streamed through {@link #getPartDataSource()}
+   */
+  public SendReq getSendReq(String name, boolean inMemory) {
+    SendReq req    = new SendReq();
+    PduBody body   = new PduBody();
+    Random  random = new Random(name.hashCode());
+
+    req.setTransactionId(("T" + Long.toHexString(random.nextLong())).getBytes());
+    req.setFrom(new EncodedStringValue("+15555550100"));
+    req.setDate(1420070400L);
+    req.setBody(body);
+
+    switch (name) {
+      case TEXT_SEND_REQ:
+        req.addTo(new EncodedStringValue("+15555550101"));
+        body.addPart(textPart(CAPTION));
+        break;
+      case IMAGE_SEND_REQ:
+        req.addTo(new EncodedStringValue("+15555550101"));
+        body.addPart(textPart(CAPTION));
+        body.addPart(mediaPart("image/jpeg", "IMG_0042.jpg", IMAGE_SIZE, random, inMemory));
+        break;
+      case GROUP_SEND_REQ:
+        for (int i=0;i<10;i++) {
+          req.addTo(new EncodedStringValue("+1555555" + (1000 + i)));
+        }
+        body.addPart(textPart(CAPTION));
+        body.addPart(mediaPart("image/jpeg", "IMG_0042.jpg", IMAGE_SIZE, random, inMemory));
+        body.addPart(mediaPart("audio/amr", "recording.amr", AUDIO_SIZE, random, inMemory));
+        break;
+      default:
+        throw new IllegalArgumentException("Not a SendReq: " + name);
+    }
+
+    body.addPart(0, smilPart(body));
+    return req;
+  }
+
+  public PduComposer.PartDataSource getPartDataSource() {
+    return new PduComposer.PartDataSource() {
+      @Override
+      public InputStream getPartData(PduPart part) throws IOException {
+        return new ByteArrayInputStream(data.get(part));
+      }
+    };
+  }
+
+  private byte[] compose(SendReq req) {
+    return new PduComposer(context, req).make();
+  }
+
+  private PduPart textPart(String text) {
+    PduPart part = new PduPart();
+    part.setContentType("text/plain".getBytes());
+    part.setCharset(CharacterSets.UTF_8);
+    part.setContentId("<text0>".getBytes());
+    part.setContentLocation("text0.txt".getBytes());
+    part.setData(text.getBytes());
+    return part;
+  }
+
+  private PduPart mediaPart(String contentType, String name, int size, Random random, boolean inMemory) {
+    PduPart part  = new PduPart();
+    byte[]  bytes = new byte[size];
+
+    random.nextBytes(bytes);
+
+    part.setContentType(contentType.getBytes());
+    part.setName(name.getBytes());
+    part.setContentId(("<" + name + ">").getBytes());
+    part.setContentLocation(name.getBytes());
+
+    if (inMemory) {
+      part.setData(bytes);
+    } else {
+      part.setDataSize(size);
+      data.put(part, bytes);
+    }
+
+    return part;
+  }
+
+  private PduPart smilPart(PduBody body) {
+    StringBuilder smil = new StringBuilder("<smil><head><layout>" +
+                                           "<root-layout width=\"320px\" height=\"480px\"/>" +
+                                           "<region id=\"Image\" left=\"0\" top=\"0\" width=\"320px\" height=\"320px\" fit=\"meet\"/>" +
+                                           "<region id=\"Text\" left=\"0\" top=\"320\" width=\"320px\" height=\"160px\" fit=\"meet\"/>" +
+                                           "</layout></head><body>");
+
+    for (int i=0;i<body.getPartsNum();i++) {
+      String location = new String(body.getPart(i).getContentLocation());
+      String type     = new String(body.getPart(i).getContentType());
+      String tag      = type.startsWith("text/") ? "text" : type.startsWith("image/") ? "img" : "audio";
+      String region   = "audio".equals(tag) ? "" : " region=\"" + ("text".equals(tag) ? "Text" : "Image") + "\"";
+
+      smil.append("<par dur=\"5000ms\"><").append(tag).append(" src=\"").append(location).append("\"")
+          .append(region).append("/></par>");
+    }
+
+    smil.append("</body></smil>");
+
+    PduPart part = new PduPart();
+    part.setContentType("application/smil".getBytes());
+    part.setContentId("<smil>".getBytes());
+    part.setContentLocation("smil.xml".getBytes());
+    part.setData(smil.toString().getBytes());
+    return part;
+  }
+
+  /**
+   * A SendReq carries the same headers a RetrieveConf requires, so relabelling one is
+   * enough to get a retrieved message with a realistic body.
+   */
+  private static byte[] toRetrieveConf(byte[] sendReq) {
+    if ((sendReq[0] & 0xff) != PduHeaders.MESSAGE_TYPE ||
+        (sendReq[1] & 0xff) != PduHeaders.MESSAGE_TYPE_SEND_REQ)
+    {
+      throw new AssertionError("Unexpected SendReq encoding");
+    }
+
+    byte[] retrieveConf = sendReq.clone();
+    retrieveConf[1] = (byte)PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF;
+    return retrieveConf;
+  }
+
+  /**
+   * PduComposer doesn't make notifications, so this one is encoded by hand.
+   */
+  private static byte[] getNotificationInd() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    out.write(PduHeaders.MESSAGE_TYPE);
+    out.write(PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND);
+
+    out.write(PduHeaders.TRANSACTION_ID);
+    writeTextString(out, "T5f1d2c3b4a59687");
+
+    out.write(PduHeaders.MMS_VERSION);
+    out.write(0x80 | PduHeaders.CURRENT_MMS_VERSION);
+
+    byte[] from = "+15555550100/TYPE=PLMN".getBytes();
+    out.write(PduHeaders.FROM);
+    out.write(from.length + 2);
+    out.write(PduHeaders.FROM_ADDRESS_PRESENT_TOKEN);
+    writeTextString(out, "+15555550100/TYPE=PLMN");
+
+    out.write(PduHeaders.MESSAGE_CLASS);
+    out.write(PduHeaders.MESSAGE_CLASS_PERSONAL);
+
+    out.write(PduHeaders.MESSAGE_SIZE);
+    writeLongInteger(out, IMAGE_SIZE + 512);
+
+    ByteArrayOutputStream expiry = new ByteArrayOutputStream();
+    expiry.write(PduHeaders.VALUE_RELATIVE_TOKEN);
+    writeLongInteger(expiry, 7 * 24 * 60 * 60);
+
+    out.write(PduHeaders.EXPIRY);
+    out.write(expiry.size());
+    out.write(expiry.toByteArray(), 0, expiry.size());
+
+    out.write(PduHeaders.CONTENT_LOCATION);
+    writeTextString(out, "http://mmsc.example.com/mms/wapenc?location=5f1d2c3b4a59687_1lnte&rid=021");
+
+    return out.toByteArray();
+  }
+
+  private static void writeTextString(ByteArrayOutputStream out, String text) {
+    byte[] bytes = text.getBytes();
+    out.write(bytes, 0, bytes.length);
+    out.write(0);
+  }
+
+  private static void writeLongInteger(ByteArrayOutputStream out, long value) {
+    int length = 0;
+    for (long remaining = value; remaining != 0; remaining >>>= 8) length++;
+
+    out.write(length);
+    for (int i=length-1;i>=0;i--) {
+      out.write((int)(value >>> (8 * i)) & 0xff);
+    }
+  }
+}
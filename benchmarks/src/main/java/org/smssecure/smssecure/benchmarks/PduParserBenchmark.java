@@ -0,0 +1,78 @@
+package org.smssecure.smssecure.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import ws.com.google.android.mms.pdu.GenericPdu;
+import ws.com.google.android.mms.pdu.PduHeaders;
+import ws.com.google.android.mms.pdu.PduParser;
+import ws.com.google.android.mms.pdu.PduPart;
+
+/**
+ * Parse throughput for each PDU in the {@link PduCorpus}, both from a byte array and
+ * streamed with media parts drained through a PartDataSink, the way downloads are parsed.
+ * Run with {@code -prof gc} for allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PduParserBenchmark {
+
+  @Param({PduCorpus.TEXT_SEND_REQ, PduCorpus.IMAGE_SEND_REQ, PduCorpus.GROUP_SEND_REQ,
+          PduCorpus.IMAGE_RETRIEVE_CONF, PduCorpus.NOTIFICATION_IND})
+  public String pdu;
+
+  private byte[]       data;
+  private DrainingSink sink;
+
+  @Setup
+  public void setUp() {
+    data = new PduCorpus().getPdu(pdu);
+    sink = new DrainingSink();
+
+    if (new PduParser(data).parse() == null) {
+      throw new AssertionError("Corpus PDU doesn't parse: " + pdu);
+    }
+  }
+
+  @Benchmark
+  public GenericPdu parse() {
+    return new PduParser(data).parse();
+  }
+
+  @Benchmark
+  public GenericPdu parseStreaming() throws IOException {
+    return new PduParser(new ByteArrayInputStream(data), -1, sink).parseOrThrow();
+  }
+
+  private static class DrainingSink implements PduParser.PartDataSink {
+    private final byte[] buffer = new byte[4096];
+
+    @Override
+    public boolean accepts(PduHeaders headers, PduPart part) {
+      return !new String(part.getContentType()).startsWith("text/");
+    }
+
+    @Override
+    public void write(PduPart part, InputStream data) throws IOException {
+      while (data.read(buffer) != -1);
+    }
+  }
+}
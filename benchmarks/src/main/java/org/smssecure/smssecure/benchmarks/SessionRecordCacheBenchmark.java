@@ -0,0 +1,90 @@
+package org.smssecure.smssecure.benchmarks;
+
+import android.content.Context;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.crypto.storage.SessionRecordCache;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Session loads, and loads followed by a store as SessionCipher does for every message,
+ * spread over 64 sessions held in memory.  Run with -t to see how loads and stores of
+ * different sessions contend.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionRecordCacheBenchmark {
+
+  private static final int SESSIONS    = 64;
+  private static final int RECORD_SIZE = 1500;
+
+  private SessionRecordCache cache;
+  private MasterSecret       masterSecret;
+  private String[]           names;
+  private byte[]             record;
+
+  @State(Scope.Thread)
+  public static class SessionIndex {
+    private int next;
+
+    String next(String[] names) {
+      return names[next++ % names.length];
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    SecureRandom random        = new SecureRandom();
+    byte[]       encryptionKey = new byte[16];
+    byte[]       macKey        = new byte[20];
+
+    random.nextBytes(encryptionKey);
+    random.nextBytes(macKey);
+
+    masterSecret = new MasterSecret(new SecretKeySpec(encryptionKey, "AES"),
+                                    new SecretKeySpec(macKey, "HmacSHA1"));
+    cache        = SessionRecordCache.getInstance(new Context());
+    names        = new String[SESSIONS];
+    record       = new byte[RECORD_SIZE];
+
+    random.nextBytes(record);
+
+    for (int i=0;i<SESSIONS;i++) {
+      names[i] = "+1415555" + String.format("%04d", i) + ".1";
+      cache.put(names[i], masterSecret, record);
+    }
+  }
+
+  @Benchmark
+  public byte[] load(SessionIndex index) {
+    return cache.get(index.next(names), masterSecret);
+  }
+
+  @Benchmark
+  public byte[] loadAndStore(SessionIndex index) {
+    String name   = index.next(names);
+    byte[] loaded = cache.get(name, masterSecret);
+
+    cache.put(name, masterSecret, loaded);
+    return loaded;
+  }
+}
@@ -0,0 +1,139 @@
+package org.smssecure.smssecure.benchmarks;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.database.DatabaseFactory;
+import org.smssecure.smssecure.database.SmsDatabase;
+import org.smssecure.smssecure.database.SmsMigrator;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Wall clock time to migrate a 100,000 message system SMS database, 500 conversations of
+ * 200 messages each, from an in-memory provider.  Inserts go to a stand-in that only
+ * counts them, so this measures reading, batching and encrypting rather than SQLite.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SmsMigratorBenchmark {
+
+  private static final int CONVERSATIONS             = 500;
+  private static final int MESSAGES_PER_CONVERSATION = 200;
+
+  private static final String   CONVERSATIONS_URI = "content://mms-sms/conversations?simple=true";
+  private static final String   CANONICAL_URI     = "content://mms-sms/canonical-address/";
+  private static final String   SMS_URI           = "content://sms/conversations/";
+  private static final String[] SMS_COLUMNS       = {"type", "address", "person", "date", "protocol", "read", "status",
+                                                     "reply_path_present", "subject", "body", "service_center"};
+
+  private Context      context;
+  private MasterSecret masterSecret;
+  private SmsDatabase  smsDatabase;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    SecureRandom random        = new SecureRandom();
+    byte[]       encryptionKey = new byte[16];
+    byte[]       macKey        = new byte[20];
+
+    random.nextBytes(encryptionKey);
+    random.nextBytes(macKey);
+
+    masterSecret = new MasterSecret(new SecretKeySpec(encryptionKey, "AES"),
+                                    new SecretKeySpec(macKey, "HmacSHA1"));
+    context      = new ProviderContext();
+    smsDatabase  = DatabaseFactory.getSmsDatabase(context);
+  }
+
+  @Benchmark
+  public long migrate() {
+    long before = smsDatabase.getInsertedCount();
+
+    SmsMigrator.migrateDatabase(context, masterSecret, new SmsMigrator.SmsMigrationProgressListener() {
+      @Override
+      public void progressUpdate(SmsMigrator.ProgressDescription description) {}
+    });
+
+    long migrated = smsDatabase.getInsertedCount() - before;
+
+    if (migrated != CONVERSATIONS * MESSAGES_PER_CONVERSATION) {
+      throw new AssertionError("Migrated " + migrated + " messages");
+    }
+
+    return migrated;
+  }
+
+  /**
+   * Answers the three queries the migration makes of the system providers.
+   */
+  private static class ProviderContext extends Context {
+    private final ContentResolver contentResolver = new ContentResolver() {
+      @Override
+      public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        String uriString = uri.toString();
+
+        if      (uriString.equals(CONVERSATIONS_URI)) return getConversations();
+        else if (uriString.startsWith(CANONICAL_URI)) return getAddress(uriString.substring(CANONICAL_URI.length()));
+        else if (uriString.startsWith(SMS_URI))       return getMessages(Long.parseLong(uriString.substring(SMS_URI.length())));
+        else                                          return null;
+      }
+    };
+
+    @Override
+    public ContentResolver getContentResolver() {
+      return contentResolver;
+    }
+
+    private static Cursor getConversations() {
+      MatrixCursor cursor = new MatrixCursor(new String[] {"_id", "recipient_ids"});
+
+      for (int i=0;i<CONVERSATIONS;i++) {
+        cursor.addRow(new Object[] {(long)i, String.valueOf(i)});
+      }
+
+      return cursor;
+    }
+
+    private static Cursor getAddress(String recipientId) {
+      MatrixCursor cursor = new MatrixCursor(new String[] {"address"});
+      cursor.addRow(new Object[] {"+1415555" + String.format("%04d", Integer.parseInt(recipientId))});
+      return cursor;
+    }
+
+    private static Cursor getMessages(long threadId) {
+      MatrixCursor cursor = new MatrixCursor(SMS_COLUMNS);
+
+      for (int i=0;i<MESSAGES_PER_CONVERSATION;i++) {
+        cursor.addRow(new Object[] {(long)(i % 2 == 0 ? 1 : 2), "+1415555" + String.format("%04d", threadId), null,
+                                    1420070400000L + threadId * MESSAGES_PER_CONVERSATION + i, 0L, 1L, -1L, 0L, null,
+                                    "Message " + i + " of conversation " + threadId + ", about lunch tomorrow",
+                                    null});
+      }
+
+      return cursor;
+    }
+  }
+}
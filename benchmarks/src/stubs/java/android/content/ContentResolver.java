@@ -0,0 +1,21 @@
+package android.content;
+
+import android.database.Cursor;
+import android.net.Uri;
+
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+
+/**
+ * Has no providers; benchmarks supply part data in memory or through a PartDataSource,
+ * and override query() to stand in for a provider's rows.
+ */
+public class ContentResolver {
+  public InputStream openInputStream(Uri uri) throws FileNotFoundException {
+    throw new FileNotFoundException("No content providers: " + uri);
+  }
+
+  public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+    return null;
+  }
+}
@@ -0,0 +1,13 @@
+package android.content;
+
+/**
+ * Discards everything written to it.
+ */
+public interface SharedPreferences {
+  Editor edit();
+
+  interface Editor {
+    Editor putBoolean(String key, boolean value);
+    void apply();
+  }
+}
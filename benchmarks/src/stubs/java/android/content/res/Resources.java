@@ -0,0 +1,20 @@
+package android.content.res;
+
+/**
+ * Has no resources, so platform config lookups fall back to their defaults.
+ */
+public class Resources {
+  private static final Resources SYSTEM = new Resources();
+
+  public static Resources getSystem() {
+    return SYSTEM;
+  }
+
+  public int getIdentifier(String name, String defType, String defPackage) {
+    return 0;
+  }
+
+  public boolean getBoolean(int id) {
+    return false;
+  }
+}
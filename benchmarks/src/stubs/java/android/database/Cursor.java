@@ -0,0 +1,14 @@
+package android.database;
+
+public interface Cursor {
+  int getCount();
+  int getPosition();
+  boolean moveToFirst();
+  boolean moveToNext();
+  int getColumnIndex(String columnName);
+  int getColumnIndexOrThrow(String columnName);
+  boolean isNull(int columnIndex);
+  String getString(int columnIndex);
+  long getLong(int columnIndex);
+  void close();
+}
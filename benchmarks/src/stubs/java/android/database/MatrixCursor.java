@@ -0,0 +1,90 @@
+package android.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Rows held in memory, as Android's MatrixCursor holds them.
+ */
+public class MatrixCursor implements Cursor {
+  private final List<String>   columnNames;
+  private final List<Object[]> rows = new ArrayList<>();
+
+  private int position = -1;
+
+  public MatrixCursor(String[] columnNames) {
+    this.columnNames = Arrays.asList(columnNames);
+  }
+
+  public void addRow(Object[] columnValues) {
+    if (columnValues.length != columnNames.size()) {
+      throw new IllegalArgumentException("Expected " + columnNames.size() + " values");
+    }
+
+    rows.add(columnValues);
+  }
+
+  @Override
+  public int getCount() {
+    return rows.size();
+  }
+
+  @Override
+  public int getPosition() {
+    return position;
+  }
+
+  @Override
+  public boolean moveToFirst() {
+    position = 0;
+    return position < rows.size();
+  }
+
+  @Override
+  public boolean moveToNext() {
+    if (position < rows.size()) position++;
+    return position < rows.size();
+  }
+
+  @Override
+  public int getColumnIndex(String columnName) {
+    return columnNames.indexOf(columnName);
+  }
+
+  @Override
+  public int getColumnIndexOrThrow(String columnName) {
+    int index = getColumnIndex(columnName);
+
+    if (index == -1) throw new IllegalArgumentException("No column " + columnName);
+    return index;
+  }
+
+  @Override
+  public boolean isNull(int columnIndex) {
+    return get(columnIndex) == null;
+  }
+
+  @Override
+  public String getString(int columnIndex) {
+    Object value = get(columnIndex);
+    return value == null ? null : value.toString();
+  }
+
+  @Override
+  public long getLong(int columnIndex) {
+    Object value = get(columnIndex);
+
+    if (value == null)           return 0;
+    if (value instanceof Number) return ((Number)value).longValue();
+    return Long.parseLong(value.toString());
+  }
+
+  @Override
+  public void close() {}
+
+  private Object get(int columnIndex) {
+    if (position < 0 || position >= rows.size()) throw new IllegalStateException("Bad position " + position);
+    return rows.get(position)[columnIndex];
+  }
+}
@@ -0,0 +1,14 @@
+package android.database.sqlite;
+
+/**
+ * Stores nothing, so benchmarks measure what leads up to the writes.
+ */
+public class SQLiteDatabase {
+  public void beginTransaction() {}
+  public void setTransactionSuccessful() {}
+  public void endTransaction() {}
+
+  public SQLiteStatement compileStatement(String sql) {
+    return new SQLiteStatement();
+  }
+}
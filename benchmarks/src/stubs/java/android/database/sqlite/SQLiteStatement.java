@@ -0,0 +1,12 @@
+package android.database.sqlite;
+
+/**
+ * Binds and executes nothing.
+ */
+public class SQLiteStatement {
+  public void bindNull(int index) {}
+  public void bindLong(int index, long value) {}
+  public void bindString(int index, String value) {}
+  public void execute() {}
+  public void close() {}
+}
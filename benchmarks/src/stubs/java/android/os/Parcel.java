@@ -0,0 +1,18 @@
+package android.os;
+
+/**
+ * Only what MasterSecret's parceling refers to.  Benchmarks never parcel anything.
+ */
+public final class Parcel {
+  public static Parcel obtain()                                 { throw new UnsupportedOperationException(); }
+  public int readInt()                                          { throw new UnsupportedOperationException(); }
+  public void readByteArray(byte[] value)                       { throw new UnsupportedOperationException(); }
+  public Object readValue(ClassLoader loader)                   { throw new UnsupportedOperationException(); }
+  public void writeInt(int value)                               { throw new UnsupportedOperationException(); }
+  public void writeByteArray(byte[] value)                      { throw new UnsupportedOperationException(); }
+  public void writeValue(Object value)                          { throw new UnsupportedOperationException(); }
+  public byte[] marshall()                                      { throw new UnsupportedOperationException(); }
+  public void unmarshall(byte[] data, int offset, int length)   { throw new UnsupportedOperationException(); }
+  public void setDataPosition(int position)                     { throw new UnsupportedOperationException(); }
+  public void recycle()                                         { throw new UnsupportedOperationException(); }
+}
@@ -0,0 +1,11 @@
+package android.os;
+
+public interface Parcelable {
+  void writeToParcel(Parcel dest, int flags);
+  int describeContents();
+
+  interface Creator<T> {
+    T createFromParcel(Parcel source);
+    T[] newArray(int size);
+  }
+}
@@ -0,0 +1,7 @@
+package android.util;
+
+public final class Config {
+  public static final boolean DEBUG = false;
+  public static final boolean LOGD  = false;
+  public static final boolean LOGV  = false;
+}
@@ -0,0 +1,30 @@
+package org.smssecure.smssecure.crypto.storage;
+
+import org.smssecure.smssecure.crypto.MasterCipher;
+import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.database.KeyRecordDatabase;
+import org.whispersystems.libaxolotl.InvalidMessageException;
+
+import java.io.IOException;
+
+/**
+ * Just the record encryption, which is all SessionRecordCache uses, without the upgrade
+ * from single state records.
+ */
+public class SMSSecureSessionStore {
+  private static final int CURRENT_VERSION = 2;
+
+  /*package*/ static byte[] decryptRecord(MasterSecret masterSecret, KeyRecordDatabase.Record record)
+      throws IOException
+  {
+    try {
+      return MasterCipher.getInstance(masterSecret).decryptBytes(record.getData());
+    } catch (InvalidMessageException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /*package*/ static KeyRecordDatabase.Record encryptRecord(MasterSecret masterSecret, byte[] serialized) {
+    return new KeyRecordDatabase.Record(CURRENT_VERSION, MasterCipher.getInstance(masterSecret).encryptBytes(serialized));
+  }
+}
@@ -0,0 +1,19 @@
+package org.smssecure.smssecure.database;
+
+import android.content.Context;
+
+/**
+ * Hands out the stand-in databases, so SmsMigrator can be measured without SQLite.
+ */
+public class DatabaseFactory {
+  private static final SmsDatabase    smsDatabase    = new SmsDatabase();
+  private static final ThreadDatabase threadDatabase = new ThreadDatabase();
+
+  public static SmsDatabase getSmsDatabase(Context context) {
+    return smsDatabase;
+  }
+
+  public static ThreadDatabase getThreadDatabase(Context context) {
+    return threadDatabase;
+  }
+}
@@ -0,0 +1,55 @@
+package org.smssecure.smssecure.database;
+
+import android.content.Context;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the encrypted records in memory rather than in SQLite.
+ */
+public class KeyRecordDatabase {
+  public static final int TYPE_SESSION = 3;
+
+  private static final KeyRecordDatabase instance = new KeyRecordDatabase();
+
+  private final Map<String, Record> records = new ConcurrentHashMap<>();
+
+  public static KeyRecordDatabase getInstance(Context context) {
+    return instance;
+  }
+
+  public Record get(int type, String name) {
+    return records.get(type + ":" + name);
+  }
+
+  public boolean contains(int type, String name) {
+    return records.containsKey(type + ":" + name);
+  }
+
+  public void put(int type, String name, Record record) {
+    records.put(type + ":" + name, record);
+  }
+
+  public void delete(int type, String name) {
+    records.remove(type + ":" + name);
+  }
+
+  public static class Record {
+    private final int    version;
+    private final byte[] data;
+
+    public Record(int version, byte[] data) {
+      this.version = version;
+      this.data    = data;
+    }
+
+    public int getVersion() {
+      return version;
+    }
+
+    public byte[] getData() {
+      return data;
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package org.smssecure.smssecure.database;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Has the app's columns but only counts the rows inserted into it.
+ */
+public class SmsDatabase implements MmsSmsColumns {
+  public  static final String PERSON             = "person";
+          static final String DATE_RECEIVED      = "date";
+  public  static final String PROTOCOL           = "protocol";
+  public  static final String STATUS             = "status";
+  public  static final String TYPE               = "type";
+  public  static final String REPLY_PATH_PRESENT = "reply_path_present";
+  public  static final String SUBJECT            = "subject";
+  public  static final String SERVICE_CENTER     = "service_center";
+
+  private final AtomicLong inserted = new AtomicLong();
+
+  public long getInsertedCount() {
+    return inserted.get();
+  }
+
+  /*package*/ SQLiteDatabase beginTransaction() {
+    SQLiteDatabase database = new SQLiteDatabase();
+    database.beginTransaction();
+    return database;
+  }
+
+  /*package*/ SQLiteStatement createInsertStatement(SQLiteDatabase database) {
+    return new SQLiteStatement() {
+      @Override
+      public void execute() {
+        inserted.incrementAndGet();
+      }
+    };
+  }
+}
@@ -0,0 +1,20 @@
+package org.smssecure.smssecure.database;
+
+import org.smssecure.smssecure.recipients.Recipients;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gives every lookup a new thread id and ignores updates.
+ */
+public class ThreadDatabase {
+  private final AtomicLong threadIds = new AtomicLong();
+
+  public long getThreadIdFor(Recipients recipients) {
+    return threadIds.incrementAndGet();
+  }
+
+  public void update(long threadId) {}
+
+  public void notifyConversationListeners(long threadId) {}
+}
@@ -0,0 +1,12 @@
+package org.smssecure.smssecure.recipients;
+
+import android.content.Context;
+
+/**
+ * Wraps the addresses as they are, without a contacts lookup.
+ */
+public class RecipientFactory {
+  public static Recipients getRecipientsFromString(Context context, String rawText, boolean asynchronous) {
+    return new Recipients(rawText);
+  }
+}
@@ -0,0 +1,7 @@
+package org.smssecure.smssecure.recipients;
+
+public class RecipientFormattingException extends Exception {
+  public RecipientFormattingException(String message) {
+    super(message);
+  }
+}
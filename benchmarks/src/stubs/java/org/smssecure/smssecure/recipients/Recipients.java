@@ -0,0 +1,14 @@
+package org.smssecure.smssecure.recipients;
+
+public class Recipients {
+  private final String addresses;
+
+  public Recipients(String addresses) {
+    this.addresses = addresses;
+  }
+
+  @Override
+  public String toString() {
+    return addresses;
+  }
+}
@@ -0,0 +1,14 @@
+package org.whispersystems.jobqueue;
+
+public class EncryptionKeys {
+
+  private final byte[] encoded;
+
+  public EncryptionKeys(byte[] encoded) {
+    this.encoded = encoded;
+  }
+
+  public byte[] getEncoded() {
+    return encoded;
+  }
+}
@@ -0,0 +1,47 @@
+package org.whispersystems.jobqueue;
+
+import org.whispersystems.jobqueue.requirements.Requirement;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Has the same serialized shape as the jobmanager library's Job, so that Java
+ * serialization is measured against a faithful object graph.
+ */
+public abstract class Job implements Serializable {
+
+  private final JobParameters parameters;
+
+  protected Job(JobParameters parameters) {
+    this.parameters = parameters;
+  }
+
+  public List<Requirement> getRequirements() {
+    return parameters.getRequirements();
+  }
+
+  public boolean isPersistent() {
+    return parameters.isPersistent();
+  }
+
+  public EncryptionKeys getEncryptionKeys() {
+    return parameters.getEncryptionKeys();
+  }
+
+  public int getRetryCount() {
+    return parameters.getRetryCount();
+  }
+
+  public String getGroupId() {
+    return parameters.getGroupId();
+  }
+
+  public boolean needsWakeLock() {
+    return parameters.needsWakeLock();
+  }
+
+  public long getWakeLockTimeout() {
+    return parameters.getWakeLockTimeout();
+  }
+}
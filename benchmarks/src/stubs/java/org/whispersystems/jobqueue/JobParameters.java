@@ -0,0 +1,111 @@
+package org.whispersystems.jobqueue;
+
+import org.whispersystems.jobqueue.requirements.Requirement;
+
+import java.io.Serializable;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class JobParameters implements Serializable {
+
+  private transient EncryptionKeys encryptionKeys;
+
+  private final List<Requirement> requirements;
+  private final boolean           isPersistent;
+  private final int               retryCount;
+  private final String            groupId;
+  private final boolean           wakeLock;
+  private final long              wakeLockTimeout;
+
+  private JobParameters(List<Requirement> requirements, boolean isPersistent, String groupId,
+                        EncryptionKeys encryptionKeys, int retryCount, boolean wakeLock,
+                        long wakeLockTimeout)
+  {
+    this.requirements    = requirements;
+    this.isPersistent    = isPersistent;
+    this.groupId         = groupId;
+    this.encryptionKeys  = encryptionKeys;
+    this.retryCount      = retryCount;
+    this.wakeLock        = wakeLock;
+    this.wakeLockTimeout = wakeLockTimeout;
+  }
+
+  public List<Requirement> getRequirements() {
+    return requirements;
+  }
+
+  public boolean isPersistent() {
+    return isPersistent;
+  }
+
+  public EncryptionKeys getEncryptionKeys() {
+    return encryptionKeys;
+  }
+
+  public int getRetryCount() {
+    return retryCount;
+  }
+
+  public String getGroupId() {
+    return groupId;
+  }
+
+  public boolean needsWakeLock() {
+    return wakeLock;
+  }
+
+  public long getWakeLockTimeout() {
+    return wakeLockTimeout;
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+    private List<Requirement> requirements    = new LinkedList<>();
+    private boolean           isPersistent    = false;
+    private int               retryCount      = 100;
+    private EncryptionKeys    encryptionKeys  = null;
+    private String            groupId         = null;
+    private boolean           wakeLock        = false;
+    private long              wakeLockTimeout = 0;
+
+    public Builder withRequirement(Requirement requirement) {
+      this.requirements.add(requirement);
+      return this;
+    }
+
+    public Builder withPersistence() {
+      this.isPersistent = true;
+      return this;
+    }
+
+    public Builder withRetryCount(int retryCount) {
+      this.retryCount = retryCount;
+      return this;
+    }
+
+    public Builder withEncryption(EncryptionKeys encryptionKeys) {
+      this.encryptionKeys = encryptionKeys;
+      return this;
+    }
+
+    public Builder withGroupId(String groupId) {
+      this.groupId = groupId;
+      return this;
+    }
+
+    public Builder withWakeLock(boolean needsWakeLock, long timeout, TimeUnit unit) {
+      this.wakeLock        = needsWakeLock;
+      this.wakeLockTimeout = unit.toMillis(timeout);
+      return this;
+    }
+
+    public JobParameters create() {
+      return new JobParameters(requirements, isPersistent, groupId, encryptionKeys, retryCount,
+                               wakeLock, wakeLockTimeout);
+    }
+  }
+}
@@ -0,0 +1,7 @@
+package org.whispersystems.jobqueue.requirements;
+
+import java.io.Serializable;
+
+public interface Requirement extends Serializable {
+  boolean isPresent();
+}
@@ -0,0 +1,6 @@
+package org.whispersystems.libaxolotl;
+
+public class InvalidKeyException extends Exception {
+  public InvalidKeyException(String detailMessage) { super(detailMessage); }
+  public InvalidKeyException(Throwable throwable)  { super(throwable); }
+}
@@ -0,0 +1,7 @@
+package org.whispersystems.libaxolotl;
+
+public class InvalidMessageException extends Exception {
+  public InvalidMessageException(String detailMessage)                  { super(detailMessage); }
+  public InvalidMessageException(Throwable throwable)                   { super(throwable); }
+  public InvalidMessageException(String detailMessage, Throwable cause) { super(detailMessage, cause); }
+}
@@ -0,0 +1,12 @@
+package org.whispersystems.libaxolotl.ecc;
+
+import org.whispersystems.libaxolotl.InvalidKeyException;
+
+/**
+ * Only what MasterCipher's key methods refer to.  Benchmarks never decode keys.
+ */
+public class Curve {
+  public static ECPrivateKey decodePrivatePoint(byte[] bytes) throws InvalidKeyException {
+    throw new UnsupportedOperationException();
+  }
+}
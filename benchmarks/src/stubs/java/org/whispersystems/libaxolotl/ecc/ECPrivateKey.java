@@ -0,0 +1,5 @@
+package org.whispersystems.libaxolotl.ecc;
+
+public interface ECPrivateKey {
+  byte[] serialize();
+}
@@ -23,13 +23,9 @@ import org.smssecure.smssecure.crypto.PRNGFixes;
 import org.smssecure.smssecure.dependencies.AxolotlStorageModule;
 import org.smssecure.smssecure.dependencies.InjectableType;
 import org.smssecure.smssecure.dependencies.SMSSecureCommunicationModule;
-import org.smssecure.smssecure.jobs.persistence.EncryptingJobSerializer;
-import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirementProvider;
-import org.smssecure.smssecure.jobs.requirements.ServiceRequirementProvider;
+import org.smssecure.smssecure.jobs.LaneJobManager;
 import org.smssecure.smssecure.util.SMSSecurePreferences;
-import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.jobqueue.dependencies.DependencyInjector;
-import org.whispersystems.jobqueue.requirements.NetworkRequirementProvider;
 import org.whispersystems.libaxolotl.logging.AxolotlLoggerProvider;
 import org.whispersystems.libaxolotl.util.AndroidAxolotlLogger;
 
@@ -47,8 +43,8 @@ import dagger.ObjectGraph;
  */
 public class ApplicationContext extends Application implements DependencyInjector {
 
-  private JobManager jobManager;
-  private ObjectGraph objectGraph;
+  private LaneJobManager jobManager;
+  private ObjectGraph    objectGraph;
 
   public static ApplicationContext getInstance(Context context) {
     return (ApplicationContext)context.getApplicationContext();
@@ -69,7 +65,7 @@ public class ApplicationContext extends Application implements DependencyInjecto
     }
   }
 
-  public JobManager getJobManager() {
+  public LaneJobManager getJobManager() {
     return jobManager;
   }
 
@@ -82,15 +78,7 @@ public class ApplicationContext extends Application implements DependencyInjecto
   }
 
   private void initializeJobManager() {
-    this.jobManager = JobManager.newBuilder(this)
-                                .withName("SMSSecureJobs")
-                                .withDependencyInjector(this)
-                                .withJobSerializer(new EncryptingJobSerializer())
-                                .withRequirementProviders(new MasterSecretRequirementProvider(this),
-                                                          new ServiceRequirementProvider(this),
-                                                          new NetworkRequirementProvider(this))
-                                .withConsumerThreads(5)
-                                .build();
+    this.jobManager = new LaneJobManager(this, this);
   }
 
   private void initializeDependencyInjection() {
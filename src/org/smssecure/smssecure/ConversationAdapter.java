@@ -26,6 +26,7 @@ import android.widget.AbsListView;
 import android.support.v4.widget.CursorAdapter;
 
 import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.database.BodyPrefetcher;
 import org.smssecure.smssecure.database.DatabaseFactory;
 import org.smssecure.smssecure.database.MmsSmsColumns;
 import org.smssecure.smssecure.database.MmsSmsDatabase;
@@ -67,6 +68,7 @@ public class ConversationAdapter extends CursorAdapter implements AbsListView.Re
   private final boolean                groupThread;
   private final boolean                pushDestination;
   private final LayoutInflater         inflater;
+  private final BodyPrefetcher         bodyPrefetcher;
 
   public ConversationAdapter(Context context, MasterSecret masterSecret, SelectionClickListener selectionClickListener,
                              boolean groupThread, boolean pushDestination)
@@ -78,6 +80,7 @@ public class ConversationAdapter extends CursorAdapter implements AbsListView.Re
     this.groupThread            = groupThread;
     this.pushDestination        = pushDestination;
     this.inflater               = LayoutInflater.from(context);
+    this.bodyPrefetcher         = new BodyPrefetcher(context, masterSecret);
   }
 
   @Override
@@ -92,9 +95,14 @@ public class ConversationAdapter extends CursorAdapter implements AbsListView.Re
   }
 
   @Override
-  public void changeCursor(Cursor cursor) {
+  public Cursor swapCursor(Cursor cursor) {
     messageRecordCache.clear();
-    super.changeCursor(cursor);
+    bodyPrefetcher.cancel();
+    return super.swapCursor(cursor);
+  }
+
+  public void prefetchBodies(int firstVisible, int lastVisible) {
+    bodyPrefetcher.prefetch(getCursor(), firstVisible, lastVisible);
   }
 
   @Override
@@ -22,6 +22,7 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ListView;
 import android.widget.Toast;
@@ -52,6 +53,8 @@ public class ConversationFragment extends ListFragment
 {
   private static final String TAG = ConversationFragment.class.getSimpleName();
 
+  private static final int PAGE_SIZE = 100;
+
   private final ActionModeCallback     actionModeCallback     = new ActionModeCallback();
   private final SelectionClickListener selectionClickListener = new ConversationFragmentSelectionClickListener();
 
@@ -61,6 +64,7 @@ public class ConversationFragment extends ListFragment
   private Recipients   recipients;
   private long         threadId;
   private ActionMode   actionMode;
+  private boolean      loadingMore = false;
 
   @Override
   public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle bundle) {
@@ -74,6 +78,7 @@ public class ConversationFragment extends ListFragment
     initializeResources();
     initializeListAdapter();
     initializeContextualActionBar();
+    initializePaging();
   }
 
   @Override
@@ -97,6 +102,7 @@ public class ConversationFragment extends ListFragment
     }
 
     initializeResources();
+    resetPaging();
     initializeListAdapter();
     getLoaderManager().restartLoader(0, null, this);
   }
@@ -122,6 +128,14 @@ public class ConversationFragment extends ListFragment
     getListView().setOnItemLongClickListener(selectionClickListener);
   }
 
+  private void initializePaging() {
+    getListView().setOnScrollListener(new ConversationScrollListener());
+  }
+
+  private void resetPaging() {
+    this.loadingMore = false;
+  }
+
   private void setCorrectMenuVisibility(Menu menu) {
     ConversationAdapter adapter        = (ConversationAdapter) getListAdapter();
     List<MessageRecord> messageRecords = getSelectedMessageRecords();
@@ -168,6 +182,7 @@ public class ConversationFragment extends ListFragment
     this.recipients = recipients;
     this.threadId   = threadId;
 
+    resetPaging();
     initializeListAdapter();
   }
 
@@ -273,17 +288,30 @@ public class ConversationFragment extends ListFragment
 
   @Override
   public Loader<Cursor> onCreateLoader(int arg0, Bundle arg1) {
-    return new ConversationLoader(getActivity(), threadId);
+    return new ConversationLoader(getActivity(), threadId, PAGE_SIZE);
   }
 
   @Override
   public void onLoadFinished(Loader<Cursor> arg0, Cursor cursor) {
-    ((CursorAdapter)getListAdapter()).changeCursor(cursor);
+    ListView list          = getListView();
+    int      previousCount = getListAdapter().getCount();
+    int      firstVisible  = list.getFirstVisiblePosition();
+    View     firstView     = list.getChildAt(0);
+    int      firstTop      = firstView == null ? 0 : firstView.getTop();
+
+    ((CursorAdapter)getListAdapter()).swapCursor(cursor);
+
+    if (loadingMore && cursor != null) {
+      list.setSelectionFromTop(firstVisible + cursor.getCount() - previousCount, firstTop);
+    }
+
+    this.loadingMore = false;
   }
 
   @Override
   public void onLoaderReset(Loader<Cursor> arg0) {
-    ((CursorAdapter)getListAdapter()).changeCursor(null);
+    ((CursorAdapter)getListAdapter()).swapCursor(null);
+    this.loadingMore = false;
   }
 
   public interface ConversationFragmentListener {
@@ -322,6 +350,26 @@ public class ConversationFragment extends ListFragment
     }
   }
 
+  private class ConversationScrollListener implements AbsListView.OnScrollListener {
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {}
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+      if (getListAdapter() != null && totalItemCount > 0) {
+        ((ConversationAdapter)getListAdapter()).prefetchBodies(firstVisibleItem, firstVisibleItem + visibleItemCount - 1);
+      }
+
+      if (firstVisibleItem == 0 && totalItemCount > 0 && !loadingMore) {
+        Loader<Cursor> loader = getLoaderManager().getLoader(0);
+
+        if (loader instanceof ConversationLoader && ((ConversationLoader)loader).hasOlder()) {
+          loadingMore = ((ConversationLoader)loader).loadOlder();
+        }
+      }
+    }
+  }
+
   private class ActionModeCallback implements ActionMode.Callback {
 
     @Override
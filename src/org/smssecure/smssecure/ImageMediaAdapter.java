@@ -60,7 +60,8 @@ public class ImageMediaAdapter extends CursorRecyclerViewAdapter<ViewHolder> {
   public ImageMediaAdapter(Context context, MasterSecret masterSecret, Cursor c) {
     super(context, c);
     this.masterSecret = masterSecret;
-    this.gridSize     = context.getResources().getDimensionPixelSize(R.dimen.thumbnail_max_size);
+    this.gridSize     = context.getResources().getDisplayMetrics().widthPixels /
+                        context.getResources().getInteger(R.integer.media_overview_cols);
   }
 
   @Override
@@ -83,7 +84,7 @@ public class ImageMediaAdapter extends CursorRecyclerViewAdapter<ViewHolder> {
     imageView.setVisibility(View.INVISIBLE);
     Slide slide = MediaUtil.getSlideForPart(getContext(), masterSecret, part, imageRecord.getContentType());
     if (slide != null) {
-      slide.getThumbnail(getContext()).addListener(new FutureTaskListener<Pair<Drawable, Boolean>>() {
+      slide.getThumbnail(getContext(), gridSize).addListener(new FutureTaskListener<Pair<Drawable, Boolean>>() {
         @Override
         public void onSuccess(final Pair<Drawable, Boolean> result) {
           imageView.post(new Runnable() {
@@ -15,8 +15,10 @@ import android.view.ViewGroup;
 import android.widget.Toast;
 
 import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.crypto.storage.SessionRecordCache;
 import org.smssecure.smssecure.database.DatabaseFactory;
 import org.smssecure.smssecure.database.EncryptedBackupExporter;
+import org.smssecure.smssecure.database.KeyRecordDatabase;
 import org.smssecure.smssecure.database.NoExternalStorageException;
 import org.smssecure.smssecure.database.PlaintextBackupImporter;
 import org.smssecure.smssecure.service.ApplicationMigrationService;
@@ -222,6 +224,8 @@ public class ImportFragment extends Fragment {
           break;
         case SUCCESS:
           DatabaseFactory.getInstance(context).reset(context);
+          KeyRecordDatabase.getInstance(context).reset(context);
+          SessionRecordCache.getInstance(context).clear();
           Intent intent = new Intent(context, KeyCachingService.class);
           intent.setAction(KeyCachingService.CLEAR_KEY_ACTION);
           context.startService(intent);
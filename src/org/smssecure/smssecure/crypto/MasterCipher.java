@@ -26,17 +26,23 @@ import org.whispersystems.libaxolotl.ecc.Curve;
 import org.whispersystems.libaxolotl.ecc.ECPrivateKey;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
 
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -54,20 +60,112 @@ import javax.crypto.spec.SecretKeySpec;
 
 public class MasterCipher {
 
-  private final MasterSecret masterSecret;
+  private static final Charset                   UTF_8        = Charset.forName("UTF-8");
+  private static final ThreadLocal<MasterCipher> threadCipher = new ThreadLocal<>();
+  private static final Set<MasterCipher>         cached       = Collections.newSetFromMap(new WeakHashMap<MasterCipher, Boolean>());
+  private static volatile int                    generation   = 0;
+
+  private static final int MAX_PLAINTEXT_BUFFER = 8 * 1024;
+
+  private MasterSecret masterSecret;
   private final Cipher encryptingCipher;
   private final Cipher decryptingCipher;
   private final Mac hmac;
+  private final byte[] macBuffer;
+  private final byte[] ivBuffer;
+  private final int cipherGeneration;
+
+  private byte[] plaintextBuffer = new byte[0];
 
   public MasterCipher(MasterSecret masterSecret) {
     try {
-      this.masterSecret = masterSecret;
+      this.masterSecret     = masterSecret;
       this.encryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
       this.decryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
       this.hmac             = Mac.getInstance("HmacSHA1");
-    } catch (NoSuchPaddingException | NoSuchAlgorithmException nspe) {
-      throw new AssertionError(nspe);
+      this.macBuffer        = new byte[hmac.getMacLength()];
+      this.ivBuffer         = new byte[decryptingCipher.getBlockSize()];
+      this.cipherGeneration = generation;
+
+      this.hmac.init(masterSecret.getMacKey());
+    } catch (NoSuchPaddingException | NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Returns a MasterCipher for masterSecret that is cached for, and confined to, the
+   * calling thread.  This avoids the provider lookups and MAC key setup of a new instance
+   * on every message.  The returned instance must not be stored or handed to another thread,
+   * and stops working once {@link #clearCachedInstances()} is called, so it should be fetched
+   * again for each message rather than held.
+   */
+  public static MasterCipher getInstance(MasterSecret masterSecret) {
+    MasterCipher cipher = threadCipher.get();
+
+    if (cipher == null || !cipher.isFor(masterSecret)) {
+      cipher = new MasterCipher(masterSecret);
+      threadCipher.set(cipher);
+
+      synchronized (cached) {
+        cached.add(cipher);
+      }
+    }
+
+    return cipher;
+  }
+
+  /**
+   * Releases the keys of every thread's cached instance, e.g. when the master secret is
+   * cleared.  Other threads can't drop their cached instances themselves until they next
+   * ask for one, so the instances are emptied where they are.
+   */
+  public static void clearCachedInstances() {
+    List<MasterCipher> instances;
+
+    synchronized (cached) {
+      generation++;
+      instances = new ArrayList<>(cached);
+      cached.clear();
     }
+
+    for (MasterCipher instance : instances) {
+      instance.destroy();
+    }
+
+    threadCipher.remove();
+  }
+
+  /**
+   * Drops the master secret and re-keys the cipher and MAC with blank keys, so none of the
+   * key material stays reachable from this instance.  Synchronized with everything that
+   * uses the keys, since it's called from whichever thread clears the cache.
+   */
+  private synchronized void destroy() {
+    masterSecret = null;
+    Arrays.fill(plaintextBuffer, (byte)0x00);
+
+    try {
+      byte[] blankIv = new byte[decryptingCipher.getBlockSize()];
+
+      hmac.init(new SecretKeySpec(new byte[macBuffer.length], "HmacSHA1"));
+      encryptingCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(new byte[16], "AES"));
+      decryptingCipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(new byte[16], "AES"), new IvParameterSpec(blankIv));
+    } catch (GeneralSecurityException e) {
+      Log.w("MasterCipher", e);
+    }
+  }
+
+  private MasterSecret getMasterSecret() {
+    if (masterSecret == null) throw new IllegalStateException("The master secret has been cleared");
+    return masterSecret;
+  }
+
+  private synchronized boolean isFor(MasterSecret masterSecret) {
+    return cipherGeneration == generation && this.masterSecret != null &&
+           (this.masterSecret == masterSecret ||
+            (this.masterSecret.getEncryptionKey().equals(masterSecret.getEncryptionKey()) &&
+             this.masterSecret.getMacKey().equals(masterSecret.getMacKey())));
   }
 
   public byte[] encryptKey(ECPrivateKey privateKey) {
@@ -75,11 +173,20 @@ public class MasterCipher {
   }
 
   public String encryptBody(String body)  {
-    return encryptAndEncodeBytes(body.getBytes());
+    return encryptAndEncodeBytes(body.getBytes(UTF_8));
   }
 
-  public String decryptBody(String body) throws InvalidMessageException {
-    return new String(decodeAndDecryptBytes(body));
+  public synchronized String decryptBody(String body) throws InvalidMessageException {
+    byte[] decodedBody = decodeBytes(body);
+    int    maxLength   = getMaxDecryptedLength(decodedBody.length);
+    byte[] plaintext   = getPlaintextBuffer(maxLength);
+
+    try {
+      int length = decryptBytes(decodedBody, 0, decodedBody.length, plaintext, 0);
+      return new String(plaintext, 0, length, UTF_8);
+    } finally {
+      Arrays.fill(plaintext, 0, maxLength, (byte)0x00);
+    }
   }
 
   public ECPrivateKey decryptKey(byte[] key)
@@ -92,34 +199,135 @@ public class MasterCipher {
     }
   }
 
-  public byte[] decryptBytes(byte[] decodedBody) throws InvalidMessageException {
+  public synchronized byte[] decryptBytes(byte[] decodedBody) throws InvalidMessageException {
+    try {
+      int    encryptedLength = verifyMac(decodedBody, 0, decodedBody.length);
+      Cipher cipher          = getDecryptingCipher(getMasterSecret().getEncryptionKey(), decodedBody, 0);
+
+      return cipher.doFinal(decodedBody, cipher.getBlockSize(), encryptedLength - cipher.getBlockSize());
+    } catch (GeneralSecurityException ge) {
+      throw new InvalidMessageException(ge);
+    }
+  }
+
+  /**
+   * Verifies and decrypts length bytes of input, starting at offset, into output.  The MAC is
+   * checked in place.  Output needs room for at most {@link #getMaxDecryptedLength(int)} bytes
+   * and must not overlap input, since ciphers only decrypt in place at the same offset.
+   *
+   * @return The number of plaintext bytes written to output.
+   */
+  public synchronized int decryptBytes(byte[] input, int offset, int length, byte[] output, int outputOffset)
+      throws InvalidMessageException
+  {
+    try {
+      int    encryptedLength = verifyMac(input, offset, length);
+      Cipher cipher          = getDecryptingCipher(getMasterSecret().getEncryptionKey(), input, offset);
+      int    blockSize       = cipher.getBlockSize();
+
+      return cipher.doFinal(input, offset + blockSize, encryptedLength - blockSize, output, outputOffset);
+    } catch (GeneralSecurityException ge) {
+      throw new InvalidMessageException(ge);
+    }
+  }
+
+  /**
+   * Verifies and decrypts the remaining bytes of input into output.  On return input has been
+   * consumed, and output is advanced past the plaintext.
+   *
+   * @return The number of plaintext bytes written to output.
+   */
+  public synchronized int decryptBytes(ByteBuffer input, ByteBuffer output) throws InvalidMessageException {
+    if (input.hasArray() && output.hasArray()) {
+      int length  = input.remaining();
+      int written = decryptBytes(input.array(), input.arrayOffset() + input.position(), length,
+                                 output.array(), output.arrayOffset() + output.position());
+
+      input.position(input.limit());
+      output.position(output.position() + written);
+
+      return written;
+    }
+
     try {
-      Mac mac              = getMac(masterSecret.getMacKey());
-      byte[] encryptedBody = verifyMacBody(mac, decodedBody);
+      SecretKeySpec key       = getMasterSecret().getEncryptionKey();
+      ByteBuffer    body      = input.duplicate();
+      int           start     = body.position();
+      int           macLength = hmac.getMacLength();
+      int           blockSize = decryptingCipher.getBlockSize();
+      int           end       = body.limit() - macLength;
 
-      Cipher cipher        = getDecryptingCipher(masterSecret.getEncryptionKey(), encryptedBody);
-      byte[] encrypted     = getDecryptedBody(cipher, encryptedBody);
+      if (end - start < blockSize) {
+        throw new InvalidMessageException("Message too short: " + body.remaining());
+      }
 
-      return encrypted;
+      body.limit(end);
+      hmac.update(body);
+      hmac.doFinal(macBuffer, 0);
+
+      int difference = 0;
+
+      for (int i=0;i<macLength;i++) {
+        difference |= macBuffer[i] ^ input.get(end + i);
+      }
+
+      if (difference != 0) {
+        throw new InvalidMessageException("MAC doesen't match.");
+      }
+
+      for (int i=0;i<blockSize;i++) {
+        ivBuffer[i] = input.get(start + i);
+      }
+
+      decryptingCipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(ivBuffer));
+      body.position(start + blockSize);
+
+      int written = decryptingCipher.doFinal(body, output);
+      input.position(input.limit());
+
+      return written;
     } catch (GeneralSecurityException ge) {
       throw new InvalidMessageException(ge);
     }
   }
 
-  public byte[] encryptBytes(byte[] body) {
+  public synchronized byte[] encryptBytes(byte[] body) {
     try {
-      Cipher cipher              = getEncryptingCipher(masterSecret.getEncryptionKey());
-      Mac    mac                 = getMac(masterSecret.getMacKey());
+      byte[] encryptedAndMacBody = new byte[getEncryptedLength(body.length)];
+      int    length              = encryptInto(body, 0, body.length, encryptedAndMacBody, 0);
 
-      byte[] encryptedBody       = getEncryptedBody(cipher, body);
-      byte[] encryptedAndMacBody = getMacBody(mac, encryptedBody);
+      if (length != encryptedAndMacBody.length) {
+        return Arrays.copyOf(encryptedAndMacBody, length);
+      }
 
       return encryptedAndMacBody;
     } catch (GeneralSecurityException ge) {
       Log.w("bodycipher", ge);
       return null;
     }
+  }
+
+  /**
+   * Encrypts and MACs length bytes of input, starting at offset, into output.  Output needs
+   * room for {@link #getEncryptedLength(int)} bytes and must not overlap input.
+   *
+   * @return The number of bytes written to output.
+   */
+  public synchronized int encryptBytes(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+    try {
+      return encryptInto(input, offset, length, output, outputOffset);
+    } catch (GeneralSecurityException ge) {
+      throw new AssertionError(ge);
+    }
+  }
+
+  public int getEncryptedLength(int plaintextLength) {
+    int blockSize = encryptingCipher.getBlockSize();
+    return blockSize + (plaintextLength / blockSize + 1) * blockSize + hmac.getMacLength();
+  }
 
+  public int getMaxDecryptedLength(int encryptedLength) {
+    return Math.max(0, encryptedLength - decryptingCipher.getBlockSize() - hmac.getMacLength());
   }
 
   public boolean verifyMacFor(String content, byte[] theirMac) {
@@ -129,87 +337,88 @@ public class MasterCipher {
     return Arrays.equals(ourMac, theirMac);
   }
 
-  public byte[] getMacFor(String content) {
+  public synchronized byte[] getMacFor(String content) {
     Log.w("MasterCipher", "Macing: " + content);
-    try {
-      Mac mac = getMac(masterSecret.getMacKey());
-      return mac.doFinal(content.getBytes());
-    } catch (GeneralSecurityException ike) {
-      throw new AssertionError(ike);
-    }
+    return hmac.doFinal(content.getBytes());
   }
 
-  private byte[] decodeAndDecryptBytes(String body) throws InvalidMessageException {
-    try {
-      byte[] decodedBody = Base64.decode(body);
-      return decryptBytes(decodedBody);
-    } catch (IOException e) {
-      throw new InvalidMessageException("Bad Base64 Encoding...", e);
+  /**
+   * Plaintext of bodies up to MAX_PLAINTEXT_BUFFER bytes is decrypted into a buffer kept
+   * with this instance, which getInstance() already confines to one thread.  Callers zero
+   * what they used, so no plaintext outlives the call that decrypted it.
+   */
+  private byte[] getPlaintextBuffer(int length) {
+    if (length > MAX_PLAINTEXT_BUFFER) return new byte[length];
+
+    if (plaintextBuffer.length < length) {
+      plaintextBuffer = new byte[length];
     }
-  }
 
-  private String encryptAndEncodeBytes(byte[] bytes) {
-    byte[] encryptedAndMacBody = encryptBytes(bytes);
-    return Base64.encodeBytes(encryptedAndMacBody);
+    return plaintextBuffer;
   }
 
-  private byte[] verifyMacBody(Mac hmac, byte[] encryptedAndMac) throws InvalidMessageException {
-    byte[] encrypted = new byte[encryptedAndMac.length - hmac.getMacLength()];
-    System.arraycopy(encryptedAndMac, 0, encrypted, 0, encrypted.length);
+  private int encryptInto(byte[] input, int offset, int length, byte[] output, int outputOffset)
+      throws GeneralSecurityException
+  {
+    Cipher cipher    = getEncryptingCipher(getMasterSecret().getEncryptionKey());
+    byte[] iv        = cipher.getIV();
+    int    encrypted;
 
-    byte[] remoteMac = new byte[hmac.getMacLength()];
-    System.arraycopy(encryptedAndMac, encryptedAndMac.length - remoteMac.length, remoteMac, 0, remoteMac.length);
+    System.arraycopy(iv, 0, output, outputOffset, iv.length);
+    encrypted = cipher.doFinal(input, offset, length, output, outputOffset + iv.length);
 
-    byte[] localMac  = hmac.doFinal(encrypted);
+    hmac.update(output, outputOffset, iv.length + encrypted);
+    hmac.doFinal(output, outputOffset + iv.length + encrypted);
 
-    if (!Arrays.equals(remoteMac, localMac))
-      throw new InvalidMessageException("MAC doesen't match.");
-
-    return encrypted;
+    return iv.length + encrypted + hmac.getMacLength();
   }
 
-  private byte[] getDecryptedBody(Cipher cipher, byte[] encryptedBody) throws IllegalBlockSizeException, BadPaddingException {
-    return cipher.doFinal(encryptedBody, cipher.getBlockSize(), encryptedBody.length - cipher.getBlockSize());
+  private byte[] decodeBytes(String body) throws InvalidMessageException {
+    try {
+      return Base64.decode(body);
+    } catch (IOException e) {
+      throw new InvalidMessageException("Bad Base64 Encoding...", e);
+    }
   }
 
-  private byte[] getEncryptedBody(Cipher cipher, byte[] body) throws IllegalBlockSizeException, BadPaddingException {
-    byte[] encrypted = cipher.doFinal(body);
-    byte[] iv        = cipher.getIV();
+  private String encryptAndEncodeBytes(byte[] bytes) {
+    byte[] encryptedAndMacBody = encryptBytes(bytes);
+    return Base64.encodeBytes(encryptedAndMacBody);
+  }
 
-    byte[] ivAndBody = new byte[iv.length + encrypted.length];
-    System.arraycopy(iv, 0, ivAndBody, 0, iv.length);
-    System.arraycopy(encrypted, 0, ivAndBody, iv.length, encrypted.length);
+  private int verifyMac(byte[] encryptedAndMac, int offset, int length)
+      throws InvalidMessageException, ShortBufferException
+  {
+    int macLength       = hmac.getMacLength();
+    int encryptedLength = length - macLength;
 
-    return ivAndBody;
-  }
+    if (encryptedLength < decryptingCipher.getBlockSize()) {
+      throw new InvalidMessageException("Message too short: " + length);
+    }
 
-  private Mac getMac(SecretKeySpec key) throws NoSuchAlgorithmException, InvalidKeyException {
-    //		Mac hmac = Mac.getInstance("HmacSHA1");
-    hmac.init(key);
+    hmac.update(encryptedAndMac, offset, encryptedLength);
+    hmac.doFinal(macBuffer, 0);
 
-    return hmac;
-  }
+    int difference = 0;
 
-  private byte[] getMacBody(Mac hmac, byte[] encryptedBody) {
-    byte[] mac             = hmac.doFinal(encryptedBody);
-    byte[] encryptedAndMac = new byte[encryptedBody.length + mac.length];
+    for (int i=0;i<macLength;i++) {
+      difference |= macBuffer[i] ^ encryptedAndMac[offset + encryptedLength + i];
+    }
 
-    System.arraycopy(encryptedBody, 0, encryptedAndMac, 0, encryptedBody.length);
-    System.arraycopy(mac, 0, encryptedAndMac, encryptedBody.length, mac.length);
+    if (difference != 0)
+      throw new InvalidMessageException("MAC doesen't match.");
 
-    return encryptedAndMac;
+    return encryptedLength;
   }
 
-  private Cipher getDecryptingCipher(SecretKeySpec key, byte[] encryptedBody) throws InvalidKeyException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException {
-    //		Cipher cipher      = Cipher.getInstance("AES/CBC/PKCS5Padding");
-    IvParameterSpec iv = new IvParameterSpec(encryptedBody, 0, decryptingCipher.getBlockSize());
+  private Cipher getDecryptingCipher(SecretKeySpec key, byte[] encryptedBody, int offset) throws InvalidKeyException, InvalidAlgorithmParameterException {
+    IvParameterSpec iv = new IvParameterSpec(encryptedBody, offset, decryptingCipher.getBlockSize());
     decryptingCipher.init(Cipher.DECRYPT_MODE, key, iv);
 
     return decryptingCipher;
   }
 
-  private Cipher getEncryptingCipher(SecretKeySpec key) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException {
-    //		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+  private Cipher getEncryptingCipher(SecretKeySpec key) throws InvalidKeyException {
     encryptingCipher.init(Cipher.ENCRYPT_MODE, key);
 
     return encryptingCipher;
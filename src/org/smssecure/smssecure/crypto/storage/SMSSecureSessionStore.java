@@ -5,9 +5,9 @@ import android.util.Log;
 
 import org.smssecure.smssecure.crypto.MasterCipher;
 import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.database.KeyRecordDatabase;
 import org.smssecure.smssecure.recipients.Recipient;
 import org.smssecure.smssecure.recipients.RecipientFactory;
-import org.smssecure.smssecure.util.Conversions;
 import org.whispersystems.libaxolotl.AxolotlAddress;
 import org.whispersystems.libaxolotl.InvalidMessageException;
 import org.whispersystems.libaxolotl.state.SessionRecord;
@@ -15,12 +15,7 @@ import org.whispersystems.libaxolotl.state.SessionState;
 import org.whispersystems.libaxolotl.state.SessionStore;
 import org.whispersystems.textsecure.api.push.TextSecureAddress;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -28,9 +23,12 @@ import static org.whispersystems.libaxolotl.state.StorageProtos.SessionStructure
 
 public class SMSSecureSessionStore implements SessionStore {
 
-  private static final String TAG                   = SMSSecureSessionStore.class.getSimpleName();
-  private static final String SESSIONS_DIRECTORY_V2 = "sessions-v2";
-  private static final Object FILE_LOCK             = new Object();
+  /**
+   * Where sessions used to be kept, one file each.
+   */
+  public static final String SESSIONS_DIRECTORY_V2 = "sessions-v2";
+
+  private static final String TAG = SMSSecureSessionStore.class.getSimpleName();
 
   private static final int SINGLE_STATE_VERSION   = 1;
   private static final int ARCHIVE_STATES_VERSION = 2;
@@ -46,65 +44,35 @@ public class SMSSecureSessionStore implements SessionStore {
 
   @Override
   public SessionRecord loadSession(AxolotlAddress address) {
-    synchronized (FILE_LOCK) {
-      try {
-        MasterCipher    cipher = new MasterCipher(masterSecret);
-        FileInputStream in     = new FileInputStream(getSessionFile(address));
-
-        int versionMarker  = readInteger(in);
-
-        if (versionMarker > CURRENT_VERSION) {
-          throw new AssertionError("Unknown version: " + versionMarker);
-        }
-
-        byte[] serialized = cipher.decryptBytes(readBlob(in));
-        in.close();
-
-        if (versionMarker == SINGLE_STATE_VERSION) {
-          SessionStructure sessionStructure = SessionStructure.parseFrom(serialized);
-          SessionState     sessionState     = new SessionState(sessionStructure);
-          return new SessionRecord(sessionState);
-        } else if (versionMarker == ARCHIVE_STATES_VERSION) {
-          return new SessionRecord(serialized);
-        } else {
-          throw new AssertionError("Unknown version: " + versionMarker);
-        }
-      } catch (InvalidMessageException | IOException e) {
-        Log.w(TAG, "No existing session information found.");
-        return new SessionRecord();
-      }
+    byte[] serialized = SessionRecordCache.getInstance(context).get(getSessionName(address), masterSecret);
+
+    if (serialized == null) {
+      Log.w(TAG, "No existing session information found.");
+      return new SessionRecord();
+    }
+
+    try {
+      return new SessionRecord(serialized);
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      return new SessionRecord();
     }
   }
 
   @Override
   public void storeSession(AxolotlAddress address, SessionRecord record) {
-    synchronized (FILE_LOCK) {
-      try {
-        MasterCipher     masterCipher = new MasterCipher(masterSecret);
-        RandomAccessFile sessionFile  = new RandomAccessFile(getSessionFile(address), "rw");
-        FileChannel      out          = sessionFile.getChannel();
-
-        out.position(0);
-        writeInteger(CURRENT_VERSION, out);
-        writeBlob(masterCipher.encryptBytes(record.serialize()), out);
-        out.truncate(out.position());
-
-        sessionFile.close();
-      } catch (IOException e) {
-        throw new AssertionError(e);
-      }
-    }
+    SessionRecordCache.getInstance(context).put(getSessionName(address), masterSecret, record.serialize());
   }
 
   @Override
   public boolean containsSession(AxolotlAddress address) {
-    return getSessionFile(address).exists() &&
+    return SessionRecordCache.getInstance(context).contains(getSessionName(address)) &&
            loadSession(address).getSessionState().hasSenderChain();
   }
 
   @Override
   public void deleteSession(AxolotlAddress address) {
-    getSessionFile(address).delete();
+    SessionRecordCache.getInstance(context).remove(getSessionName(address));
   }
 
   @Override
@@ -121,20 +89,14 @@ public class SMSSecureSessionStore implements SessionStore {
   @Override
   public List<Integer> getSubDeviceSessions(String name) {
     long          recipientId = RecipientFactory.getRecipientsFromString(context, name, true).getPrimaryRecipient().getRecipientId();
+    String        prefix      = recipientId + ".";
     List<Integer> results     = new LinkedList<>();
-    File          parent      = getSessionDirectory();
-    String[]      children    = parent.list();
 
-    if (children == null) return results;
+    for (String session : KeyRecordDatabase.getInstance(context).getNames(KeyRecordDatabase.TYPE_SESSION)) {
+      if (!session.startsWith(prefix)) continue;
 
-    for (String child : children) {
       try {
-        String[] parts              = child.split("[.]", 2);
-        long     sessionRecipientId = Long.parseLong(parts[0]);
-
-        if (sessionRecipientId == recipientId && parts.length > 1) {
-          results.add(Integer.parseInt(parts[1]));
-        }
+        results.add(Integer.parseInt(session.substring(prefix.length())));
       } catch (NumberFormatException e) {
         Log.w(TAG, e);
       }
@@ -143,22 +105,6 @@ public class SMSSecureSessionStore implements SessionStore {
     return results;
   }
 
-  private File getSessionFile(AxolotlAddress address) {
-    return new File(getSessionDirectory(), getSessionName(address));
-  }
-
-  private File getSessionDirectory() {
-    File directory = new File(context.getFilesDir(), SESSIONS_DIRECTORY_V2);
-
-    if (!directory.exists()) {
-      if (!directory.mkdirs()) {
-        Log.w(TAG, "Session directory creation failed!");
-      }
-    }
-
-    return directory;
-  }
-
   private String getSessionName(AxolotlAddress axolotlAddress) {
     Recipient recipient   = RecipientFactory.getRecipientsFromString(context, axolotlAddress.getName(), true)
                                           .getPrimaryRecipient();
@@ -168,28 +114,37 @@ public class SMSSecureSessionStore implements SessionStore {
     return recipientId + (deviceId == TextSecureAddress.DEFAULT_DEVICE_ID ? "" : "." + deviceId);
   }
 
-  private byte[] readBlob(FileInputStream in) throws IOException {
-    int length       = readInteger(in);
-    byte[] blobBytes = new byte[length];
+  /**
+   * @return the decrypted record, serialized in the current version's format
+   */
+  /*package*/ static byte[] decryptRecord(MasterSecret masterSecret, KeyRecordDatabase.Record record)
+      throws IOException
+  {
+    int versionMarker = record.getVersion();
 
-    in.read(blobBytes, 0, blobBytes.length);
-    return blobBytes;
-  }
-
-  private void writeBlob(byte[] blobBytes, FileChannel out) throws IOException {
-    writeInteger(blobBytes.length, out);
-    out.write(ByteBuffer.wrap(blobBytes));
-  }
+    if (versionMarker > CURRENT_VERSION) {
+      throw new AssertionError("Unknown version: " + versionMarker);
+    }
 
-  private int readInteger(FileInputStream in) throws IOException {
-    byte[] integer = new byte[4];
-    in.read(integer, 0, integer.length);
-    return Conversions.byteArrayToInt(integer);
+    try {
+      byte[] serialized = MasterCipher.getInstance(masterSecret).decryptBytes(record.getData());
+
+      if (versionMarker == SINGLE_STATE_VERSION) {
+        SessionStructure sessionStructure = SessionStructure.parseFrom(serialized);
+        SessionState     sessionState     = new SessionState(sessionStructure);
+        return new SessionRecord(sessionState).serialize();
+      } else if (versionMarker == ARCHIVE_STATES_VERSION) {
+        return serialized;
+      } else {
+        throw new AssertionError("Unknown version: " + versionMarker);
+      }
+    } catch (InvalidMessageException e) {
+      throw new IOException(e);
+    }
   }
 
-  private void writeInteger(int value, FileChannel out) throws IOException {
-    byte[] valueBytes = Conversions.intToByteArray(value);
-    out.write(ByteBuffer.wrap(valueBytes));
+  /*package*/ static KeyRecordDatabase.Record encryptRecord(MasterSecret masterSecret, byte[] serialized) {
+    return new KeyRecordDatabase.Record(CURRENT_VERSION, MasterCipher.getInstance(masterSecret).encryptBytes(serialized));
   }
 
 }
@@ -0,0 +1,144 @@
+package org.smssecure.smssecure.crypto.storage;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.database.KeyRecordDatabase;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decrypted, serialized session records, keyed by session name.
+ *
+ * Loads and stores of different sessions only contend on a short-lived map lock, while
+ * loads and stores of any one session are serialized by a striped lock.  Stores are
+ * written through before they return, since a session that's rolled back after a message
+ * was sent or received reuses chain keys.  Only reads are cached.  Records are held
+ * serialized rather than as SessionRecords, so every load gets its own copy to mutate.
+ *
+ * Every clear() starts a new generation, and a record read or written in an earlier one
+ * isn't cached, so a decrypt that finishes after the secret is locked can't put plaintext
+ * back into the cache.
+ */
+public class SessionRecordCache {
+
+  private static final String TAG = SessionRecordCache.class.getSimpleName();
+
+  private static final int MAX_RECORDS = 128;
+  private static final int LOCK_COUNT  = 16;
+
+  private static volatile SessionRecordCache instance;
+
+  private final Map<String, byte[]> records = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+      return size() > MAX_RECORDS;
+    }
+  };
+
+  private final KeyRecordDatabase database;
+  private final Object[]          locks = new Object[LOCK_COUNT];
+
+  private long generation;
+
+  public static SessionRecordCache getInstance(Context context) {
+    if (instance == null) {
+      synchronized (SessionRecordCache.class) {
+        if (instance == null) {
+          instance = new SessionRecordCache(KeyRecordDatabase.getInstance(context));
+        }
+      }
+    }
+
+    return instance;
+  }
+
+  private SessionRecordCache(KeyRecordDatabase database) {
+    this.database = database;
+
+    for (int i=0;i<LOCK_COUNT;i++) {
+      locks[i] = new Object();
+    }
+  }
+
+  /**
+   * @return the serialized record, or null if there isn't a readable one
+   */
+  public byte[] get(String name, MasterSecret masterSecret) {
+    byte[] record = getCached(name);
+
+    if (record != null) return record;
+
+    synchronized (lockFor(name)) {
+      long loadedGeneration = getGeneration();
+
+      record = getCached(name);
+
+      if (record == null) {
+        KeyRecordDatabase.Record stored = database.get(KeyRecordDatabase.TYPE_SESSION, name);
+
+        if (stored == null) return null;
+
+        try {
+          record = SMSSecureSessionStore.decryptRecord(masterSecret, stored);
+          cache(name, record, loadedGeneration);
+        } catch (IOException e) {
+          Log.w(TAG, e);
+        }
+      }
+
+      return record;
+    }
+  }
+
+  public void put(String name, MasterSecret masterSecret, byte[] record) {
+    synchronized (lockFor(name)) {
+      long storedGeneration = getGeneration();
+
+      database.put(KeyRecordDatabase.TYPE_SESSION, name, SMSSecureSessionStore.encryptRecord(masterSecret, record));
+      cache(name, record, storedGeneration);
+    }
+  }
+
+  public boolean contains(String name) {
+    synchronized (this) {
+      if (records.containsKey(name)) return true;
+    }
+
+    return database.contains(KeyRecordDatabase.TYPE_SESSION, name);
+  }
+
+  public void remove(String name) {
+    synchronized (lockFor(name)) {
+      database.delete(KeyRecordDatabase.TYPE_SESSION, name);
+
+      synchronized (this) {
+        records.remove(name);
+      }
+    }
+  }
+
+  public synchronized void clear() {
+    generation++;
+    records.clear();
+  }
+
+  private synchronized byte[] getCached(String name) {
+    return records.get(name);
+  }
+
+  private synchronized long getGeneration() {
+    return generation;
+  }
+
+  private synchronized void cache(String name, byte[] record, long recordGeneration) {
+    if (recordGeneration == generation) records.put(name, record);
+  }
+
+  private Object lockFor(String name) {
+    return locks[(name.hashCode() & 0x7fffffff) % LOCK_COUNT];
+  }
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.smssecure.smssecure.crypto.MasterCipher;
+import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.util.LinkedBlockingLifoQueue;
+import org.whispersystems.libaxolotl.InvalidMessageException;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decrypts the bodies of conversation rows around the visible window on a small
+ * background pool, so that binding those rows finds them in the {@link DecryptedBodyCache}.
+ *
+ * {@link #prefetch(Cursor, int, int)} must be called on the thread that owns the cursor.
+ * It only copies row ids there; bodies are read and decrypted on the pool.
+ */
+public class BodyPrefetcher {
+
+  private static final String TAG = BodyPrefetcher.class.getSimpleName();
+
+  private static final int ADJACENT_ROWS = 20;
+  private static final int POOL_SIZE     = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() - 1));
+
+  private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
+                                                                            30, TimeUnit.SECONDS,
+                                                                            new LinkedBlockingLifoQueue<Runnable>(),
+                                                                            new PrefetchThreadFactory());
+
+  static {
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  private final Context            context;
+  private final MasterSecret       masterSecret;
+  private final DecryptedBodyCache plaintextCache = DecryptedBodyCache.getInstance();
+  private final AtomicInteger      generation     = new AtomicInteger();
+
+  private int lastFirst = -1;
+  private int lastLast  = -1;
+
+  public BodyPrefetcher(Context context, MasterSecret masterSecret) {
+    this.context      = context.getApplicationContext();
+    this.masterSecret = masterSecret;
+  }
+
+  /**
+   * Queues decryption of every uncached, symmetrically encrypted body between
+   * first - {@value #ADJACENT_ROWS} and last + {@value #ADJACENT_ROWS}.  Work queued for an
+   * earlier window is dropped.  The cursor's position is restored before returning.
+   */
+  public void prefetch(Cursor cursor, int first, int last) {
+    if (masterSecret == null || cursor == null || cursor.isClosed()) return;
+    if (first == lastFirst && last == lastLast)                      return;
+
+    lastFirst = first;
+    lastLast  = last;
+
+    int        start           = Math.max(0, first - ADJACENT_ROWS);
+    int        end             = Math.min(cursor.getCount() - 1, last + ADJACENT_ROWS);
+    int        current         = generation.incrementAndGet();
+    int        position        = cursor.getPosition();
+    int        idColumn        = cursor.getColumnIndexOrThrow(MmsSmsColumns.ID);
+    int        transportColumn = cursor.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT);
+    List<Long> smsIds          = new LinkedList<>();
+    List<Long> mmsIds          = new LinkedList<>();
+
+    try {
+      for (int i=start;i<=end;i++) {
+        if (!cursor.moveToPosition(i)) break;
+
+        if (MmsSmsDatabase.MMS_TRANSPORT.equals(cursor.getString(transportColumn))) {
+          mmsIds.add(cursor.getLong(idColumn));
+        } else {
+          smsIds.add(cursor.getLong(idColumn));
+        }
+      }
+    } finally {
+      cursor.moveToPosition(position);
+    }
+
+    if (!smsIds.isEmpty()) {
+      executor.execute(new DecryptTask(current, DecryptedBodyCache.TYPE_SMS, smsIds));
+    }
+
+    if (!mmsIds.isEmpty()) {
+      executor.execute(new DecryptTask(current, DecryptedBodyCache.TYPE_MMS, mmsIds));
+    }
+  }
+
+  public void cancel() {
+    generation.incrementAndGet();
+    lastFirst = -1;
+    lastLast  = -1;
+  }
+
+  private class DecryptTask implements Runnable {
+    private final int        taskGeneration;
+    private final int        kind;
+    private final List<Long> ids;
+
+    private DecryptTask(int taskGeneration, int kind, List<Long> ids) {
+      this.taskGeneration = taskGeneration;
+      this.kind           = kind;
+      this.ids            = ids;
+    }
+
+    @Override
+    public void run() {
+      if (taskGeneration != generation.get()) return;
+
+      Cursor cursor = null;
+
+      try {
+        if (kind == DecryptedBodyCache.TYPE_MMS) {
+          cursor = DatabaseFactory.getMmsDatabase(context).getBodies(ids, MmsDatabase.MESSAGE_BOX);
+        } else {
+          cursor = DatabaseFactory.getSmsDatabase(context).getBodies(ids, SmsDatabase.TYPE);
+        }
+
+        while (cursor != null && cursor.moveToNext() && taskGeneration == generation.get()) {
+          long   id   = cursor.getLong(0);
+          String body = cursor.getString(1);
+          long   type = cursor.getLong(2);
+
+          if (!TextUtils.isEmpty(body)                        &&
+              MmsSmsColumns.Types.isSymmetricEncryption(type) &&
+              !plaintextCache.contains(kind, id, body))
+          {
+            decrypt(id, body);
+          }
+        }
+      } finally {
+        if (cursor != null)
+          cursor.close();
+      }
+    }
+
+    private void decrypt(long id, String ciphertext) {
+      try {
+        long   bodyGeneration = plaintextCache.getGeneration();
+        String plaintext      = MasterCipher.getInstance(masterSecret).decryptBody(ciphertext);
+        plaintextCache.put(kind, id, ciphertext, plaintext, bodyGeneration);
+      } catch (InvalidMessageException e) {
+        Log.w(TAG, e);
+      }
+    }
+  }
+
+  private static class PrefetchThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "BodyPrefetcher-" + count.incrementAndGet());
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    }
+  }
+}
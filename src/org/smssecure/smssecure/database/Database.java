@@ -18,6 +18,7 @@ package org.smssecure.smssecure.database;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
 
@@ -58,6 +59,27 @@ public abstract class Database {
     cursor.setNotificationUri(context.getContentResolver(), Uri.parse(CONVERSATION_LIST_URI));
   }
 
+  /**
+   * @return the id of the row offset rows past the first one after afterId, or -1 if there
+   *         are fewer rows than that.  This seeks on the primary key, so paging with it costs
+   *         the same no matter how far into the table a page starts.
+   */
+  protected long getIdAfter(String table, long afterId, int offset) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.rawQuery("SELECT _id FROM " + table + " WHERE _id > ? ORDER BY _id LIMIT 1 OFFSET " + offset,
+                           new String[] {afterId+""});
+
+      if (cursor != null && cursor.moveToFirst()) return cursor.getLong(0);
+      else                                        return -1;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
   public void reset(SQLiteOpenHelper databaseHelper) {
     this.databaseHelper = databaseHelper;
   }
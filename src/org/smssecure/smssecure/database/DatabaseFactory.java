@@ -60,7 +60,10 @@ public class DatabaseFactory {
   private static final int INTRODUCED_PART_DATA_SIZE_VERSION  = 14;
   private static final int INTRODUCED_THUMBNAILS_VERSION      = 15;
   private static final int INTRODUCED_IDENTITY_COLUMN_VERSION = 16;
-  private static final int DATABASE_VERSION                   = 16;
+  private static final int INTRODUCED_MESSAGE_INDEX_VERSION   = 17;
+  private static final int INTRODUCED_THREAD_COUNT_VERSION    = 18;
+  private static final int INTRODUCED_IMPORT_CHECKPOINT       = 19;
+  private static final int DATABASE_VERSION                   = 19;
 
   private static final String DATABASE_NAME    = "messages.db";
   private static final Object lock             = new Object();
@@ -81,6 +84,7 @@ public class DatabaseFactory {
   private final DraftDatabase draftDatabase;
   private final PushDatabase pushDatabase;
   private final GroupDatabase groupDatabase;
+  private final ImportCheckpointDatabase importCheckpointDatabase;
 
   public static DatabaseFactory getInstance(Context context) {
     synchronized (lock) {
@@ -139,6 +143,10 @@ public class DatabaseFactory {
     return getInstance(context).groupDatabase;
   }
 
+  public static ImportCheckpointDatabase getImportCheckpointDatabase(Context context) {
+    return getInstance(context).importCheckpointDatabase;
+  }
+
   private DatabaseFactory(Context context) {
     this.databaseHelper   = new DatabaseHelper(context, DATABASE_NAME, null, DATABASE_VERSION);
     this.sms              = new SmsDatabase(context, databaseHelper);
@@ -153,6 +161,7 @@ public class DatabaseFactory {
     this.draftDatabase    = new DraftDatabase(context, databaseHelper);
     this.pushDatabase     = new PushDatabase(context, databaseHelper);
     this.groupDatabase    = new GroupDatabase(context, databaseHelper);
+    this.importCheckpointDatabase = new ImportCheckpointDatabase(context, databaseHelper);
   }
 
   public void reset(Context context) {
@@ -170,6 +179,7 @@ public class DatabaseFactory {
     this.draftDatabase.reset(databaseHelper);
     this.pushDatabase.reset(databaseHelper);
     this.groupDatabase.reset(databaseHelper);
+    this.importCheckpointDatabase.reset(databaseHelper);
     old.close();
 
     this.address.reset(context);
@@ -479,6 +489,8 @@ public class DatabaseFactory {
       db.execSQL(DraftDatabase.CREATE_TABLE);
       db.execSQL(PushDatabase.CREATE_TABLE);
       db.execSQL(GroupDatabase.CREATE_TABLE);
+      db.execSQL(MmsSmsDatabase.CREATE_TABLE);
+      db.execSQL(ImportCheckpointDatabase.CREATE_TABLE);
 
       executeStatements(db, SmsDatabase.CREATE_INDEXS);
       executeStatements(db, MmsDatabase.CREATE_INDEXS);
@@ -487,6 +499,11 @@ public class DatabaseFactory {
       executeStatements(db, MmsAddressDatabase.CREATE_INDEXS);
       executeStatements(db, DraftDatabase.CREATE_INDEXS);
       executeStatements(db, GroupDatabase.CREATE_INDEXS);
+      executeStatements(db, MmsSmsDatabase.CREATE_INDEXS);
+
+      executeStatements(db, SmsDatabase.CREATE_TRIGGERS);
+      executeStatements(db, MmsDatabase.CREATE_TRIGGERS);
+      executeStatements(db, ThreadDatabase.CREATE_TRIGGERS);
     }
 
     @Override
@@ -717,6 +734,43 @@ public class DatabaseFactory {
         db.execSQL("ALTER TABLE mms ADD COLUMN network_failures TEXT");
       }
 
+      if (oldVersion < INTRODUCED_MESSAGE_INDEX_VERSION) {
+        db.execSQL("CREATE TABLE message_index (_id INTEGER PRIMARY KEY, thread_id INTEGER, date_received INTEGER, transport_type TEXT, message_id INTEGER, read INTEGER DEFAULT 0);");
+        executeStatements(db, new String[] {
+            "CREATE INDEX IF NOT EXISTS message_index_thread_date_index ON message_index (thread_id,date_received);",
+            "CREATE INDEX IF NOT EXISTS message_index_read_date_index ON message_index (read,date_received);",
+            "CREATE UNIQUE INDEX IF NOT EXISTS message_index_message_index ON message_index (transport_type,message_id);"
+        });
+
+        db.execSQL("INSERT INTO message_index (thread_id, date_received, transport_type, message_id, read) " +
+                   "SELECT thread_id, date, 'sms', _id, read FROM sms;");
+        db.execSQL("INSERT INTO message_index (thread_id, date_received, transport_type, message_id, read) " +
+                   "SELECT thread_id, date_received * 1000, 'mms', _id, read FROM mms;");
+
+        executeStatements(db, new String[] {
+            "CREATE TRIGGER IF NOT EXISTS sms_message_index_insert AFTER INSERT ON sms BEGIN INSERT INTO message_index (thread_id, date_received, transport_type, message_id, read) VALUES (new.thread_id, new.date, 'sms', new._id, new.read); END;",
+            "CREATE TRIGGER IF NOT EXISTS sms_message_index_update AFTER UPDATE OF thread_id, date, read ON sms BEGIN UPDATE message_index SET thread_id = new.thread_id, date_received = new.date, read = new.read WHERE transport_type = 'sms' AND message_id = new._id; END;",
+            "CREATE TRIGGER IF NOT EXISTS sms_message_index_delete AFTER DELETE ON sms BEGIN DELETE FROM message_index WHERE transport_type = 'sms' AND message_id = old._id; END;",
+            "CREATE TRIGGER IF NOT EXISTS mms_message_index_insert AFTER INSERT ON mms BEGIN INSERT INTO message_index (thread_id, date_received, transport_type, message_id, read) VALUES (new.thread_id, new.date_received * 1000, 'mms', new._id, new.read); END;",
+            "CREATE TRIGGER IF NOT EXISTS mms_message_index_update AFTER UPDATE OF thread_id, date_received, read ON mms BEGIN UPDATE message_index SET thread_id = new.thread_id, date_received = new.date_received * 1000, read = new.read WHERE transport_type = 'mms' AND message_id = new._id; END;",
+            "CREATE TRIGGER IF NOT EXISTS mms_message_index_delete AFTER DELETE ON mms BEGIN DELETE FROM message_index WHERE transport_type = 'mms' AND message_id = old._id; END;"
+        });
+      }
+
+      if (oldVersion < INTRODUCED_THREAD_COUNT_VERSION) {
+        db.execSQL("UPDATE thread SET message_count = (SELECT COUNT(*) FROM message_index WHERE message_index.thread_id = thread._id);");
+
+        executeStatements(db, new String[] {
+            "CREATE TRIGGER IF NOT EXISTS thread_message_count_insert AFTER INSERT ON message_index BEGIN UPDATE thread SET message_count = message_count + 1 WHERE _id = new.thread_id; END;",
+            "CREATE TRIGGER IF NOT EXISTS thread_message_count_delete AFTER DELETE ON message_index BEGIN UPDATE thread SET message_count = message_count - 1 WHERE _id = old.thread_id; END;",
+            "CREATE TRIGGER IF NOT EXISTS thread_message_count_move AFTER UPDATE OF thread_id ON message_index WHEN old.thread_id != new.thread_id BEGIN UPDATE thread SET message_count = message_count - 1 WHERE _id = old.thread_id; UPDATE thread SET message_count = message_count + 1 WHERE _id = new.thread_id; END;"
+        });
+      }
+
+      if (oldVersion < INTRODUCED_IMPORT_CHECKPOINT) {
+        db.execSQL("CREATE TABLE import_checkpoint (_id INTEGER PRIMARY KEY, file TEXT, items INTEGER, threads TEXT);");
+      }
+
       db.setTransactionSuccessful();
       db.endTransaction();
     }
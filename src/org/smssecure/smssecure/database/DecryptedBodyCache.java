@@ -0,0 +1,208 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.database;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of decrypted message bodies, keyed by (type, row id).
+ *
+ * Entries are held strongly and evicted in LRU order once a stripe exceeds its share of
+ * the byte budget.  Each stripe has its own lock, so readers on different threads rarely
+ * contend.  Since row ids can be reused, every entry remembers the trailing MAC characters
+ * of the ciphertext it was decrypted from, and a lookup only hits if those still match.
+ *
+ * Every clear() starts a new generation.  Callers take the generation before they decrypt
+ * or encrypt a body and pass it to put(), which drops bodies from an earlier generation,
+ * so a decrypt that finishes after the secret is locked can't put plaintext back.
+ */
+public class DecryptedBodyCache {
+
+  public static final int TYPE_SMS     = 0;
+  public static final int TYPE_MMS     = 1;
+  public static final int TYPE_SNIPPET = 2;
+
+  private static final int STRIPE_COUNT    = 16;
+  private static final int TAG_LENGTH      = 28;
+  private static final int ENTRY_OVERHEAD  = 96;
+  private static final long MAX_BYTES      = Math.min(Runtime.getRuntime().maxMemory() / 32,
+                                                      4 * 1024 * 1024);
+
+  private static final DecryptedBodyCache instance = new DecryptedBodyCache(MAX_BYTES);
+
+  private final Stripe[]   stripes;
+  private final AtomicLong hits       = new AtomicLong();
+  private final AtomicLong misses     = new AtomicLong();
+  private final AtomicLong generation = new AtomicLong();
+
+  public static DecryptedBodyCache getInstance() {
+    return instance;
+  }
+
+  /*package*/ DecryptedBodyCache(long maxBytes) {
+    this.stripes = new Stripe[STRIPE_COUNT];
+
+    for (int i=0;i<STRIPE_COUNT;i++) {
+      stripes[i] = new Stripe(Math.max(1, maxBytes / STRIPE_COUNT));
+    }
+  }
+
+  public String get(int type, long id, String ciphertext) {
+    Stripe stripe = stripeFor(id);
+    Entry  entry;
+
+    synchronized (stripe) {
+      entry = stripe.entries.get(keyFor(type, id));
+    }
+
+    if (entry != null && entry.matches(ciphertext)) {
+      hits.incrementAndGet();
+      return entry.plaintext;
+    }
+
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Like {@link #get(int, long, String)}, but without counting a hit or miss.
+   */
+  public boolean contains(int type, long id, String ciphertext) {
+    Stripe stripe = stripeFor(id);
+    Entry  entry;
+
+    synchronized (stripe) {
+      entry = stripe.entries.get(keyFor(type, id));
+    }
+
+    return entry != null && entry.matches(ciphertext);
+  }
+
+  /**
+   * @return the generation to pass to {@link #put(int, long, String, String, long)}, taken
+   *         before the body is decrypted or encrypted
+   */
+  public long getGeneration() {
+    return generation.get();
+  }
+
+  public void put(int type, long id, String ciphertext, String plaintext, long bodyGeneration) {
+    Stripe stripe = stripeFor(id);
+    Entry  entry  = new Entry(ciphertext, plaintext);
+
+    synchronized (stripe) {
+      // clear() moves on to the next generation before it takes any stripe's lock
+      if (bodyGeneration != generation.get()) return;
+
+      Entry previous = stripe.entries.put(keyFor(type, id), entry);
+
+      if (previous != null) stripe.size -= previous.size;
+      stripe.size += entry.size;
+      stripe.trim();
+    }
+  }
+
+  public void remove(int type, long id) {
+    Stripe stripe = stripeFor(id);
+
+    synchronized (stripe) {
+      Entry previous = stripe.entries.remove(keyFor(type, id));
+      if (previous != null) stripe.size -= previous.size;
+    }
+  }
+
+  public void clear() {
+    generation.incrementAndGet();
+
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        stripe.entries.clear();
+        stripe.size = 0;
+      }
+    }
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public long getSize() {
+    long size = 0;
+
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        size += stripe.size;
+      }
+    }
+
+    return size;
+  }
+
+  private Stripe stripeFor(long id) {
+    int hash = (int)(id ^ (id >>> 32));
+    return stripes[(hash ^ (hash >>> 16)) & (STRIPE_COUNT - 1)];
+  }
+
+  private static Long keyFor(int type, long id) {
+    return (id << 2) | type;
+  }
+
+  private static class Stripe {
+    private final Map<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final long             maxBytes;
+    private long                   size;
+
+    private Stripe(long maxBytes) {
+      this.maxBytes = maxBytes;
+    }
+
+    private void trim() {
+      Iterator<Entry> iterator = entries.values().iterator();
+
+      while (size > maxBytes && iterator.hasNext()) {
+        size -= iterator.next().size;
+        iterator.remove();
+      }
+    }
+  }
+
+  private static class Entry {
+    private final String plaintext;
+    private final String tag;
+    private final int    ciphertextLength;
+    private final int    size;
+
+    private Entry(String ciphertext, String plaintext) {
+      this.plaintext        = plaintext;
+      this.ciphertextLength = ciphertext.length();
+      this.tag              = ciphertext.substring(Math.max(0, ciphertextLength - TAG_LENGTH));
+      this.size             = ENTRY_OVERHEAD + 2 * (plaintext.length() + tag.length());
+    }
+
+    private boolean matches(String ciphertext) {
+      return ciphertext.length() == ciphertextLength &&
+             ciphertext.regionMatches(ciphertextLength - tag.length(), tag, 0, tag.length());
+    }
+  }
+}
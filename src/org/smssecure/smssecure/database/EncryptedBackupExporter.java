@@ -16,26 +16,98 @@
  */
 package org.smssecure.smssecure.database;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseErrorHandler;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Build;
 import android.os.Environment;
 import android.util.Log;
 
+import org.smssecure.smssecure.util.Hex;
+import org.smssecure.smssecure.util.VisibleForTesting;
+
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
+/**
+ * Copies the app's data directory, which only holds encrypted data, to and from external
+ * storage.
+ *
+ * Exports are incremental.  The export directory holds a manifest of the size, modification
+ * time and SHA-256 of every file it was last exported from, and only files whose size or
+ * modification time have changed since are copied again, so an export costs what's changed
+ * rather than the whole parts directory.  Databases are copied in chunks, each read under
+ * a brief write lock, and copied again if a write lands between chunks, so the copy is a
+ * consistent snapshot rather than whatever a concurrent write left on disk.  Databases in
+ * write-ahead logging mode are checkpointed first, so their committed writes are in the
+ * database file itself, and the log and its index are never exported.  Imports check every
+ * file against the manifest before replacing anything.
+ */
 public class EncryptedBackupExporter {
 
+  private static final String TAG = EncryptedBackupExporter.class.getSimpleName();
+
+  private static final String MANIFEST       = ".manifest";
+  private static final String TEMP_SUFFIX    = ".backup-tmp";
+  private static final String JOURNAL_SUFFIX = "-journal";
+  private static final String WAL_SUFFIX     = "-wal";
+  private static final String SHM_SUFFIX     = "-shm";
+  private static final String DATABASES      = "databases";
+
+  private static final String[] SKIPPED_SUFFIXES = {TEMP_SUFFIX, JOURNAL_SUFFIX, WAL_SUFFIX, SHM_SUFFIX};
+
+  private static final byte[] SQLITE_MAGIC = {'S', 'Q', 'L', 'i', 't', 'e', ' ', 'f', 'o', 'r', 'm', 'a', 't', ' ', '3', 0};
+
+  private static final int SNAPSHOT_CHUNK_SIZE   = 128 * 1024;
+  private static final int SNAPSHOT_ATTEMPTS     = 5;
+  private static final int HEADER_SIZE           = 100;
+  private static final int READ_VERSION_OFFSET   = 19;
+  private static final int READ_VERSION_WAL      = 2;
+  private static final int CHANGE_COUNTER_OFFSET = 24;
+
   public static void exportToSd(Context context) throws NoExternalStorageException, IOException {
     verifyExternalStorageForExport();
-    exportDirectory(context, "");
+    exportDirectory(getDataDirectory(context), new File(getExportDirectoryPath()));
   }
 
   public static void importFromSd(Context context) throws NoExternalStorageException, IOException {
     verifyExternalStorageForImport();
-    importDirectory(context, "");
+
+    File exportDirectory = new File(getExportDirectoryPath());
+
+    if (new File(exportDirectory, MANIFEST).exists()) {
+      importDirectory(exportDirectory, getDataDirectory(context));
+    } else {
+      Log.w(TAG, "No manifest, importing an unverified backup");
+      importUnverifiedDirectory(context, "");
+    }
+  }
+
+  private static File getDataDirectory(Context context) {
+    return context.getFilesDir().getParentFile();
   }
 
   private static String getExportDirectoryPath() {
@@ -60,46 +132,101 @@ public class EncryptedBackupExporter {
         throw new NoExternalStorageException();
   }
 
-  private static void migrateFile(File from, File to) {
-    try {
-      if (from.exists()) {
-        FileChannel source      = new FileInputStream(from).getChannel();
-        FileChannel destination = new FileOutputStream(to).getChannel();
+  /**
+   * @return the number of files that had to be copied
+   */
+  @VisibleForTesting static int exportDirectory(File directory, File exportDirectory) throws IOException {
+    File     manifestFile = new File(exportDirectory, MANIFEST);
+    Manifest previous     = Manifest.read(manifestFile);
+    Manifest current      = new Manifest();
+    int      copied       = 0;
 
-        destination.transferFrom(source, 0, source.size());
-        source.close();
-        destination.close();
+    for (String path : listFiles(directory, "", new LinkedList<String>())) {
+      File           localFile    = new File(directory, path);
+      File           exportedFile = new File(exportDirectory, path);
+      Manifest.Entry entry        = previous.get(path);
+      byte[]         header       = readDatabaseHeader(localFile);
+      SQLiteDatabase db           = header != null ? openDatabase(localFile, isWalMode(header)) : null;
+
+      try {
+        if (db != null && isWalMode(header)) {
+          // Writes committed to the log don't touch the database file until a checkpoint
+          checkpoint(db);
+        }
+
+        if (entry != null && entry.isCurrentFor(localFile) && exportedFile.length() == entry.size) {
+          current.put(path, entry);
+          continue;
+        }
+
+        File temp = getTempFile(exportedFile);
+
+        try {
+          if (db != null) entry = snapshotDatabase(db, localFile, temp);
+          else            entry = copy(localFile, temp);
+
+          move(temp, exportedFile);
+        } finally {
+          delete(temp);
+        }
+      } finally {
+        if (db != null) db.close();
       }
-    } catch (IOException ioe) {
-      Log.w("EncryptedBackupExporter", ioe);
+
+      current.put(path, entry);
+      copied++;
     }
+
+    for (String path : previous.getPaths()) {
+      if (current.get(path) == null) {
+        delete(new File(exportDirectory, path));
+      }
+    }
+
+    current.write(manifestFile);
+
+    Log.w(TAG, "Exported " + copied + " of " + current.getPaths().size() + " files");
+    return copied;
   }
 
-  private static void exportDirectory(Context context, String directoryName) throws IOException {
-    File directory       = new File(context.getFilesDir().getParent() + File.separatorChar + directoryName);
-    File exportDirectory = new File(getExportDirectoryPath() + File.separatorChar + directoryName);
+  /**
+   * Copies every file in the manifest into place, but only once all of them have been
+   * read back and found to match it, so a damaged backup leaves the existing data alone.
+   */
+  @VisibleForTesting static void importDirectory(File exportDirectory, File directory) throws IOException {
+    Manifest   manifest = Manifest.read(new File(exportDirectory, MANIFEST));
+    List<File> staged   = new LinkedList<>();
 
-    if (directory.exists()) {
-      exportDirectory.mkdirs();
+    try {
+      for (String path : manifest.getPaths()) {
+        Manifest.Entry expected = manifest.get(path);
+        File           temp     = getTempFile(new File(directory, path));
 
-      File[] contents = directory.listFiles();
+        staged.add(temp);
 
-      for (int i=0;i<contents.length;i++) {
-        File localFile = contents[i];
+        Manifest.Entry actual = copy(new File(exportDirectory, path), temp);
 
-        if (localFile.isFile()) {
-          File exportedFile = new File(exportDirectory.getAbsolutePath() + File.separator + localFile.getName());
-          migrateFile(localFile, exportedFile);
-        } else {
-          exportDirectory(context, directoryName + File.separator + localFile.getName());
+        if (actual.size != expected.size || !actual.hash.equals(expected.hash)) {
+          throw new IOException("Backup file doesn't match its manifest: " + path);
         }
       }
-    } else {
-      Log.w("EncryptedBackupExporter", "Could not find directory: " + directory.getAbsolutePath());
+
+      int index = 0;
+
+      for (String path : manifest.getPaths()) {
+        move(staged.get(index++), new File(directory, path));
+      }
+    } finally {
+      for (File temp : staged) {
+        delete(temp);
+      }
     }
   }
 
-  private static void importDirectory(Context context, String directoryName) throws IOException {
+  /**
+   * Backups made before there was a manifest are copied in as they are.
+   */
+  private static void importUnverifiedDirectory(Context context, String directoryName) throws IOException {
     File directory       = new File(getExportDirectoryPath() + File.separator + directoryName);
     File importDirectory = new File(context.getFilesDir().getParent() + File.separator + directoryName);
 
@@ -113,8 +240,447 @@ public class EncryptedBackupExporter {
           File localFile = new File(importDirectory.getAbsolutePath() + File.separator + exportedFile.getName());
           migrateFile(exportedFile, localFile);
         } else if (exportedFile.isDirectory()) {
-          importDirectory(context, directoryName + File.separator + exportedFile.getName());
+          importUnverifiedDirectory(context, directoryName + File.separator + exportedFile.getName());
+        }
+      }
+    }
+  }
+
+  private static void migrateFile(File from, File to) {
+    try {
+      if (from.exists()) {
+        FileChannel source      = new FileInputStream(from).getChannel();
+        FileChannel destination = new FileOutputStream(to).getChannel();
+
+        destination.transferFrom(source, 0, source.size());
+        source.close();
+        destination.close();
+      }
+    } catch (IOException ioe) {
+      Log.w(TAG, ioe);
+    }
+  }
+
+  private static List<String> listFiles(File directory, String prefix, List<String> results) {
+    File[] contents = directory.listFiles();
+
+    if (contents == null) {
+      Log.w(TAG, "Could not list directory: " + directory.getAbsolutePath());
+      return results;
+    }
+
+    for (File file : contents) {
+      String path = prefix + file.getName();
+
+      if (file.isDirectory()) {
+        listFiles(file, path + File.separator, results);
+      } else if (!isSkipped(file)) {
+        results.add(path);
+      }
+    }
+
+    return results;
+  }
+
+  /**
+   * Rollback journals, write-ahead logs and their shared memory index only mean anything to
+   * the connections that have the database open, so they're never exported.
+   */
+  private static boolean isSkipped(File file) {
+    for (String suffix : SKIPPED_SUFFIXES) {
+      if (file.getName().endsWith(suffix)) return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * @return the header of the file if it's a database in the databases directory, or null
+   */
+  private static byte[] readDatabaseHeader(File file) throws IOException {
+    if (!DATABASES.equals(file.getParentFile().getName()) || file.length() < HEADER_SIZE) {
+      return null;
+    }
+
+    byte[]      header = new byte[HEADER_SIZE];
+    InputStream in     = new FileInputStream(file);
+
+    try {
+      int offset = 0;
+      int read;
+
+      while (offset < header.length && (read = in.read(header, offset, header.length - offset)) != -1) {
+        offset += read;
+      }
+
+      if (offset < header.length) return null;
+    } finally {
+      in.close();
+    }
+
+    return Arrays.equals(Arrays.copyOf(header, SQLITE_MAGIC.length), SQLITE_MAGIC) ? header : null;
+  }
+
+  private static boolean isWalMode(byte[] header) {
+    return header[READ_VERSION_OFFSET] == READ_VERSION_WAL;
+  }
+
+  /**
+   * Opens a database the app has open too.  The connection has to be able to write, since
+   * only a writer can take the lock that holds other writers off, or checkpoint the log,
+   * but it never changes anything: it keeps the journal mode the database already has, and
+   * logs corruption rather than deleting the file as the default handler would.
+   */
+  private static SQLiteDatabase openDatabase(File database, boolean walMode) throws IOException {
+    int flags = SQLiteDatabase.OPEN_READWRITE;
+
+    if (walMode && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+      flags |= SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING;
+    }
+
+    try {
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+        return openDatabaseWithoutDeleting(database, flags);
+      }
+
+      return SQLiteDatabase.openDatabase(database.getPath(), null, flags);
+    } catch (SQLiteException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+  private static SQLiteDatabase openDatabaseWithoutDeleting(File database, int flags) {
+    return SQLiteDatabase.openDatabase(database.getPath(), null, flags, new DatabaseErrorHandler() {
+      @Override
+      public void onCorruption(SQLiteDatabase db) {
+        Log.w(TAG, "Database is corrupt, leaving it as it is: " + db.getPath());
+      }
+    });
+  }
+
+  /**
+   * Copies every write committed to the log into the database file.  A reader still using
+   * older writes can hold it up, in which case the snapshot finds the log isn't fully
+   * checkpointed and tries again.
+   */
+  private static void checkpoint(SQLiteDatabase db) throws IOException {
+    Cursor cursor = null;
+
+    try {
+      cursor = db.rawQuery("PRAGMA wal_checkpoint(FULL)", null);
+
+      if (cursor.moveToFirst() && cursor.getInt(0) != 0) {
+        Log.w(TAG, "Checkpoint of " + db.getPath() + " was held up by a reader");
+      }
+    } catch (SQLiteException e) {
+      throw new IOException(e);
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  /**
+   * Copies a database a chunk at a time, taking its write lock only while each chunk is read
+   * into memory, so the app's writers wait for at most one chunk rather than the whole copy.
+   * With the lock held no other connection can be part way through writing the file.  The
+   * header's change counter, and in write-ahead logging mode the log's index, are compared
+   * under every chunk's lock, and the copy starts over if a write was committed or
+   * checkpointed between chunks, so the result is still a consistent snapshot.
+   */
+  private static Manifest.Entry snapshotDatabase(SQLiteDatabase db, File database, File to) throws IOException {
+    try {
+      for (int attempt=0;attempt<SNAPSHOT_ATTEMPTS;attempt++) {
+        if (attempt > 0) {
+          byte[] header = readDatabaseHeader(database);
+          if (header != null && isWalMode(header)) checkpoint(db);
+        }
+
+        Manifest.Entry entry = copyDatabase(db, database, to);
+
+        if (entry != null) return entry;
+        else               Log.w(TAG, database.getName() + " changed while it was copied, starting over");
+      }
+
+      throw new IOException("Couldn't snapshot " + database.getName() + ", it kept changing");
+    } catch (SQLiteException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * @return the entry describing the copy, or null if the database changed during it
+   */
+  private static Manifest.Entry copyDatabase(SQLiteDatabase db, File database, File to) throws IOException {
+    RandomAccessFile in       = new RandomAccessFile(database, "r");
+    OutputStream     out      = new FileOutputStream(to);
+    MessageDigest    digest   = getDigest();
+    byte[]           buffer   = new byte[SNAPSHOT_CHUNK_SIZE];
+    long             size     = -1;
+    long             modified = 0;
+    long             position = 0;
+    int              counter  = 0;
+    WalIndex         walIndex = null;
+
+    try {
+      do {
+        int read;
+
+        beginWriteLock(db);
+
+        try {
+          if (size == -1) {
+            size     = in.length();
+            modified = database.lastModified();
+            counter  = readChangeCounter(in);
+            walIndex = WalIndex.read(database);
+
+            if (walIndex != null && !walIndex.isCheckpointed()) return null;
+          } else if (in.length() != size || readChangeCounter(in) != counter ||
+                     !WalIndex.equals(walIndex, WalIndex.read(database))) {
+            return null;
+          }
+
+          read = (int)Math.min(buffer.length, size - position);
+
+          in.seek(position);
+          in.readFully(buffer, 0, read);
+        } finally {
+          db.endTransaction();
         }
+
+        digest.update(buffer, 0, read);
+        out.write(buffer, 0, read);
+        position += read;
+      } while (position < size);
+    } finally {
+      in.close();
+      out.close();
+    }
+
+    return new Manifest.Entry(size, modified, Hex.toStringCondensed(digest.digest()));
+  }
+
+  /**
+   * Takes the lock that keeps other connections from writing, but lets them keep reading
+   * where that's supported.
+   */
+  private static void beginWriteLock(SQLiteDatabase db) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) db.beginTransactionNonExclusive();
+    else                                                          db.beginTransaction();
+  }
+
+  /**
+   * @return the file change counter from the database header, which every committed write
+   *         increments
+   */
+  private static int readChangeCounter(RandomAccessFile database) throws IOException {
+    if (database.length() < CHANGE_COUNTER_OFFSET + 4) return 0;
+
+    database.seek(CHANGE_COUNTER_OFFSET);
+    return database.readInt();
+  }
+
+  /**
+   * The header of a write-ahead log's shared memory index, which counts the transactions
+   * committed to the log, the frames it holds, and how many of them have been copied into
+   * the database file.  The database file only changes when the last of those does.
+   *
+   * @see <a href="https://www.sqlite.org/walformat.html">The WAL-index format</a>
+   */
+  private static class WalIndex {
+    private static final int SIZE              = 100;
+    private static final int CHANGE_OFFSET     = 8;
+    private static final int MAX_FRAME_OFFSET  = 16;
+    private static final int BACKFILLED_OFFSET = 96;
+
+    private final int change;
+    private final int maxFrame;
+    private final int backfilled;
+
+    private WalIndex(int change, int maxFrame, int backfilled) {
+      this.change     = change;
+      this.maxFrame   = maxFrame;
+      this.backfilled = backfilled;
+    }
+
+    /**
+     * @return the index of the database's log, or null if it isn't in write-ahead logging
+     *         mode or has no log
+     */
+    static WalIndex read(File database) throws IOException {
+      File index = new File(database.getPath() + SHM_SUFFIX);
+
+      if (!index.exists() || index.length() < SIZE) return null;
+
+      RandomAccessFile in     = new RandomAccessFile(index, "r");
+      byte[]           header = new byte[SIZE];
+
+      try {
+        in.readFully(header);
+      } finally {
+        in.close();
+      }
+
+      // The index is only ever shared on this device, so it's in native byte order
+      ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.nativeOrder());
+
+      return new WalIndex(buffer.getInt(CHANGE_OFFSET), buffer.getInt(MAX_FRAME_OFFSET),
+                          buffer.getInt(BACKFILLED_OFFSET));
+    }
+
+    static boolean equals(WalIndex one, WalIndex two) {
+      if (one == null || two == null) return one == two;
+
+      return one.change == two.change && one.maxFrame == two.maxFrame && one.backfilled == two.backfilled;
+    }
+
+    boolean isCheckpointed() {
+      return backfilled == maxFrame;
+    }
+  }
+
+  /**
+   * @return the entry describing the copied file, as of when the copy started
+   */
+  private static Manifest.Entry copy(File from, File to) throws IOException {
+    long          modified = from.lastModified();
+    long          size     = 0;
+    MessageDigest digest   = getDigest();
+    InputStream   in       = new FileInputStream(from);
+    OutputStream  out      = new FileOutputStream(to);
+    byte[]        buffer   = new byte[8192];
+    int           read;
+
+    try {
+      while ((read = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+        out.write(buffer, 0, read);
+        size += read;
+      }
+    } finally {
+      in.close();
+      out.close();
+    }
+
+    return new Manifest.Entry(size, modified, Hex.toStringCondensed(digest.digest()));
+  }
+
+  private static File getTempFile(File file) throws IOException {
+    File parent = file.getParentFile();
+
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Couldn't create " + parent.getAbsolutePath());
+    }
+
+    return new File(parent, file.getName() + TEMP_SUFFIX);
+  }
+
+  private static void move(File from, File to) throws IOException {
+    if (!from.renameTo(to) && !(to.delete() && from.renameTo(to))) {
+      throw new IOException("Couldn't move " + from.getName() + " into place");
+    }
+  }
+
+  private static void delete(File file) {
+    if (file.exists() && !file.delete()) {
+      Log.w(TAG, "Couldn't delete " + file.getAbsolutePath());
+    }
+  }
+
+  private static MessageDigest getDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * One line per exported file: its SHA-256, size, modification time and path relative to
+   * the data directory, separated by spaces.  The path comes last since it may contain them.
+   */
+  @VisibleForTesting static class Manifest {
+    private static final String VERSION = "1";
+
+    private final Map<String, Entry> entries = new TreeMap<>();
+
+    static Manifest read(File file) throws IOException {
+      Manifest manifest = new Manifest();
+
+      if (!file.exists()) return manifest;
+
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+
+      try {
+        if (!VERSION.equals(reader.readLine())) {
+          Log.w(TAG, "Unknown manifest version, ignoring it");
+          return manifest;
+        }
+
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+          String[] fields = line.split(" ", 4);
+
+          if (fields.length != 4) throw new IOException("Malformed manifest line: " + line);
+
+          manifest.put(fields[3], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[0]));
+        }
+      } catch (NumberFormatException e) {
+        throw new IOException(e);
+      } finally {
+        reader.close();
+      }
+
+      return manifest;
+    }
+
+    void write(File file) throws IOException {
+      File   temp   = getTempFile(file);
+      Writer writer = new FileWriter(temp);
+
+      try {
+        writer.write(VERSION);
+        writer.write('\n');
+
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+          writer.write(entry.getValue().hash + " " + entry.getValue().size + " " +
+                       entry.getValue().modified + " " + entry.getKey() + "\n");
+        }
+      } finally {
+        writer.close();
+      }
+
+      move(temp, file);
+    }
+
+    Entry get(String path) {
+      return entries.get(path);
+    }
+
+    void put(String path, Entry entry) {
+      entries.put(path, entry);
+    }
+
+    Set<String> getPaths() {
+      return entries.keySet();
+    }
+
+    static class Entry {
+      final long   size;
+      final long   modified;
+      final String hash;
+
+      Entry(long size, long modified, String hash) {
+        this.size     = size;
+        this.modified = modified;
+        this.hash     = hash;
+      }
+
+      boolean isCurrentFor(File file) {
+        return file.length() == size && file.lastModified() == modified;
       }
     }
   }
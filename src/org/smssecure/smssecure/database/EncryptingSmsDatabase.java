@@ -29,19 +29,18 @@ import org.smssecure.smssecure.database.model.DisplayRecord;
 import org.smssecure.smssecure.database.model.SmsMessageRecord;
 import org.smssecure.smssecure.sms.IncomingTextMessage;
 import org.smssecure.smssecure.sms.OutgoingTextMessage;
-import org.smssecure.smssecure.util.LRUCache;
 import org.whispersystems.libaxolotl.InvalidMessageException;
 import org.smssecure.smssecure.crypto.MasterCipher;
 import org.smssecure.smssecure.crypto.MasterSecret;
 
-import java.lang.ref.SoftReference;
-import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
 public class EncryptingSmsDatabase extends SmsDatabase {
 
-  private final PlaintextCache plaintextCache = new PlaintextCache();
+  private final DecryptedBodyCache plaintextCache = DecryptedBodyCache.getInstance();
 
   public EncryptingSmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
@@ -53,36 +52,51 @@ public class EncryptingSmsDatabase extends SmsDatabase {
   }
 
   private String getEncryptedBody(MasterSecret masterSecret, String body) {
-    MasterCipher bodyCipher = new MasterCipher(masterSecret);
-    String ciphertext       = bodyCipher.encryptBody(body);
-    plaintextCache.put(ciphertext, body);
-
-    return ciphertext;
+    MasterCipher bodyCipher = MasterCipher.getInstance(masterSecret);
+    return bodyCipher.encryptBody(body);
   }
 
   public long insertMessageOutbox(MasterSecret masterSecret, long threadId,
                                   OutgoingTextMessage message, boolean forceSms)
   {
-    long type = Types.BASE_OUTBOX_TYPE;
-    message   = message.withBody(getEncryptedBody(masterSecret, message.getMessageBody()));
+    long   type       = Types.BASE_OUTBOX_TYPE;
+    long   generation = plaintextCache.getGeneration();
+    String plaintext  = message.getMessageBody();
+    String ciphertext = getEncryptedBody(masterSecret, plaintext);
+
+    message   = message.withBody(ciphertext);
     type     |= Types.ENCRYPTION_SYMMETRIC_BIT;
 
-    return insertMessageOutbox(threadId, message, type, forceSms);
+    long messageId = insertMessageOutbox(threadId, message, type, forceSms);
+    plaintextCache.put(DecryptedBodyCache.TYPE_SMS, messageId, ciphertext, plaintext, generation);
+
+    return messageId;
   }
 
   public Pair<Long, Long> insertMessageInbox(MasterSecret masterSecret,
                                              IncomingTextMessage message)
   {
-    long type = Types.BASE_INBOX_TYPE;
+    long   type       = Types.BASE_INBOX_TYPE;
+    long   generation = plaintextCache.getGeneration();
+    String plaintext  = null;
+    String ciphertext = null;
 
-    if (masterSecret == null && message.isSecureMessage()) {
+    if (masterSecret == null) {
       type |= Types.ENCRYPTION_REMOTE_BIT;
     } else {
-      type |= Types.ENCRYPTION_SYMMETRIC_BIT;
-      message = message.withMessageBody(getEncryptedBody(masterSecret, message.getMessageBody()));
+      type      |= Types.ENCRYPTION_SYMMETRIC_BIT;
+      plaintext  = message.getMessageBody();
+      ciphertext = getEncryptedBody(masterSecret, plaintext);
+      message    = message.withMessageBody(ciphertext);
     }
 
-    return insertMessageInbox(message, type);
+    Pair<Long, Long> messageAndThreadId = insertMessageInbox(message, type);
+
+    if (ciphertext != null && messageAndThreadId.first != -1) {
+      plaintextCache.put(DecryptedBodyCache.TYPE_SMS, messageAndThreadId.first, ciphertext, plaintext, generation);
+    }
+
+    return messageAndThreadId;
   }
 
   public Pair<Long, Long> insertMessageInbox(AsymmetricMasterSecret masterSecret,
@@ -101,19 +115,23 @@ public class EncryptingSmsDatabase extends SmsDatabase {
   }
 
   public void updateBundleMessageBody(MasterSecret masterSecret, long messageId, String body) {
+    long   generation    = plaintextCache.getGeneration();
     String encryptedBody = getEncryptedBody(masterSecret, body);
     updateMessageBodyAndType(messageId, encryptedBody, Types.TOTAL_MASK,
                              Types.BASE_INBOX_TYPE | Types.ENCRYPTION_SYMMETRIC_BIT | Types.SECURE_MESSAGE_BIT);
+    plaintextCache.put(DecryptedBodyCache.TYPE_SMS, messageId, encryptedBody, body, generation);
   }
 
   public void updateMessageBody(MasterSecret masterSecret, long messageId, String body) {
+    long   generation    = plaintextCache.getGeneration();
     String encryptedBody = getEncryptedBody(masterSecret, body);
     updateMessageBodyAndType(messageId, encryptedBody, Types.ENCRYPTION_MASK,
                              Types.ENCRYPTION_SYMMETRIC_BIT);
+    plaintextCache.put(DecryptedBodyCache.TYPE_SMS, messageId, encryptedBody, body, generation);
   }
 
-  public Reader getMessages(MasterSecret masterSecret, int skip, int limit) {
-    Cursor cursor = super.getMessages(skip, limit);
+  public Reader getMessagesInRange(MasterSecret masterSecret, long afterId, long throughId) {
+    Cursor cursor = super.getMessagesInRange(afterId, throughId);
     return new DecryptingReader(masterSecret, cursor);
   }
 
@@ -138,21 +156,114 @@ public class EncryptingSmsDatabase extends SmsDatabase {
     return new DecryptingReader(masterSecret, cursor);
   }
 
+  public DecryptBatch createDecryptBatch(MasterSecret masterSecret) {
+    return new DecryptBatch(masterSecret);
+  }
+
   public Reader readerFor(MasterSecret masterSecret, Cursor cursor) {
     return new DecryptingReader(masterSecret, cursor);
   }
 
+  /**
+   * Collects the outcome of decrypting several incoming messages, so they can all be
+   * written in one transaction.  Nothing is written until commit(), after which the batch
+   * can be reused.
+   */
+  public class DecryptBatch {
+
+    private final MasterSecret                    masterSecret;
+    private final long                            generation;
+    private final List<BodyAndTypeUpdate>         updates    = new LinkedList<>();
+    private final Map<Long, Pair<String, String>> plaintexts = new HashMap<>();
+
+    private DecryptBatch(MasterSecret masterSecret) {
+      this.masterSecret = masterSecret;
+      this.generation   = plaintextCache.getGeneration();
+    }
+
+    public void updateMessageBody(long messageId, String body) {
+      updateBody(messageId, body, Types.ENCRYPTION_MASK, Types.ENCRYPTION_SYMMETRIC_BIT);
+    }
+
+    public void updateBundleMessageBody(long messageId, String body) {
+      updateBody(messageId, body, Types.TOTAL_MASK,
+                 Types.BASE_INBOX_TYPE | Types.ENCRYPTION_SYMMETRIC_BIT | Types.SECURE_MESSAGE_BIT);
+    }
+
+    public void markAsDecryptFailed(long messageId) {
+      updateType(messageId, Types.ENCRYPTION_MASK, Types.ENCRYPTION_REMOTE_FAILED_BIT);
+    }
+
+    public void markAsDecryptDuplicate(long messageId) {
+      updateType(messageId, Types.ENCRYPTION_MASK, Types.ENCRYPTION_REMOTE_DUPLICATE_BIT);
+    }
+
+    public void markAsNoSession(long messageId) {
+      updateType(messageId, Types.ENCRYPTION_MASK, Types.ENCRYPTION_REMOTE_NO_SESSION_BIT);
+    }
+
+    public void markAsLegacyVersion(long messageId) {
+      updateType(messageId, Types.ENCRYPTION_MASK, Types.ENCRYPTION_REMOTE_LEGACY_BIT);
+    }
+
+    public void markAsProcessedKeyExchange(long messageId) {
+      updateType(messageId, 0, Types.KEY_EXCHANGE_PROCESSED_BIT);
+    }
+
+    public void markAsStaleKeyExchange(long messageId) {
+      updateType(messageId, 0, Types.KEY_EXCHANGE_STALE_BIT);
+    }
+
+    public void markAsCorruptKeyExchange(long messageId) {
+      updateType(messageId, 0, Types.KEY_EXCHANGE_CORRUPTED_BIT);
+    }
+
+    public void markAsInvalidVersionKeyExchange(long messageId) {
+      updateType(messageId, 0, Types.KEY_EXCHANGE_INVALID_VERSION_BIT);
+    }
+
+    public boolean isEmpty() {
+      return updates.isEmpty();
+    }
+
+    public void commit() {
+      if (updates.isEmpty()) return;
+
+      updateMessagesBodyAndType(updates);
+
+      for (Map.Entry<Long, Pair<String, String>> plaintext : plaintexts.entrySet()) {
+        plaintextCache.put(DecryptedBodyCache.TYPE_SMS, plaintext.getKey(),
+                           plaintext.getValue().first, plaintext.getValue().second, generation);
+      }
+
+      updates.clear();
+      plaintexts.clear();
+    }
+
+    private void updateBody(long messageId, String body, long maskOff, long maskOn) {
+      String encryptedBody = getEncryptedBody(masterSecret, body);
+
+      updates.add(new BodyAndTypeUpdate(messageId, encryptedBody, maskOff, maskOn));
+      plaintexts.put(messageId, new Pair<>(encryptedBody, body));
+    }
+
+    private void updateType(long messageId, long maskOff, long maskOn) {
+      updates.add(new BodyAndTypeUpdate(messageId, null, maskOff, maskOn));
+    }
+  }
+
   public class DecryptingReader extends SmsDatabase.Reader {
 
-    private final MasterCipher masterCipher;
+    private final MasterSecret masterSecret;
 
     public DecryptingReader(MasterSecret masterSecret, Cursor cursor) {
       super(cursor);
-      this.masterCipher = new MasterCipher(masterSecret);
+      this.masterSecret = masterSecret;
     }
 
     @Override
     protected DisplayRecord.Body getBody(Cursor cursor) {
+      long messageId    = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.ID));
       long type         = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.TYPE));
       String ciphertext = cursor.getString(cursor.getColumnIndexOrThrow(SmsDatabase.BODY));
 
@@ -162,14 +273,15 @@ public class EncryptingSmsDatabase extends SmsDatabase {
 
       try {
         if (SmsDatabase.Types.isSymmetricEncryption(type)) {
-          String plaintext = plaintextCache.get(ciphertext);
+          long   generation = plaintextCache.getGeneration();
+          String plaintext  = plaintextCache.get(DecryptedBodyCache.TYPE_SMS, messageId, ciphertext);
 
           if (plaintext != null)
             return new DisplayRecord.Body(plaintext, true);
 
-          plaintext = masterCipher.decryptBody(ciphertext);
+          plaintext = MasterCipher.getInstance(masterSecret).decryptBody(ciphertext);
 
-          plaintextCache.put(ciphertext, plaintext);
+          plaintextCache.put(DecryptedBodyCache.TYPE_SMS, messageId, ciphertext, plaintext, generation);
           return new DisplayRecord.Body(plaintext, true);
         } else {
           return new DisplayRecord.Body(ciphertext, true);
@@ -180,28 +292,4 @@ public class EncryptingSmsDatabase extends SmsDatabase {
       }
     }
   }
-
-  private static class PlaintextCache {
-    private static final int MAX_CACHE_SIZE = 2000;
-    private static final Map<String, SoftReference<String>> decryptedBodyCache =
-        Collections.synchronizedMap(new LRUCache<String, SoftReference<String>>(MAX_CACHE_SIZE));
-
-    public void put(String ciphertext, String plaintext) {
-      decryptedBodyCache.put(ciphertext, new SoftReference<String>(plaintext));
-    }
-
-    public String get(String ciphertext) {
-      SoftReference<String> plaintextReference = decryptedBodyCache.get(ciphertext);
-
-      if (plaintextReference != null) {
-        String plaintext = plaintextReference.get();
-
-        if (plaintext != null) {
-          return plaintext;
-        }
-      }
-
-      return null;
-    }
-  }
 }
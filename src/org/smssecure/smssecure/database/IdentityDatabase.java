@@ -69,7 +69,7 @@ public class IdentityDatabase extends Database {
                                  IdentityKey theirIdentity)
   {
     SQLiteDatabase database   = databaseHelper.getReadableDatabase();
-    MasterCipher masterCipher = new MasterCipher(masterSecret);
+    MasterCipher masterCipher = MasterCipher.getInstance(masterSecret);
     Cursor cursor             = null;
 
     try {
@@ -107,7 +107,7 @@ public class IdentityDatabase extends Database {
   public void saveIdentity(MasterSecret masterSecret, long recipientId, IdentityKey identityKey)
   {
     SQLiteDatabase database   = databaseHelper.getWritableDatabase();
-    MasterCipher masterCipher = new MasterCipher(masterSecret);
+    MasterCipher masterCipher = MasterCipher.getInstance(masterSecret);
     String identityKeyString  = Base64.encodeBytes(identityKey.serialize());
     String macString          = Base64.encodeBytes(masterCipher.getMacFor(recipientId +
                                                                               identityKeyString));
@@ -0,0 +1,146 @@
+package org.smssecure.smssecure.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * How far a plaintext backup import has got.  The checkpoint lives in the same database
+ * as the messages it counts, so saving it in the transaction that commits a batch means
+ * the two can't disagree, however the import is interrupted.
+ */
+public class ImportCheckpointDatabase extends Database {
+
+  private static final String TABLE_NAME = "import_checkpoint";
+  public  static final String ID         = "_id";
+  public  static final String FILE       = "file";
+  public  static final String ITEMS      = "items";
+  public  static final String THREADS    = "threads";
+
+  private static final long CHECKPOINT_ID = 1;
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
+                                            FILE + " TEXT, " + ITEMS + " INTEGER, " + THREADS + " TEXT);";
+
+  public ImportCheckpointDatabase(Context context, SQLiteOpenHelper databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  /**
+   * @return the checkpoint of an earlier import of the same file, or an empty one
+   */
+  public Checkpoint get(String file) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {ITEMS, THREADS}, ID + " = ? AND " + FILE + " = ?",
+                        new String[] {String.valueOf(CHECKPOINT_ID), file}, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) {
+        return new Checkpoint(file, cursor.getInt(0), parseThreads(cursor.getString(1)));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return new Checkpoint(file, 0, new HashSet<Long>());
+  }
+
+  /**
+   * @return the threads an unfinished import of some other file went into, which still
+   *         need updating, or an empty set
+   */
+  public Set<Long> getAbandonedThreads(String file) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {THREADS}, ID + " = ? AND " + FILE + " != ?",
+                        new String[] {String.valueOf(CHECKPOINT_ID), file}, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) {
+        return parseThreads(cursor.getString(0));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return new HashSet<>();
+  }
+
+  /**
+   * Replaces any earlier checkpoint.  Call it inside the transaction that commits the items
+   * it counts.
+   */
+  public void save(Checkpoint checkpoint) {
+    SQLiteDatabase db      = databaseHelper.getWritableDatabase();
+    StringBuilder  threads = new StringBuilder();
+
+    for (long threadId : checkpoint.threads) {
+      threads.append(threadId).append(',');
+    }
+
+    ContentValues values = new ContentValues(4);
+    values.put(ID, CHECKPOINT_ID);
+    values.put(FILE, checkpoint.file);
+    values.put(ITEMS, checkpoint.items);
+    values.put(THREADS, threads.toString());
+
+    db.replace(TABLE_NAME, null, values);
+  }
+
+  public void clear() {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.delete(TABLE_NAME, null, null);
+  }
+
+  private Set<Long> parseThreads(String serialized) {
+    Set<Long> threads = new HashSet<>();
+
+    for (String threadId : serialized.split(",")) {
+      if (!threadId.isEmpty()) threads.add(Long.parseLong(threadId));
+    }
+
+    return threads;
+  }
+
+  /**
+   * The number of backup items committed so far, and the threads they went into, which
+   * are only updated once the import completes.
+   */
+  public static class Checkpoint {
+    private final String    file;
+    private final Set<Long> threads;
+    private       int       items;
+
+    private Checkpoint(String file, int items, Set<Long> threads) {
+      this.file    = file;
+      this.items   = items;
+      this.threads = threads;
+    }
+
+    public int getItems() {
+      return items;
+    }
+
+    public Set<Long> getThreads() {
+      return threads;
+    }
+
+    public void addItems(int count) {
+      items += count;
+    }
+
+    public void addThread(long threadId) {
+      threads.add(threadId);
+    }
+  }
+}
@@ -0,0 +1,346 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDatabase.CursorFactory;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import org.smssecure.smssecure.crypto.storage.SMSSecurePreKeyStore;
+import org.smssecure.smssecure.crypto.storage.SMSSecureSessionStore;
+import org.smssecure.smssecure.util.Conversions;
+import org.smssecure.smssecure.util.VisibleForTesting;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Prekeys, signed prekeys and sessions, each stored as the version marker and ciphertext
+ * that used to make up its own file.  Records stay encrypted with the master secret, so
+ * nothing here needs it.  The names of every record are also kept in memory, so checking
+ * whether a record exists or listing a recipient's sessions never touches the disk.
+ * Writes update the table and the names together under the instance's lock, and a name
+ * that's missing is looked for again under that lock, so a record being put is never
+ * reported missing.
+ *
+ * Record files left in the old per-record directories, whether by an older version or by
+ * restoring an older backup, are moved in when the database is opened or reset.
+ */
+public class KeyRecordDatabase {
+
+  private static final String TAG = KeyRecordDatabase.class.getSimpleName();
+
+  public static final int TYPE_PRE_KEY        = 1;
+  public static final int TYPE_SIGNED_PRE_KEY = 2;
+  public static final int TYPE_SESSION        = 3;
+
+  private static final int    DATABASE_VERSION = 1;
+  private static final String DATABASE_NAME    = "key_records.db";
+  private static final String TABLE            = "records";
+  private static final String ID               = "_id";
+  private static final String TYPE             = "type";
+  private static final String NAME             = "name";
+  private static final String VERSION          = "version";
+  private static final String RECORD           = "record";
+
+  private static final String DATABASE_CREATE = "CREATE TABLE " + TABLE + " (" + ID + " INTEGER PRIMARY KEY, " +
+                                                TYPE + " INTEGER NOT NULL, " + NAME + " TEXT NOT NULL, " +
+                                                VERSION + " INTEGER NOT NULL, " + RECORD + " BLOB NOT NULL, " +
+                                                "UNIQUE (" + TYPE + ", " + NAME + ") ON CONFLICT REPLACE);";
+
+  private static final String RECORD_WHERE = TYPE + " = ? AND " + NAME + " = ?";
+  private static final Object lock         = new Object();
+
+  private static KeyRecordDatabase instance;
+
+  private final Map<Integer, Set<String>> names = new ConcurrentHashMap<>();
+
+  private volatile DatabaseHelper databaseHelper;
+
+  public static KeyRecordDatabase getInstance(Context context) {
+    synchronized (lock) {
+      if (instance == null)
+        instance = new KeyRecordDatabase(context.getApplicationContext());
+
+      return instance;
+    }
+  }
+
+  private KeyRecordDatabase(Context context) {
+    this.databaseHelper = new DatabaseHelper(context, DATABASE_NAME, null, DATABASE_VERSION);
+
+    names.put(TYPE_PRE_KEY, newNameSet());
+    names.put(TYPE_SIGNED_PRE_KEY, newNameSet());
+    names.put(TYPE_SESSION, newNameSet());
+
+    fillNames();
+    migrateLegacyRecords(context);
+  }
+
+  public synchronized void reset(Context context) {
+    DatabaseHelper old  = this.databaseHelper;
+    this.databaseHelper = new DatabaseHelper(context, DATABASE_NAME, null, DATABASE_VERSION);
+    old.close();
+
+    for (Set<String> typeNames : names.values()) {
+      typeNames.clear();
+    }
+
+    fillNames();
+    migrateLegacyRecords(context);
+  }
+
+  public Record get(int type, String name) {
+    if (!contains(type, name)) return null;
+
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE, new String[] {VERSION, RECORD}, RECORD_WHERE,
+                        new String[] {type+"", name}, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) {
+        return new Record(cursor.getInt(0), cursor.getBlob(1));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return null;
+  }
+
+  public List<Record> getAll(int type) {
+    SQLiteDatabase db      = databaseHelper.getReadableDatabase();
+    List<Record>   results = new LinkedList<>();
+    Cursor         cursor  = null;
+
+    try {
+      cursor = db.query(TABLE, new String[] {VERSION, RECORD}, TYPE + " = ?",
+                        new String[] {type+""}, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        results.add(new Record(cursor.getInt(0), cursor.getBlob(1)));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return results;
+  }
+
+  public boolean contains(int type, String name) {
+    if (names.get(type).contains(name)) return true;
+
+    synchronized (this) {
+      return names.get(type).contains(name);
+    }
+  }
+
+  public Set<String> getNames(int type) {
+    return Collections.unmodifiableSet(names.get(type));
+  }
+
+  /**
+   * @throws SQLException if the record couldn't be written, in which case it's not added
+   */
+  public synchronized void put(int type, String name, Record record) {
+    databaseHelper.getWritableDatabase().insertOrThrow(TABLE, null, getContentValues(type, name, record));
+    names.get(type).add(name);
+  }
+
+  /**
+   * Stores several records of one type in a single transaction.
+   *
+   * @throws SQLException if any record couldn't be written, in which case none are added
+   */
+  public synchronized void putAll(int type, Map<String, Record> records) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.beginTransaction();
+
+    try {
+      for (Map.Entry<String, Record> entry : records.entrySet()) {
+        db.insertOrThrow(TABLE, null, getContentValues(type, entry.getKey(), entry.getValue()));
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    names.get(type).addAll(records.keySet());
+  }
+
+  public synchronized void delete(int type, String name) {
+    databaseHelper.getWritableDatabase().delete(TABLE, RECORD_WHERE, new String[] {type+"", name});
+    names.get(type).remove(name);
+  }
+
+  private void fillNames() {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE, new String[] {TYPE, NAME}, null, null, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        Set<String> typeNames = names.get(cursor.getInt(0));
+        if (typeNames != null) typeNames.add(cursor.getString(1));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  private void migrateLegacyRecords(Context context) {
+    migrateLegacyRecords(new File(context.getFilesDir(), SMSSecurePreKeyStore.PREKEY_DIRECTORY), TYPE_PRE_KEY);
+    migrateLegacyRecords(new File(context.getFilesDir(), SMSSecurePreKeyStore.SIGNED_PREKEY_DIRECTORY), TYPE_SIGNED_PRE_KEY);
+    migrateLegacyRecords(new File(context.getFilesDir(), SMSSecureSessionStore.SESSIONS_DIRECTORY_V2), TYPE_SESSION);
+  }
+
+  /**
+   * Moves every record file in a directory into the database, then deletes the files.
+   * Anything that isn't a record, like PreKeyUtil's index, is left where it is.  Should a
+   * record with the same name already be stored, the file wins, since it can only be
+   * there because a backup was restored over this one.
+   */
+  @VisibleForTesting void migrateLegacyRecords(File directory, int type) {
+    File[] files = directory.listFiles();
+
+    if (files == null) return;
+
+    Map<String, Record> records  = new HashMap<>();
+    List<File>          migrated = new LinkedList<>();
+
+    for (File file : files) {
+      if (!isLegacyRecordName(file.getName())) continue;
+
+      try {
+        records.put(file.getName(), readLegacyRecord(file));
+        migrated.add(file);
+      } catch (IOException e) {
+        Log.w(TAG, e);
+      }
+    }
+
+    if (records.isEmpty()) return;
+
+    try {
+      putAll(type, records);
+    } catch (SQLException e) {
+      Log.w(TAG, e);
+      return;
+    }
+
+    for (File file : migrated) {
+      if (!file.delete()) Log.w(TAG, "Couldn't delete " + file.getAbsolutePath());
+    }
+
+    Log.w(TAG, "Migrated " + records.size() + " records from " + directory.getName());
+  }
+
+  private static boolean isLegacyRecordName(String name) {
+    return name.matches("[0-9]+(\\.[0-9]+)?");
+  }
+
+  private static Record readLegacyRecord(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+
+    try {
+      byte[] integer = new byte[4];
+
+      in.readFully(integer);
+      int version = Conversions.byteArrayToInt(integer);
+
+      in.readFully(integer);
+      byte[] data = new byte[Conversions.byteArrayToInt(integer)];
+
+      in.readFully(data);
+      return new Record(version, data);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static ContentValues getContentValues(int type, String name, Record record) {
+    ContentValues values = new ContentValues(4);
+    values.put(TYPE, type);
+    values.put(NAME, name);
+    values.put(VERSION, record.getVersion());
+    values.put(RECORD, record.getData());
+    return values;
+  }
+
+  private static Set<String> newNameSet() {
+    return Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  }
+
+  /**
+   * A record's format version and its ciphertext.
+   */
+  public static class Record {
+    private final int    version;
+    private final byte[] data;
+
+    public Record(int version, byte[] data) {
+      this.version = version;
+      this.data    = data;
+    }
+
+    public int getVersion() {
+      return version;
+    }
+
+    public byte[] getData() {
+      return data;
+    }
+  }
+
+  private static class DatabaseHelper extends SQLiteOpenHelper {
+
+    public DatabaseHelper(Context context, String name, CursorFactory factory, int version) {
+      super(context, name, factory, version);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+      db.execSQL(DATABASE_CREATE);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    }
+
+  }
+}
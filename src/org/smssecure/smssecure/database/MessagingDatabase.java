@@ -30,6 +30,15 @@ public abstract class MessagingDatabase extends Database implements MmsSmsColumn
 
   protected abstract String getTableName();
 
+  /**
+   * @return the id, body and typeColumn of each of the given messages that still exists
+   */
+  /*package*/ Cursor getBodies(List<Long> ids, String typeColumn) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    return db.query(getTableName(), new String[] {ID, BODY, typeColumn},
+                    ID + " IN (" + TextUtils.join(",", ids) + ")", null, null, null, null);
+  }
+
   public void addMismatchedIdentity(long messageId, long recipientId, IdentityKey identityKey) {
     try {
       addToDocument(messageId, MISMATCHED_IDENTITIES,
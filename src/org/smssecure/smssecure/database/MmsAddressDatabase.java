@@ -154,6 +154,11 @@ public class MmsAddressDatabase extends Database {
     database.delete(TABLE_NAME, MMS_ID + " = ?", new String[] {messageId+""});
   }
 
+  /*package*/ void deleteAddressesForMessages(String mmsIdQuery, String[] args) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.delete(TABLE_NAME, MMS_ID + " IN (" + mmsIdQuery + ")", args);
+  }
+
   public void deleteAllAddresses() {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, null, null);
@@ -41,6 +41,7 @@ import org.smssecure.smssecure.database.model.DisplayRecord;
 import org.smssecure.smssecure.database.model.MediaMmsMessageRecord;
 import org.smssecure.smssecure.database.model.MessageRecord;
 import org.smssecure.smssecure.database.model.NotificationMmsMessageRecord;
+import org.smssecure.smssecure.jobs.LaneJobManager;
 import org.smssecure.smssecure.jobs.TrimThreadJob;
 import org.smssecure.smssecure.mms.IncomingMediaMessage;
 import org.smssecure.smssecure.mms.OutgoingGroupMediaMessage;
@@ -58,11 +59,11 @@ import org.smssecure.smssecure.util.LRUCache;
 import org.smssecure.smssecure.util.ListenableFutureTask;
 import org.smssecure.smssecure.util.SMSSecurePreferences;
 import org.smssecure.smssecure.util.Util;
-import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.libaxolotl.InvalidMessageException;
 import org.whispersystems.libaxolotl.util.guava.Optional;
 import org.whispersystems.textsecure.api.util.InvalidNumberException;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.SoftReference;
@@ -152,6 +153,18 @@ public class MmsDatabase extends MessagingDatabase {
     "CREATE INDEX IF NOT EXISTS mms_date_sent_index ON " + TABLE_NAME + " (" + DATE_SENT + ");"
   };
 
+  public static final String[] CREATE_TRIGGERS = {
+    "CREATE TRIGGER IF NOT EXISTS mms_message_index_insert AFTER INSERT ON " + TABLE_NAME + " BEGIN " +
+      "INSERT INTO " + MmsSmsDatabase.INDEX_TABLE_NAME + " (thread_id, date_received, transport_type, message_id, read) " +
+      "VALUES (new." + THREAD_ID + ", new." + DATE_RECEIVED + " * 1000, '" + MmsSmsDatabase.MMS_TRANSPORT + "', new." + ID + ", new." + READ + "); END;",
+    "CREATE TRIGGER IF NOT EXISTS mms_message_index_update AFTER UPDATE OF " + THREAD_ID + ", " + DATE_RECEIVED + ", " + READ + " ON " + TABLE_NAME + " BEGIN " +
+      "UPDATE " + MmsSmsDatabase.INDEX_TABLE_NAME + " SET thread_id = new." + THREAD_ID + ", date_received = new." + DATE_RECEIVED + " * 1000, read = new." + READ + " " +
+      "WHERE transport_type = '" + MmsSmsDatabase.MMS_TRANSPORT + "' AND message_id = new." + ID + "; END;",
+    "CREATE TRIGGER IF NOT EXISTS mms_message_index_delete AFTER DELETE ON " + TABLE_NAME + " BEGIN " +
+      "DELETE FROM " + MmsSmsDatabase.INDEX_TABLE_NAME + " " +
+      "WHERE transport_type = '" + MmsSmsDatabase.MMS_TRANSPORT + "' AND message_id = old." + ID + "; END;"
+  };
+
   private static final String[] MMS_PROJECTION = new String[] {
       ID, THREAD_ID, DATE_SENT + " * 1000 AS " + NORMALIZED_DATE_SENT,
       DATE_RECEIVED + " * 1000 AS " + NORMALIZED_DATE_RECEIVED,
@@ -163,11 +176,18 @@ public class MmsDatabase extends MessagingDatabase {
       RECEIPT_COUNT, MISMATCHED_IDENTITIES, NETWORK_FAILURE
   };
 
+  private static final String[] TEXT_MESSAGE_PROJECTION = new String[] {
+      ID, THREAD_ID, DATE_RECEIVED + " * 1000 AS " + NORMALIZED_DATE_RECEIVED, MESSAGE_BOX, ADDRESS, BODY
+  };
+
+  private static final String TEXT_MESSAGE_WHERE = MESSAGE_TYPE + " != " + PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND +
+                                                   " AND " + BODY + " IS NOT NULL AND " + BODY + " != ''";
+
   public static final ExecutorService slideResolver = org.smssecure.smssecure.util.Util.newSingleThreadedLifoExecutor();
   private static final Map<Long, SoftReference<SlideDeck>> slideCache =
       Collections.synchronizedMap(new LRUCache<Long, SoftReference<SlideDeck>>(20));
 
-  private final JobManager jobManager;
+  private final LaneJobManager jobManager;
 
   public MmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
@@ -358,6 +378,36 @@ public class MmsDatabase extends MessagingDatabase {
     return cursor;
   }
 
+  /*package*/ int getTextMessageCount() {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {"COUNT(*)"}, TEXT_MESSAGE_WHERE, null, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) return cursor.getInt(0);
+      else                                        return 0;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  /*package*/ long getIdAfter(long afterId, int offset) {
+    return getIdAfter(TABLE_NAME, afterId, offset);
+  }
+
+  /**
+   * @return the messages in the range that have a text body, with only the columns
+   *         needed to export them
+   */
+  /*package*/ Cursor getTextMessagesInRange(long afterId, long throughId) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    return db.query(TABLE_NAME, TEXT_MESSAGE_PROJECTION,
+                    ID + " > ? AND " + ID + " <= ? AND " + TEXT_MESSAGE_WHERE,
+                    new String[] {afterId+"", throughId+""}, null, null, ID);
+  }
+
   public void updateResponseStatus(long messageId, int status) {
     SQLiteDatabase database     = databaseHelper.getWritableDatabase();
     ContentValues contentValues = new ContentValues();
@@ -512,7 +562,7 @@ public class MmsDatabase extends MessagingDatabase {
     MmsAddressDatabase addr         = DatabaseFactory.getMmsAddressDatabase(context);
     PartDatabase       partDatabase = DatabaseFactory.getPartDatabase(context);
     SQLiteDatabase     database     = databaseHelper.getReadableDatabase();
-    MasterCipher       masterCipher = new MasterCipher(masterSecret);
+    MasterCipher       masterCipher = MasterCipher.getInstance(masterSecret);
     Cursor             cursor       = null;
 
     String   selection     = ID_WHERE;
@@ -759,7 +809,7 @@ public class MmsDatabase extends MessagingDatabase {
       body               = PartParser.getSupportedMediaParts(body);
 
       if (!TextUtils.isEmpty(messageText)) {
-        contentValues.put(BODY, new MasterCipher(masterSecret).encryptBody(messageText));
+        contentValues.put(BODY, MasterCipher.getInstance(masterSecret).encryptBody(messageText));
       }
     }
 
@@ -785,6 +835,7 @@ public class MmsDatabase extends MessagingDatabase {
 
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
+    DecryptedBodyCache.getInstance().remove(DecryptedBodyCache.TYPE_MMS, messageId);
     DatabaseFactory.getThreadDatabase(context).update(threadId);
     notifyConversationListeners(threadId);
   }
@@ -819,41 +870,64 @@ public class MmsDatabase extends MessagingDatabase {
     }
   }
 
-  /*package*/void deleteMessagesInThreadBeforeDate(long threadId, long date) {
-    date          = date / 1000;
-    Cursor cursor = null;
+  /*package*/List<File> deleteMessagesInThreadBeforeDate(long threadId, long date) {
+    date = date / 1000;
 
-    try {
-      SQLiteDatabase db = databaseHelper.getReadableDatabase();
-      String where      = THREAD_ID + " = ? AND (CASE (" + MESSAGE_BOX + " & " + Types.BASE_TYPE_MASK + ") ";
+    SQLiteDatabase db    = databaseHelper.getWritableDatabase();
+    String         where = THREAD_ID + " = ? AND (CASE (" + MESSAGE_BOX + " & " + Types.BASE_TYPE_MASK + ") ";
+    String[]       args  = new String[] {threadId+""};
 
-      for (long outgoingType : Types.OUTGOING_MESSAGE_TYPES) {
-        where += " WHEN " + outgoingType + " THEN " + DATE_SENT + " < " + date;
-      }
+    for (long outgoingType : Types.OUTGOING_MESSAGE_TYPES) {
+      where += " WHEN " + outgoingType + " THEN " + DATE_SENT + " < " + date;
+    }
 
-      where += (" ELSE " + DATE_RECEIVED + " < " + date + " END)");
+    where += (" ELSE " + DATE_RECEIVED + " < " + date + " END)");
 
-      Log.w("MmsDatabase", "Executing trim query: " + where);
-      cursor = db.query(TABLE_NAME, new String[] {ID}, where, new String[] {threadId+""}, null, null, null);
+    String mmsIdQuery = "SELECT " + ID + " FROM " + TABLE_NAME + " WHERE " + where;
 
-      while (cursor != null && cursor.moveToNext()) {
-        Log.w("MmsDatabase", "Trimming: " + cursor.getLong(0));
-        delete(cursor.getLong(0));
+    Log.w("MmsDatabase", "Executing trim query: " + where);
+    db.beginTransaction();
+
+    List<Long> ids    = new LinkedList<>();
+    Cursor     cursor = null;
+
+    try {
+      cursor = db.rawQuery(mmsIdQuery, args);
+
+      while (cursor.moveToNext()) {
+        ids.add(cursor.getLong(0));
       }
 
+      cursor.close();
+      cursor = null;
+
+      List<File> files = DatabaseFactory.getPartDatabase(context).deletePartsForMessages(mmsIdQuery, args);
+      DatabaseFactory.getMmsAddressDatabase(context).deleteAddressesForMessages(mmsIdQuery, args);
+      db.delete(TABLE_NAME, where, args);
+      db.setTransactionSuccessful();
+
+      return files;
     } finally {
       if (cursor != null)
         cursor.close();
+
+      db.endTransaction();
+
+      for (long id : ids) {
+        DecryptedBodyCache.getInstance().remove(DecryptedBodyCache.TYPE_MMS, id);
+      }
     }
   }
 
 
+
   public void deleteAllThreads() {
     DatabaseFactory.getPartDatabase(context).deleteAllParts();
     DatabaseFactory.getMmsAddressDatabase(context).deleteAllAddresses();
 
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, null, null);
+    DecryptedBodyCache.getInstance().clear();
   }
 
   public Cursor getCarrierMmsInformation(String apn) {
@@ -974,16 +1048,13 @@ public class MmsDatabase extends MessagingDatabase {
 
   public class Reader {
 
-    private final Cursor       cursor;
-    private final MasterSecret masterSecret;
-    private final MasterCipher masterCipher;
+    private final Cursor             cursor;
+    private final MasterSecret       masterSecret;
+    private final DecryptedBodyCache plaintextCache = DecryptedBodyCache.getInstance();
 
     public Reader(MasterSecret masterSecret, Cursor cursor) {
       this.cursor       = cursor;
       this.masterSecret = masterSecret;
-
-      if (masterSecret != null) masterCipher = new MasterCipher(masterSecret);
-      else                      masterCipher = null;
     }
 
     public MessageRecord getNext() {
@@ -1104,9 +1175,18 @@ public class MmsDatabase extends MessagingDatabase {
         String body = cursor.getString(cursor.getColumnIndexOrThrow(MmsDatabase.BODY));
         long box    = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.MESSAGE_BOX));
 
-        if (!TextUtils.isEmpty(body) && masterCipher != null && Types.isSymmetricEncryption(box)) {
-          return new DisplayRecord.Body(masterCipher.decryptBody(body), true);
-        } else if (!TextUtils.isEmpty(body) && masterCipher == null && Types.isSymmetricEncryption(box)) {
+        if (!TextUtils.isEmpty(body) && masterSecret != null && Types.isSymmetricEncryption(box)) {
+          long   id         = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.ID));
+          long   generation = plaintextCache.getGeneration();
+          String plaintext  = plaintextCache.get(DecryptedBodyCache.TYPE_MMS, id, body);
+
+          if (plaintext == null) {
+            plaintext = MasterCipher.getInstance(masterSecret).decryptBody(body);
+            plaintextCache.put(DecryptedBodyCache.TYPE_MMS, id, body, plaintext, generation);
+          }
+
+          return new DisplayRecord.Body(plaintext, true);
+        } else if (!TextUtils.isEmpty(body) && masterSecret == null && Types.isSymmetricEncryption(box)) {
           return new DisplayRecord.Body(body, false);
         } else {
           return new DisplayRecord.Body(body == null ? "" : body, true);
@@ -26,112 +26,221 @@ import android.util.Log;
 import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.database.model.MessageRecord;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.HashMap;
+import java.util.Map;
 
-public class MmsSmsDatabase extends Database {
+public class MmsSmsDatabase extends Database implements MmsSmsColumns {
 
   public static final String TRANSPORT     = "transport_type";
   public static final String MMS_TRANSPORT = "mms";
   public static final String SMS_TRANSPORT = "sms";
+  public static final String INDEX_ID      = "index_id";
+
+  public  static final String INDEX_TABLE_NAME = "message_index";
+  private static final String MESSAGE_ID       = "message_id";
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + INDEX_TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
+    THREAD_ID + " INTEGER, " + NORMALIZED_DATE_RECEIVED + " INTEGER, " + TRANSPORT + " TEXT, " +
+    MESSAGE_ID + " INTEGER, " + READ + " INTEGER DEFAULT 0);";
+
+  public static final String[] CREATE_INDEXS = {
+    "CREATE INDEX IF NOT EXISTS message_index_thread_date_index ON " + INDEX_TABLE_NAME + " (" + THREAD_ID + "," + NORMALIZED_DATE_RECEIVED + ");",
+    "CREATE INDEX IF NOT EXISTS message_index_read_date_index ON " + INDEX_TABLE_NAME + " (" + READ + "," + NORMALIZED_DATE_RECEIVED + ");",
+    "CREATE UNIQUE INDEX IF NOT EXISTS message_index_message_index ON " + INDEX_TABLE_NAME + " (" + TRANSPORT + "," + MESSAGE_ID + ");"
+  };
+
+  private static final String INDEX = "idx";
+  private static final String SMS   = SmsDatabase.TABLE_NAME;
+  private static final String MMS   = MmsDatabase.TABLE_NAME;
+
+  private static final String[] PROJECTION = {
+      INDEX + "." + MESSAGE_ID + " AS " + ID,
+      INDEX + "." + THREAD_ID + " AS " + THREAD_ID,
+      INDEX + "." + NORMALIZED_DATE_RECEIVED + " AS " + NORMALIZED_DATE_RECEIVED,
+      INDEX + "." + READ + " AS " + READ,
+      INDEX + "." + TRANSPORT + " AS " + TRANSPORT,
+      "COALESCE(" + SMS + "." + SmsDatabase.DATE_SENT + ", " + MMS + "." + MmsDatabase.DATE_SENT + " * 1000) AS " + NORMALIZED_DATE_SENT,
+      coalesce(BODY), coalesce(ADDRESS), coalesce(ADDRESS_DEVICE_ID),
+      coalesce(RECEIPT_COUNT), coalesce(MISMATCHED_IDENTITIES),
+      SMS + "." + SmsDatabase.TYPE + " AS " + SmsDatabase.TYPE,
+      SMS + "." + SmsDatabase.SUBJECT + " AS " + SmsDatabase.SUBJECT,
+      SMS + "." + SmsDatabase.STATUS + " AS " + SmsDatabase.STATUS,
+      MMS + "." + MmsDatabase.MESSAGE_TYPE + " AS " + MmsDatabase.MESSAGE_TYPE,
+      MMS + "." + MmsDatabase.MESSAGE_BOX + " AS " + MmsDatabase.MESSAGE_BOX,
+      MMS + "." + MmsDatabase.PART_COUNT + " AS " + MmsDatabase.PART_COUNT,
+      MMS + "." + MmsDatabase.CONTENT_LOCATION + " AS " + MmsDatabase.CONTENT_LOCATION,
+      MMS + "." + MmsDatabase.TRANSACTION_ID + " AS " + MmsDatabase.TRANSACTION_ID,
+      MMS + "." + MmsDatabase.MESSAGE_SIZE + " AS " + MmsDatabase.MESSAGE_SIZE,
+      MMS + "." + MmsDatabase.EXPIRY + " AS " + MmsDatabase.EXPIRY,
+      MMS + "." + MmsDatabase.STATUS + " AS " + MmsDatabase.STATUS,
+      MMS + "." + MmsDatabase.NETWORK_FAILURE + " AS " + MmsDatabase.NETWORK_FAILURE,
+      INDEX + "." + ID + " AS " + INDEX_ID
+  };
+
+  private static final String TABLES =
+      INDEX_TABLE_NAME + " AS " + INDEX +
+      " LEFT JOIN " + SMS + " ON " + INDEX + "." + TRANSPORT + " = '" + SMS_TRANSPORT + "'" +
+      " AND " + SMS + "." + ID + " = " + INDEX + "." + MESSAGE_ID +
+      " LEFT JOIN " + MMS + " ON " + INDEX + "." + TRANSPORT + " = '" + MMS_TRANSPORT + "'" +
+      " AND " + MMS + "." + ID + " = " + INDEX + "." + MESSAGE_ID;
 
   public MmsSmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
 
   public Cursor getConversation(long threadId) {
-    String[] projection    = {MmsSmsColumns.ID, SmsDatabase.BODY, SmsDatabase.TYPE,
-                              MmsSmsColumns.THREAD_ID,
-                              SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT,
-                              MmsSmsColumns.NORMALIZED_DATE_SENT,
-                              MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
-                              MmsDatabase.MESSAGE_TYPE, MmsDatabase.MESSAGE_BOX,
-                              SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
-                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
-                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY,
-                              MmsDatabase.STATUS, MmsSmsColumns.RECEIPT_COUNT,
-                              MmsSmsColumns.MISMATCHED_IDENTITIES,
-                              MmsDatabase.NETWORK_FAILURE, TRANSPORT};
-
-    String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
-
-    String selection       = MmsSmsColumns.THREAD_ID + " = " + threadId;
-
-    Cursor cursor = queryTables(projection, selection, selection, order, null, null);
+    String order     = INDEX + "." + NORMALIZED_DATE_RECEIVED + " ASC";
+    String selection = INDEX + "." + THREAD_ID + " = " + threadId;
+
+    Cursor cursor = queryIndex(selection, order, null);
+    setNotifyConverationListeners(cursor, threadId);
+
+    return cursor;
+  }
+
+  public Cursor getConversation(long threadId, int limit) {
+    return getConversation(threadId, Long.MAX_VALUE, Long.MAX_VALUE, limit);
+  }
+
+  /**
+   * Returns the newest limit messages that sort before the message received at beforeDate
+   * with index id beforeIndexId, oldest first.  Messages are ordered by date received and
+   * then by index id, so a page boundary never skips or repeats messages received at the
+   * same time.
+   */
+  public Cursor getConversation(long threadId, long beforeDate, long beforeIndexId, int limit) {
+    String order     = INDEX + "." + NORMALIZED_DATE_RECEIVED + " DESC, " + INDEX + "." + ID + " DESC";
+    String selection = INDEX + "." + THREAD_ID + " = " + threadId + " AND " +
+                       "(" + INDEX + "." + NORMALIZED_DATE_RECEIVED + " < " + beforeDate + " OR " +
+                       "(" + INDEX + "." + NORMALIZED_DATE_RECEIVED + " = " + beforeDate + " AND " +
+                       INDEX + "." + ID + " < " + beforeIndexId + "))";
+
+    String page  = buildIndexQuery(selection, order, String.valueOf(limit));
+    String query = "SELECT * FROM (" + page + ") ORDER BY " + NORMALIZED_DATE_RECEIVED + " ASC, " + INDEX_ID + " ASC";
+
+    Log.w("MmsSmsDatabase", "Executing query: " + query);
+    Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(query, null);
+    setNotifyConverationListeners(cursor, threadId);
+
+    return cursor;
+  }
+
+  /**
+   * Returns every message from the one received at sinceDate with index id sinceIndexId
+   * onwards, oldest first, in the same order as {@link #getConversation(long, long, long, int)}.
+   */
+  public Cursor getConversationSince(long threadId, long sinceDate, long sinceIndexId) {
+    String order     = INDEX + "." + NORMALIZED_DATE_RECEIVED + " ASC, " + INDEX + "." + ID + " ASC";
+    String selection = INDEX + "." + THREAD_ID + " = " + threadId + " AND " +
+                       "(" + INDEX + "." + NORMALIZED_DATE_RECEIVED + " > " + sinceDate + " OR " +
+                       "(" + INDEX + "." + NORMALIZED_DATE_RECEIVED + " = " + sinceDate + " AND " +
+                       INDEX + "." + ID + " >= " + sinceIndexId + "))";
+
+    Cursor cursor = queryIndex(selection, order, null);
     setNotifyConverationListeners(cursor, threadId);
 
     return cursor;
   }
 
   public Cursor getIdentityConflictMessagesForThread(long threadId) {
-    String[] projection    = {MmsSmsColumns.ID, SmsDatabase.BODY, SmsDatabase.TYPE,
-                              MmsSmsColumns.THREAD_ID,
-                              SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT,
-                              MmsSmsColumns.NORMALIZED_DATE_SENT,
-                              MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
-                              MmsDatabase.MESSAGE_TYPE, MmsDatabase.MESSAGE_BOX,
-                              SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
-                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
-                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY,
-                              MmsDatabase.STATUS, MmsSmsColumns.RECEIPT_COUNT,
-                              MmsSmsColumns.MISMATCHED_IDENTITIES,
-                              MmsDatabase.NETWORK_FAILURE, TRANSPORT};
-
-    String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
-
-    String selection       = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + MmsSmsColumns.MISMATCHED_IDENTITIES + " IS NOT NULL";
-
-    Cursor cursor = queryTables(projection, selection, selection, order, null, null);
+    String order     = INDEX + "." + NORMALIZED_DATE_RECEIVED + " ASC";
+    String selection = INDEX + "." + THREAD_ID + " = " + threadId + " AND " +
+                       "COALESCE(" + SMS + "." + MISMATCHED_IDENTITIES + ", " + MMS + "." + MISMATCHED_IDENTITIES + ") IS NOT NULL";
+
+    Cursor cursor = queryIndex(selection, order, null);
     setNotifyConverationListeners(cursor, threadId);
 
     return cursor;
   }
 
   public Cursor getConversationSnippet(long threadId) {
-    String[] projection    = {MmsSmsColumns.ID, SmsDatabase.BODY, SmsDatabase.TYPE,
-                              MmsSmsColumns.THREAD_ID,
-                              SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT,
-                              MmsSmsColumns.NORMALIZED_DATE_SENT,
-                              MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
-                              MmsDatabase.MESSAGE_TYPE, MmsDatabase.MESSAGE_BOX,
-                              SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
-                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
-                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY,
-                              MmsDatabase.STATUS, MmsSmsColumns.RECEIPT_COUNT,
-                              MmsSmsColumns.MISMATCHED_IDENTITIES,
-                              MmsDatabase.NETWORK_FAILURE, TRANSPORT};
-
-    String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection       = MmsSmsColumns.THREAD_ID + " = " + threadId;
-
-    return  queryTables(projection, selection, selection, order, null, "1");
+    String order     = INDEX + "." + NORMALIZED_DATE_RECEIVED + " DESC";
+    String selection = INDEX + "." + THREAD_ID + " = " + threadId;
+
+    return queryIndex(selection, order, "1");
   }
 
   public Cursor getUnread() {
-    String[] projection    = {MmsSmsColumns.ID, SmsDatabase.BODY, SmsDatabase.READ, SmsDatabase.TYPE,
-                              SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsSmsColumns.THREAD_ID,
-                              SmsDatabase.STATUS,
-                              MmsSmsColumns.NORMALIZED_DATE_SENT,
-                              MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
-                              MmsDatabase.MESSAGE_TYPE, MmsDatabase.MESSAGE_BOX,
-                              MmsDatabase.PART_COUNT,
-                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
-                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY,
-                              MmsDatabase.STATUS, MmsSmsColumns.RECEIPT_COUNT,
-                              MmsSmsColumns.MISMATCHED_IDENTITIES,
-                              MmsDatabase.NETWORK_FAILURE, TRANSPORT};
-
-    String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
-    String selection       = MmsSmsColumns.READ + " = 0";
-
-    return queryTables(projection, selection, selection, order, null, null);
+    String order     = INDEX + "." + NORMALIZED_DATE_RECEIVED + " ASC";
+    String selection = INDEX + "." + READ + " = 0";
+
+    return queryIndex(selection, order, null);
+  }
+
+  /**
+   * Returns unread messages whose index rows were inserted after afterIndexId, up to and
+   * including throughIndexId.  Index ids only grow, so a caller can remember the value of
+   * {@link #getLastIndexId()} and later ask for just what has arrived since.
+   */
+  public Cursor getUnread(long afterIndexId, long throughIndexId) {
+    String order     = INDEX + "." + NORMALIZED_DATE_RECEIVED + " ASC";
+    String selection = INDEX + "." + READ + " = 0 AND " +
+                       INDEX + "." + ID + " > " + afterIndexId + " AND " +
+                       INDEX + "." + ID + " <= " + throughIndexId;
+
+    return queryIndex(selection, order, null);
+  }
+
+  public Cursor getUnreadInThread(long threadId) {
+    String order     = INDEX + "." + NORMALIZED_DATE_RECEIVED + " ASC";
+    String selection = INDEX + "." + THREAD_ID + " = " + threadId + " AND " + INDEX + "." + READ + " = 0";
+
+    return queryIndex(selection, order, null);
+  }
+
+  public long getLastIndexId() {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    Cursor cursor     = null;
+
+    try {
+      cursor = db.query(INDEX_TABLE_NAME, new String[] {"MAX(" + ID + ")"}, null, null, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst())
+        return cursor.getLong(0);
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return 0;
+  }
+
+  public Map<Long, Integer> getUnreadCountsByThread() {
+    SQLiteDatabase     db     = databaseHelper.getReadableDatabase();
+    Map<Long, Integer> counts = new HashMap<>();
+    Cursor             cursor = null;
+
+    try {
+      cursor = db.query(INDEX_TABLE_NAME, new String[] {THREAD_ID, "COUNT(*)"}, READ + " = 0",
+                        null, THREAD_ID, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        counts.put(cursor.getLong(0), cursor.getInt(1));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return counts;
   }
 
   public int getConversationCount(long threadId) {
-    int count = DatabaseFactory.getSmsDatabase(context).getMessageCountForThread(threadId);
-    count    += DatabaseFactory.getMmsDatabase(context).getMessageCountForThread(threadId);
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    Cursor cursor     = null;
+
+    try {
+      cursor = db.query(INDEX_TABLE_NAME, new String[] {"COUNT(*)"}, THREAD_ID + " = ?",
+                        new String[] {threadId+""}, null, null, null);
 
-    return count;
+      if (cursor != null && cursor.moveToFirst())
+        return cursor.getInt(0);
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return 0;
   }
 
   public void incrementDeliveryReceiptCount(String address, long timestamp) {
@@ -139,89 +248,23 @@ public class MmsSmsDatabase extends Database {
     DatabaseFactory.getMmsDatabase(context).incrementDeliveryReceiptCount(address, timestamp);
   }
 
-  private Cursor queryTables(String[] projection, String smsSelection, String mmsSelection, String order, String groupBy, String limit) {
-    String[] mmsProjection = {MmsDatabase.DATE_SENT + " * 1000 AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
-                              MmsDatabase.DATE_RECEIVED + " * 1000 AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
-                              MmsSmsColumns.ID, SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
-                              SmsDatabase.TYPE, SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsDatabase.MESSAGE_TYPE,
-                              MmsDatabase.MESSAGE_BOX, SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
-                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
-                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY, MmsDatabase.STATUS,
-                              MmsSmsColumns.RECEIPT_COUNT, MmsSmsColumns.MISMATCHED_IDENTITIES,
-                              MmsDatabase.NETWORK_FAILURE, TRANSPORT};
-
-    String[] smsProjection = {SmsDatabase.DATE_SENT + " * 1 AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
-                              SmsDatabase.DATE_RECEIVED + " * 1 AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
-                              MmsSmsColumns.ID, SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
-                              SmsDatabase.TYPE, SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsDatabase.MESSAGE_TYPE,
-                              MmsDatabase.MESSAGE_BOX, SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
-                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
-                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY, MmsDatabase.STATUS,
-                              MmsSmsColumns.RECEIPT_COUNT, MmsSmsColumns.MISMATCHED_IDENTITIES,
-                              MmsDatabase.NETWORK_FAILURE, TRANSPORT};
-
-
-    SQLiteQueryBuilder mmsQueryBuilder = new SQLiteQueryBuilder();
-    SQLiteQueryBuilder smsQueryBuilder = new SQLiteQueryBuilder();
-
-    mmsQueryBuilder.setDistinct(true);
-    smsQueryBuilder.setDistinct(true);
-
-    mmsQueryBuilder.setTables(MmsDatabase.TABLE_NAME);
-    smsQueryBuilder.setTables(SmsDatabase.TABLE_NAME);
-
-    Set<String> mmsColumnsPresent = new HashSet<String>();
-    mmsColumnsPresent.add(MmsSmsColumns.ID);
-    mmsColumnsPresent.add(MmsSmsColumns.READ);
-    mmsColumnsPresent.add(MmsSmsColumns.THREAD_ID);
-    mmsColumnsPresent.add(MmsSmsColumns.BODY);
-    mmsColumnsPresent.add(MmsSmsColumns.ADDRESS);
-    mmsColumnsPresent.add(MmsSmsColumns.ADDRESS_DEVICE_ID);
-    mmsColumnsPresent.add(MmsSmsColumns.RECEIPT_COUNT);
-    mmsColumnsPresent.add(MmsSmsColumns.MISMATCHED_IDENTITIES);
-    mmsColumnsPresent.add(MmsDatabase.MESSAGE_TYPE);
-    mmsColumnsPresent.add(MmsDatabase.MESSAGE_BOX);
-    mmsColumnsPresent.add(MmsDatabase.DATE_SENT);
-    mmsColumnsPresent.add(MmsDatabase.DATE_RECEIVED);
-    mmsColumnsPresent.add(MmsDatabase.PART_COUNT);
-    mmsColumnsPresent.add(MmsDatabase.CONTENT_LOCATION);
-    mmsColumnsPresent.add(MmsDatabase.TRANSACTION_ID);
-    mmsColumnsPresent.add(MmsDatabase.MESSAGE_SIZE);
-    mmsColumnsPresent.add(MmsDatabase.EXPIRY);
-    mmsColumnsPresent.add(MmsDatabase.STATUS);
-    mmsColumnsPresent.add(MmsDatabase.NETWORK_FAILURE);
-
-    Set<String> smsColumnsPresent = new HashSet<String>();
-    smsColumnsPresent.add(MmsSmsColumns.ID);
-    smsColumnsPresent.add(MmsSmsColumns.BODY);
-    smsColumnsPresent.add(MmsSmsColumns.ADDRESS);
-    smsColumnsPresent.add(MmsSmsColumns.ADDRESS_DEVICE_ID);
-    smsColumnsPresent.add(MmsSmsColumns.READ);
-    smsColumnsPresent.add(MmsSmsColumns.THREAD_ID);
-    smsColumnsPresent.add(MmsSmsColumns.RECEIPT_COUNT);
-    smsColumnsPresent.add(MmsSmsColumns.MISMATCHED_IDENTITIES);
-    smsColumnsPresent.add(SmsDatabase.TYPE);
-    smsColumnsPresent.add(SmsDatabase.SUBJECT);
-    smsColumnsPresent.add(SmsDatabase.DATE_SENT);
-    smsColumnsPresent.add(SmsDatabase.DATE_RECEIVED);
-    smsColumnsPresent.add(SmsDatabase.STATUS);
-
-    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 2, MMS_TRANSPORT, mmsSelection, null, null, null);
-    String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, smsProjection, smsColumnsPresent, 2, SMS_TRANSPORT, smsSelection, null, null, null);
-
-    SQLiteQueryBuilder unionQueryBuilder = new SQLiteQueryBuilder();
-    String unionQuery = unionQueryBuilder.buildUnionQuery(new String[] {smsSubQuery, mmsSubQuery}, order, null);
-
-    SQLiteQueryBuilder outerQueryBuilder = new SQLiteQueryBuilder();
-    outerQueryBuilder.setTables("(" + unionQuery + ")");
-
-    String query      = outerQueryBuilder.buildQuery(projection, null, null, groupBy, null, null, limit);
+  private Cursor queryIndex(String selection, String order, String limit) {
+    String query = buildIndexQuery(selection, order, limit);
 
     Log.w("MmsSmsDatabase", "Executing query: " + query);
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
     return db.rawQuery(query, null);
   }
 
+  private String buildIndexQuery(String selection, String order, String limit) {
+    return SQLiteQueryBuilder.buildQueryString(false, TABLES, PROJECTION, selection,
+                                               null, null, order, limit);
+  }
+
+  private static String coalesce(String column) {
+    return "COALESCE(" + SMS + "." + column + ", " + MMS + "." + column + ") AS " + column;
+  }
+
   public Reader readerFor(Cursor cursor, MasterSecret masterSecret) {
     return new Reader(cursor, masterSecret);
   }
@@ -48,7 +48,6 @@ import java.io.OutputStream;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 
 import ws.com.google.android.mms.ContentType;
@@ -107,10 +106,17 @@ public class PartDatabase extends Database {
                                            + "ORDER BY " + TABLE_NAME + "." + ID + " DESC";
 
 
-  private final ExecutorService thumbnailExecutor = Util.newSingleThreadedLifoExecutor();
+  private static final int THUMBNAIL_LOCK_COUNT = 16;
+
+  private final ExecutorService thumbnailExecutor = Util.newLifoExecutor(2);
+  private final Object[]        thumbnailLocks    = new Object[THUMBNAIL_LOCK_COUNT];
 
   public PartDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
+
+    for (int i=0;i<THUMBNAIL_LOCK_COUNT;i++) {
+      thumbnailLocks[i] = new Object();
+    }
   }
 
   public InputStream getPartStream(MasterSecret masterSecret, long partId)
@@ -186,13 +192,15 @@ public class PartDatabase extends Database {
     Cursor cursor           = null;
 
     try {
-      cursor = database.query(TABLE_NAME, new String[] {DATA, THUMBNAIL}, MMS_ID + " = ?",
+      cursor = database.query(TABLE_NAME, new String[] {DATA, THUMBNAIL, ID}, MMS_ID + " = ?",
                               new String[] {mmsId+""}, null, null, null);
 
       while (cursor != null && cursor.moveToNext()) {
         String data      = cursor.getString(0);
         String thumbnail = cursor.getString(1);
 
+        ThumbnailCache.getInstance(context).remove(cursor.getLong(2));
+
         if (!TextUtils.isEmpty(data)) {
           new File(data).delete();
         }
@@ -209,6 +217,37 @@ public class PartDatabase extends Database {
     database.delete(TABLE_NAME, MMS_ID + " = ?", new String[] {mmsId+""});
   }
 
+  /*package*/ List<File> deletePartsForMessages(String mmsIdQuery, String[] args) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    List<File>     files    = new LinkedList<>();
+    String         where    = MMS_ID + " IN (" + mmsIdQuery + ")";
+    Cursor         cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {DATA, THUMBNAIL, ID}, where, args, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        if (!cursor.isNull(0)) files.add(new File(cursor.getString(0)));
+        if (!cursor.isNull(1)) files.add(new File(cursor.getString(1)));
+
+        ThumbnailCache.getInstance(context).remove(cursor.getLong(2));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    database.delete(TABLE_NAME, where, args);
+    return files;
+  }
+
+  @SuppressWarnings("ResultOfMethodCallIgnored")
+  /*package*/ void deletePartFiles(List<File> files) {
+    for (File file : files) {
+      file.delete();
+    }
+  }
+
   @SuppressWarnings("ResultOfMethodCallIgnored")
   public void deleteAllParts() {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
@@ -220,6 +259,8 @@ public class PartDatabase extends Database {
     for (File part : parts) {
       part.delete();
     }
+
+    ThumbnailCache.getInstance(context).clear();
   }
 
   void insertParts(MasterSecret masterSecret, long mmsId, PduBody body) throws MmsException {
@@ -387,7 +428,12 @@ public class PartDatabase extends Database {
       throws MmsException
   {
     try {
-      if (part.getData() != null) {
+      if (part.getDataFile() != null) {
+        Log.w(TAG, "Taking part data from spooled file");
+        Pair<File, Long> partData = new Pair<>(part.getDataFile(), part.getDataSize());
+        part.setDataFile(null);
+        return partData;
+      } else if (part.getData() != null) {
         Log.w(TAG, "Writing part data from buffer");
         return writePartData(masterSecret, part, new ByteArrayInputStream(part.getData()));
       } else if (part.getDataUri() != null) {
@@ -402,6 +448,24 @@ public class PartDatabase extends Database {
     }
   }
 
+  /**
+   * Encrypts part data straight to a new part file, without buffering it, and
+   * records the file on the part.  A later insert of the part takes ownership of
+   * the file; until then the caller is responsible for deleting it.
+   */
+  public void spoolPartData(MasterSecret masterSecret, PduPart part, InputStream data)
+      throws MmsException
+  {
+    Pair<File, Long> partData = writePartData(masterSecret, part, data);
+
+    part.setDataFile(partData.first);
+    part.setDataSize(partData.second);
+  }
+
+  /**
+   * Returns the part's thumbnail, generating it on the calling thread if it doesn't exist
+   * yet.  Generation for any one part only happens once, however many threads ask for it.
+   */
   public InputStream getThumbnailStream(final MasterSecret masterSecret, final long partId) throws IOException {
     Log.w(TAG, "getThumbnailStream(" + partId + ")");
     final InputStream dataStream = getDataStream(masterSecret, partId, THUMBNAIL);
@@ -410,12 +474,12 @@ public class PartDatabase extends Database {
     }
 
     try {
-      return thumbnailExecutor.submit(new ThumbnailFetchCallable(masterSecret, partId)).get();
-    } catch (InterruptedException ie) {
-      throw new AssertionError("interrupted");
-    } catch (ExecutionException ee) {
-      Log.w(TAG, ee);
-      throw new IOException(ee);
+      return new ThumbnailFetchCallable(masterSecret, partId).call();
+    } catch (IOException ioe) {
+      throw ioe;
+    } catch (Exception e) {
+      Log.w(TAG, e);
+      throw new IOException(e);
     }
   }
 
@@ -530,6 +594,8 @@ public class PartDatabase extends Database {
     values.put(ASPECT_RATIO, aspectRatio);
 
     database.update(TABLE_NAME, values, ID_WHERE, new String[]{partId+""});
+
+    ThumbnailCache.getInstance(context).remove(partId);
   }
 
   public static class ImageRecord {
@@ -584,22 +650,24 @@ public class PartDatabase extends Database {
 
     @Override
     public InputStream call() throws Exception {
-      final InputStream stream = getDataStream(masterSecret, partId, THUMBNAIL);
-      if (stream != null) {
-        return stream;
-      }
+      synchronized (thumbnailLocks[(int)(partId & (THUMBNAIL_LOCK_COUNT - 1))]) {
+        final InputStream stream = getDataStream(masterSecret, partId, THUMBNAIL);
+        if (stream != null) {
+          return stream;
+        }
 
-      try {
-        PduPart part = getPart(partId);
-        ThumbnailData data = MediaUtil.generateThumbnail(context, masterSecret, part.getDataUri(), Util.toIsoString(part.getContentType()));
-        if (data == null) {
-          return null;
+        try {
+          PduPart part = getPart(partId);
+          ThumbnailData data = MediaUtil.generateThumbnail(context, masterSecret, part.getDataUri(), Util.toIsoString(part.getContentType()));
+          if (data == null) {
+            return null;
+          }
+          updatePartThumbnail(masterSecret, partId, part, data.toDataStream(), data.getAspectRatio());
+        } catch (BitmapDecodingException bde) {
+          throw new IOException(bde);
         }
-        updatePartThumbnail(masterSecret, partId, part, data.toDataStream(), data.getAspectRatio());
-      } catch (BitmapDecodingException bde) {
-        throw new IOException(bde);
+        return getDataStream(masterSecret, partId, THUMBNAIL);
       }
-      return getDataStream(masterSecret, partId, THUMBNAIL);
     }
   }
 }
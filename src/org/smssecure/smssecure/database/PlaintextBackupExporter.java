@@ -2,16 +2,43 @@ package org.smssecure.smssecure.database;
 
 
 import android.content.Context;
+import android.database.Cursor;
 import android.os.Environment;
+import android.text.TextUtils;
+import android.util.Log;
 
+import org.smssecure.smssecure.R;
+import org.smssecure.smssecure.crypto.MasterCipher;
 import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.database.model.SmsMessageRecord;
+import org.smssecure.smssecure.recipients.Recipients;
+import org.smssecure.smssecure.util.Util;
+import org.whispersystems.libaxolotl.InvalidMessageException;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ws.com.google.android.mms.pdu.PduHeaders;
 
 public class PlaintextBackupExporter {
 
+  private static final String TAG = PlaintextBackupExporter.class.getSimpleName();
+
+  private static final int PAGE_SIZE          = 500;
+  private static final int DECRYPTION_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+  private static final int MAX_PENDING_PAGES  = DECRYPTION_THREADS * 2;
+
   public static void exportPlaintextToSd(Context context, MasterSecret masterSecret)
       throws NoExternalStorageException, IOException
   {
@@ -32,35 +59,208 @@ public class PlaintextBackupExporter {
   private static void exportPlaintext(Context context, MasterSecret masterSecret)
       throws IOException
   {
-    int count               = DatabaseFactory.getSmsDatabase(context).getMessageCount();
-    XmlBackup.Writer writer = new XmlBackup.Writer(getPlaintextExportDirectoryPath(), count);
+    SmsTable         smsTable   = new SmsTable(context, masterSecret);
+    MmsTable         mmsTable   = new MmsTable(context, masterSecret);
+    int              count      = smsTable.getCount() + mmsTable.getCount();
+    XmlBackup.Writer writer     = new XmlBackup.Writer(getPlaintextExportDirectoryPath(), count);
+    ExecutorService  decryptors = Executors.newFixedThreadPool(DECRYPTION_THREADS);
 
+    try {
+      exportTable(writer, decryptors, smsTable);
+      exportTable(writer, decryptors, mmsTable);
+    } finally {
+      decryptors.shutdownNow();
+    }
 
-    SmsMessageRecord record;
-    EncryptingSmsDatabase.Reader reader = null;
-    int skip                            = 0;
-    int ROW_LIMIT                       = 500;
+    writer.close();
+  }
 
-    do {
-      if (reader != null)
-        reader.close();
+  /**
+   * Splits a table into pages of PAGE_SIZE ids, has each page read and decrypted on the
+   * decryption pool, and writes the pages out in order as they complete.  At most
+   * MAX_PENDING_PAGES are read ahead of the writer, so memory stays bounded however
+   * large the table is.
+   */
+  private static void exportTable(XmlBackup.Writer writer, ExecutorService decryptors, Table table)
+      throws IOException
+  {
+    LinkedList<Future<List<XmlBackup.XmlBackupItem>>> pending   = new LinkedList<>();
+    long                                              afterId   = -1;
+    boolean                                           exhausted = false;
+
+    while (!exhausted || !pending.isEmpty()) {
+      while (!exhausted && pending.size() < MAX_PENDING_PAGES) {
+        long throughId = table.getIdAfter(afterId, PAGE_SIZE - 1);
 
-      reader = DatabaseFactory.getEncryptingSmsDatabase(context).getMessages(masterSecret, skip, ROW_LIMIT);
+        if (throughId == -1) {
+          throughId = Long.MAX_VALUE;
+          exhausted = true;
+        }
 
-      while ((record = reader.getNext()) != null) {
-        XmlBackup.XmlBackupItem item =
-            new XmlBackup.XmlBackupItem(0, record.getIndividualRecipient().getNumber(),
-                                        record.getDateReceived(),
-                                        MmsSmsColumns.Types.translateToSystemBaseType(record.getType()),
-                                        null, record.getDisplayBody().toString(), null,
-                                        1, record.getDeliveryStatus());
+        pending.add(decryptors.submit(table.getPage(afterId, throughId)));
+        afterId = throughId;
+      }
 
+      for (XmlBackup.XmlBackupItem item : getPage(pending.removeFirst())) {
         writer.writeItem(item);
       }
+    }
+  }
 
-      skip += ROW_LIMIT;
-    } while (reader.getCount() > 0);
+  private static List<XmlBackup.XmlBackupItem> getPage(Future<List<XmlBackup.XmlBackupItem>> page)
+      throws IOException
+  {
+    try {
+      return page.get();
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
 
-    writer.close();
+  private interface Table {
+    int getCount();
+    long getIdAfter(long afterId, int offset);
+    Callable<List<XmlBackup.XmlBackupItem>> getPage(long afterId, long throughId);
+  }
+
+  private static class SmsTable implements Table {
+    private final EncryptingSmsDatabase database;
+    private final MasterSecret          masterSecret;
+
+    SmsTable(Context context, MasterSecret masterSecret) {
+      this.database     = DatabaseFactory.getEncryptingSmsDatabase(context);
+      this.masterSecret = masterSecret;
+    }
+
+    @Override
+    public int getCount() {
+      return database.getMessageCount();
+    }
+
+    @Override
+    public long getIdAfter(long afterId, int offset) {
+      return database.getIdAfter(afterId, offset);
+    }
+
+    @Override
+    public Callable<List<XmlBackup.XmlBackupItem>> getPage(final long afterId, final long throughId) {
+      return new Callable<List<XmlBackup.XmlBackupItem>>() {
+        @Override
+        public List<XmlBackup.XmlBackupItem> call() {
+          List<XmlBackup.XmlBackupItem> items  = new ArrayList<>(PAGE_SIZE);
+          EncryptingSmsDatabase.Reader  reader = database.getMessagesInRange(masterSecret, afterId, throughId);
+          SmsMessageRecord              record;
+
+          try {
+            while ((record = reader.getNext()) != null) {
+              items.add(new XmlBackup.XmlBackupItem(0, record.getIndividualRecipient().getNumber(),
+                                                    record.getDateReceived(),
+                                                    MmsSmsColumns.Types.translateToSystemBaseType(record.getType()),
+                                                    null, record.getDisplayBody().toString(), null,
+                                                    1, record.getDeliveryStatus()));
+            }
+          } finally {
+            reader.close();
+          }
+
+          return items;
+        }
+      };
+    }
+  }
+
+  /**
+   * MMS text bodies, exported as SMS items since that's all the backup format can carry.
+   * Attachments and subjects aren't exported.
+   */
+  private static class MmsTable implements Table {
+    private final Context        context;
+    private final MmsDatabase    database;
+    private final ThreadDatabase threads;
+    private final MasterSecret   masterSecret;
+
+    MmsTable(Context context, MasterSecret masterSecret) {
+      this.context      = context;
+      this.database     = DatabaseFactory.getMmsDatabase(context);
+      this.threads      = DatabaseFactory.getThreadDatabase(context);
+      this.masterSecret = masterSecret;
+    }
+
+    @Override
+    public int getCount() {
+      return database.getTextMessageCount();
+    }
+
+    @Override
+    public long getIdAfter(long afterId, int offset) {
+      return database.getIdAfter(afterId, offset);
+    }
+
+    @Override
+    public Callable<List<XmlBackup.XmlBackupItem>> getPage(final long afterId, final long throughId) {
+      return new Callable<List<XmlBackup.XmlBackupItem>>() {
+        @Override
+        public List<XmlBackup.XmlBackupItem> call() {
+          List<XmlBackup.XmlBackupItem> items     = new ArrayList<>(PAGE_SIZE);
+          Map<Long, String>             addresses = new HashMap<>();
+          MasterCipher                  cipher    = MasterCipher.getInstance(masterSecret);
+          Cursor                        cursor    = database.getTextMessagesInRange(afterId, throughId);
+
+          try {
+            while (cursor != null && cursor.moveToNext()) {
+              long   threadId = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.THREAD_ID));
+              long   date     = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.NORMALIZED_DATE_RECEIVED));
+              long   box      = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.MESSAGE_BOX));
+              String address  = cursor.getString(cursor.getColumnIndexOrThrow(MmsDatabase.ADDRESS));
+              String body     = cursor.getString(cursor.getColumnIndexOrThrow(MmsDatabase.BODY));
+
+              if (!MmsSmsColumns.Types.isInboxType(box) || TextUtils.isEmpty(address) ||
+                  PduHeaders.FROM_INSERT_ADDRESS_TOKEN_STR.equals(address))
+              {
+                address = getThreadAddress(addresses, threadId);
+              }
+
+              items.add(new XmlBackup.XmlBackupItem(0, address, date,
+                                                    MmsSmsColumns.Types.translateToSystemBaseType(box),
+                                                    null, getPlaintextBody(cipher, box, body), null,
+                                                    1, SmsDatabase.Status.STATUS_NONE));
+            }
+          } finally {
+            if (cursor != null)
+              cursor.close();
+          }
+
+          return items;
+        }
+      };
+    }
+
+    private String getThreadAddress(Map<Long, String> addresses, long threadId) {
+      String address = addresses.get(threadId);
+
+      if (address == null) {
+        Recipients recipients = threads.getRecipientsForThreadId(threadId);
+
+        if (recipients == null) address = "";
+        else                    address = Util.join(Arrays.asList(recipients.toNumberStringArray(false)), ",");
+
+        addresses.put(threadId, address);
+      }
+
+      return address;
+    }
+
+    private String getPlaintextBody(MasterCipher cipher, long box, String body) {
+      if (!MmsSmsColumns.Types.isSymmetricEncryption(box)) return body;
+
+      try {
+        return cipher.decryptBody(body);
+      } catch (InvalidMessageException e) {
+        Log.w(TAG, e);
+        return context.getString(R.string.MmsDatabase_error_decrypting_message);
+      }
+    }
   }
 }
@@ -8,6 +8,7 @@ import android.util.Log;
 
 import org.smssecure.smssecure.crypto.MasterCipher;
 import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.database.ImportCheckpointDatabase.Checkpoint;
 import org.smssecure.smssecure.recipients.RecipientFactory;
 import org.smssecure.smssecure.recipients.RecipientFormattingException;
 import org.smssecure.smssecure.recipients.Recipients;
@@ -15,16 +16,30 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 public class PlaintextBackupImporter {
 
+  private static final String TAG = PlaintextBackupImporter.class.getSimpleName();
+
+  private static final int BATCH_SIZE         = 500;
+  private static final int ENCRYPTION_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
   public static void importPlaintextFromSd(Context context, MasterSecret masterSecret)
       throws NoExternalStorageException, IOException
   {
-    Log.w("PlaintextBackupImporter", "Importing plaintext...");
+    Log.w(TAG, "Importing plaintext...");
     verifyExternalStorageForPlaintextImport();
     importPlaintext(context, masterSecret);
   }
@@ -43,21 +58,122 @@ public class PlaintextBackupImporter {
   private static void importPlaintext(Context context, MasterSecret masterSecret)
       throws IOException
   {
-    Log.w("PlaintextBackupImporter", "importPlaintext()");
-    SmsDatabase    db          = DatabaseFactory.getSmsDatabase(context);
-    SQLiteDatabase transaction = db.beginTransaction();
+    Log.w(TAG, "importPlaintext()");
+    File                     backupFile  = new File(getPlaintextExportDirectoryPath());
+    SmsDatabase              db          = DatabaseFactory.getSmsDatabase(context);
+    ThreadDatabase           threads     = DatabaseFactory.getThreadDatabase(context);
+    ImportCheckpointDatabase checkpoints = DatabaseFactory.getImportCheckpointDatabase(context);
+    String                   file        = backupFile.length() + ":" + backupFile.lastModified();
+    Checkpoint               checkpoint  = checkpoints.get(file);
+    ExecutorService          reader      = Executors.newSingleThreadExecutor();
+    ExecutorService          encryptors  = Executors.newFixedThreadPool(ENCRYPTION_THREADS);
+    Map<String, Long>        threadIds   = new HashMap<>();
+    SQLiteStatement          statement   = null;
 
     try {
-      ThreadDatabase threads         = DatabaseFactory.getThreadDatabase(context);
-      XmlBackup      backup          = new XmlBackup(getPlaintextExportDirectoryPath());
-      MasterCipher   masterCipher    = new MasterCipher(masterSecret);
-      Set<Long>      modifiedThreads = new HashSet<Long>();
+      updateAbandonedThreads(threads, checkpoints, file);
+
+      XmlBackup backup = new XmlBackup(backupFile.getAbsolutePath());
+
+      if (checkpoint.getItems() > 0) {
+        Log.w(TAG, "Resuming import after " + checkpoint.getItems() + " items");
+
+        for (int i=0;i<checkpoint.getItems();i++) {
+          if (backup.getNext() == null) break;
+        }
+      }
+
+      Batch batch = Batch.read(backup, masterSecret, encryptors);
+
+      while (batch.consumed > 0) {
+        Future<Batch>  next        = Batch.readAsync(reader, backup, masterSecret, encryptors);
+        SQLiteDatabase transaction = db.beginTransaction();
+
+        try {
+          if (statement == null) {
+            statement = db.createInsertStatement(transaction);
+          }
+
+          for (int i=0;i<batch.items.size();i++) {
+            XmlBackup.XmlBackupItem item     = batch.items.get(i);
+            long                    threadId = getThreadId(context, threads, threadIds, item.getAddress());
+
+            addStringToStatement(statement, 1, item.getAddress());
+            addNullToStatement(statement, 2);
+            addLongToStatement(statement, 3, item.getDate());
+            addLongToStatement(statement, 4, item.getDate());
+            addLongToStatement(statement, 5, item.getProtocol());
+            addLongToStatement(statement, 6, item.getRead());
+            addLongToStatement(statement, 7, item.getStatus());
+            addTranslatedTypeToStatement(statement, 8, item.getType());
+            addNullToStatement(statement, 9);
+            addStringToStatement(statement, 10, item.getSubject());
+            addStringToStatement(statement, 11, batch.getEncryptedBody(i));
+            addStringToStatement(statement, 12, item.getServiceCenter());
+            addLongToStatement(statement, 13, threadId);
+            checkpoint.addThread(threadId);
+            statement.execute();
+          }
+
+          checkpoint.addItems(batch.consumed);
+          checkpoints.save(checkpoint);
+
+          transaction.setTransactionSuccessful();
+        } finally {
+          transaction.endTransaction();
+        }
+
+        batch = Batch.get(next);
+      }
+
+      for (long threadId : checkpoint.getThreads()) {
+        threads.update(threadId);
+      }
+
+      checkpoints.clear();
+      Log.w(TAG, "Exited loop");
+    } catch (XmlPullParserException e) {
+      Log.w(TAG, e);
+      throw new IOException("XML Parsing error!");
+    } finally {
+      if (statement != null) statement.close();
+      reader.shutdownNow();
+      encryptors.shutdownNow();
+    }
+  }
+
+  private static long getThreadId(Context context, ThreadDatabase threads,
+                                  Map<String, Long> threadIds, String address)
+  {
+    Long threadId = threadIds.get(address);
+
+    if (threadId == null) {
+      Recipients recipients = RecipientFactory.getRecipientsFromString(context, address, false);
+      threadId = threads.getThreadIdFor(recipients);
+      threadIds.put(address, threadId);
+    }
+
+    return threadId;
+  }
+
+  /**
+   * The next BATCH_SIZE items of a backup, parsed on the reader thread and with their
+   * bodies encrypted on the encryption pool while the previous batch is written.
+   */
+  private static class Batch {
+    private final List<XmlBackup.XmlBackupItem> items       = new ArrayList<>(BATCH_SIZE);
+    private final List<Future<?>>               encryptions = new LinkedList<>();
+    private final String[]                      bodies      = new String[BATCH_SIZE];
+    private       int                           consumed;
+
+    static Batch read(XmlBackup backup, final MasterSecret masterSecret, ExecutorService encryptors)
+        throws IOException, XmlPullParserException
+    {
+      final Batch             batch = new Batch();
       XmlBackup.XmlBackupItem item;
 
-      while ((item = backup.getNext()) != null) {
-        Recipients      recipients = RecipientFactory.getRecipientsFromString(context, item.getAddress(), false);
-        long            threadId   = threads.getThreadIdFor(recipients);
-        SQLiteStatement statement  = db.createInsertStatement(transaction);
+      while (batch.consumed < BATCH_SIZE && (item = backup.getNext()) != null) {
+        batch.consumed++;
 
         if (item.getAddress() == null || item.getAddress().equals("null"))
           continue;
@@ -65,41 +181,85 @@ public class PlaintextBackupImporter {
         if (!isAppropriateTypeForImport(item.getType()))
           continue;
 
-        addStringToStatement(statement, 1, item.getAddress());
-        addNullToStatement(statement, 2);
-        addLongToStatement(statement, 3, item.getDate());
-        addLongToStatement(statement, 4, item.getDate());
-        addLongToStatement(statement, 5, item.getProtocol());
-        addLongToStatement(statement, 6, item.getRead());
-        addLongToStatement(statement, 7, item.getStatus());
-        addTranslatedTypeToStatement(statement, 8, item.getType());
-        addNullToStatement(statement, 9);
-        addStringToStatement(statement, 10, item.getSubject());
-        addEncryptedStingToStatement(masterCipher, statement, 11, item.getBody());
-        addStringToStatement(statement, 12, item.getServiceCenter());
-        addLongToStatement(statement, 13, threadId);
-        modifiedThreads.add(threadId);
-        statement.execute();
+        batch.items.add(item);
       }
 
-      for (long threadId : modifiedThreads) {
-        threads.update(threadId);
+      int chunkSize = (batch.items.size() + ENCRYPTION_THREADS - 1) / ENCRYPTION_THREADS;
+
+      for (int start=0;start<batch.items.size();start+=chunkSize) {
+        final int from = start;
+        final int to   = Math.min(start + chunkSize, batch.items.size());
+
+        batch.encryptions.add(encryptors.submit(new Runnable() {
+          @Override
+          public void run() {
+            MasterCipher masterCipher = MasterCipher.getInstance(masterSecret);
+
+            for (int i=from;i<to;i++) {
+              String body = batch.items.get(i).getBody();
+
+              if (body != null && !body.equals("null")) {
+                batch.bodies[i] = masterCipher.encryptBody(body);
+              }
+            }
+          }
+        }));
       }
 
-      Log.w("PlaintextBackupImporter", "Exited loop");
-    } catch (XmlPullParserException e) {
-      Log.w("PlaintextBackupImporter", e);
-      throw new IOException("XML Parsing error!");
-    } finally {
-      db.endTransaction(transaction);
+      return batch;
+    }
+
+    static Future<Batch> readAsync(ExecutorService reader, final XmlBackup backup,
+                                   final MasterSecret masterSecret, final ExecutorService encryptors)
+    {
+      return reader.submit(new Callable<Batch>() {
+        @Override
+        public Batch call() throws IOException, XmlPullParserException {
+          return read(backup, masterSecret, encryptors);
+        }
+      });
+    }
+
+    static Batch get(Future<Batch> batch) throws IOException, XmlPullParserException {
+      try {
+        return batch.get();
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      } catch (ExecutionException e) {
+        if      (e.getCause() instanceof IOException)            throw (IOException)e.getCause();
+        else if (e.getCause() instanceof XmlPullParserException) throw (XmlPullParserException)e.getCause();
+        else                                                     throw new IOException(e.getCause());
+      }
+    }
+
+    String getEncryptedBody(int index) throws IOException {
+      while (!encryptions.isEmpty()) {
+        try {
+          encryptions.remove(0).get();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        } catch (ExecutionException e) {
+          throw new IOException(e.getCause());
+        }
+      }
+
+      return bodies[index];
     }
   }
 
-  private static void addEncryptedStingToStatement(MasterCipher masterCipher, SQLiteStatement statement, int index, String value) {
-    if (value == null || value.equals("null")) {
-      statement.bindNull(index);
-    } else {
-      statement.bindString(index, masterCipher.encryptBody(value));
+  private static void updateAbandonedThreads(ThreadDatabase threads, ImportCheckpointDatabase checkpoints,
+                                             String file)
+  {
+    Set<Long> abandoned = checkpoints.getAbandonedThreads(file);
+
+    if (!abandoned.isEmpty()) {
+      Log.w(TAG, "Updating " + abandoned.size() + " threads left by an unfinished import");
+
+      for (long threadId : abandoned) {
+        threads.update(threadId);
+      }
+
+      checkpoints.clear();
     }
   }
 
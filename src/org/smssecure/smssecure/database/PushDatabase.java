@@ -72,6 +72,29 @@ public class PushDatabase extends Database {
     return databaseHelper.getReadableDatabase().query(TABLE_NAME, null, null, null, null, null, null);
   }
 
+  public Cursor getPending(long afterId, long throughId) {
+    return databaseHelper.getReadableDatabase().query(TABLE_NAME, null, ID + " > ? AND " + ID + " <= ?",
+                                                      new String[] {String.valueOf(afterId), String.valueOf(throughId)},
+                                                      null, null, ID + " ASC");
+  }
+
+  public long getLastId() {
+    Cursor cursor = null;
+
+    try {
+      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] {"MAX(" + ID + ")"},
+                                                          null, null, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst())
+        return cursor.getLong(0);
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return 0;
+  }
+
   public void delete(long id) {
     databaseHelper.getWritableDatabase().delete(TABLE_NAME, ID_WHERE, new String[] {id+""});
   }
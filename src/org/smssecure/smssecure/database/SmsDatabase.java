@@ -32,6 +32,7 @@ import org.smssecure.smssecure.database.documents.IdentityKeyMismatch;
 import org.smssecure.smssecure.database.documents.IdentityKeyMismatchList;
 import org.smssecure.smssecure.database.model.DisplayRecord;
 import org.smssecure.smssecure.database.model.SmsMessageRecord;
+import org.smssecure.smssecure.jobs.LaneJobManager;
 import org.smssecure.smssecure.jobs.TrimThreadJob;
 import org.smssecure.smssecure.recipients.Recipient;
 import org.smssecure.smssecure.recipients.RecipientFactory;
@@ -42,10 +43,10 @@ import org.smssecure.smssecure.sms.IncomingKeyExchangeMessage;
 import org.smssecure.smssecure.sms.IncomingTextMessage;
 import org.smssecure.smssecure.sms.OutgoingTextMessage;
 import org.smssecure.smssecure.util.JsonUtils;
-import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.textsecure.api.util.InvalidNumberException;
 
 import java.io.IOException;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -88,6 +89,18 @@ public class SmsDatabase extends MessagingDatabase {
     "CREATE INDEX IF NOT EXISTS sms_date_sent_index ON " + TABLE_NAME + " (" + DATE_SENT + ");"
   };
 
+  public static final String[] CREATE_TRIGGERS = {
+    "CREATE TRIGGER IF NOT EXISTS sms_message_index_insert AFTER INSERT ON " + TABLE_NAME + " BEGIN " +
+      "INSERT INTO " + MmsSmsDatabase.INDEX_TABLE_NAME + " (thread_id, date_received, transport_type, message_id, read) " +
+      "VALUES (new." + THREAD_ID + ", new." + DATE_RECEIVED + ", '" + MmsSmsDatabase.SMS_TRANSPORT + "', new." + ID + ", new." + READ + "); END;",
+    "CREATE TRIGGER IF NOT EXISTS sms_message_index_update AFTER UPDATE OF " + THREAD_ID + ", " + DATE_RECEIVED + ", " + READ + " ON " + TABLE_NAME + " BEGIN " +
+      "UPDATE " + MmsSmsDatabase.INDEX_TABLE_NAME + " SET thread_id = new." + THREAD_ID + ", date_received = new." + DATE_RECEIVED + ", read = new." + READ + " " +
+      "WHERE transport_type = '" + MmsSmsDatabase.SMS_TRANSPORT + "' AND message_id = new." + ID + "; END;",
+    "CREATE TRIGGER IF NOT EXISTS sms_message_index_delete AFTER DELETE ON " + TABLE_NAME + " BEGIN " +
+      "DELETE FROM " + MmsSmsDatabase.INDEX_TABLE_NAME + " " +
+      "WHERE transport_type = '" + MmsSmsDatabase.SMS_TRANSPORT + "' AND message_id = old." + ID + "; END;"
+  };
+
   private static final String[] MESSAGE_PROJECTION = new String[] {
       ID, THREAD_ID, ADDRESS, ADDRESS_DEVICE_ID, PERSON,
       DATE_RECEIVED + " AS " + NORMALIZED_DATE_RECEIVED,
@@ -97,7 +110,7 @@ public class SmsDatabase extends MessagingDatabase {
       MISMATCHED_IDENTITIES
   };
 
-  private final JobManager jobManager;
+  private final LaneJobManager jobManager;
 
   public SmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
@@ -328,6 +341,8 @@ public class SmsDatabase extends MessagingDatabase {
                    "WHERE " + ID + " = ?",
                new String[] {body, messageId + ""});
 
+    DecryptedBodyCache.getInstance().remove(DecryptedBodyCache.TYPE_SMS, messageId);
+
     long threadId = getThreadIdForMessage(messageId);
 
     DatabaseFactory.getThreadDatabase(context).update(threadId);
@@ -335,6 +350,59 @@ public class SmsDatabase extends MessagingDatabase {
     notifyConversationListListeners();
   }
 
+  /**
+   * Applies several body and type updates in one transaction, then updates and notifies
+   * each affected thread once.
+   */
+  protected void updateMessagesBodyAndType(List<BodyAndTypeUpdate> updates) {
+    SQLiteDatabase  db            = databaseHelper.getWritableDatabase();
+    Set<Long>       threadIds     = new HashSet<>();
+    SQLiteStatement bodyStatement = db.compileStatement("UPDATE " + TABLE_NAME + " SET " + BODY + " = ?, " +
+                                                        TYPE + " = (" + TYPE + " & ? | ?) WHERE " + ID + " = ?");
+    SQLiteStatement typeStatement = db.compileStatement("UPDATE " + TABLE_NAME + " SET " +
+                                                        TYPE + " = (" + TYPE + " & ? | ?) WHERE " + ID + " = ?");
+
+    db.beginTransaction();
+
+    try {
+      for (BodyAndTypeUpdate update : updates) {
+        if (update.body != null) {
+          bodyStatement.bindString(1, update.body);
+          bodyStatement.bindLong(2, Types.TOTAL_MASK - update.maskOff);
+          bodyStatement.bindLong(3, update.maskOn);
+          bodyStatement.bindLong(4, update.messageId);
+          bodyStatement.execute();
+        } else {
+          typeStatement.bindLong(1, Types.TOTAL_MASK - update.maskOff);
+          typeStatement.bindLong(2, update.maskOn);
+          typeStatement.bindLong(3, update.messageId);
+          typeStatement.execute();
+        }
+
+        threadIds.add(getThreadIdForMessage(update.messageId));
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+      bodyStatement.close();
+      typeStatement.close();
+    }
+
+    for (BodyAndTypeUpdate update : updates) {
+      if (update.body != null) {
+        DecryptedBodyCache.getInstance().remove(DecryptedBodyCache.TYPE_SMS, update.messageId);
+      }
+    }
+
+    for (long threadId : threadIds) {
+      DatabaseFactory.getThreadDatabase(context).update(threadId);
+      notifyConversationListeners(threadId);
+    }
+
+    notifyConversationListListeners();
+  }
+
   public Pair<Long, Long> copyMessageInbox(long messageId) {
     Reader           reader = readerFor(getMessage(messageId));
     SmsMessageRecord record = reader.getNext();
@@ -477,9 +545,14 @@ public class SmsDatabase extends MessagingDatabase {
     return messageId;
   }
 
-  Cursor getMessages(int skip, int limit) {
+  /*package*/ long getIdAfter(long afterId, int offset) {
+    return getIdAfter(TABLE_NAME, afterId, offset);
+  }
+
+  /*package*/ Cursor getMessagesInRange(long afterId, long throughId) {
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    return db.query(TABLE_NAME, MESSAGE_PROJECTION, null, null, null, null, ID, skip + "," + limit);
+    return db.query(TABLE_NAME, MESSAGE_PROJECTION, ID + " > ? AND " + ID + " <= ?",
+                    new String[] {afterId+"", throughId+""}, null, null, ID);
   }
 
   Cursor getOutgoingMessages() {
@@ -491,7 +564,7 @@ public class SmsDatabase extends MessagingDatabase {
   public Cursor getDecryptInProgressMessages() {
     String where       = TYPE + " & " + (Types.ENCRYPTION_REMOTE_BIT | Types.ENCRYPTION_ASYMMETRIC_BIT) + " != 0";
     SQLiteDatabase db  = databaseHelper.getReadableDatabase();
-    return db.query(TABLE_NAME, MESSAGE_PROJECTION, where, null, null, null, null);
+    return db.query(TABLE_NAME, MESSAGE_PROJECTION, where, null, null, null, ID);
   }
 
   public Cursor getEncryptedRogueMessages(Recipient recipient) {
@@ -515,13 +588,14 @@ public class SmsDatabase extends MessagingDatabase {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     long threadId     = getThreadIdForMessage(messageId);
     db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
+    DecryptedBodyCache.getInstance().remove(DecryptedBodyCache.TYPE_SMS, messageId);
     DatabaseFactory.getThreadDatabase(context).update(threadId);
     notifyConversationListeners(threadId);
   }
 
   /*package */void deleteThread(long threadId) {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    db.delete(TABLE_NAME, THREAD_ID + " = ?", new String[] {threadId+""});
+    deleteAndUncache(db, THREAD_ID + " = ?", new String[] {threadId+""});
   }
 
   /*package*/void deleteMessagesInThreadBeforeDate(long threadId, long date) {
@@ -534,7 +608,37 @@ public class SmsDatabase extends MessagingDatabase {
 
     where += (" ELSE " + DATE_RECEIVED + " < " + date + " END)");
 
-    db.delete(TABLE_NAME, where, new String[] {threadId + ""});
+    deleteAndUncache(db, where, new String[] {threadId + ""});
+  }
+
+  /**
+   * Deletes the messages, and then their bodies from the {@link DecryptedBodyCache}.
+   */
+  private void deleteAndUncache(SQLiteDatabase db, String where, String[] args) {
+    List<Long> ids    = new LinkedList<>();
+    Cursor     cursor = null;
+
+    db.beginTransaction();
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {ID}, where, args, null, null, null);
+
+      while (cursor.moveToNext()) {
+        ids.add(cursor.getLong(0));
+      }
+
+      db.delete(TABLE_NAME, where, args);
+      db.setTransactionSuccessful();
+    } finally {
+      if (cursor != null)
+        cursor.close();
+
+      db.endTransaction();
+    }
+
+    for (long id : ids) {
+      DecryptedBodyCache.getInstance().remove(DecryptedBodyCache.TYPE_SMS, id);
+    }
   }
 
   /*package*/ void deleteThreads(Set<Long> threadIds) {
@@ -547,12 +651,13 @@ public class SmsDatabase extends MessagingDatabase {
 
     where = where.substring(0, where.length() - 4);
 
-    db.delete(TABLE_NAME, where, null);
+    deleteAndUncache(db, where, null);
   }
 
   /*package */ void deleteAllThreads() {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.delete(TABLE_NAME, null, null);
+    DecryptedBodyCache.getInstance().clear();
   }
 
   /*package*/ SQLiteDatabase beginTransaction() {
@@ -594,6 +699,23 @@ public class SmsDatabase extends MessagingDatabase {
     return new Reader(cursor);
   }
 
+  protected static class BodyAndTypeUpdate {
+    private final long   messageId;
+    private final String body;
+    private final long   maskOff;
+    private final long   maskOn;
+
+    /**
+     * @param body the new body, or null to leave it as it is
+     */
+    protected BodyAndTypeUpdate(long messageId, String body, long maskOff, long maskOn) {
+      this.messageId = messageId;
+      this.body      = body;
+      this.maskOff   = maskOff;
+      this.maskOn    = maskOn;
+    }
+  }
+
   public class Reader {
 
     private final Cursor cursor;
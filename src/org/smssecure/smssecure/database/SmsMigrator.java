@@ -29,59 +29,32 @@ import org.smssecure.smssecure.recipients.RecipientFactory;
 import org.smssecure.smssecure.recipients.RecipientFormattingException;
 import org.smssecure.smssecure.recipients.Recipients;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 public class SmsMigrator {
 
-  private static void addEncryptedStringToStatement(Context context, SQLiteStatement statement,
-                                                    Cursor cursor, MasterSecret masterSecret,
-                                                    int index, String key)
-  {
-    int columnIndex = cursor.getColumnIndexOrThrow(key);
-
-    if (cursor.isNull(columnIndex)) {
-      statement.bindNull(index);
-    } else {
-      statement.bindString(index, encrypt(masterSecret, cursor.getString(columnIndex)));
-    }
-  }
-
-  private static void addStringToStatement(SQLiteStatement statement, Cursor cursor,
-                                           int index, String key)
-  {
-    int columnIndex = cursor.getColumnIndexOrThrow(key);
-
-    if (cursor.isNull(columnIndex)) {
-      statement.bindNull(index);
-    } else {
-      statement.bindString(index, cursor.getString(columnIndex));
-    }
-  }
-
-  private static void addIntToStatement(SQLiteStatement statement, Cursor cursor,
-                                        int index, String key)
-  {
-    int columnIndex = cursor.getColumnIndexOrThrow(key);
-
-    if (cursor.isNull(columnIndex)) {
-      statement.bindNull(index);
-    } else {
-      statement.bindLong(index, cursor.getLong(columnIndex));
-    }
-  }
+  private static final String TAG = SmsMigrator.class.getSimpleName();
 
-  private static void addTranslatedTypeToStatement(SQLiteStatement statement, Cursor cursor,
-                                                   int index, String key)
-  {
-    int columnIndex = cursor.getColumnIndexOrThrow(key);
+  private static final int BATCH_SIZE          = 200;
+  private static final int ENCRYPTION_THREADS  = Math.max(1, Runtime.getRuntime().availableProcessors());
+  private static final int MAX_PENDING_BATCHES = ENCRYPTION_THREADS * 2;
 
-    if (cursor.isNull(columnIndex)) {
-      statement.bindLong(index, SmsDatabase.Types.BASE_INBOX_TYPE | SmsDatabase.Types.ENCRYPTION_SYMMETRIC_BIT);
-    } else {
-      long theirType = cursor.getLong(columnIndex);
-      statement.bindLong(index, SmsDatabase.Types.translateFromSystemBaseType(theirType) | SmsDatabase.Types.ENCRYPTION_SYMMETRIC_BIT);
+  private static final Future<Batch> END_OF_MIGRATION = new FutureTask<>(new Callable<Batch>() {
+    @Override
+    public Batch call() {
+      return null;
     }
-  }
+  });
 
   private static boolean isAppropriateTypeForMigration(Cursor cursor, int columnIndex) {
     long systemType = cursor.getLong(columnIndex);
@@ -92,26 +65,6 @@ public class SmsMigrator {
            ourType == MmsSmsColumns.Types.BASE_SENT_FAILED_TYPE;
   }
 
-  private static void getContentValuesForRow(Context context, MasterSecret masterSecret,
-                                             Cursor cursor, long threadId,
-                                             SQLiteStatement statement)
-  {
-    addStringToStatement(statement, cursor, 1, SmsDatabase.ADDRESS);
-    addIntToStatement(statement, cursor, 2, SmsDatabase.PERSON);
-    addIntToStatement(statement, cursor, 3, SmsDatabase.DATE_RECEIVED);
-    addIntToStatement(statement, cursor, 4, SmsDatabase.DATE_RECEIVED);
-    addIntToStatement(statement, cursor, 5, SmsDatabase.PROTOCOL);
-    addIntToStatement(statement, cursor, 6, SmsDatabase.READ);
-    addIntToStatement(statement, cursor, 7, SmsDatabase.STATUS);
-    addTranslatedTypeToStatement(statement, cursor, 8, SmsDatabase.TYPE);
-    addIntToStatement(statement, cursor, 9, SmsDatabase.REPLY_PATH_PRESENT);
-    addStringToStatement(statement, cursor, 10, SmsDatabase.SUBJECT);
-    addEncryptedStringToStatement(context, statement, cursor, masterSecret, 11, SmsDatabase.BODY);
-    addStringToStatement(statement, cursor, 12, SmsDatabase.SERVICE_CENTER);
-
-    statement.bindLong(13, threadId);
-  }
-
   private static String getTheirCanonicalAddress(Context context, String theirRecipientId) {
     Uri uri       = Uri.parse("content://mms-sms/canonical-address/" + theirRecipientId);
     Cursor cursor = null;
@@ -125,7 +78,7 @@ public class SmsMigrator {
         return null;
       }
     } catch (IllegalStateException iae) {
-      Log.w("SmsMigrator", iae);
+      Log.w(TAG, iae);
       return null;
     } finally {
       if (cursor != null)
@@ -154,84 +107,310 @@ public class SmsMigrator {
     else                  return RecipientFactory.getRecipientsFromString(context, sb.toString(), true);
   }
 
-  private static String encrypt(MasterSecret masterSecret, String body)
+  /**
+   * Migrates the system SMS database in three stages: a reader thread that walks the system
+   * provider and cuts each conversation into batches, a pool that encrypts the bodies of a
+   * few batches at once, and the calling thread, which inserts the batches in order, one
+   * transaction each.  The queue between the reader and the writer is bounded, so only a
+   * few batches are ever held in memory.
+   */
+  public static void migrateDatabase(Context context,
+                                     MasterSecret masterSecret,
+                                     SmsMigrationProgressListener listener)
   {
-    MasterCipher masterCipher = new MasterCipher(masterSecret);
-    return masterCipher.encryptBody(body);
-  }
+//    if (context.getSharedPreferences("SecureSMS", Context.MODE_PRIVATE).getBoolean("migrated", false))
+//      return;
 
-  private static void migrateConversation(Context context, MasterSecret masterSecret,
-                                          SmsMigrationProgressListener listener,
-                                          ProgressDescription progress,
-                                          long theirThreadId, long ourThreadId)
-  {
-    SmsDatabase ourSmsDatabase = DatabaseFactory.getSmsDatabase(context);
-    Cursor cursor              = null;
+    SmsDatabase                  smsDatabase    = DatabaseFactory.getSmsDatabase(context);
+    ThreadDatabase               threadDatabase = DatabaseFactory.getThreadDatabase(context);
+    BlockingQueue<Future<Batch>> batches        = new ArrayBlockingQueue<>(MAX_PENDING_BATCHES);
+    ExecutorService              encryptors     = Executors.newFixedThreadPool(ENCRYPTION_THREADS);
+    ExecutorService              reader         = Executors.newSingleThreadExecutor();
+    SQLiteStatement              statement      = null;
+    int                          migrated       = 0;
 
     try {
-      Uri uri                    = Uri.parse("content://sms/conversations/" + theirThreadId);
-      cursor                     = context.getContentResolver().query(uri, null, null, null, null);
-      SQLiteDatabase transaction = ourSmsDatabase.beginTransaction();
-      SQLiteStatement statement  = ourSmsDatabase.createInsertStatement(transaction);
+      Future<?>     reading = reader.submit(new ProviderReader(context, masterSecret, encryptors, batches));
+      Future<Batch> next;
+
+      while ((next = take(batches)) != END_OF_MIGRATION) {
+        Batch batch = get(next);
+
+        if (!batch.rows.isEmpty()) {
+          SQLiteDatabase transaction = smsDatabase.beginTransaction();
 
-      while (cursor != null && cursor.moveToNext()) {
-        int typeColumn = cursor.getColumnIndex(SmsDatabase.TYPE);
+          try {
+            if (statement == null) {
+              statement = smsDatabase.createInsertStatement(transaction);
+            }
 
-        if (cursor.isNull(typeColumn) || isAppropriateTypeForMigration(cursor, typeColumn)) {
-          getContentValuesForRow(context, masterSecret, cursor, ourThreadId, statement);
-          statement.execute();
+            for (int i=0;i<batch.rows.size();i++) {
+              batch.bind(statement, i);
+              statement.execute();
+            }
+
+            transaction.setTransactionSuccessful();
+          } finally {
+            transaction.endTransaction();
+          }
+
+          migrated += batch.rows.size();
+          listener.progressUpdate(batch.progress);
         }
 
-        listener.progressUpdate(new ProgressDescription(progress, cursor.getCount(), cursor.getPosition()));
-      }
+        if (batch.endsConversation) {
+          if (batch.ourThreadId != -1) {
+            threadDatabase.update(batch.ourThreadId);
+            threadDatabase.notifyConversationListeners(batch.ourThreadId);
+          }
 
-      ourSmsDatabase.endTransaction(transaction);
-      DatabaseFactory.getThreadDatabase(context).update(ourThreadId);
-      DatabaseFactory.getThreadDatabase(context).notifyConversationListeners(ourThreadId);
+          batch.conversationProgress.incrementPrimaryComplete();
+          listener.progressUpdate(batch.conversationProgress);
+        }
+      }
 
+      get(reading);
     } finally {
-      if (cursor != null)
-        cursor.close();
+      if (statement != null) statement.close();
+      reader.shutdownNow();
+      encryptors.shutdownNow();
     }
-  }
 
-  public static void migrateDatabase(Context context,
-                                     MasterSecret masterSecret,
-                                     SmsMigrationProgressListener listener)
-  {
-//    if (context.getSharedPreferences("SecureSMS", Context.MODE_PRIVATE).getBoolean("migrated", false))
-//      return;
+    Log.w(TAG, "Migrated " + migrated + " messages");
 
-    ThreadDatabase threadDatabase = DatabaseFactory.getThreadDatabase(context);
-    Cursor cursor                 = null;
+    context.getSharedPreferences("SecureSMS", Context.MODE_PRIVATE).edit()
+      .putBoolean("migrated", true).apply();
+  }
+
+  private static <T> T take(BlockingQueue<T> queue) {
+    try {
+      return queue.take();
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
 
+  private static <T> T get(Future<T> future) {
     try {
-      Uri threadListUri = Uri.parse("content://mms-sms/conversations?simple=true");
-      cursor            = context.getContentResolver().query(threadListUri, null, null, null, "date ASC");
-
-      while (cursor != null && cursor.moveToNext()) {
-        long   theirThreadId         = cursor.getLong(cursor.getColumnIndexOrThrow("_id"));
-        String theirRecipients       = cursor.getString(cursor.getColumnIndexOrThrow("recipient_ids"));
-        Recipients ourRecipients     = getOurRecipients(context, theirRecipients);
-        ProgressDescription progress = new ProgressDescription(cursor.getCount(), cursor.getPosition(), 100, 0);
-
-        if (ourRecipients != null) {
-          long ourThreadId = threadDatabase.getThreadIdFor(ourRecipients);
-          migrateConversation(context, masterSecret,
-                              listener, progress,
-                              theirThreadId, ourThreadId);
+      return future.get();
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+      else                                          throw new AssertionError(e.getCause());
+    }
+  }
+
+  /**
+   * Walks the system conversations, queueing each one as batches of at most BATCH_SIZE
+   * rows, each already submitted for encryption.  The last batch of a conversation, which
+   * may be empty, is marked so the writer knows when to update the thread.
+   */
+  private static class ProviderReader implements Runnable {
+    private final Context                      context;
+    private final MasterSecret                 masterSecret;
+    private final ExecutorService              encryptors;
+    private final BlockingQueue<Future<Batch>> batches;
+
+    ProviderReader(Context context, MasterSecret masterSecret,
+                   ExecutorService encryptors, BlockingQueue<Future<Batch>> batches)
+    {
+      this.context      = context;
+      this.masterSecret = masterSecret;
+      this.encryptors   = encryptors;
+      this.batches      = batches;
+    }
+
+    @Override
+    public void run() {
+      ThreadDatabase threadDatabase = DatabaseFactory.getThreadDatabase(context);
+      Cursor         cursor         = null;
+      boolean        interrupted    = false;
+
+      try {
+        Uri threadListUri = Uri.parse("content://mms-sms/conversations?simple=true");
+        cursor            = context.getContentResolver().query(threadListUri, null, null, null, "date ASC");
+
+        while (cursor != null && cursor.moveToNext()) {
+          long   theirThreadId         = cursor.getLong(cursor.getColumnIndexOrThrow("_id"));
+          String theirRecipients       = cursor.getString(cursor.getColumnIndexOrThrow("recipient_ids"));
+          Recipients ourRecipients     = getOurRecipients(context, theirRecipients);
+          ProgressDescription progress = new ProgressDescription(cursor.getCount(), cursor.getPosition(), 100, 0);
+
+          if (ourRecipients != null) {
+            long ourThreadId = threadDatabase.getThreadIdFor(ourRecipients);
+            readConversation(progress, theirThreadId, ourThreadId);
+          } else {
+            put(new Batch(-1, progress));
+          }
+        }
+      } catch (InterruptedException e) {
+        Log.w(TAG, e);
+        interrupted = true;
+      } finally {
+        if (cursor != null)
+          cursor.close();
+
+        // The writer only interrupts the reader once it has stopped taking batches, so
+        // there'd be nothing to take the end from a full queue
+        if (!interrupted && !Thread.currentThread().isInterrupted()) {
+          try {
+            batches.put(END_OF_MIGRATION);
+          } catch (InterruptedException e) {
+            Log.w(TAG, e);
+          }
+        }
+      }
+    }
+
+    private void readConversation(ProgressDescription progress, long theirThreadId, long ourThreadId)
+        throws InterruptedException
+    {
+      Cursor cursor = null;
+
+      try {
+        Uri uri = Uri.parse("content://sms/conversations/" + theirThreadId);
+        cursor  = context.getContentResolver().query(uri, null, null, null, null);
+
+        Batch batch = new Batch(ourThreadId, progress);
+
+        while (cursor != null && cursor.moveToNext()) {
+          int typeColumn = cursor.getColumnIndex(SmsDatabase.TYPE);
+
+          if (cursor.isNull(typeColumn) || isAppropriateTypeForMigration(cursor, typeColumn)) {
+            batch.rows.add(new Row(cursor));
+          }
+
+          if (batch.rows.size() == BATCH_SIZE) {
+            batch.progress = new ProgressDescription(progress, cursor.getCount(), cursor.getPosition());
+            put(batch);
+            batch = new Batch(ourThreadId, progress);
+          }
         }
 
-        progress.incrementPrimaryComplete();
-        listener.progressUpdate(progress);
+        if (cursor != null) {
+          batch.progress = new ProgressDescription(progress, cursor.getCount(), cursor.getCount());
+        }
+
+        batch.endsConversation = true;
+        put(batch);
+      } finally {
+        if (cursor != null)
+          cursor.close();
       }
-    } finally {
-      if (cursor != null)
-        cursor.close();
     }
 
-    context.getSharedPreferences("SecureSMS", Context.MODE_PRIVATE).edit()
-      .putBoolean("migrated", true).apply();
+    private void put(final Batch batch) throws InterruptedException {
+      batches.put(encryptors.submit(new Callable<Batch>() {
+        @Override
+        public Batch call() {
+          batch.encrypt(masterSecret);
+          return batch;
+        }
+      }));
+    }
+  }
+
+  private static class Batch {
+    private final long                ourThreadId;
+    private final ProgressDescription conversationProgress;
+    private final List<Row>           rows = new ArrayList<>(BATCH_SIZE);
+
+    private ProgressDescription progress;
+    private boolean             endsConversation;
+
+    Batch(long ourThreadId, ProgressDescription conversationProgress) {
+      this.ourThreadId          = ourThreadId;
+      this.conversationProgress = conversationProgress;
+      this.endsConversation     = ourThreadId == -1;
+    }
+
+    void encrypt(MasterSecret masterSecret) {
+      MasterCipher masterCipher = MasterCipher.getInstance(masterSecret);
+
+      for (Row row : rows) {
+        if (row.body != null) row.body = masterCipher.encryptBody(row.body);
+      }
+    }
+
+    void bind(SQLiteStatement statement, int index) {
+      Row row = rows.get(index);
+
+      bindString(statement, 1, row.address);
+      bindLong(statement, 2, row.person);
+      bindLong(statement, 3, row.dateReceived);
+      bindLong(statement, 4, row.dateReceived);
+      bindLong(statement, 5, row.protocol);
+      bindLong(statement, 6, row.read);
+      bindLong(statement, 7, row.status);
+      bindTranslatedType(statement, 8, row.type);
+      bindLong(statement, 9, row.replyPathPresent);
+      bindString(statement, 10, row.subject);
+      bindString(statement, 11, row.body);
+      bindString(statement, 12, row.serviceCenter);
+
+      statement.bindLong(13, ourThreadId);
+    }
+  }
+
+  /**
+   * The columns of one system SMS row that get migrated, read out of the cursor so that
+   * they can be encrypted and written after the cursor has moved on.
+   */
+  private static class Row {
+    private final String address;
+    private final Long   person;
+    private final Long   dateReceived;
+    private final Long   protocol;
+    private final Long   read;
+    private final Long   status;
+    private final Long   type;
+    private final Long   replyPathPresent;
+    private final String subject;
+    private final String serviceCenter;
+    private       String body;
+
+    Row(Cursor cursor) {
+      this.address          = getString(cursor, SmsDatabase.ADDRESS);
+      this.person           = getLong(cursor, SmsDatabase.PERSON);
+      this.dateReceived     = getLong(cursor, SmsDatabase.DATE_RECEIVED);
+      this.protocol         = getLong(cursor, SmsDatabase.PROTOCOL);
+      this.read             = getLong(cursor, SmsDatabase.READ);
+      this.status           = getLong(cursor, SmsDatabase.STATUS);
+      this.type             = getLong(cursor, SmsDatabase.TYPE);
+      this.replyPathPresent = getLong(cursor, SmsDatabase.REPLY_PATH_PRESENT);
+      this.subject          = getString(cursor, SmsDatabase.SUBJECT);
+      this.body             = getString(cursor, SmsDatabase.BODY);
+      this.serviceCenter    = getString(cursor, SmsDatabase.SERVICE_CENTER);
+    }
+
+    private static String getString(Cursor cursor, String key) {
+      int columnIndex = cursor.getColumnIndexOrThrow(key);
+      return cursor.isNull(columnIndex) ? null : cursor.getString(columnIndex);
+    }
+
+    private static Long getLong(Cursor cursor, String key) {
+      int columnIndex = cursor.getColumnIndexOrThrow(key);
+      return cursor.isNull(columnIndex) ? null : cursor.getLong(columnIndex);
+    }
+  }
+
+  private static void bindString(SQLiteStatement statement, int index, String value) {
+    if (value == null) statement.bindNull(index);
+    else               statement.bindString(index, value);
+  }
+
+  private static void bindLong(SQLiteStatement statement, int index, Long value) {
+    if (value == null) statement.bindNull(index);
+    else               statement.bindLong(index, value);
+  }
+
+  private static void bindTranslatedType(SQLiteStatement statement, int index, Long theirType) {
+    if (theirType == null) {
+      statement.bindLong(index, SmsDatabase.Types.BASE_INBOX_TYPE | SmsDatabase.Types.ENCRYPTION_SYMMETRIC_BIT);
+    } else {
+      statement.bindLong(index, SmsDatabase.Types.translateFromSystemBaseType(theirType) | SmsDatabase.Types.ENCRYPTION_SYMMETRIC_BIT);
+    }
   }
 
   public interface SmsMigrationProgressListener {
@@ -23,6 +23,7 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.Pair;
 
 import org.smssecure.smssecure.R;
 import org.smssecure.smssecure.crypto.MasterCipher;
@@ -34,8 +35,11 @@ import org.smssecure.smssecure.recipients.RecipientFactory;
 import org.smssecure.smssecure.recipients.Recipients;
 import org.whispersystems.libaxolotl.InvalidMessageException;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 
@@ -64,6 +68,19 @@ public class ThreadDatabase extends Database {
     "CREATE INDEX IF NOT EXISTS thread_recipient_ids_index ON " + TABLE_NAME + " (" + RECIPIENT_IDS + ");",
   };
 
+  public static final String[] CREATE_TRIGGERS = {
+    "CREATE TRIGGER IF NOT EXISTS thread_message_count_insert AFTER INSERT ON " + MmsSmsDatabase.INDEX_TABLE_NAME + " BEGIN " +
+      "UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " + 1 WHERE " + ID + " = new.thread_id; END;",
+    "CREATE TRIGGER IF NOT EXISTS thread_message_count_delete AFTER DELETE ON " + MmsSmsDatabase.INDEX_TABLE_NAME + " BEGIN " +
+      "UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " - 1 WHERE " + ID + " = old.thread_id; END;",
+    "CREATE TRIGGER IF NOT EXISTS thread_message_count_move AFTER UPDATE OF thread_id ON " + MmsSmsDatabase.INDEX_TABLE_NAME + " " +
+      "WHEN old.thread_id != new.thread_id BEGIN " +
+      "UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " - 1 WHERE " + ID + " = old.thread_id; " +
+      "UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " + 1 WHERE " + ID + " = new.thread_id; END;"
+  };
+
+  private static final int TRIM_BATCH_SIZE = 50;
+
   public ThreadDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
@@ -114,11 +131,10 @@ public class ThreadDatabase extends Database {
     return db.insert(TABLE_NAME, null, contentValues);
   }
 
-  private void updateThread(long threadId, long count, String body, long date, long type)
+  private void updateThread(long threadId, String body, long date, long type)
   {
-    ContentValues contentValues = new ContentValues(4);
+    ContentValues contentValues = new ContentValues(3);
     contentValues.put(DATE, date - date % 1000);
-    contentValues.put(MESSAGE_COUNT, count);
     contentValues.put(SNIPPET, body);
     contentValues.put(SNIPPET_TYPE, type);
 
@@ -139,6 +155,7 @@ public class ThreadDatabase extends Database {
   private void deleteThread(long threadId) {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.delete(TABLE_NAME, ID_WHERE, new String[] {threadId+""});
+    DecryptedBodyCache.getInstance().remove(DecryptedBodyCache.TYPE_SNIPPET, threadId);
     notifyConversationListListeners();
   }
 
@@ -163,53 +180,103 @@ public class ThreadDatabase extends Database {
   }
 
   public void trimAllThreads(int length, ProgressListener listener) {
-    Cursor cursor   = null;
-    int threadCount = 0;
-    int complete    = 0;
+    SQLiteDatabase         db        = databaseHelper.getWritableDatabase();
+    List<Pair<Long, Long>> cutoffs   = getTrimCutoffs(null, length);
+    List<File>             partFiles = new LinkedList<>();
+    int                    complete  = 0;
 
-    try {
-      cursor = this.getConversationList();
+    Iterator<Pair<Long, Long>> iterator = cutoffs.iterator();
 
-      if (cursor != null)
-        threadCount = cursor.getCount();
+    while (iterator.hasNext()) {
+      db.beginTransaction();
 
-      while (cursor != null && cursor.moveToNext()) {
-        long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-        trimThread(threadId, length);
+      try {
+        for (int i=0;i<TRIM_BATCH_SIZE && iterator.hasNext();i++) {
+          Pair<Long, Long> cutoff = iterator.next();
+          partFiles.addAll(trimThreadBeforeDate(cutoff.first, cutoff.second));
+          complete++;
+        }
 
-        listener.onProgress(++complete, threadCount);
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
       }
-    } finally {
-      if (cursor != null)
-        cursor.close();
+
+      listener.onProgress(complete, cutoffs.size());
     }
+
+    DatabaseFactory.getPartDatabase(context).deletePartFiles(partFiles);
   }
 
   public void trimThread(long threadId, int length) {
-    Log.w("ThreadDatabase", "Trimming thread: " + threadId + " to: " + length);
-    Cursor cursor = null;
+    List<Pair<Long, Long>> cutoffs = getTrimCutoffs(threadId, length);
 
-    try {
-      cursor = DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId);
+    if (cutoffs.isEmpty()) {
+      return;
+    }
 
-      if (cursor != null && cursor.getCount() > length) {
-        Log.w("ThreadDatabase", "Cursor count is greater than length!");
-        cursor.moveToPosition(cursor.getCount() - length);
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    List<File>     partFiles;
 
-        long lastTweetDate = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED));
+    db.beginTransaction();
 
-        Log.w("ThreadDatabase", "Cut off tweet date: " + lastTweetDate);
+    try {
+      partFiles = trimThreadBeforeDate(threadId, cutoffs.get(0).second);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    DatabaseFactory.getPartDatabase(context).deletePartFiles(partFiles);
+  }
 
-        DatabaseFactory.getSmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
-        DatabaseFactory.getMmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
+  /**
+   * Finds, for every thread longer than length (or only the given thread), the normalized
+   * received date of the oldest message that survives trimming.  The date is read off the
+   * message index, so the cost depends on length and not on the size of the thread.
+   */
+  private List<Pair<Long, Long>> getTrimCutoffs(Long threadId, int length) {
+    SQLiteDatabase         db      = databaseHelper.getReadableDatabase();
+    List<Pair<Long, Long>> cutoffs = new LinkedList<>();
+    Cursor                 cursor  = null;
+
+    String query = "SELECT " + ID + ", " +
+                   "(SELECT " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " FROM " + MmsSmsDatabase.INDEX_TABLE_NAME +
+                   " WHERE " + MmsSmsColumns.THREAD_ID + " = " + TABLE_NAME + "." + ID +
+                   " ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC" +
+                   " LIMIT 1 OFFSET " + (length - 1) + ")" +
+                   " FROM " + TABLE_NAME + " WHERE " + MESSAGE_COUNT + " > " + length;
+
+    if (threadId != null) {
+      query += " AND " + ID + " = " + threadId;
+    }
 
-        update(threadId);
-        notifyConversationListeners(threadId);
+    try {
+      cursor = db.rawQuery(query, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        if (!cursor.isNull(1)) {
+          cutoffs.add(new Pair<>(cursor.getLong(0), cursor.getLong(1)));
+        }
       }
     } finally {
       if (cursor != null)
         cursor.close();
     }
+
+    return cutoffs;
+  }
+
+  private List<File> trimThreadBeforeDate(long threadId, long cutoffDate) {
+    Log.w("ThreadDatabase", "Trimming thread: " + threadId + " before: " + cutoffDate);
+
+    DatabaseFactory.getSmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, cutoffDate);
+    List<File> partFiles = DatabaseFactory.getMmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, cutoffDate);
+
+    update(threadId);
+    notifyConversationListeners(threadId);
+
+    return partFiles;
   }
 
   public void setAllThreadsRead() {
@@ -378,9 +445,31 @@ public class ThreadDatabase extends Database {
     return null;
   }
 
+  private long getMessageCount(long threadId) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    Cursor cursor     = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {MESSAGE_COUNT}, ID_WHERE, new String[] {threadId+""}, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst())
+        return cursor.getLong(0);
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return 0;
+  }
+
+  /**
+   * Refreshes the snippet and date of a thread after one of its messages was inserted, deleted,
+   * or changed.  The message count is kept current by triggers on the message index, so this
+   * only has to read the newest message of the thread, regardless of how long the thread is.
+   */
   public void update(long threadId) {
     MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
-    long count                    = mmsSmsDatabase.getConversationCount(threadId);
+    long count                    = getMessageCount(threadId);
 
     if (count == 0) {
       deleteThread(threadId);
@@ -400,7 +489,7 @@ public class ThreadDatabase extends Database {
         if (record.isPush()) timestamp = record.getDateSent();
         else                 timestamp = record.getDateReceived();
 
-        updateThread(threadId, count, record.getBody().getBody(), timestamp, record.getType());
+        updateThread(threadId, record.getBody().getBody(), timestamp, record.getType());
       } else {
         deleteThread(threadId);
       }
@@ -428,8 +517,9 @@ public class ThreadDatabase extends Database {
 
   public class Reader {
 
-    private final Cursor       cursor;
-    private final MasterCipher masterCipher;
+    private final Cursor             cursor;
+    private final MasterCipher       masterCipher;
+    private final DecryptedBodyCache plaintextCache = DecryptedBodyCache.getInstance();
 
     public Reader(Cursor cursor, MasterCipher masterCipher) {
       this.cursor       = cursor;
@@ -465,7 +555,16 @@ public class ThreadDatabase extends Database {
         String body = cursor.getString(cursor.getColumnIndexOrThrow(SNIPPET));
 
         if (!TextUtils.isEmpty(body) && masterCipher != null && MmsSmsColumns.Types.isSymmetricEncryption(type)) {
-          return new DisplayRecord.Body(masterCipher.decryptBody(body), true);
+          long   threadId   = cursor.getLong(cursor.getColumnIndexOrThrow(ThreadDatabase.ID));
+          long   generation = plaintextCache.getGeneration();
+          String plaintext  = plaintextCache.get(DecryptedBodyCache.TYPE_SNIPPET, threadId, body);
+
+          if (plaintext == null) {
+            plaintext = masterCipher.decryptBody(body);
+            plaintextCache.put(DecryptedBodyCache.TYPE_SNIPPET, threadId, body, plaintext, generation);
+          }
+
+          return new DisplayRecord.Body(plaintext, true);
         } else if (!TextUtils.isEmpty(body) && masterCipher == null && MmsSmsColumns.Types.isSymmetricEncryption(type)) {
           return new DisplayRecord.Body(body, false);
         } else {
@@ -0,0 +1,366 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.database;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import org.smssecure.smssecure.R;
+import org.smssecure.smssecure.crypto.DecryptingPartInputStream;
+import org.smssecure.smssecure.crypto.EncryptingPartOutputStream;
+import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.util.Util;
+import org.smssecure.smssecure.util.VisibleForTesting;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Decoded part thumbnails, in a few fixed size buckets.
+ *
+ * The largest bucket is the thumbnail PartDatabase keeps for every image part.  Smaller
+ * buckets are scaled down from that once, then stored as encrypted files in a directory
+ * that's bounded by total size and evicted in LRU order, so that a grid of small
+ * thumbnails never has to decrypt or decode anything larger than it shows.  Decoded
+ * bitmaps for every bucket are kept in memory up to a byte budget.
+ */
+public class ThumbnailCache {
+  private static final String TAG = ThumbnailCache.class.getSimpleName();
+
+  private static final String DIRECTORY        = "thumbnails";
+  private static final long   MAX_DISK_BYTES   = 16 * 1024 * 1024;
+  private static final int    MAX_MEMORY_BYTES = (int)Math.min(Runtime.getRuntime().maxMemory() / 8,
+                                                               16 * 1024 * 1024);
+  private static final int    JPEG_QUALITY     = 85;
+  private static final int    LOCK_COUNT       = 16;
+
+  public static final ExecutorService thumbnailResolver = Util.newLifoExecutor(2);
+
+  private static volatile ThumbnailCache instance;
+
+  private final Context                context;
+  private final int[]                  bucketSizes;
+  private final LruCache<Long, Bitmap> memoryCache;
+  private final DiskIndex              diskIndex;
+  private final Object[]               locks = new Object[LOCK_COUNT];
+
+  public static ThumbnailCache getInstance(Context context) {
+    if (instance == null) {
+      synchronized (ThumbnailCache.class) {
+        if (instance == null) {
+          instance = new ThumbnailCache(context.getApplicationContext());
+        }
+      }
+    }
+
+    return instance;
+  }
+
+  private ThumbnailCache(Context context) {
+    Resources resources = context.getResources();
+
+    this.context     = context;
+    this.bucketSizes = new int[] {resources.getDimensionPixelSize(R.dimen.thumbnail_medium_size),
+                                  resources.getDimensionPixelSize(R.dimen.thumbnail_max_size)};
+    this.diskIndex   = new DiskIndex(context.getDir(DIRECTORY, Context.MODE_PRIVATE), MAX_DISK_BYTES);
+    this.memoryCache = new LruCache<Long, Bitmap>(MAX_MEMORY_BYTES) {
+      @Override
+      protected int sizeOf(Long key, Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+      }
+    };
+
+    for (int i=0;i<LOCK_COUNT;i++) {
+      locks[i] = new Object();
+    }
+  }
+
+  /**
+   * @return the thumbnail for a part if it's already decoded, otherwise null
+   */
+  public Bitmap getCached(long partId, int maxSize) {
+    return memoryCache.get(keyFor(partId, getBucket(maxSize)));
+  }
+
+  /**
+   * Returns the thumbnail for a part from the smallest bucket that's at least maxSize,
+   * generating and storing it if need be.  This can block on disk and on generating the
+   * part's canonical thumbnail, so it shouldn't be called from the UI thread.
+   */
+  public Bitmap get(MasterSecret masterSecret, long partId, int maxSize) throws IOException {
+    int    bucket = getBucket(maxSize);
+    Long   key    = keyFor(partId, bucket);
+    Bitmap bitmap = memoryCache.get(key);
+
+    if (bitmap != null) return bitmap;
+
+    synchronized (locks[(int)(partId & (LOCK_COUNT - 1))]) {
+      bitmap = memoryCache.get(key);
+
+      if (bitmap == null) {
+        if (bucket == bucketSizes.length - 1) bitmap = getCanonical(masterSecret, partId);
+        else                                  bitmap = getScaled(masterSecret, partId, bucket);
+
+        memoryCache.put(key, bitmap);
+      }
+
+      return bitmap;
+    }
+  }
+
+  public void remove(long partId) {
+    for (int bucket=0;bucket<bucketSizes.length;bucket++) {
+      memoryCache.remove(keyFor(partId, bucket));
+      diskIndex.remove(nameFor(partId, bucket));
+    }
+  }
+
+  /**
+   * Drops the decoded thumbnails, leaving only the encrypted ones on disk.
+   */
+  public void clearMemory() {
+    memoryCache.evictAll();
+  }
+
+  public void clear() {
+    memoryCache.evictAll();
+    diskIndex.clear();
+  }
+
+  private Bitmap getCanonical(MasterSecret masterSecret, long partId) throws IOException {
+    InputStream in = DatabaseFactory.getPartDatabase(context).getThumbnailStream(masterSecret, partId);
+
+    if (in == null) {
+      throw new FileNotFoundException("No thumbnail for part: " + partId);
+    }
+
+    return decode(in);
+  }
+
+  private Bitmap getScaled(MasterSecret masterSecret, long partId, int bucket) throws IOException {
+    String name = nameFor(partId, bucket);
+    File   file = diskIndex.get(name);
+
+    if (file != null) {
+      try {
+        return decode(new DecryptingPartInputStream(file, masterSecret));
+      } catch (IOException e) {
+        Log.w(TAG, e);
+        diskIndex.remove(name);
+      }
+    }
+
+    Bitmap canonical = memoryCache.get(keyFor(partId, bucketSizes.length - 1));
+    if (canonical == null) canonical = getCanonical(masterSecret, partId);
+
+    Bitmap scaled = scale(canonical, bucketSizes[bucket]);
+
+    try {
+      File         temp = diskIndex.createTempFile(name);
+      OutputStream out  = new EncryptingPartOutputStream(temp, masterSecret);
+
+      scaled.compress(CompressFormat.JPEG, JPEG_QUALITY, out);
+      out.close();
+
+      diskIndex.put(name, temp);
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    }
+
+    return scaled;
+  }
+
+  private int getBucket(int maxSize) {
+    for (int bucket=0;bucket<bucketSizes.length-1;bucket++) {
+      if (maxSize <= bucketSizes[bucket]) return bucket;
+    }
+
+    return bucketSizes.length - 1;
+  }
+
+  private static Bitmap scale(Bitmap bitmap, int maxSize) {
+    int largest = Math.max(bitmap.getWidth(), bitmap.getHeight());
+
+    if (largest <= maxSize) return bitmap;
+
+    return Bitmap.createScaledBitmap(bitmap,
+                                     Math.max(1, bitmap.getWidth() * maxSize / largest),
+                                     Math.max(1, bitmap.getHeight() * maxSize / largest),
+                                     true);
+  }
+
+  private static Bitmap decode(InputStream in) throws IOException {
+    try {
+      Bitmap bitmap = BitmapFactory.decodeStream(in);
+
+      if (bitmap == null) throw new IOException("Undecodable thumbnail");
+      else                return bitmap;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static Long keyFor(long partId, int bucket) {
+    return (partId << 2) | bucket;
+  }
+
+  private static String nameFor(long partId, int bucket) {
+    return partId + "_" + bucket;
+  }
+
+  /**
+   * The files in the thumbnail directory, in LRU order.  The order is rebuilt from the
+   * files' modification times the first time the directory is used, so it survives restarts.
+   */
+  @VisibleForTesting static class DiskIndex {
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final long maxBytes;
+
+    private Map<String, Long> entries;
+    private long              size;
+
+    DiskIndex(File directory, long maxBytes) {
+      this.directory = directory;
+      this.maxBytes  = maxBytes;
+    }
+
+    synchronized File get(String name) {
+      if (getEntries().get(name) == null) return null;
+
+      File file = new File(directory, name);
+
+      if (!file.setLastModified(System.currentTimeMillis())) {
+        Log.w(TAG, "Couldn't touch " + name);
+      }
+
+      return file;
+    }
+
+    synchronized File createTempFile(String name) throws IOException {
+      getEntries();
+      return File.createTempFile(name, TEMP_SUFFIX, directory);
+    }
+
+    synchronized void put(String name, File temp) throws IOException {
+      File file = new File(directory, name);
+
+      if (!temp.renameTo(file)) {
+        delete(temp);
+        throw new IOException("Couldn't move " + temp.getName() + " into place");
+      }
+
+      Long previous = getEntries().put(name, file.length());
+
+      if (previous != null) size -= previous;
+      size += file.length();
+
+      trim();
+    }
+
+    synchronized void remove(String name) {
+      Long previous = getEntries().remove(name);
+
+      if (previous != null) {
+        size -= previous;
+        delete(new File(directory, name));
+      }
+    }
+
+    synchronized void clear() {
+      File[] files = directory.listFiles();
+
+      if (files != null) {
+        for (File file : files) delete(file);
+      }
+
+      entries = null;
+      size    = 0;
+    }
+
+    synchronized long getSize() {
+      getEntries();
+      return size;
+    }
+
+    private void trim() {
+      Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+
+      while (size > maxBytes && iterator.hasNext()) {
+        Map.Entry<String, Long> entry = iterator.next();
+
+        size -= entry.getValue();
+        delete(new File(directory, entry.getKey()));
+        iterator.remove();
+      }
+    }
+
+    private Map<String, Long> getEntries() {
+      if (entries != null) return entries;
+
+      File[] files = directory.listFiles();
+
+      entries = new LinkedHashMap<>(16, 0.75f, true);
+      size    = 0;
+
+      if (files == null) return entries;
+
+      Arrays.sort(files, new Comparator<File>() {
+        @Override
+        public int compare(File lhs, File rhs) {
+          long lhsModified = lhs.lastModified();
+          long rhsModified = rhs.lastModified();
+
+          return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+        }
+      });
+
+      for (File file : files) {
+        if (file.getName().endsWith(TEMP_SUFFIX)) {
+          delete(file);
+        } else {
+          entries.put(file.getName(), file.length());
+          size += file.length();
+        }
+      }
+
+      trim();
+      return entries;
+    }
+
+    private static void delete(File file) {
+      if (!file.delete()) {
+        Log.w(TAG, "Couldn't delete " + file.getName());
+      }
+    }
+  }
+}
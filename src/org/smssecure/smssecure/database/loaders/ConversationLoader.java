@@ -1,21 +1,140 @@
 package org.smssecure.smssecure.database.loaders;
 
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.MergeCursor;
 
 import org.smssecure.smssecure.database.DatabaseFactory;
+import org.smssecure.smssecure.database.MmsSmsDatabase;
 import org.smssecure.smssecure.util.AbstractCursorLoader;
 
+/**
+ * Loads a conversation a page at a time, newest page first.  {@link #loadOlder()} queries
+ * just the page before the oldest message loaded and delivers it merged in front of the
+ * cursor already loaded, so paging back through a thread costs a page per step.  When the
+ * conversation changes, everything from the oldest loaded message onwards is reloaded in
+ * a single query.
+ *
+ * The loader owns its cursors, so they should be swapped into an adapter rather than
+ * changed.
+ */
 public class ConversationLoader extends AbstractCursorLoader {
-  private final long                     threadId;
+  private final long threadId;
+  private final int  pageSize;
 
-  public ConversationLoader(Context context, long threadId) {
+  private boolean loadOlder;
+  private boolean hasOlder;
+  private long    oldestDate;
+  private long    oldestIndexId;
+
+  public ConversationLoader(Context context, long threadId, int pageSize) {
     super(context);
     this.threadId = threadId;
+    this.pageSize = pageSize;
+  }
+
+  /**
+   * Starts loading the page before the oldest message loaded, if there is one.
+   *
+   * @return true if a load was started, which will be delivered even if the page is empty
+   */
+  public boolean loadOlder() {
+    synchronized (this) {
+      if (!hasOlder || cursor == null) return false;
+      loadOlder = true;
+    }
+
+    forceLoad();
+    return true;
+  }
+
+  public synchronized boolean hasOlder() {
+    return hasOlder;
   }
 
   @Override
   public Cursor getCursor() {
-    return DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId);
+    MmsSmsDatabase database = DatabaseFactory.getMmsSmsDatabase(context);
+    boolean        older;
+    Cursor         loaded;
+    long           date;
+    long           indexId;
+
+    synchronized (this) {
+      older     = loadOlder;
+      loaded    = cursor;
+      date      = oldestDate;
+      indexId   = oldestIndexId;
+      loadOlder = false;
+    }
+
+    if      (loaded == null) return database.getConversation(threadId, pageSize);
+    else if (older)          return new PageCursor(database.getConversation(threadId, date, indexId, pageSize), loaded);
+    else                     return database.getConversationSince(threadId, date, indexId);
+  }
+
+  @Override
+  public void deliverResult(Cursor newCursor) {
+    synchronized (this) {
+      if (newCursor != null && !isReset()) {
+        if      (newCursor instanceof PageCursor) hasOlder = ((PageCursor)newCursor).page.getCount() >= pageSize;
+        else if (cursor == null)                  hasOlder = newCursor.getCount() >= pageSize;
+
+        if (newCursor.moveToFirst()) {
+          oldestDate    = newCursor.getLong(newCursor.getColumnIndexOrThrow(MmsSmsDatabase.NORMALIZED_DATE_RECEIVED));
+          oldestIndexId = newCursor.getLong(newCursor.getColumnIndexOrThrow(MmsSmsDatabase.INDEX_ID));
+        }
+      }
+
+      if (newCursor instanceof PageCursor && ((PageCursor)newCursor).loaded == cursor) {
+        // The page holds on to the loaded cursor, so it mustn't be closed as the one replaced
+        cursor = null;
+      }
+    }
+
+    super.deliverResult(newCursor);
+  }
+
+  @Override
+  public void onCanceled(Cursor cursor) {
+    if (cursor instanceof PageCursor) super.onCanceled(((PageCursor)cursor).page);
+    else                              super.onCanceled(cursor);
+  }
+
+  @Override
+  protected void onReset() {
+    super.onReset();
+
+    synchronized (this) {
+      loadOlder = false;
+      hasOlder  = false;
+    }
+  }
+
+  /**
+   * A page of older messages in front of the messages already loaded.  Closing it closes
+   * both, but content observers are only registered with the new page, since the loaded
+   * cursor already has them.
+   */
+  private static class PageCursor extends MergeCursor {
+    private final Cursor page;
+    private final Cursor loaded;
+
+    PageCursor(Cursor page, Cursor loaded) {
+      super(new Cursor[] {page, loaded});
+      this.page   = page;
+      this.loaded = loaded;
+    }
+
+    @Override
+    public void registerContentObserver(ContentObserver observer) {
+      page.registerContentObserver(observer);
+    }
+
+    @Override
+    public void unregisterContentObserver(ContentObserver observer) {
+      page.unregisterContentObserver(observer);
+    }
   }
 }
@@ -9,6 +9,7 @@ import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.database.DatabaseFactory;
 import org.smssecure.smssecure.database.PartDatabase;
 import org.smssecure.smssecure.dependencies.InjectableType;
+import org.smssecure.smssecure.jobs.persistence.JobCodec;
 import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirement;
 import org.smssecure.smssecure.util.Base64;
 import org.smssecure.smssecure.util.Util;
@@ -20,6 +21,8 @@ import org.whispersystems.textsecure.api.messages.TextSecureAttachmentPointer;
 import org.whispersystems.textsecure.api.push.exceptions.NonSuccessfulResponseCodeException;
 import org.whispersystems.textsecure.api.push.exceptions.PushNetworkException;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -38,6 +41,18 @@ public class AttachmentDownloadJob extends MasterSecretJob implements Injectable
 
   private final long messageId;
 
+  public static final JobCodec<AttachmentDownloadJob> CODEC = new JobCodec<AttachmentDownloadJob>() {
+    @Override
+    public void write(AttachmentDownloadJob job, DataOutput out) throws IOException {
+      out.writeLong(job.messageId);
+    }
+
+    @Override
+    public AttachmentDownloadJob read(Context context, JobParameters parameters, DataInput in) throws IOException {
+      return new AttachmentDownloadJob(context, parameters, in.readLong());
+    }
+  };
+
   public AttachmentDownloadJob(Context context, long messageId) {
     super(context, JobParameters.newBuilder()
                                 .withRequirement(new MasterSecretRequirement(context))
@@ -48,6 +63,11 @@ public class AttachmentDownloadJob extends MasterSecretJob implements Injectable
     this.messageId = messageId;
   }
 
+  private AttachmentDownloadJob(Context context, JobParameters parameters, long messageId) {
+    super(context, parameters);
+    this.messageId = messageId;
+  }
+
   @Override
   public void onAdded() {}
 
@@ -106,7 +126,7 @@ public class AttachmentDownloadJob extends MasterSecretJob implements Injectable
       throws InvalidPartException
   {
     try {
-      MasterCipher masterCipher = new MasterCipher(masterSecret);
+      MasterCipher masterCipher = MasterCipher.getInstance(masterSecret);
       long         id           = Long.parseLong(Util.toIsoString(part.getContentLocation()));
       byte[]       key          = masterCipher.decryptBytes(Base64.decode(Util.toIsoString(part.getContentDisposition())));
       String       relay        = null;
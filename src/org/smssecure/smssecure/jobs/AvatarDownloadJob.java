@@ -8,6 +8,8 @@ import org.smssecure.smssecure.Release;
 import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.database.DatabaseFactory;
 import org.smssecure.smssecure.database.GroupDatabase;
+import org.smssecure.smssecure.jobs.persistence.BinaryJobSerializer;
+import org.smssecure.smssecure.jobs.persistence.JobCodec;
 import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirement;
 import org.smssecure.smssecure.push.SMSSecurePushTrustStore;
 import org.smssecure.smssecure.recipients.Recipient;
@@ -25,6 +27,8 @@ import org.whispersystems.textsecure.internal.push.PushServiceSocket;
 import org.whispersystems.textsecure.api.push.exceptions.NonSuccessfulResponseCodeException;
 import org.whispersystems.textsecure.internal.util.StaticCredentialsProvider;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -35,6 +39,18 @@ public class AvatarDownloadJob extends MasterSecretJob {
 
   private final byte[] groupId;
 
+  public static final JobCodec<AvatarDownloadJob> CODEC = new JobCodec<AvatarDownloadJob>() {
+    @Override
+    public void write(AvatarDownloadJob job, DataOutput out) throws IOException {
+      BinaryJobSerializer.writeBytes(out, job.groupId);
+    }
+
+    @Override
+    public AvatarDownloadJob read(Context context, JobParameters parameters, DataInput in) throws IOException {
+      return new AvatarDownloadJob(context, parameters, BinaryJobSerializer.readBytes(in));
+    }
+  };
+
   public AvatarDownloadJob(Context context, byte[] groupId) {
     super(context, JobParameters.newBuilder()
                                 .withRequirement(new MasterSecretRequirement(context))
@@ -45,6 +61,11 @@ public class AvatarDownloadJob extends MasterSecretJob {
     this.groupId = groupId;
   }
 
+  private AvatarDownloadJob(Context context, JobParameters parameters, byte[] groupId) {
+    super(context, parameters);
+    this.groupId = groupId;
+  }
+
   @Override
   public void onAdded() {}
 
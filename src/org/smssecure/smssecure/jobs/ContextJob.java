@@ -10,6 +10,9 @@ public abstract class ContextJob extends Job implements ContextDependent {
 
   protected transient Context context;
 
+  private transient LaneJobManager.LaneMetrics laneMetrics;
+  private transient long                       queuedAt;
+
   protected ContextJob(Context context, JobParameters parameters) {
     super(parameters);
     this.context = context;
@@ -22,4 +25,29 @@ public abstract class ContextJob extends Job implements ContextDependent {
   protected Context getContext() {
     return context;
   }
+
+  /*package*/ void onQueued(LaneJobManager.LaneMetrics laneMetrics) {
+    this.laneMetrics = laneMetrics;
+    this.queuedAt    = System.currentTimeMillis();
+
+    laneMetrics.onQueued();
+  }
+
+  /**
+   * Records how long the job waited in its lane before running, then runs it.
+   */
+  @Override
+  public final void onRun() throws Exception {
+    onStarted();
+    onContextRun();
+  }
+
+  protected abstract void onContextRun() throws Exception;
+
+  /*package*/ void onStarted() {
+    if (laneMetrics != null) {
+      laneMetrics.onStarted(System.currentTimeMillis() - queuedAt, !getRequirements().isEmpty());
+      laneMetrics = null;
+    }
+  }
 }
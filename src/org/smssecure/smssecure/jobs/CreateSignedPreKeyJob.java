@@ -40,7 +40,7 @@ public class CreateSignedPreKeyJob extends ContextJob implements InjectableType
   public void onAdded() {}
 
   @Override
-  public void onRun() throws IOException {
+  protected void onContextRun() throws IOException {
     MasterSecret masterSecret = ParcelUtil.deserialize(getEncryptionKeys().getEncoded(), MasterSecret.CREATOR);
 
     if (SMSSecurePreferences.isSignedPreKeyRegistered(context)) {
@@ -5,6 +5,8 @@ import android.util.Log;
 
 
 import org.smssecure.smssecure.dependencies.InjectableType;
+import org.smssecure.smssecure.jobs.persistence.BinaryJobSerializer;
+import org.smssecure.smssecure.jobs.persistence.JobCodec;
 import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.jobqueue.requirements.NetworkRequirement;
 import org.whispersystems.libaxolotl.util.guava.Optional;
@@ -13,6 +15,8 @@ import org.whispersystems.textsecure.api.push.TextSecureAddress;
 import org.whispersystems.textsecure.api.push.exceptions.NonSuccessfulResponseCodeException;
 import org.whispersystems.textsecure.api.push.exceptions.PushNetworkException;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 
 import javax.inject.Inject;
@@ -29,6 +33,24 @@ public class DeliveryReceiptJob extends ContextJob implements InjectableType {
   private final long   timestamp;
   private final String relay;
 
+  public static final JobCodec<DeliveryReceiptJob> CODEC = new JobCodec<DeliveryReceiptJob>() {
+    @Override
+    public void write(DeliveryReceiptJob job, DataOutput out) throws IOException {
+      BinaryJobSerializer.writeString(out, job.destination);
+      out.writeLong(job.timestamp);
+      BinaryJobSerializer.writeString(out, job.relay);
+    }
+
+    @Override
+    public DeliveryReceiptJob read(Context context, JobParameters parameters, DataInput in) throws IOException {
+      String destination = BinaryJobSerializer.readString(in);
+      long   timestamp   = in.readLong();
+      String relay       = BinaryJobSerializer.readString(in);
+
+      return new DeliveryReceiptJob(context, parameters, destination, timestamp, relay);
+    }
+  };
+
   public DeliveryReceiptJob(Context context, String destination, long timestamp, String relay) {
     super(context, JobParameters.newBuilder()
                                 .withRequirement(new NetworkRequirement(context))
@@ -41,11 +63,18 @@ public class DeliveryReceiptJob extends ContextJob implements InjectableType {
     this.relay       = relay;
   }
 
+  private DeliveryReceiptJob(Context context, JobParameters parameters, String destination, long timestamp, String relay) {
+    super(context, parameters);
+    this.destination = destination;
+    this.timestamp   = timestamp;
+    this.relay       = relay;
+  }
+
   @Override
   public void onAdded() {}
 
   @Override
-  public void onRun() throws IOException {
+  protected void onContextRun() throws IOException {
     Log.w("DeliveryReceiptJob", "Sending delivery receipt...");
     TextSecureMessageSender messageSender     = messageSenderFactory.create(null);
     TextSecureAddress       textSecureAddress = new TextSecureAddress(destination, Optional.fromNullable(relay));
@@ -23,7 +23,7 @@ public class DirectoryRefreshJob extends ContextJob {
   public void onAdded() {}
 
   @Override
-  public void onRun() throws IOException {
+  protected void onContextRun() throws IOException {
     PowerManager          powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
     PowerManager.WakeLock wakeLock     = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "Directory Refresh");
 
@@ -0,0 +1,174 @@
+package org.smssecure.smssecure.jobs;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.smssecure.smssecure.jobs.persistence.EncryptingJobSerializer;
+import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirementProvider;
+import org.smssecure.smssecure.jobs.requirements.ServiceRequirementProvider;
+import org.whispersystems.jobqueue.EncryptionKeys;
+import org.whispersystems.jobqueue.Job;
+import org.whispersystems.jobqueue.JobManager;
+import org.whispersystems.jobqueue.dependencies.DependencyInjector;
+import org.whispersystems.jobqueue.requirements.NetworkRequirementProvider;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs jobs in lanes, each its own JobManager with its own consumer threads and persistent
+ * queue, so that sending and receiving messages never waits behind attachment downloads,
+ * directory refreshes and other bulk work.  MMS transactions get a lane with a single
+ * thread, since they all need the one MMS radio connection, and attachment downloads get
+ * their own lane so that a large download holds up neither messages nor bulk work.
+ *
+ * Jobs are assigned to a lane by their class or the nearest superclass that has one, and
+ * anything unassigned runs in the bulk lane.  Group ids only order jobs within a lane, so
+ * jobs that share a group id must share a lane.
+ */
+public class LaneJobManager {
+
+  private static final String TAG = LaneJobManager.class.getSimpleName();
+
+  private static final long SLOW_WAIT_MILLIS = 1000;
+
+  public enum Lane {
+    MESSAGES   ("SMSSecureJobs-messages",    3),
+    MMS        ("SMSSecureJobs-mms",         1),
+    ATTACHMENTS("SMSSecureJobs-attachments", 2),
+    BULK       ("SMSSecureJobs",             2);
+
+    private final String name;
+    private final int    consumerThreads;
+
+    Lane(String name, int consumerThreads) {
+      this.name            = name;
+      this.consumerThreads = consumerThreads;
+    }
+  }
+
+  private static final Map<Class<? extends Job>, Lane> LANES = new HashMap<>();
+
+  static {
+    LANES.put(SmsSendJob.class, Lane.MESSAGES);
+    LANES.put(SmsSentJob.class, Lane.MESSAGES);
+    LANES.put(SmsReceiveJob.class, Lane.MESSAGES);
+    LANES.put(SmsDecryptJob.class, Lane.MESSAGES);
+    LANES.put(MmsReceiveJob.class, Lane.MESSAGES);
+    LANES.put(PushReceiveJob.class, Lane.MESSAGES);
+    LANES.put(PushDecryptJob.class, Lane.MESSAGES);
+    LANES.put(PushTextSendJob.class, Lane.MESSAGES);
+    LANES.put(PushMediaSendJob.class, Lane.MESSAGES);
+    LANES.put(PushGroupSendJob.class, Lane.MESSAGES);
+    LANES.put(MmsSendJob.class, Lane.MMS);
+    LANES.put(MmsDownloadJob.class, Lane.MMS);
+    LANES.put(AttachmentDownloadJob.class, Lane.ATTACHMENTS);
+  }
+
+  private final Map<Lane, JobManager>  jobManagers = new EnumMap<>(Lane.class);
+  private final Map<Lane, LaneMetrics> metrics     = new EnumMap<>(Lane.class);
+
+  public LaneJobManager(Context context, DependencyInjector dependencyInjector) {
+    for (Lane lane : Lane.values()) {
+      jobManagers.put(lane, JobManager.newBuilder(context)
+                                      .withName(lane.name)
+                                      .withDependencyInjector(dependencyInjector)
+                                      .withJobSerializer(new EncryptingJobSerializer(context))
+                                      .withRequirementProviders(new MasterSecretRequirementProvider(context),
+                                                                new ServiceRequirementProvider(context),
+                                                                new NetworkRequirementProvider(context))
+                                      .withConsumerThreads(lane.consumerThreads)
+                                      .build());
+      metrics.put(lane, new LaneMetrics(lane));
+    }
+  }
+
+  public void add(Job job) {
+    Lane lane = getLane(job);
+
+    if (job instanceof ContextJob) {
+      ((ContextJob)job).onQueued(metrics.get(lane));
+    }
+
+    jobManagers.get(lane).add(job);
+  }
+
+  public void setEncryptionKeys(EncryptionKeys keys) {
+    for (JobManager jobManager : jobManagers.values()) {
+      jobManager.setEncryptionKeys(keys);
+    }
+  }
+
+  public LaneMetrics getMetrics(Lane lane) {
+    return metrics.get(lane);
+  }
+
+  public static Lane getLane(Job job) {
+    for (Class<?> type = job.getClass(); Job.class.isAssignableFrom(type); type = type.getSuperclass()) {
+      Lane lane = LANES.get(type);
+      if (lane != null) return lane;
+    }
+
+    return Lane.BULK;
+  }
+
+  /**
+   * Queue depth and time from being added to first run, for the jobs added to a lane since
+   * the process started.  Jobs restored from a previous process aren't counted.
+   *
+   * A job only runs once its requirements are met, so its wait includes any time spent
+   * waiting for the network or the master secret as well as time behind other jobs.  The
+   * JobManager doesn't say when requirements were met, so the two can't be told apart,
+   * but slow waits are logged with whether the job had any.
+   */
+  public static class LaneMetrics {
+
+    private final Lane lane;
+
+    private int  queued;
+    private long started;
+    private long totalWaitMillis;
+    private long maxWaitMillis;
+
+    LaneMetrics(Lane lane) {
+      this.lane = lane;
+    }
+
+    synchronized void onQueued() {
+      queued++;
+    }
+
+    void onStarted(long waitMillis, boolean hasRequirements) {
+      int depth;
+
+      synchronized (this) {
+        depth            = --queued;
+        started         += 1;
+        totalWaitMillis += waitMillis;
+        maxWaitMillis    = Math.max(maxWaitMillis, waitMillis);
+      }
+
+      if (waitMillis >= SLOW_WAIT_MILLIS) {
+        Log.w(TAG, lane + " job waited " + waitMillis + "ms to run, " + depth + " still queued" +
+                   (hasRequirements ? ", wait includes its requirements" : ""));
+      }
+    }
+
+    public synchronized int getQueueDepth() {
+      return queued;
+    }
+
+    public synchronized long getStartedCount() {
+      return started;
+    }
+
+    public synchronized long getAverageWaitMillis() {
+      return started == 0 ? 0 : totalWaitMillis / started;
+    }
+
+    public synchronized long getMaxWaitMillis() {
+      return maxWaitMillis;
+    }
+  }
+}
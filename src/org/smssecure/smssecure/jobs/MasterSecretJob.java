@@ -13,7 +13,7 @@ public abstract class MasterSecretJob extends ContextJob {
   }
 
   @Override
-  public void onRun() throws Exception {
+  protected void onContextRun() throws Exception {
     MasterSecret masterSecret = getMasterSecret();
     onRun(masterSecret);
   }
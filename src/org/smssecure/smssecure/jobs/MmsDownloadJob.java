@@ -12,11 +12,13 @@ import org.smssecure.smssecure.crypto.MmsCipher;
 import org.smssecure.smssecure.crypto.storage.SMSSecureAxolotlStore;
 import org.smssecure.smssecure.database.DatabaseFactory;
 import org.smssecure.smssecure.database.MmsDatabase;
+import org.smssecure.smssecure.jobs.persistence.JobCodec;
 import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirement;
 import org.smssecure.smssecure.mms.ApnUnavailableException;
 import org.smssecure.smssecure.mms.IncomingMediaMessage;
 import org.smssecure.smssecure.mms.IncomingMmsConnection;
 import org.smssecure.smssecure.mms.MmsConnection;
+import org.smssecure.smssecure.mms.MmsPartSpooler;
 import org.smssecure.smssecure.mms.MmsRadio;
 import org.smssecure.smssecure.mms.MmsRadioException;
 import org.smssecure.smssecure.mms.OutgoingMmsConnection;
@@ -31,6 +33,8 @@ import org.whispersystems.libaxolotl.LegacyMessageException;
 import org.whispersystems.libaxolotl.NoSessionException;
 import org.whispersystems.libaxolotl.util.guava.Optional;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.util.concurrent.TimeUnit;
 
@@ -53,6 +57,24 @@ public class MmsDownloadJob extends MasterSecretJob {
   private final long    threadId;
   private final boolean automatic;
 
+  public static final JobCodec<MmsDownloadJob> CODEC = new JobCodec<MmsDownloadJob>() {
+    @Override
+    public void write(MmsDownloadJob job, DataOutput out) throws IOException {
+      out.writeLong(job.messageId);
+      out.writeLong(job.threadId);
+      out.writeBoolean(job.automatic);
+    }
+
+    @Override
+    public MmsDownloadJob read(Context context, JobParameters parameters, DataInput in) throws IOException {
+      long    messageId = in.readLong();
+      long    threadId  = in.readLong();
+      boolean automatic = in.readBoolean();
+
+      return new MmsDownloadJob(context, parameters, messageId, threadId, automatic);
+    }
+  };
+
   public MmsDownloadJob(Context context, long messageId, long threadId, boolean automatic) {
     super(context, JobParameters.newBuilder()
                                 .withPersistence()
@@ -67,6 +89,13 @@ public class MmsDownloadJob extends MasterSecretJob {
     this.automatic = automatic;
   }
 
+  private MmsDownloadJob(Context context, JobParameters parameters, long messageId, long threadId, boolean automatic) {
+    super(context, parameters);
+    this.messageId = messageId;
+    this.threadId  = threadId;
+    this.automatic = automatic;
+  }
+
   @Override
   public void onAdded() {
     if (automatic && KeyCachingService.getMasterSecret(context) == null) {
@@ -197,9 +226,15 @@ public class MmsDownloadJob extends MasterSecretJob {
     Apn                   dbApn      = MmsConnection.getApn(context, radio.getApnInformation());
     Apn                   contentApn = new Apn(contentLocation, dbApn.getProxy(), Integer.toString(dbApn.getPort()), dbApn.getUsername(), dbApn.getPassword());
     IncomingMmsConnection connection = new IncomingMmsConnection(context, contentApn);
-    RetrieveConf          retrieved  = connection.retrieve(radioEnabled, useProxy);
+    MmsPartSpooler        spooler    = new MmsPartSpooler(context, masterSecret);
+
+    try {
+      RetrieveConf retrieved = connection.retrieve(radioEnabled, useProxy, spooler);
+      storeRetrievedMms(masterSecret, contentLocation, messageId, threadId, retrieved);
+    } finally {
+      spooler.cleanup();
+    }
 
-    storeRetrievedMms(masterSecret, contentLocation, messageId, threadId, retrieved);
     sendRetrievedAcknowledgement(radio, transactionId, radioEnabled, useProxy);
   }
 
@@ -7,8 +7,14 @@ import android.util.Pair;
 import org.smssecure.smssecure.ApplicationContext;
 import org.smssecure.smssecure.database.DatabaseFactory;
 import org.smssecure.smssecure.database.MmsDatabase;
+import org.smssecure.smssecure.jobs.persistence.BinaryJobSerializer;
+import org.smssecure.smssecure.jobs.persistence.JobCodec;
 import org.whispersystems.jobqueue.JobParameters;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import ws.com.google.android.mms.pdu.GenericPdu;
 import ws.com.google.android.mms.pdu.NotificationInd;
 import ws.com.google.android.mms.pdu.PduHeaders;
@@ -20,6 +26,18 @@ public class MmsReceiveJob extends ContextJob {
 
   private final byte[] data;
 
+  public static final JobCodec<MmsReceiveJob> CODEC = new JobCodec<MmsReceiveJob>() {
+    @Override
+    public void write(MmsReceiveJob job, DataOutput out) throws IOException {
+      BinaryJobSerializer.writeBytes(out, job.data);
+    }
+
+    @Override
+    public MmsReceiveJob read(Context context, JobParameters parameters, DataInput in) throws IOException {
+      return new MmsReceiveJob(context, parameters, BinaryJobSerializer.readBytes(in));
+    }
+  };
+
   public MmsReceiveJob(Context context, byte[] data) {
     super(context, JobParameters.newBuilder()
                                 .withWakeLock(true)
@@ -28,13 +46,18 @@ public class MmsReceiveJob extends ContextJob {
     this.data = data;
   }
 
+  private MmsReceiveJob(Context context, JobParameters parameters, byte[] data) {
+    super(context, parameters);
+    this.data = data;
+  }
+
   @Override
   public void onAdded() {
 
   }
 
   @Override
-  public void onRun() {
+  protected void onContextRun() {
     if (data == null) {
       Log.w(TAG, "Received NULL pdu, ignoring...");
       return;
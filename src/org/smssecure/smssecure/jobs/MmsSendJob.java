@@ -10,6 +10,7 @@ import org.smssecure.smssecure.crypto.storage.SMSSecureAxolotlStore;
 import org.smssecure.smssecure.database.DatabaseFactory;
 import org.smssecure.smssecure.database.MmsDatabase;
 import org.smssecure.smssecure.database.NoSuchMessageException;
+import org.smssecure.smssecure.jobs.persistence.JobCodec;
 import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirement;
 import org.smssecure.smssecure.mms.ApnUnavailableException;
 import org.smssecure.smssecure.mms.MediaConstraints;
@@ -17,6 +18,7 @@ import org.smssecure.smssecure.mms.MmsRadio;
 import org.smssecure.smssecure.mms.MmsRadioException;
 import org.smssecure.smssecure.mms.MmsSendResult;
 import org.smssecure.smssecure.mms.OutgoingMmsConnection;
+import org.smssecure.smssecure.mms.PartAuthority;
 import org.smssecure.smssecure.notifications.MessageNotifier;
 import org.smssecure.smssecure.recipients.RecipientFormattingException;
 import org.smssecure.smssecure.recipients.Recipients;
@@ -30,13 +32,18 @@ import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.jobqueue.requirements.NetworkRequirement;
 import org.whispersystems.libaxolotl.NoSessionException;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
 
 import ws.com.google.android.mms.MmsException;
 import ws.com.google.android.mms.pdu.EncodedStringValue;
 import ws.com.google.android.mms.pdu.PduComposer;
+import ws.com.google.android.mms.pdu.PduComposer.ComposedPdu;
 import ws.com.google.android.mms.pdu.PduHeaders;
+import ws.com.google.android.mms.pdu.PduPart;
 import ws.com.google.android.mms.pdu.SendConf;
 import ws.com.google.android.mms.pdu.SendReq;
 
@@ -46,6 +53,18 @@ public class MmsSendJob extends SendJob {
 
   private final long messageId;
 
+  public static final JobCodec<MmsSendJob> CODEC = new JobCodec<MmsSendJob>() {
+    @Override
+    public void write(MmsSendJob job, DataOutput out) throws IOException {
+      out.writeLong(job.messageId);
+    }
+
+    @Override
+    public MmsSendJob read(Context context, JobParameters parameters, DataInput in) throws IOException {
+      return new MmsSendJob(context, parameters, in.readLong());
+    }
+  };
+
   public MmsSendJob(Context context, long messageId) {
     super(context, JobParameters.newBuilder()
                                 .withGroupId("mms-operation")
@@ -57,6 +76,11 @@ public class MmsSendJob extends SendJob {
     this.messageId = messageId;
   }
 
+  private MmsSendJob(Context context, JobParameters parameters, long messageId) {
+    super(context, parameters);
+    this.messageId = messageId;
+  }
+
   @Override
   public void onAdded() {
     MmsDatabase database = DatabaseFactory.getMmsDatabase(context);
@@ -106,8 +130,11 @@ public class MmsSendJob extends SendJob {
 
     MmsRadio radio = MmsRadio.getInstance(context);
 
+    // Secure messages are encrypted as a whole, so their parts have to be in memory.
+    boolean toMemory = MmsDatabase.Types.isSecureType(message.getDatabaseMessageBox());
+
     try {
-      prepareMessageMedia(masterSecret, message, MediaConstraints.MMS_CONSTRAINTS, true);
+      prepareMessageMedia(masterSecret, message, MediaConstraints.MMS_CONSTRAINTS, toMemory);
       if (isCdmaDevice()) {
         Log.w(TAG, "Sending MMS directly without radio change...");
         try {
@@ -162,7 +189,7 @@ public class MmsSendJob extends SendJob {
     }
 
     try {
-      byte[] pdu = new PduComposer(context, message).make();
+      ComposedPdu pdu = new PduComposer(context, message).make(new PartDatabaseSource(masterSecret));
 
       if (pdu == null) {
         throw new UndeliverableMessageException("PDU composition failed, null payload");
@@ -185,6 +212,19 @@ public class MmsSendJob extends SendJob {
     }
   }
 
+  private class PartDatabaseSource implements PduComposer.PartDataSource {
+    private final MasterSecret masterSecret;
+
+    private PartDatabaseSource(MasterSecret masterSecret) {
+      this.masterSecret = masterSecret;
+    }
+
+    @Override
+    public InputStream getPartData(PduPart part) throws IOException {
+      return PartAuthority.getPartStream(context, masterSecret, part.getDataUri());
+    }
+  }
+
   private SendReq getEncryptedMessage(MasterSecret masterSecret, SendReq pdu)
       throws InsecureFallbackApprovalException, UndeliverableMessageException
   {
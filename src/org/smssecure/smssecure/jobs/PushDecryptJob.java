@@ -15,6 +15,7 @@ import org.smssecure.smssecure.database.MmsDatabase;
 import org.smssecure.smssecure.database.NoSuchMessageException;
 import org.smssecure.smssecure.database.PushDatabase;
 import org.smssecure.smssecure.groups.GroupMessageProcessor;
+import org.smssecure.smssecure.jobs.persistence.JobCodec;
 import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirement;
 import org.smssecure.smssecure.mms.IncomingMediaMessage;
 import org.smssecure.smssecure.notifications.MessageNotifier;
@@ -48,6 +49,9 @@ import org.whispersystems.textsecure.api.messages.TextSecureEnvelope;
 import org.whispersystems.textsecure.api.messages.TextSecureGroup;
 import org.whispersystems.textsecure.api.messages.TextSecureMessage;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.concurrent.TimeUnit;
 
 import ws.com.google.android.mms.MmsException;
@@ -59,6 +63,22 @@ public class PushDecryptJob extends MasterSecretJob {
   private final long messageId;
   private final long smsMessageId;
 
+  public static final JobCodec<PushDecryptJob> CODEC = new JobCodec<PushDecryptJob>() {
+    @Override
+    public void write(PushDecryptJob job, DataOutput out) throws IOException {
+      out.writeLong(job.messageId);
+      out.writeLong(job.smsMessageId);
+    }
+
+    @Override
+    public PushDecryptJob read(Context context, JobParameters parameters, DataInput in) throws IOException {
+      long messageId    = in.readLong();
+      long smsMessageId = in.readLong();
+
+      return new PushDecryptJob(context, parameters, messageId, smsMessageId);
+    }
+  };
+
   public PushDecryptJob(Context context, long pushMessageId, String sender) {
     this(context, pushMessageId, -1, sender);
   }
@@ -74,6 +94,12 @@ public class PushDecryptJob extends MasterSecretJob {
     this.smsMessageId = smsMessageId;
   }
 
+  private PushDecryptJob(Context context, JobParameters parameters, long messageId, long smsMessageId) {
+    super(context, parameters);
+    this.messageId    = messageId;
+    this.smsMessageId = smsMessageId;
+  }
+
   @Override
   public void onAdded() {
     if (KeyCachingService.getMasterSecret(context) == null) {
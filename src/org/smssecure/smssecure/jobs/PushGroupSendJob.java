@@ -10,6 +10,7 @@ import org.smssecure.smssecure.database.MmsSmsColumns;
 import org.smssecure.smssecure.database.NoSuchMessageException;
 import org.smssecure.smssecure.database.documents.NetworkFailure;
 import org.smssecure.smssecure.dependencies.InjectableType;
+import org.smssecure.smssecure.jobs.persistence.JobCodec;
 import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirement;
 import org.smssecure.smssecure.mms.PartParser;
 import org.smssecure.smssecure.recipients.Recipient;
@@ -31,6 +32,8 @@ import org.whispersystems.textsecure.api.push.exceptions.NetworkFailureException
 import org.whispersystems.textsecure.api.util.InvalidNumberException;
 import org.whispersystems.textsecure.internal.push.PushMessageProtos;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
@@ -51,6 +54,22 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
   private final long messageId;
   private final long filterRecipientId;
 
+  public static final JobCodec<PushGroupSendJob> CODEC = new JobCodec<PushGroupSendJob>() {
+    @Override
+    public void write(PushGroupSendJob job, DataOutput out) throws IOException {
+      out.writeLong(job.messageId);
+      out.writeLong(job.filterRecipientId);
+    }
+
+    @Override
+    public PushGroupSendJob read(Context context, JobParameters parameters, DataInput in) throws IOException {
+      long messageId         = in.readLong();
+      long filterRecipientId = in.readLong();
+
+      return new PushGroupSendJob(context, parameters, messageId, filterRecipientId);
+    }
+  };
+
   public PushGroupSendJob(Context context, long messageId, String destination, long filterRecipientId) {
     super(context, JobParameters.newBuilder()
                                 .withPersistence()
@@ -64,6 +83,12 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
     this.filterRecipientId = filterRecipientId;
   }
 
+  private PushGroupSendJob(Context context, JobParameters parameters, long messageId, long filterRecipientId) {
+    super(context, parameters);
+    this.messageId         = messageId;
+    this.filterRecipientId = filterRecipientId;
+  }
+
   @Override
   public void onAdded() {
     DatabaseFactory.getMmsDatabase(context)
@@ -10,6 +10,7 @@ import org.smssecure.smssecure.database.DatabaseFactory;
 import org.smssecure.smssecure.database.MmsDatabase;
 import org.smssecure.smssecure.database.NoSuchMessageException;
 import org.smssecure.smssecure.dependencies.InjectableType;
+import org.smssecure.smssecure.jobs.persistence.JobCodec;
 import org.smssecure.smssecure.mms.MediaConstraints;
 import org.smssecure.smssecure.mms.PartParser;
 import org.smssecure.smssecure.recipients.Recipient;
@@ -19,6 +20,7 @@ import org.smssecure.smssecure.transport.InsecureFallbackApprovalException;
 import org.smssecure.smssecure.transport.RetryLaterException;
 import org.smssecure.smssecure.transport.SecureFallbackApprovalException;
 import org.smssecure.smssecure.transport.UndeliverableMessageException;
+import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.textsecure.api.TextSecureMessageSender;
 import org.whispersystems.textsecure.api.crypto.UntrustedIdentityException;
 import org.whispersystems.textsecure.api.messages.TextSecureAttachment;
@@ -27,6 +29,8 @@ import org.whispersystems.textsecure.api.push.TextSecureAddress;
 import org.whispersystems.textsecure.api.push.exceptions.UnregisteredUserException;
 import org.whispersystems.textsecure.api.util.InvalidNumberException;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.util.List;
 
@@ -45,11 +49,28 @@ public class PushMediaSendJob extends PushSendJob implements InjectableType {
 
   private final long messageId;
 
+  public static final JobCodec<PushMediaSendJob> CODEC = new JobCodec<PushMediaSendJob>() {
+    @Override
+    public void write(PushMediaSendJob job, DataOutput out) throws IOException {
+      out.writeLong(job.messageId);
+    }
+
+    @Override
+    public PushMediaSendJob read(Context context, JobParameters parameters, DataInput in) throws IOException {
+      return new PushMediaSendJob(context, parameters, in.readLong());
+    }
+  };
+
   public PushMediaSendJob(Context context, long messageId, String destination) {
     super(context, constructParameters(context, destination, true));
     this.messageId = messageId;
   }
 
+  private PushMediaSendJob(Context context, JobParameters parameters, long messageId) {
+    super(context, parameters);
+    this.messageId = messageId;
+  }
+
   @Override
   public void onAdded() {
     MmsDatabase mmsDatabase = DatabaseFactory.getMmsDatabase(context);
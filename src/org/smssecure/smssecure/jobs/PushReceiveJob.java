@@ -5,8 +5,9 @@ import android.util.Log;
 
 import org.smssecure.smssecure.ApplicationContext;
 import org.smssecure.smssecure.database.DatabaseFactory;
+import org.smssecure.smssecure.jobs.persistence.BinaryJobSerializer;
+import org.smssecure.smssecure.jobs.persistence.JobCodec;
 import org.smssecure.smssecure.util.SMSSecurePreferences;
-import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.libaxolotl.InvalidVersionException;
 import org.whispersystems.textsecure.api.messages.TextSecureEnvelope;
@@ -14,6 +15,8 @@ import org.smssecure.smssecure.database.SMSSecureDirectory;
 import org.smssecure.smssecure.database.NotInDirectoryException;
 import org.whispersystems.textsecure.api.push.ContactTokenDetails;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 
 public class PushReceiveJob extends ContextJob {
@@ -22,6 +25,18 @@ public class PushReceiveJob extends ContextJob {
 
   private final String data;
 
+  public static final JobCodec<PushReceiveJob> CODEC = new JobCodec<PushReceiveJob>() {
+    @Override
+    public void write(PushReceiveJob job, DataOutput out) throws IOException {
+      BinaryJobSerializer.writeString(out, job.data);
+    }
+
+    @Override
+    public PushReceiveJob read(Context context, JobParameters parameters, DataInput in) throws IOException {
+      return new PushReceiveJob(context, parameters, BinaryJobSerializer.readString(in));
+    }
+  };
+
   public PushReceiveJob(Context context) {
     super(context, JobParameters.newBuilder().create());
     this.data = null;
@@ -36,11 +51,16 @@ public class PushReceiveJob extends ContextJob {
     this.data = data;
   }
 
+  private PushReceiveJob(Context context, JobParameters parameters, String data) {
+    super(context, parameters);
+    this.data = data;
+  }
+
   @Override
   public void onAdded() {}
 
   @Override
-  public void onRun() {
+  protected void onContextRun() {
     try {
       String             sessionKey = SMSSecurePreferences.getSignalingKey(context);
       TextSecureEnvelope envelope   = new TextSecureEnvelope(data, sessionKey);
@@ -75,8 +95,8 @@ public class PushReceiveJob extends ContextJob {
   }
 
   private void handleMessage(TextSecureEnvelope envelope, boolean sendExplicitReceipt) {
-    JobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
-    long       messageId  = DatabaseFactory.getPushDatabase(context).insert(envelope);
+    LaneJobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
+    long           messageId  = DatabaseFactory.getPushDatabase(context).insert(envelope);
 
     if (sendExplicitReceipt) {
       jobManager.add(new DeliveryReceiptJob(context, envelope.getSource(),
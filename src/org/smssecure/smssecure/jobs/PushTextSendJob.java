@@ -12,6 +12,7 @@ import org.smssecure.smssecure.database.NoSuchMessageException;
 import org.smssecure.smssecure.database.SmsDatabase;
 import org.smssecure.smssecure.database.model.SmsMessageRecord;
 import org.smssecure.smssecure.dependencies.InjectableType;
+import org.smssecure.smssecure.jobs.persistence.JobCodec;
 import org.smssecure.smssecure.notifications.MessageNotifier;
 import org.smssecure.smssecure.recipients.Recipient;
 import org.smssecure.smssecure.recipients.RecipientFactory;
@@ -19,6 +20,7 @@ import org.smssecure.smssecure.recipients.Recipients;
 import org.smssecure.smssecure.transport.InsecureFallbackApprovalException;
 import org.smssecure.smssecure.transport.RetryLaterException;
 import org.smssecure.smssecure.transport.SecureFallbackApprovalException;
+import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.textsecure.api.TextSecureMessageSender;
 import org.whispersystems.textsecure.api.crypto.UntrustedIdentityException;
 import org.whispersystems.textsecure.api.messages.TextSecureMessage;
@@ -26,6 +28,8 @@ import org.whispersystems.textsecure.api.push.TextSecureAddress;
 import org.whispersystems.textsecure.api.push.exceptions.UnregisteredUserException;
 import org.whispersystems.textsecure.api.util.InvalidNumberException;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 
 import javax.inject.Inject;
@@ -40,11 +44,28 @@ public class PushTextSendJob extends PushSendJob implements InjectableType {
 
   private final long messageId;
 
+  public static final JobCodec<PushTextSendJob> CODEC = new JobCodec<PushTextSendJob>() {
+    @Override
+    public void write(PushTextSendJob job, DataOutput out) throws IOException {
+      out.writeLong(job.messageId);
+    }
+
+    @Override
+    public PushTextSendJob read(Context context, JobParameters parameters, DataInput in) throws IOException {
+      return new PushTextSendJob(context, parameters, in.readLong());
+    }
+  };
+
   public PushTextSendJob(Context context, long messageId, String destination) {
     super(context, constructParameters(context, destination, false));
     this.messageId = messageId;
   }
 
+  private PushTextSendJob(Context context, JobParameters parameters, long messageId) {
+    super(context, parameters);
+    this.messageId = messageId;
+  }
+
   @Override
   public void onAdded() {
     SmsDatabase smsDatabase = DatabaseFactory.getSmsDatabase(context);
@@ -15,6 +15,14 @@ import org.whispersystems.jobqueue.JobParameters;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import ws.com.google.android.mms.MmsException;
 import ws.com.google.android.mms.pdu.PduPart;
@@ -23,6 +31,16 @@ import ws.com.google.android.mms.pdu.SendReq;
 public abstract class SendJob extends MasterSecretJob {
   private final static String TAG = SendJob.class.getSimpleName();
 
+  private static final int MEDIA_POOL_SIZE = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors()));
+
+  private static final ThreadPoolExecutor mediaExecutor = new ThreadPoolExecutor(MEDIA_POOL_SIZE, MEDIA_POOL_SIZE,
+                                                                                 30, TimeUnit.SECONDS,
+                                                                                 new LinkedBlockingQueue<Runnable>());
+
+  static {
+    mediaExecutor.allowCoreThreadTimeOut(true);
+  }
+
   public SendJob(Context context, JobParameters parameters) {
     super(context, parameters);
   }
@@ -40,16 +58,45 @@ public abstract class SendJob extends MasterSecretJob {
 
   protected abstract void onSend(MasterSecret masterSecret) throws Exception;
 
-  protected void prepareMessageMedia(MasterSecret masterSecret, SendReq message,
-                                     MediaConstraints constraints, boolean toMemory)
+  /**
+   * Prepares every part of the message, resizing attachments that don't meet the constraints.
+   * Parts are prepared in parallel on a pool shared by all send jobs, so that a burst of photos
+   * is resized a couple at a time; each resize is bounded in memory.
+   */
+  protected void prepareMessageMedia(final MasterSecret masterSecret, SendReq message,
+                                     final MediaConstraints constraints, final boolean toMemory)
       throws IOException, UndeliverableMessageException
   {
+    List<Future<Void>> results = new LinkedList<>();
+
     try {
       for (int i = 0; i < message.getBody().getPartsNum(); i++) {
-        preparePart(masterSecret, constraints, message.getBody().getPart(i), toMemory);
+        final PduPart part = message.getBody().getPart(i);
+
+        results.add(mediaExecutor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            preparePart(masterSecret, constraints, part, toMemory);
+            return null;
+          }
+        }));
+      }
+
+      for (Future<Void> result : results) {
+        result.get();
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      if      (e.getCause() instanceof IOException)                   throw (IOException)e.getCause();
+      else if (e.getCause() instanceof UndeliverableMessageException) throw (UndeliverableMessageException)e.getCause();
+      else if (e.getCause() instanceof MmsException)                  throw new UndeliverableMessageException(e.getCause());
+      else if (e.getCause() instanceof RuntimeException)              throw (RuntimeException)e.getCause();
+      else                                                            throw new AssertionError(e);
+    } finally {
+      for (Future<Void> result : results) {
+        result.cancel(false);
       }
-    } catch (MmsException me) {
-      throw new UndeliverableMessageException(me);
     }
   }
 
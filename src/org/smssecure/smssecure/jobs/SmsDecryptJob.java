@@ -13,7 +13,9 @@ import org.smssecure.smssecure.crypto.storage.SMSSecureAxolotlStore;
 import org.smssecure.smssecure.database.DatabaseFactory;
 import org.smssecure.smssecure.database.EncryptingSmsDatabase;
 import org.smssecure.smssecure.database.NoSuchMessageException;
+import org.smssecure.smssecure.database.SmsDatabase;
 import org.smssecure.smssecure.database.model.SmsMessageRecord;
+import org.smssecure.smssecure.jobs.persistence.JobCodec;
 import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirement;
 import org.smssecure.smssecure.notifications.MessageNotifier;
 import org.smssecure.smssecure.service.KeyCachingService;
@@ -36,14 +38,37 @@ import org.whispersystems.libaxolotl.UntrustedIdentityException;
 import org.whispersystems.libaxolotl.util.guava.Optional;
 import org.whispersystems.textsecure.api.messages.TextSecureGroup;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class SmsDecryptJob extends MasterSecretJob {
 
   private static final String TAG = SmsDecryptJob.class.getSimpleName();
 
+  private static final Object DECRYPT_LOCK = new Object();
+
   private final long messageId;
 
+  public static final JobCodec<SmsDecryptJob> CODEC = new JobCodec<SmsDecryptJob>() {
+    @Override
+    public void write(SmsDecryptJob job, DataOutput out) throws IOException {
+      out.writeLong(job.messageId);
+    }
+
+    @Override
+    public SmsDecryptJob read(Context context, JobParameters parameters, DataInput in) throws IOException {
+      return new SmsDecryptJob(context, parameters, in.readLong());
+    }
+  };
+
   public SmsDecryptJob(Context context, long messageId) {
     super(context, JobParameters.newBuilder()
                                 .withPersistence()
@@ -53,6 +78,11 @@ public class SmsDecryptJob extends MasterSecretJob {
     this.messageId = messageId;
   }
 
+  private SmsDecryptJob(Context context, JobParameters parameters, long messageId) {
+    super(context, parameters);
+    this.messageId = messageId;
+  }
+
   @Override
   public void onAdded() {
     if (KeyCachingService.getMasterSecret(context) == null) {
@@ -61,34 +91,155 @@ public class SmsDecryptJob extends MasterSecretJob {
   }
 
   @Override
-  public void onRun(MasterSecret masterSecret) throws NoSuchMessageException {
-    EncryptingSmsDatabase database = DatabaseFactory.getEncryptingSmsDatabase(context);
+  public void onRun(MasterSecret masterSecret) {
+    synchronized (DECRYPT_LOCK) {
+      decryptPendingMessages(masterSecret);
+    }
+  }
+
+  /**
+   * Decrypts every message that's still waiting to be, not just the one this job was
+   * queued for.  The first of a backlog of jobs queued while locked clears all of it and
+   * the rest find nothing left to do.  Each sender's messages are handled together and in
+   * the order they arrived, and their outcomes are written in one transaction before the
+   * next sender's are decrypted, so that being killed part way through leaves at most one
+   * sender's messages behind the session state they advanced.  The notification is
+   * updated once.
+   */
+  private void decryptPendingMessages(MasterSecret masterSecret) {
+    EncryptingSmsDatabase              database        = DatabaseFactory.getEncryptingSmsDatabase(context);
+    EncryptingSmsDatabase.DecryptBatch batch           = database.createDecryptBatch(masterSecret);
+    SmsCipher                          cipher          = new SmsCipher(new SMSSecureAxolotlStore(context, masterSecret));
+    Set<Long>                          securityUpdates = new HashSet<>();
+    Collection<List<SmsMessageRecord>> sessions        = getPendingMessagesBySession(database, masterSecret);
+
+    if (sessions.isEmpty()) return;
+
+    Log.w(TAG, "Decrypting messages from " + sessions.size() + " sessions, queued for " + messageId);
+
+    for (List<SmsMessageRecord> session : sessions) {
+      try {
+        decryptSession(masterSecret, cipher, batch, securityUpdates, session);
+      } finally {
+        batch.commit();
+      }
+    }
+
+    for (long threadId : securityUpdates) {
+      SecurityEvent.broadcastSecurityUpdateEvent(context, threadId);
+    }
+
+    MessageNotifier.updateNotification(context, masterSecret);
+  }
+
+  /**
+   * Everything waiting to be decrypted, grouped by sender session.  This job's own message
+   * is included even if it isn't waiting, so long as it's a key exchange that hasn't been
+   * processed, since that's how a key exchange is retried once its identity is accepted.
+   */
+  private Collection<List<SmsMessageRecord>> getPendingMessagesBySession(EncryptingSmsDatabase database,
+                                                                         MasterSecret masterSecret)
+  {
+    Map<String, List<SmsMessageRecord>> sessions = new LinkedHashMap<>();
+    boolean                             included = false;
+    SmsDatabase.Reader                  reader   = null;
+
+    try {
+      SmsMessageRecord record;
+
+      reader = database.getDecryptInProgressMessages(masterSecret);
+
+      while ((record = reader.getNext()) != null) {
+        addToSession(sessions, record);
+        included |= record.getId() == messageId;
+      }
+    } finally {
+      if (reader != null)
+        reader.close();
+    }
+
+    if (!included) {
+      try {
+        SmsMessageRecord record = database.getMessage(masterSecret, messageId);
+
+        if (isUnprocessedKeyExchange(record)) {
+          addToSession(sessions, record);
+        }
+      } catch (NoSuchMessageException e) {
+        Log.w(TAG, e);
+      }
+    }
+
+    return sessions.values();
+  }
+
+  private void addToSession(Map<String, List<SmsMessageRecord>> sessions, SmsMessageRecord record) {
+    String                 session  = record.getRecipients().getPrimaryRecipient().getNumber() + "." +
+                                      record.getRecipientDeviceId();
+    List<SmsMessageRecord> messages = sessions.get(session);
+
+    if (messages == null) {
+      messages = new LinkedList<>();
+      sessions.put(session, messages);
+    }
+
+    messages.add(record);
+  }
+
+  private boolean isUnprocessedKeyExchange(SmsMessageRecord record) {
+    return record.isKeyExchange()              &&
+           !record.isProcessedKeyExchange()    &&
+           !record.isStaleKeyExchange()        &&
+           !record.isCorruptedKeyExchange()    &&
+           !record.isInvalidVersionKeyExchange();
+  }
+
+  /**
+   * Decrypts one sender's messages in order.  A message that can't be decrypted for any
+   * reason is marked as failed rather than left waiting, since every later drain would
+   * otherwise stop at it again and never reach the messages behind it.
+   */
+  /*package*/ void decryptSession(MasterSecret masterSecret, SmsCipher cipher,
+                                  EncryptingSmsDatabase.DecryptBatch batch, Set<Long> securityUpdates,
+                                  List<SmsMessageRecord> session)
+  {
+    for (SmsMessageRecord record : session) {
+      try {
+        decryptMessage(masterSecret, cipher, batch, securityUpdates, record);
+      } catch (RuntimeException | AssertionError e) {
+        Log.w(TAG, "Failed to decrypt " + record.getId(), e);
+        batch.markAsDecryptFailed(record.getId());
+      }
+    }
+  }
+
+  private void decryptMessage(MasterSecret masterSecret, SmsCipher cipher,
+                              EncryptingSmsDatabase.DecryptBatch batch, Set<Long> securityUpdates,
+                              SmsMessageRecord record)
+  {
+    long messageId = record.getId();
+    long threadId  = record.getThreadId();
 
     try {
-      SmsMessageRecord    record    = database.getMessage(masterSecret, messageId);
-      IncomingTextMessage message   = createIncomingTextMessage(masterSecret, record);
-      long                messageId = record.getId();
-      long                threadId  = record.getThreadId();
-
-      if      (message.isSecureMessage()) handleSecureMessage(masterSecret, messageId, threadId, message);
-      else if (message.isPreKeyBundle())  handlePreKeyWhisperMessage(masterSecret, messageId, threadId, (IncomingPreKeyBundleMessage) message);
-      else if (message.isKeyExchange())   handleKeyExchangeMessage(masterSecret, messageId, threadId, (IncomingKeyExchangeMessage) message);
-      else if (message.isEndSession())    handleSecureMessage(masterSecret, messageId, threadId, message);
-      else                                database.updateMessageBody(masterSecret, messageId, message.getMessageBody());
-
-      MessageNotifier.updateNotification(context, masterSecret);
+      IncomingTextMessage message = createIncomingTextMessage(masterSecret, record);
+
+      if      (message.isSecureMessage()) handleSecureMessage(cipher, batch, securityUpdates, messageId, threadId, message);
+      else if (message.isPreKeyBundle())  handlePreKeyWhisperMessage(cipher, batch, securityUpdates, messageId, threadId, (IncomingPreKeyBundleMessage) message);
+      else if (message.isKeyExchange())   handleKeyExchangeMessage(masterSecret, cipher, batch, securityUpdates, messageId, threadId, (IncomingKeyExchangeMessage) message);
+      else if (message.isEndSession())    handleSecureMessage(cipher, batch, securityUpdates, messageId, threadId, message);
+      else                                batch.updateMessageBody(messageId, message.getMessageBody());
     } catch (LegacyMessageException e) {
       Log.w(TAG, e);
-      database.markAsLegacyVersion(messageId);
+      batch.markAsLegacyVersion(messageId);
     } catch (InvalidMessageException e) {
       Log.w(TAG, e);
-      database.markAsDecryptFailed(messageId);
+      batch.markAsDecryptFailed(messageId);
     } catch (DuplicateMessageException e) {
       Log.w(TAG, e);
-      database.markAsDecryptDuplicate(messageId);
+      batch.markAsDecryptDuplicate(messageId);
     } catch (NoSessionException e) {
       Log.w(TAG, e);
-      database.markAsNoSession(messageId);
+      batch.markAsNoSession(messageId);
     }
   }
 
@@ -102,71 +253,69 @@ public class SmsDecryptJob extends MasterSecretJob {
     // TODO
   }
 
-  private void handleSecureMessage(MasterSecret masterSecret, long messageId, long threadId,
+  private void handleSecureMessage(SmsCipher cipher, EncryptingSmsDatabase.DecryptBatch batch,
+                                   Set<Long> securityUpdates, long messageId, long threadId,
                                    IncomingTextMessage message)
       throws NoSessionException, DuplicateMessageException,
       InvalidMessageException, LegacyMessageException
   {
-    EncryptingSmsDatabase database  = DatabaseFactory.getEncryptingSmsDatabase(context);
-    SmsCipher             cipher    = new SmsCipher(new SMSSecureAxolotlStore(context, masterSecret));
-    IncomingTextMessage   plaintext = cipher.decrypt(context, message);
+    IncomingTextMessage plaintext = cipher.decrypt(context, message);
 
-    database.updateMessageBody(masterSecret, messageId, plaintext.getMessageBody());
+    batch.updateMessageBody(messageId, plaintext.getMessageBody());
 
-    if (message.isEndSession()) SecurityEvent.broadcastSecurityUpdateEvent(context, threadId);
+    if (message.isEndSession()) securityUpdates.add(threadId);
   }
 
-  private void handlePreKeyWhisperMessage(MasterSecret masterSecret, long messageId, long threadId,
+  private void handlePreKeyWhisperMessage(SmsCipher cipher, EncryptingSmsDatabase.DecryptBatch batch,
+                                          Set<Long> securityUpdates, long messageId, long threadId,
                                           IncomingPreKeyBundleMessage message)
       throws NoSessionException, DuplicateMessageException,
       InvalidMessageException, LegacyMessageException
   {
-    EncryptingSmsDatabase database = DatabaseFactory.getEncryptingSmsDatabase(context);
-
     try {
-      SmsCipher                smsCipher = new SmsCipher(new SMSSecureAxolotlStore(context, masterSecret));
-      IncomingEncryptedMessage plaintext = smsCipher.decrypt(context, message);
+      IncomingEncryptedMessage plaintext = cipher.decrypt(context, message);
 
-      database.updateBundleMessageBody(masterSecret, messageId, plaintext.getMessageBody());
-
-      SecurityEvent.broadcastSecurityUpdateEvent(context, threadId);
+      batch.updateBundleMessageBody(messageId, plaintext.getMessageBody());
+      securityUpdates.add(threadId);
     } catch (InvalidVersionException e) {
       Log.w(TAG, e);
-      database.markAsInvalidVersionKeyExchange(messageId);
+      batch.markAsInvalidVersionKeyExchange(messageId);
     } catch (UntrustedIdentityException e) {
       Log.w(TAG, e);
+      // Stored as it's displayed, so it waits to be accepted rather than being picked up again
+      batch.updateMessageBody(messageId, message.getMessageBody());
     }
   }
 
-  private void handleKeyExchangeMessage(MasterSecret masterSecret, long messageId, long threadId,
-                                        IncomingKeyExchangeMessage message)
+  private void handleKeyExchangeMessage(MasterSecret masterSecret, SmsCipher cipher,
+                                        EncryptingSmsDatabase.DecryptBatch batch, Set<Long> securityUpdates,
+                                        long messageId, long threadId, IncomingKeyExchangeMessage message)
   {
-    EncryptingSmsDatabase database = DatabaseFactory.getEncryptingSmsDatabase(context);
+    // Stored as it's displayed, whatever happens to it below, so it isn't picked up again
+    batch.updateMessageBody(messageId, message.getMessageBody());
 
     if (SMSSecurePreferences.isAutoRespondKeyExchangeEnabled(context)) {
       try {
-        SmsCipher                  cipher   = new SmsCipher(new SMSSecureAxolotlStore(context, masterSecret));
         OutgoingKeyExchangeMessage response = cipher.process(context, message);
 
-        database.markAsProcessedKeyExchange(messageId);
-
-        SecurityEvent.broadcastSecurityUpdateEvent(context, threadId);
+        batch.markAsProcessedKeyExchange(messageId);
+        securityUpdates.add(threadId);
 
         if (response != null) {
           MessageSender.send(context, masterSecret, response, threadId, true);
         }
       } catch (InvalidVersionException e) {
         Log.w(TAG, e);
-        database.markAsInvalidVersionKeyExchange(messageId);
+        batch.markAsInvalidVersionKeyExchange(messageId);
       } catch (InvalidMessageException e) {
         Log.w(TAG, e);
-        database.markAsCorruptKeyExchange(messageId);
+        batch.markAsCorruptKeyExchange(messageId);
       } catch (LegacyMessageException e) {
         Log.w(TAG, e);
-        database.markAsLegacyVersion(messageId);
+        batch.markAsLegacyVersion(messageId);
       } catch (StaleKeyExchangeException e) {
         Log.w(TAG, e);
-        database.markAsStaleKeyExchange(messageId);
+        batch.markAsStaleKeyExchange(messageId);
       } catch (UntrustedIdentityException e) {
         Log.w(TAG, e);
       }
@@ -9,6 +9,8 @@ import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.crypto.MasterSecretUtil;
 import org.smssecure.smssecure.database.DatabaseFactory;
 import org.smssecure.smssecure.database.EncryptingSmsDatabase;
+import org.smssecure.smssecure.jobs.persistence.BinaryJobSerializer;
+import org.smssecure.smssecure.jobs.persistence.JobCodec;
 import org.smssecure.smssecure.notifications.MessageNotifier;
 import org.smssecure.smssecure.protocol.WirePrefix;
 import org.smssecure.smssecure.service.KeyCachingService;
@@ -17,6 +19,9 @@ import org.smssecure.smssecure.sms.MultipartSmsMessageHandler;
 import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.libaxolotl.util.guava.Optional;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -28,6 +33,28 @@ public class SmsReceiveJob extends ContextJob {
 
   private final Object[] pdus;
 
+  public static final JobCodec<SmsReceiveJob> CODEC = new JobCodec<SmsReceiveJob>() {
+    @Override
+    public void write(SmsReceiveJob job, DataOutput out) throws IOException {
+      out.writeInt(job.pdus.length);
+
+      for (Object pdu : job.pdus) {
+        BinaryJobSerializer.writeBytes(out, (byte[])pdu);
+      }
+    }
+
+    @Override
+    public SmsReceiveJob read(Context context, JobParameters parameters, DataInput in) throws IOException {
+      Object[] pdus = new Object[in.readInt()];
+
+      for (int i=0;i<pdus.length;i++) {
+        pdus[i] = BinaryJobSerializer.readBytes(in);
+      }
+
+      return new SmsReceiveJob(context, parameters, pdus);
+    }
+  };
+
   public SmsReceiveJob(Context context, Object[] pdus) {
     super(context, JobParameters.newBuilder()
                                 .withPersistence()
@@ -37,11 +64,16 @@ public class SmsReceiveJob extends ContextJob {
     this.pdus = pdus;
   }
 
+  private SmsReceiveJob(Context context, JobParameters parameters, Object[] pdus) {
+    super(context, parameters);
+    this.pdus = pdus;
+  }
+
   @Override
   public void onAdded() {}
 
   @Override
-  public void onRun() {
+  protected void onContextRun() {
     Optional<IncomingTextMessage> message = assembleMessageFragments(pdus);
 
     if (message.isPresent()) {
@@ -64,9 +96,10 @@ public class SmsReceiveJob extends ContextJob {
     EncryptingSmsDatabase database     = DatabaseFactory.getEncryptingSmsDatabase(context);
     MasterSecret          masterSecret = KeyCachingService.getMasterSecret(context);
 
+    boolean          needsProcessing = message.isSecureMessage() || message.isKeyExchange() || message.isEndSession();
     Pair<Long, Long> messageAndThreadId;
 
-    if (message.isSecureMessage()) {
+    if (needsProcessing) {
       messageAndThreadId = database.insertMessageInbox((MasterSecret)null, message);
     } else if (masterSecret == null) {
       messageAndThreadId = database.insertMessageInbox(MasterSecretUtil.getAsymmetricMasterSecret(context, null), message);
@@ -74,7 +107,7 @@ public class SmsReceiveJob extends ContextJob {
       messageAndThreadId = database.insertMessageInbox(masterSecret, message);
     }
 
-    if (masterSecret == null || message.isSecureMessage() || message.isKeyExchange() || message.isEndSession()) {
+    if (masterSecret == null || needsProcessing) {
       ApplicationContext.getInstance(context)
                         .getJobManager()
                         .add(new SmsDecryptJob(context, messageAndThreadId.first));
@@ -15,6 +15,7 @@ import org.smssecure.smssecure.database.EncryptingSmsDatabase;
 import org.smssecure.smssecure.database.NoSuchMessageException;
 import org.smssecure.smssecure.database.SmsDatabase;
 import org.smssecure.smssecure.database.model.SmsMessageRecord;
+import org.smssecure.smssecure.jobs.persistence.JobCodec;
 import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirement;
 import org.smssecure.smssecure.jobs.requirements.NetworkOrServiceRequirement;
 import org.smssecure.smssecure.jobs.requirements.ServiceRequirement;
@@ -30,6 +31,9 @@ import org.smssecure.smssecure.util.SMSSecurePreferences;
 import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.libaxolotl.NoSessionException;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 
 public class SmsSendJob extends SendJob {
@@ -38,11 +42,28 @@ public class SmsSendJob extends SendJob {
 
   private final long messageId;
 
+  public static final JobCodec<SmsSendJob> CODEC = new JobCodec<SmsSendJob>() {
+    @Override
+    public void write(SmsSendJob job, DataOutput out) throws IOException {
+      out.writeLong(job.messageId);
+    }
+
+    @Override
+    public SmsSendJob read(Context context, JobParameters parameters, DataInput in) throws IOException {
+      return new SmsSendJob(context, parameters, in.readLong());
+    }
+  };
+
   public SmsSendJob(Context context, long messageId, String name) {
     super(context, constructParameters(context, name));
     this.messageId = messageId;
   }
 
+  private SmsSendJob(Context context, JobParameters parameters, long messageId) {
+    super(context, parameters);
+    this.messageId = messageId;
+  }
+
   @Override
   public void onAdded() {
     SmsDatabase database = DatabaseFactory.getEncryptingSmsDatabase(context);
@@ -13,12 +13,18 @@ import org.smssecure.smssecure.database.DatabaseFactory;
 import org.smssecure.smssecure.database.EncryptingSmsDatabase;
 import org.smssecure.smssecure.database.NoSuchMessageException;
 import org.smssecure.smssecure.database.model.SmsMessageRecord;
+import org.smssecure.smssecure.jobs.persistence.BinaryJobSerializer;
+import org.smssecure.smssecure.jobs.persistence.JobCodec;
 import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirement;
 import org.smssecure.smssecure.notifications.MessageNotifier;
 import org.smssecure.smssecure.service.SmsDeliveryListener;
 import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.libaxolotl.state.SessionStore;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 public class SmsSentJob extends MasterSecretJob {
 
   private static final String TAG = SmsSentJob.class.getSimpleName();
@@ -27,6 +33,24 @@ public class SmsSentJob extends MasterSecretJob {
   private final String action;
   private final int    result;
 
+  public static final JobCodec<SmsSentJob> CODEC = new JobCodec<SmsSentJob>() {
+    @Override
+    public void write(SmsSentJob job, DataOutput out) throws IOException {
+      out.writeLong(job.messageId);
+      BinaryJobSerializer.writeString(out, job.action);
+      out.writeInt(job.result);
+    }
+
+    @Override
+    public SmsSentJob read(Context context, JobParameters parameters, DataInput in) throws IOException {
+      long   messageId = in.readLong();
+      String action    = BinaryJobSerializer.readString(in);
+      int    result    = in.readInt();
+
+      return new SmsSentJob(context, parameters, messageId, action, result);
+    }
+  };
+
   public SmsSentJob(Context context, long messageId, String action, int result) {
     super(context, JobParameters.newBuilder()
                                 .withPersistence()
@@ -38,6 +62,13 @@ public class SmsSentJob extends MasterSecretJob {
     this.result    = result;
   }
 
+  private SmsSentJob(Context context, JobParameters parameters, long messageId, String action, int result) {
+    super(context, parameters);
+    this.messageId = messageId;
+    this.action    = action;
+    this.result    = result;
+  }
+
   @Override
   public void onAdded() {
 
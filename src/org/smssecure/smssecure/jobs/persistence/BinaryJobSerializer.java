@@ -0,0 +1,226 @@
+package org.smssecure.smssecure.jobs.persistence;
+
+import android.content.Context;
+
+import org.whispersystems.jobqueue.EncryptionKeys;
+import org.whispersystems.jobqueue.Job;
+import org.whispersystems.jobqueue.JobParameters;
+import org.whispersystems.jobqueue.requirements.Requirement;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializes jobs to a compact, versioned binary format instead of with Java serialization.
+ * Only registered job and requirement types can be written, and each job type writes its
+ * own fields with its JobCodec.  A serialized job is:
+ *
+ *   magic, format version and job type (a byte each)
+ *   flags (byte), retry count (int)
+ *   wake lock timeout in milliseconds (long), if the job needs a wake lock
+ *   group id (string), if the job has one
+ *   requirement count, then each requirement's type (a byte each)
+ *   the job's own fields
+ *
+ * Job and requirement types are stored by the number they're registered with, so those
+ * numbers can never be reused.  Strings and byte arrays are written as an int length,
+ * -1 for null, followed by the UTF-8 or raw bytes.
+ */
+public class BinaryJobSerializer {
+
+  private static final byte MAGIC   = 0x4a;
+  private static final byte VERSION = 1;
+
+  private static final int FLAG_PERSISTENT = 1;
+  private static final int FLAG_WAKE_LOCK  = 1 << 1;
+  private static final int FLAG_GROUP_ID   = 1 << 2;
+
+  private final Context                                    context;
+  private final Map<Class<? extends Job>, Integer>         jobTypes             = new HashMap<>();
+  private final Map<Integer, JobCodec<? extends Job>>      jobCodecs            = new HashMap<>();
+  private final Map<Class<? extends Requirement>, Integer> requirementTypes     = new HashMap<>();
+  private final Map<Integer, RequirementFactory>           requirementFactories = new HashMap<>();
+
+  public BinaryJobSerializer(Context context) {
+    this.context = context;
+  }
+
+  public <T extends Job> BinaryJobSerializer addJob(int type, Class<T> jobClass, JobCodec<T> codec) {
+    jobTypes.put(jobClass, type);
+    jobCodecs.put(type, codec);
+    return this;
+  }
+
+  public BinaryJobSerializer addRequirement(int type, Class<? extends Requirement> requirementClass,
+                                            RequirementFactory factory)
+  {
+    requirementTypes.put(requirementClass, type);
+    requirementFactories.put(type, factory);
+    return this;
+  }
+
+  /**
+   * @return whether the job's type and all of its requirements' types are registered
+   */
+  public boolean canSerialize(Job job) {
+    if (!jobTypes.containsKey(job.getClass())) return false;
+
+    for (Requirement requirement : job.getRequirements()) {
+      if (!requirementTypes.containsKey(requirement.getClass())) return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * @return whether the bytes start like a job written by this serializer
+   */
+  public static boolean isBinaryJob(byte[] serialized) {
+    return serialized.length > 0 && serialized[0] == MAGIC;
+  }
+
+  public byte[] serialize(Job job) throws IOException {
+    Integer type = jobTypes.get(job.getClass());
+
+    if (type == null) {
+      throw new IOException("Unregistered job type: " + job.getClass().getName());
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    DataOutputStream      out   = new DataOutputStream(bytes);
+
+    out.writeByte(MAGIC);
+    out.writeByte(VERSION);
+    out.writeByte(type);
+
+    writeParameters(job, out);
+    getCodec(type).write(job, out);
+
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  public Job deserialize(EncryptionKeys keys, byte[] serialized) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(serialized));
+
+    if (in.readByte() != MAGIC) {
+      throw new IOException("Not a binary job");
+    }
+
+    int version = in.readUnsignedByte();
+
+    if (version != VERSION) {
+      throw new IOException("Unknown version: " + version);
+    }
+
+    int type = in.readUnsignedByte();
+
+    if (!jobCodecs.containsKey(type)) {
+      throw new IOException("Unknown job type: " + type);
+    }
+
+    return getCodec(type).read(context, readParameters(keys, in), in);
+  }
+
+  private void writeParameters(Job job, DataOutput out) throws IOException {
+    List<Requirement> requirements = job.getRequirements();
+    int               flags        = 0;
+
+    if (job.isPersistent())       flags |= FLAG_PERSISTENT;
+    if (job.needsWakeLock())      flags |= FLAG_WAKE_LOCK;
+    if (job.getGroupId() != null) flags |= FLAG_GROUP_ID;
+
+    out.writeByte(flags);
+    out.writeInt(job.getRetryCount());
+
+    if (job.needsWakeLock())      out.writeLong(job.getWakeLockTimeout());
+    if (job.getGroupId() != null) writeString(out, job.getGroupId());
+
+    out.writeByte(requirements.size());
+
+    for (Requirement requirement : requirements) {
+      Integer type = requirementTypes.get(requirement.getClass());
+
+      if (type == null) {
+        throw new IOException("Unregistered requirement type: " + requirement.getClass().getName());
+      }
+
+      out.writeByte(type);
+    }
+  }
+
+  private JobParameters readParameters(EncryptionKeys keys, DataInput in) throws IOException {
+    JobParameters.Builder builder = JobParameters.newBuilder();
+    int                   flags   = in.readUnsignedByte();
+
+    builder.withRetryCount(in.readInt());
+
+    if ((flags & FLAG_PERSISTENT) != 0) builder.withPersistence();
+    if ((flags & FLAG_WAKE_LOCK) != 0)  builder.withWakeLock(true, in.readLong(), TimeUnit.MILLISECONDS);
+    if ((flags & FLAG_GROUP_ID) != 0)   builder.withGroupId(readString(in));
+    if (keys != null)                   builder.withEncryption(keys);
+
+    int requirementCount = in.readUnsignedByte();
+
+    for (int i=0;i<requirementCount;i++) {
+      int                type    = in.readUnsignedByte();
+      RequirementFactory factory = requirementFactories.get(type);
+
+      if (factory == null) {
+        throw new IOException("Unknown requirement type: " + type);
+      }
+
+      builder.withRequirement(factory.create(context));
+    }
+
+    return builder.create();
+  }
+
+  @SuppressWarnings("unchecked")
+  private JobCodec<Job> getCodec(int type) {
+    return (JobCodec<Job>)jobCodecs.get(type);
+  }
+
+  public static void writeString(DataOutput out, String value) throws IOException {
+    writeBytes(out, value == null ? null : value.getBytes("UTF-8"));
+  }
+
+  public static String readString(DataInput in) throws IOException {
+    byte[] bytes = readBytes(in);
+    return bytes == null ? null : new String(bytes, "UTF-8");
+  }
+
+  public static void writeBytes(DataOutput out, byte[] value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+    } else {
+      out.writeInt(value.length);
+      out.write(value);
+    }
+  }
+
+  public static byte[] readBytes(DataInput in) throws IOException {
+    int length = in.readInt();
+
+    if (length == -1) return null;
+    if (length < 0)   throw new IOException("Bad length: " + length);
+
+    byte[] value = new byte[length];
+    in.readFully(value);
+
+    return value;
+  }
+
+  public interface RequirementFactory {
+    Requirement create(Context context);
+  }
+}
@@ -1,55 +1,145 @@
 package org.smssecure.smssecure.jobs.persistence;
 
+import android.content.Context;
+
 import org.smssecure.smssecure.crypto.MasterCipher;
 import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.jobs.AttachmentDownloadJob;
+import org.smssecure.smssecure.jobs.AvatarDownloadJob;
+import org.smssecure.smssecure.jobs.DeliveryReceiptJob;
+import org.smssecure.smssecure.jobs.MmsDownloadJob;
+import org.smssecure.smssecure.jobs.MmsReceiveJob;
+import org.smssecure.smssecure.jobs.MmsSendJob;
+import org.smssecure.smssecure.jobs.PushDecryptJob;
+import org.smssecure.smssecure.jobs.PushGroupSendJob;
+import org.smssecure.smssecure.jobs.PushMediaSendJob;
+import org.smssecure.smssecure.jobs.PushReceiveJob;
+import org.smssecure.smssecure.jobs.PushTextSendJob;
+import org.smssecure.smssecure.jobs.SmsDecryptJob;
+import org.smssecure.smssecure.jobs.SmsReceiveJob;
+import org.smssecure.smssecure.jobs.SmsSendJob;
+import org.smssecure.smssecure.jobs.SmsSentJob;
+import org.smssecure.smssecure.jobs.requirements.MasterSecretRequirement;
+import org.smssecure.smssecure.jobs.requirements.NetworkOrServiceRequirement;
+import org.smssecure.smssecure.jobs.requirements.ServiceRequirement;
+import org.smssecure.smssecure.util.Base64;
 import org.smssecure.smssecure.util.ParcelUtil;
 import org.whispersystems.jobqueue.EncryptionKeys;
 import org.whispersystems.jobqueue.Job;
 import org.whispersystems.jobqueue.persistence.JavaJobSerializer;
 import org.whispersystems.jobqueue.persistence.JobSerializer;
+import org.whispersystems.jobqueue.requirements.NetworkRequirement;
+import org.whispersystems.jobqueue.requirements.Requirement;
 import org.whispersystems.libaxolotl.InvalidMessageException;
 
 import java.io.IOException;
 
+/**
+ * Writes jobs with BinaryJobSerializer, encrypted with the master secret when the job has
+ * one.  Jobs it has no codec for, and jobs persisted before it existed, go through Java
+ * serialization instead.
+ */
 public class EncryptingJobSerializer implements JobSerializer {
 
-  private final JavaJobSerializer delegate;
+  private final BinaryJobSerializer binarySerializer;
+  private final JavaJobSerializer   javaSerializer;
 
-  public EncryptingJobSerializer() {
-    this.delegate = new JavaJobSerializer();
+  public EncryptingJobSerializer(Context context) {
+    this.binarySerializer = createBinarySerializer(context.getApplicationContext());
+    this.javaSerializer   = new JavaJobSerializer();
   }
 
   @Override
   public String serialize(Job job) throws IOException {
-    String plaintext = delegate.serialize(job);
+    if (!binarySerializer.canSerialize(job)) {
+      return serializeJava(job);
+    }
 
-    if (job.getEncryptionKeys() != null) {
-      MasterSecret masterSecret = ParcelUtil.deserialize(job.getEncryptionKeys().getEncoded(),
-                                                         MasterSecret.CREATOR);
-      MasterCipher masterCipher = new MasterCipher(masterSecret);
+    byte[] serialized = binarySerializer.serialize(job);
 
-      return masterCipher.encryptBody(plaintext);
+    if (job.getEncryptionKeys() != null) {
+      return Base64.encodeBytes(getMasterCipher(job.getEncryptionKeys()).encryptBytes(serialized));
     } else {
-      return plaintext;
+      return Base64.encodeBytes(serialized);
     }
   }
 
   @Override
   public Job deserialize(EncryptionKeys keys, boolean encrypted, String serialized) throws IOException {
     try {
-      String plaintext;
+      byte[] plaintext;
 
-      if (encrypted) {
-        MasterSecret masterSecret = ParcelUtil.deserialize(keys.getEncoded(), MasterSecret.CREATOR);
-        MasterCipher masterCipher = new MasterCipher(masterSecret);
-        plaintext = masterCipher.decryptBody(serialized);
+      if (encrypted) plaintext = getMasterCipher(keys).decryptBytes(Base64.decode(serialized));
+      else           plaintext = Base64.decode(serialized);
+
+      if (BinaryJobSerializer.isBinaryJob(plaintext)) {
+        return binarySerializer.deserialize(encrypted ? keys : null, plaintext);
       } else {
-        plaintext = serialized;
+        return javaSerializer.deserialize(keys, encrypted, encrypted ? new String(plaintext, "UTF-8") : serialized);
       }
-
-      return delegate.deserialize(keys, encrypted, plaintext);
     } catch (InvalidMessageException e) {
       throw new IOException(e);
     }
   }
+
+  private String serializeJava(Job job) throws IOException {
+    String plaintext = javaSerializer.serialize(job);
+
+    if (job.getEncryptionKeys() != null) {
+      return getMasterCipher(job.getEncryptionKeys()).encryptBody(plaintext);
+    } else {
+      return plaintext;
+    }
+  }
+
+  private MasterCipher getMasterCipher(EncryptionKeys keys) {
+    MasterSecret masterSecret = ParcelUtil.deserialize(keys.getEncoded(), MasterSecret.CREATOR);
+    return MasterCipher.getInstance(masterSecret);
+  }
+
+  /**
+   * Job and requirement type numbers are persisted, so they must never be reused.
+   */
+  private static BinaryJobSerializer createBinarySerializer(Context context) {
+    return new BinaryJobSerializer(context)
+        .addRequirement(1, MasterSecretRequirement.class, new BinaryJobSerializer.RequirementFactory() {
+          @Override
+          public Requirement create(Context context) {
+            return new MasterSecretRequirement(context);
+          }
+        })
+        .addRequirement(2, NetworkRequirement.class, new BinaryJobSerializer.RequirementFactory() {
+          @Override
+          public Requirement create(Context context) {
+            return new NetworkRequirement(context);
+          }
+        })
+        .addRequirement(3, ServiceRequirement.class, new BinaryJobSerializer.RequirementFactory() {
+          @Override
+          public Requirement create(Context context) {
+            return new ServiceRequirement(context);
+          }
+        })
+        .addRequirement(4, NetworkOrServiceRequirement.class, new BinaryJobSerializer.RequirementFactory() {
+          @Override
+          public Requirement create(Context context) {
+            return new NetworkOrServiceRequirement(context);
+          }
+        })
+        .addJob(1, SmsSendJob.class, SmsSendJob.CODEC)
+        .addJob(2, SmsSentJob.class, SmsSentJob.CODEC)
+        .addJob(3, SmsReceiveJob.class, SmsReceiveJob.CODEC)
+        .addJob(4, SmsDecryptJob.class, SmsDecryptJob.CODEC)
+        .addJob(5, MmsSendJob.class, MmsSendJob.CODEC)
+        .addJob(6, MmsReceiveJob.class, MmsReceiveJob.CODEC)
+        .addJob(7, MmsDownloadJob.class, MmsDownloadJob.CODEC)
+        .addJob(8, AttachmentDownloadJob.class, AttachmentDownloadJob.CODEC)
+        .addJob(9, PushReceiveJob.class, PushReceiveJob.CODEC)
+        .addJob(10, PushDecryptJob.class, PushDecryptJob.CODEC)
+        .addJob(11, PushTextSendJob.class, PushTextSendJob.CODEC)
+        .addJob(12, PushMediaSendJob.class, PushMediaSendJob.CODEC)
+        .addJob(13, PushGroupSendJob.class, PushGroupSendJob.CODEC)
+        .addJob(14, DeliveryReceiptJob.class, DeliveryReceiptJob.CODEC)
+        .addJob(15, AvatarDownloadJob.class, AvatarDownloadJob.CODEC);
+  }
 }
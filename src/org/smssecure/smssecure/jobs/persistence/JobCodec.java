@@ -0,0 +1,19 @@
+package org.smssecure.smssecure.jobs.persistence;
+
+import android.content.Context;
+
+import org.whispersystems.jobqueue.Job;
+import org.whispersystems.jobqueue.JobParameters;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes and reads the fields a job type adds to its parameters, for BinaryJobSerializer.
+ * Fields must be read back in the order they were written.
+ */
+public interface JobCodec<T extends Job> {
+  void write(T job, DataOutput out) throws IOException;
+  T read(Context context, JobParameters parameters, DataInput in) throws IOException;
+}
@@ -26,6 +26,7 @@ import android.util.Pair;
 
 import org.smssecure.smssecure.R;
 import org.smssecure.smssecure.database.MmsDatabase;
+import org.smssecure.smssecure.database.ThumbnailCache;
 import org.smssecure.smssecure.util.BitmapDecodingException;
 import org.smssecure.smssecure.util.LRUCache;
 import org.smssecure.smssecure.util.ListenableFutureTask;
@@ -59,21 +60,26 @@ public class ImageSlide extends Slide {
 
   @Override
   public ListenableFutureTask<Pair<Drawable,Boolean>> getThumbnail(Context context) {
+    return getThumbnail(context, context.getResources().getDimensionPixelSize(R.dimen.thumbnail_max_size));
+  }
+
+  @Override
+  public ListenableFutureTask<Pair<Drawable,Boolean>> getThumbnail(Context context, int maxSize) {
     if (getPart().isPendingPush()) {
       return new ListenableFutureTask<>(new Pair<>(context.getResources().getDrawable(R.drawable.stat_sys_download), true));
     }
 
-    Drawable thumbnail = getCachedThumbnail();
+    Drawable thumbnail = getCachedThumbnail(context, maxSize);
     if (thumbnail != null) {
       Log.w(TAG, "getThumbnail() returning cached thumbnail");
       return new ListenableFutureTask<>(new Pair<>(thumbnail, true));
     }
 
     Log.w(TAG, "getThumbnail() resolving thumbnail, as it wasn't cached");
-    return resolveThumbnail(context);
+    return resolveThumbnail(context, maxSize);
   }
 
-  private ListenableFutureTask<Pair<Drawable,Boolean>> resolveThumbnail(Context context) {
+  private ListenableFutureTask<Pair<Drawable,Boolean>> resolveThumbnail(Context context, final int maxSize) {
     final WeakReference<Context> weakContext = new WeakReference<>(context);
 
     Callable<Pair<Drawable,Boolean>> slideCallable = new Callable<Pair<Drawable, Boolean>>() {
@@ -87,11 +93,14 @@ public class ImageSlide extends Slide {
 
         try {
           final long     startDecode     = System.currentTimeMillis();
-          final Bitmap   thumbnailBitmap = MediaUtil.getOrGenerateThumbnail(context, masterSecret, part);
+          final Bitmap   thumbnailBitmap = MediaUtil.getOrGenerateThumbnail(context, masterSecret, part, maxSize);
           final Drawable thumbnail       = new BitmapDrawable(context.getResources(), thumbnailBitmap);
           Log.w(TAG, "thumbnail decode/generate time: " + (System.currentTimeMillis() - startDecode) + "ms");
 
-          thumbnailCache.put(part.getDataUri(), new SoftReference<>(thumbnail));
+          if (!hasPartId()) {
+            thumbnailCache.put(part.getDataUri(), new SoftReference<>(thumbnail));
+          }
+
           return new Pair<>(thumbnail, false);
         } catch (IOException | BitmapDecodingException e) {
           Log.w(TAG, e);
@@ -100,11 +109,19 @@ public class ImageSlide extends Slide {
       }
     };
     ListenableFutureTask<Pair<Drawable,Boolean>> futureTask = new ListenableFutureTask<>(slideCallable);
-    MmsDatabase.slideResolver.execute(futureTask);
+
+    if (hasPartId()) ThumbnailCache.thumbnailResolver.execute(futureTask);
+    else             MmsDatabase.slideResolver.execute(futureTask);
+
     return futureTask;
   }
 
-  private Drawable getCachedThumbnail() {
+  private Drawable getCachedThumbnail(Context context, int maxSize) {
+    if (hasPartId()) {
+      Bitmap bitmap = ThumbnailCache.getInstance(context).getCached(part.getId(), maxSize);
+      return bitmap != null ? new BitmapDrawable(context.getResources(), bitmap) : null;
+    }
+
     synchronized (thumbnailCache) {
       SoftReference<Drawable> bitmapReference = thumbnailCache.get(part.getDataUri());
       Log.w("ImageSlide", "Got soft reference: " + bitmapReference);
@@ -120,6 +137,10 @@ public class ImageSlide extends Slide {
     return null;
   }
 
+  private boolean hasPartId() {
+    return part.getDataUri() != null && part.getId() > -1;
+  }
+
   @Override
   public boolean hasImage() {
     return true;
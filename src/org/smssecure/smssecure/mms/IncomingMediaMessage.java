@@ -70,7 +70,7 @@ public class IncomingMediaMessage {
       for (TextSecureAttachment attachment : attachments.get()) {
         if (attachment.isPointer()) {
           PduPart media        = new PduPart();
-          byte[]  encryptedKey = new MasterCipher(masterSecret).encryptBytes(attachment.asPointer().getKey());
+          byte[]  encryptedKey = MasterCipher.getInstance(masterSecret).encryptBytes(attachment.asPointer().getKey());
 
           media.setContentType(Util.toIsoBytes(attachment.getContentType()));
           media.setContentLocation(Util.toIsoBytes(String.valueOf(attachment.asPointer().getId())));
@@ -27,8 +27,10 @@ import org.apache.http.client.methods.HttpGetHC4;
 import org.apache.http.client.methods.HttpUriRequest;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
 
+import ws.com.google.android.mms.pdu.GenericPdu;
 import ws.com.google.android.mms.pdu.PduParser;
 import ws.com.google.android.mms.pdu.RetrieveConf;
 
@@ -93,4 +95,38 @@ public class IncomingMmsConnection extends MmsConnection {
 
     return retrieved;
   }
+
+  /**
+   * Like {@link #retrieve(boolean, boolean)}, but parses the PDU as it is received
+   * rather than buffering the whole response, handing part data to the sink.
+   */
+  public RetrieveConf retrieve(boolean usingMmsRadio, boolean useProxyIfAvailable,
+                               final PduParser.PartDataSink partDataSink)
+      throws IOException, ApnUnavailableException
+  {
+    final boolean useProxy   = useProxyIfAvailable && apn.hasProxy();
+    final String  targetHost = useProxy
+                             ? apn.getProxy()
+                             : Uri.parse(apn.getMmsc()).getHost();
+
+    if (!checkRouteToHost(context, targetHost, usingMmsRadio)) {
+      throw new IOException("Connection manager could not obtain route to host.");
+    }
+
+    Log.w(TAG, "got successful route to host " + targetHost);
+
+    GenericPdu retrieved = makeRequest(useProxy, new ResponseHandler<GenericPdu>() {
+      @Override
+      public GenericPdu handleResponse(InputStream content, long contentLength) throws IOException {
+        return new PduParser(content, contentLength, partDataSink).parseOrThrow();
+      }
+    });
+
+    if (!(retrieved instanceof RetrieveConf)) {
+      Log.w(TAG, "Couldn't parse streamed PDU: " + retrieved);
+      throw new IOException("Bad retrieved PDU");
+    }
+
+    return (RetrieveConf)retrieved;
+  }
 }
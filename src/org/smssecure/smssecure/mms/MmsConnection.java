@@ -147,6 +147,15 @@ public abstract class MmsConnection {
   }
 
   protected byte[] makeRequest(boolean useProxy) throws IOException {
+    return makeRequest(useProxy, new ResponseHandler<byte[]>() {
+      @Override
+      public byte[] handleResponse(InputStream content, long contentLength) throws IOException {
+        return parseResponse(content);
+      }
+    });
+  }
+
+  protected <T> T makeRequest(boolean useProxy, ResponseHandler<T> handler) throws IOException {
     Log.w(TAG, "connecting to " + apn.getMmsc() + (useProxy ? " using proxy" : ""));
 
     HttpUriRequest request;
@@ -160,7 +169,8 @@ public abstract class MmsConnection {
       Log.w(TAG, "* response code: " + response.getStatusLine());
 
       if (response.getStatusLine().getStatusCode() == 200) {
-        return parseResponse(response.getEntity().getContent());
+        return handler.handleResponse(response.getEntity().getContent(),
+                                      response.getEntity().getContentLength());
       }
     } finally {
       if (response != null) response.close();
@@ -188,6 +198,16 @@ public abstract class MmsConnection {
 
   }
 
+  /**
+   * Consumes the body of a successful response while the connection is still open.
+   */
+  protected interface ResponseHandler<T> {
+    /**
+     * @param contentLength the length of the body, or -1 if the server didn't say
+     */
+    T handleResponse(InputStream content, long contentLength) throws IOException;
+  }
+
   public static class Apn {
 
     public static Apn EMPTY = new Apn("", "", "", "", "");
@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.mms;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.smssecure.smssecure.crypto.MasterSecret;
+import org.smssecure.smssecure.database.DatabaseFactory;
+import org.smssecure.smssecure.database.PartDatabase;
+import org.smssecure.smssecure.protocol.WirePrefix;
+import org.smssecure.smssecure.util.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.List;
+
+import ws.com.google.android.mms.ContentType;
+import ws.com.google.android.mms.MmsException;
+import ws.com.google.android.mms.pdu.EncodedStringValue;
+import ws.com.google.android.mms.pdu.PduHeaders;
+import ws.com.google.android.mms.pdu.PduParser;
+import ws.com.google.android.mms.pdu.PduPart;
+
+/**
+ * Encrypts the media parts of a retrieved MMS straight to part files as the PDU is
+ * parsed, so that large attachments are never held in memory.
+ *
+ * Text and SMIL parts are still read into memory, since the message body and slide
+ * layout are built from them.  So is everything in an encrypted MMS, which has to be
+ * decrypted as a whole before its parts can be stored.
+ */
+public class MmsPartSpooler implements PduParser.PartDataSink {
+
+  private static final String TAG = MmsPartSpooler.class.getSimpleName();
+
+  private final PartDatabase  database;
+  private final MasterSecret  masterSecret;
+  private final List<PduPart> spooled = new LinkedList<>();
+
+  public MmsPartSpooler(Context context, MasterSecret masterSecret) {
+    this.database     = DatabaseFactory.getPartDatabase(context);
+    this.masterSecret = masterSecret;
+  }
+
+  @Override
+  public boolean accepts(PduHeaders headers, PduPart part) {
+    if (masterSecret == null) return false;
+
+    EncodedStringValue subject = headers.getEncodedStringValue(PduHeaders.SUBJECT);
+
+    if (subject != null && WirePrefix.isEncryptedMmsSubject(subject.getString())) {
+      return false;
+    }
+
+    String contentType = Util.toIsoString(part.getContentType());
+
+    return !ContentType.isTextType(contentType) &&
+           !ContentType.APP_SMIL.equalsIgnoreCase(contentType);
+  }
+
+  @Override
+  public void write(PduPart part, InputStream data) throws IOException {
+    try {
+      database.spoolPartData(masterSecret, part, data);
+      spooled.add(part);
+    } catch (MmsException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Deletes the files of any spooled parts that were never inserted, e.g. because
+   * storing the message failed.
+   */
+  public void cleanup() {
+    for (PduPart part : spooled) {
+      File dataFile = part.getDataFile();
+
+      if (dataFile != null && !dataFile.delete()) {
+        Log.w(TAG, "Failed to delete spooled part: " + dataFile.getAbsolutePath());
+      }
+
+      part.setDataFile(null);
+    }
+
+    spooled.clear();
+  }
+}
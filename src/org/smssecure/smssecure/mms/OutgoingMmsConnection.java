@@ -35,17 +35,26 @@ import org.smssecure.smssecure.util.Util;
 
 import java.io.IOException;
 
+import ws.com.google.android.mms.pdu.PduComposer.ComposedPdu;
 import ws.com.google.android.mms.pdu.PduParser;
 import ws.com.google.android.mms.pdu.SendConf;
 
 public class OutgoingMmsConnection extends MmsConnection {
   private final static String TAG = OutgoingMmsConnection.class.getSimpleName();
 
-  private final byte[] mms;
+  private final byte[]      mms;
+  private final ComposedPdu pdu;
 
   public OutgoingMmsConnection(Context context, String apnName, byte[] mms) throws ApnUnavailableException {
     super(context, getApn(context, apnName));
     this.mms = mms;
+    this.pdu = null;
+  }
+
+  public OutgoingMmsConnection(Context context, String apnName, ComposedPdu pdu) throws ApnUnavailableException {
+    super(context, getApn(context, apnName));
+    this.mms = null;
+    this.pdu = pdu;
   }
 
   @Override
@@ -58,7 +67,7 @@ public class OutgoingMmsConnection extends MmsConnection {
         request.addHeader(header);
       }
 
-      request.setEntity(new ByteArrayEntityHC4(mms));
+      request.setEntity(pdu != null ? new PduEntity(pdu) : new ByteArrayEntityHC4(mms));
       if (useProxy) {
         HttpHost proxy = new HttpHost(apn.getProxy(), apn.getPort());
         request.setConfig(RequestConfig.custom().setProxy(proxy).build());
@@ -86,7 +95,7 @@ public class OutgoingMmsConnection extends MmsConnection {
                              ? apn.getProxy()
                              : Uri.parse(apn.getMmsc()).getHost();
 
-    Log.w(TAG, "Sending MMS of length: " + mms.length
+    Log.w(TAG, "Sending MMS of length: " + (pdu != null ? pdu.getLength() : mms.length)
                + (useMmsRadio ? ", using mms radio" : "")
                + (useProxy ? ", using proxy" : ""));
 
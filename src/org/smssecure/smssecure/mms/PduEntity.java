@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.smssecure.smssecure.mms;
+
+import org.apache.http.entity.AbstractHttpEntityHC4;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import ws.com.google.android.mms.pdu.PduComposer.ComposedPdu;
+
+/**
+ * A request entity that writes a composed PDU straight to the connection,
+ * decrypting part data as it goes instead of buffering the encoded PDU.
+ * getContent() streams it the same way.
+ */
+public class PduEntity extends AbstractHttpEntityHC4 {
+
+  private final ComposedPdu pdu;
+
+  public PduEntity(ComposedPdu pdu) {
+    this.pdu = pdu;
+  }
+
+  /**
+   * Every write and every stream opens the parts' data afresh, so the entity can be
+   * sent again on retry.
+   */
+  @Override
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  @Override
+  public long getContentLength() {
+    return pdu.getLength();
+  }
+
+  @Override
+  public InputStream getContent() {
+    return pdu.getInputStream();
+  }
+
+  @Override
+  public void writeTo(OutputStream out) throws IOException {
+    pdu.writeTo(out);
+    out.flush();
+  }
+
+  @Override
+  public boolean isStreaming() {
+    return false;
+  }
+}
@@ -72,6 +72,13 @@ public abstract class Slide {
     throw new AssertionError("getThumbnail() called on non-thumbnail producing slide!");
   }
 
+  /**
+   * Like {@link #getThumbnail(Context)}, for a view whose larger side is maxSize pixels.
+   */
+  public ListenableFutureTask<Pair<Drawable,Boolean>> getThumbnail(Context context, int maxSize) {
+    return getThumbnail(context);
+  }
+
   public boolean hasImage() {
     return false;
   }
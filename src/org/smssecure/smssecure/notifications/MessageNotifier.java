@@ -58,6 +58,8 @@ import org.whispersystems.textsecure.api.messages.TextSecureEnvelope;
 import java.io.IOException;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import me.leolin.shortcutbadger.ShortcutBadger;
@@ -76,6 +78,11 @@ public class MessageNotifier {
 
   private volatile static long visibleThread = -1;
 
+  private static NotificationState notificationState;
+  private static boolean           notificationStateHasMasterSecret;
+  private static long              lastIndexId;
+  private static long              lastPushId;
+
   public static void setVisibleThread(long threadId) {
     visibleThread = threadId;
   }
@@ -127,39 +134,111 @@ public class MessageNotifier {
     }
   }
 
-  private static void updateNotification(Context context, MasterSecret masterSecret, boolean signal, int reminderCount) {
-    Cursor telcoCursor = null;
-    Cursor pushCursor  = null;
+  private static synchronized void updateNotification(Context context, MasterSecret masterSecret, boolean signal, int reminderCount) {
+    NotificationState notificationState = getNotificationState(context, masterSecret, !signal);
 
-    try {
-      telcoCursor = DatabaseFactory.getMmsSmsDatabase(context).getUnread();
-      pushCursor  = DatabaseFactory.getPushDatabase(context).getPending();
+    if (notificationState.isEmpty()) {
+      ((NotificationManager)context.getSystemService(Context.NOTIFICATION_SERVICE))
+        .cancel(NOTIFICATION_ID);
+      updateBadge(context, 0);
+      clearReminder(context);
+      return;
+    }
 
-      if ((telcoCursor == null || telcoCursor.isAfterLast()) &&
-          (pushCursor == null || pushCursor.isAfterLast()))
-      {
-        ((NotificationManager)context.getSystemService(Context.NOTIFICATION_SERVICE))
-          .cancel(NOTIFICATION_ID);
-        updateBadge(context, 0);
-        clearReminder(context);
-        return;
-      }
+    if (notificationState.hasMultipleThreads()) {
+      sendMultipleThreadNotification(context, masterSecret, notificationState, signal);
+    } else {
+      sendSingleThreadNotification(context, masterSecret, notificationState, signal);
+    }
+
+    updateBadge(context, notificationState.getMessageCount());
+    scheduleReminder(context, masterSecret, reminderCount);
+  }
+
+  /**
+   * Returns the notification state, brought up to date with as little work as possible.
+   *
+   * The state is only rebuilt from every unread message on first use, or when the master
+   * secret has become available or been cleared since it was built.  Otherwise only
+   * messages that arrived since the last update are read and decrypted.  When reconcile is
+   * set, e.g. after messages were marked read, the per-thread unread counts are compared
+   * with the database and only threads that differ, or that still show placeholders for
+   * undecrypted bodies, are reloaded.
+   */
+  private static NotificationState getNotificationState(Context context, MasterSecret masterSecret, boolean reconcile) {
+    boolean hasMasterSecret = masterSecret != null;
+
+    if (notificationState == null || notificationStateHasMasterSecret != hasMasterSecret ||
+        (reconcile && !hasMasterSecret))
+    {
+      rebuildNotificationState(context, masterSecret);
+      return notificationState;
+    }
+
+    appendNewNotifications(context, masterSecret);
+
+    if (reconcile) {
+      reconcileNotificationState(context, masterSecret);
+    }
+
+    return notificationState;
+  }
+
+  private static void rebuildNotificationState(Context context, MasterSecret masterSecret) {
+    MmsSmsDatabase database = DatabaseFactory.getMmsSmsDatabase(context);
 
-      NotificationState notificationState = constructNotificationState(context, masterSecret, telcoCursor);
+    notificationState                = new NotificationState();
+    notificationStateHasMasterSecret = masterSecret != null;
+    lastIndexId                      = database.getLastIndexId();
+    lastPushId                       = 0;
 
-      appendPushNotificationState(context, masterSecret, notificationState, pushCursor);
+    appendNotificationState(context, masterSecret, notificationState, database.getUnread(0, lastIndexId));
 
-      if (notificationState.hasMultipleThreads()) {
-        sendMultipleThreadNotification(context, masterSecret, notificationState, signal);
-      } else {
-        sendSingleThreadNotification(context, masterSecret, notificationState, signal);
+    if (masterSecret == null) {
+      PushDatabase pushDatabase = DatabaseFactory.getPushDatabase(context);
+      lastPushId                = pushDatabase.getLastId();
+
+      appendPushNotificationState(context, masterSecret, notificationState, pushDatabase.getPending(0, lastPushId));
+    }
+  }
+
+  private static void appendNewNotifications(Context context, MasterSecret masterSecret) {
+    MmsSmsDatabase database  = DatabaseFactory.getMmsSmsDatabase(context);
+    long           throughId = database.getLastIndexId();
+
+    if (throughId > lastIndexId) {
+      appendNotificationState(context, masterSecret, notificationState, database.getUnread(lastIndexId, throughId));
+      lastIndexId = throughId;
+    }
+
+    if (masterSecret == null) {
+      PushDatabase pushDatabase  = DatabaseFactory.getPushDatabase(context);
+      long         throughPushId = pushDatabase.getLastId();
+
+      if (throughPushId > lastPushId) {
+        appendPushNotificationState(context, masterSecret, notificationState, pushDatabase.getPending(lastPushId, throughPushId));
+        lastPushId = throughPushId;
       }
+    }
+  }
 
-      updateBadge(context, notificationState.getMessageCount());
-      scheduleReminder(context, masterSecret, reminderCount);
-    } finally {
-      if (telcoCursor != null) telcoCursor.close();
-      if (pushCursor != null)  pushCursor.close();
+  private static void reconcileNotificationState(Context context, MasterSecret masterSecret) {
+    MmsSmsDatabase     database     = DatabaseFactory.getMmsSmsDatabase(context);
+    Map<Long, Integer> unreadCounts = database.getUnreadCountsByThread();
+    Set<Long>          staleThreads = notificationState.getPlaceholderThreads();
+
+    for (Map.Entry<Long, Integer> thread : notificationState.getThreadCounts().entrySet()) {
+      if (!thread.getValue().equals(unreadCounts.get(thread.getKey()))) {
+        staleThreads.add(thread.getKey());
+      }
+    }
+
+    for (long threadId : staleThreads) {
+      notificationState.removeThread(threadId);
+
+      if (unreadCounts.containsKey(threadId)) {
+        appendNotificationState(context, masterSecret, notificationState, database.getUnreadInThread(threadId));
+      }
     }
   }
 
@@ -302,7 +381,10 @@ public class MessageNotifier {
                                                   NotificationState notificationState,
                                                   Cursor cursor)
   {
-    if (masterSecret != null) return;
+    if (masterSecret != null) {
+      cursor.close();
+      return;
+    }
 
     PushDatabase.Reader reader = null;
     TextSecureEnvelope envelope;
@@ -317,7 +399,8 @@ public class MessageNotifier {
         SpannableString body       = new SpannableString(context.getString(R.string.MessageNotifier_encrypted_message));
         body.setSpan(new StyleSpan(android.graphics.Typeface.ITALIC), 0, body.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
 
-        notificationState.addNotification(new NotificationItem(recipient, recipients, null, threadId, body, null));
+        notificationState.addNotification(new NotificationItem(recipient, recipients, null, threadId, body, null,
+                                                               envelope.getTimestamp(), true));
       }
     } finally {
       if (reader != null)
@@ -325,11 +408,11 @@ public class MessageNotifier {
     }
   }
 
-  private static NotificationState constructNotificationState(Context context,
-                                                              MasterSecret masterSecret,
-                                                              Cursor cursor)
+  private static void appendNotificationState(Context context,
+                                              MasterSecret masterSecret,
+                                              NotificationState notificationState,
+                                              Cursor cursor)
   {
-    NotificationState notificationState = new NotificationState();
     MessageRecord record;
     MmsSmsDatabase.Reader reader;
 
@@ -343,13 +426,15 @@ public class MessageNotifier {
       CharSequence    body             = record.getDisplayBody();
       Uri             image            = null;
       Recipients      threadRecipients = null;
+      boolean         placeholder      = false;
 
       if (threadId != -1) {
         threadRecipients = DatabaseFactory.getThreadDatabase(context).getRecipientsForThreadId(threadId);
       }
 
       if (SmsDatabase.Types.isDecryptInProgressType(record.getType()) || !record.getBody().isPlaintext()) {
-        body = SpanUtil.italic(context.getString(R.string.MessageNotifier_encrypted_message));
+        body        = SpanUtil.italic(context.getString(R.string.MessageNotifier_encrypted_message));
+        placeholder = true;
       } else if (record.isMms() && TextUtils.isEmpty(body)) {
         body = SpanUtil.italic(context.getString(R.string.MessageNotifier_media_message));
       } else if (record.isMms()) {
@@ -358,11 +443,11 @@ public class MessageNotifier {
         body = SpanUtil.italic(message, italicLength);
       }
 
-      notificationState.addNotification(new NotificationItem(recipient, recipients, threadRecipients, threadId, body, image));
+      notificationState.addNotification(new NotificationItem(recipient, recipients, threadRecipients, threadId, body, image,
+                                                             record.getDateReceived(), placeholder));
     }
 
     reader.close();
-    return notificationState;
   }
 
   private static void setNotificationAlarms(Context context,
@@ -19,10 +19,13 @@ public class NotificationItem {
   private final long         threadId;
   private final CharSequence text;
   private final Uri          image;
+  private final long         timestamp;
+  private final boolean      placeholder;
 
   public NotificationItem(Recipient individualRecipient, Recipients recipients,
                           Recipients threadRecipients, long threadId,
-                          CharSequence text, Uri image)
+                          CharSequence text, Uri image, long timestamp,
+                          boolean placeholder)
   {
     this.individualRecipient = individualRecipient;
     this.recipients          = recipients;
@@ -30,6 +33,8 @@ public class NotificationItem {
     this.text                = text;
     this.image               = image;
     this.threadId            = threadId;
+    this.timestamp           = timestamp;
+    this.placeholder         = placeholder;
   }
 
   public Recipient getIndividualRecipient() {
@@ -56,6 +61,18 @@ public class NotificationItem {
     return threadId;
   }
 
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * True if the text stands in for a body that couldn't be shown yet, e.g. because
+   * it is still being decrypted.
+   */
+  public boolean isPlaceholder() {
+    return placeholder;
+  }
+
   public CharSequence getBigStyleSummary() {
     return (text == null) ? "" : text;
   }
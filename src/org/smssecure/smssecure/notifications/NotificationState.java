@@ -8,24 +8,74 @@ import android.util.Log;
 
 import org.smssecure.smssecure.crypto.MasterSecret;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
 import java.util.Set;
 
 public class NotificationState {
 
   private final LinkedList<NotificationItem> notifications = new LinkedList<NotificationItem>();
-  private final Set<Long>                    threads       = new HashSet<Long>();
+  private final Map<Long, Integer>           threads       = new HashMap<Long, Integer>();
 
   private int notificationCount = 0;
 
+  /**
+   * Adds an item, keeping the list ordered newest first.  Items usually arrive in
+   * chronological order, in which case this is a constant-time insert at the head.
+   */
   public void addNotification(NotificationItem item) {
-    notifications.addFirst(item);
-    threads.add(item.getThreadId());
+    ListIterator<NotificationItem> iterator = notifications.listIterator();
+
+    while (iterator.hasNext()) {
+      if (iterator.next().getTimestamp() <= item.getTimestamp()) {
+        iterator.previous();
+        break;
+      }
+    }
+
+    iterator.add(item);
+
+    Integer threadCount = threads.get(item.getThreadId());
+    threads.put(item.getThreadId(), threadCount == null ? 1 : threadCount + 1);
     notificationCount++;
   }
 
+  public void removeThread(long threadId) {
+    Iterator<NotificationItem> iterator = notifications.iterator();
+
+    while (iterator.hasNext()) {
+      if (iterator.next().getThreadId() == threadId) {
+        iterator.remove();
+        notificationCount--;
+      }
+    }
+
+    threads.remove(threadId);
+  }
+
+  public Map<Long, Integer> getThreadCounts() {
+    return threads;
+  }
+
+  public Set<Long> getPlaceholderThreads() {
+    Set<Long> placeholderThreads = new HashSet<Long>();
+
+    for (NotificationItem item : notifications) {
+      if (item.isPlaceholder()) placeholderThreads.add(item.getThreadId());
+    }
+
+    return placeholderThreads;
+  }
+
+  public boolean isEmpty() {
+    return notifications.isEmpty();
+  }
+
   public boolean hasMultipleThreads() {
     return threads.size() > 1;
   }
@@ -46,7 +96,7 @@ public class NotificationState {
     long[] threadArray = new long[threads.size()];
     int index          = 0;
 
-    for (long thread : threads) {
+    for (long thread : threads.keySet()) {
       Log.w("NotificationState", "Added thread: " + thread);
       threadArray[index++] = thread;
     }
@@ -21,30 +21,45 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.PhoneLookup;
+import android.telephony.PhoneNumberUtils;
 import android.util.Log;
 
 import org.smssecure.smssecure.contacts.ContactPhotoFactory;
 import org.smssecure.smssecure.database.CanonicalAddressDatabase;
 import org.smssecure.smssecure.database.DatabaseFactory;
 import org.smssecure.smssecure.database.GroupDatabase;
-import org.smssecure.smssecure.util.BitmapUtil;
 import org.smssecure.smssecure.util.GroupUtil;
-import org.smssecure.smssecure.util.LRUCache;
-import org.smssecure.smssecure.util.Util;
+import org.smssecure.smssecure.util.LinkedBlockingLifoQueue;
 import org.smssecure.smssecure.util.ListenableFutureTask;
+import org.smssecure.smssecure.util.StripedLRUCache;
+import org.smssecure.smssecure.util.Util;
 
 import java.io.IOException;
-import java.util.Collections;
-import java.util.Map;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class RecipientProvider {
 
-  private static final Map<Long,Recipient> recipientCache         = Collections.synchronizedMap(new LRUCache<Long,Recipient>(1000));
-  private static final ExecutorService     asyncRecipientResolver = Util.newSingleThreadedLifoExecutor();
+  private static final String TAG = RecipientProvider.class.getSimpleName();
+
+  private static final int DEFAULT_CACHE_SIZE = 1000;
+
+  private static final int LOOKUP_BATCH_SIZE = 25;
+  private static final int AVATAR_THREADS    = 3;
+
+  private static final ExecutorService asyncRecipientResolver = Util.newSingleThreadedLifoExecutor();
+  private static final ExecutorService asyncAvatarResolver    = new ThreadPoolExecutor(AVATAR_THREADS, AVATAR_THREADS,
+                                                                                       0L, TimeUnit.MILLISECONDS,
+                                                                                       new LinkedBlockingLifoQueue<Runnable>());
 
   private static final String[] CALLER_ID_PROJECTION = new String[] {
     PhoneLookup.DISPLAY_NAME,
@@ -53,6 +68,25 @@ public class RecipientProvider {
     PhoneLookup.NUMBER
   };
 
+  private static final String[] BATCH_PROJECTION = new String[] {
+    Phone.DISPLAY_NAME,
+    Phone.LOOKUP_KEY,
+    Phone.CONTACT_ID,
+    Phone.NUMBER
+  };
+
+  private final StripedLRUCache<Long,Recipient>    recipientCache;
+  private final LinkedBlockingDeque<PendingLookup> pendingLookups = new LinkedBlockingDeque<>();
+  private final AtomicBoolean                      drainScheduled = new AtomicBoolean(false);
+
+  public RecipientProvider() {
+    this(DEFAULT_CACHE_SIZE);
+  }
+
+  public RecipientProvider(int cacheSize) {
+    this.recipientCache = new StripedLRUCache<>(cacheSize);
+  }
+
   public Recipient getRecipient(Context context, long recipientId, boolean asynchronous) {
     Recipient cachedRecipient = recipientCache.get(recipientId);
 
@@ -89,20 +123,12 @@ public class RecipientProvider {
   private Recipient getAsynchronousRecipient(final Context context, final long recipientId) {
     Log.w("RecipientProvider", "Cache miss [ASYNC]!");
 
-    final String number = CanonicalAddressDatabase.getInstance(context).getAddressFromId(recipientId);
+    final String  number           = CanonicalAddressDatabase.getInstance(context).getAddressFromId(recipientId);
     final boolean isGroupRecipient = GroupUtil.isEncodedGroup(number);
+    final PendingLookup pending    = new PendingLookup(context, number, isGroupRecipient);
 
-    Callable<RecipientDetails> task = new Callable<RecipientDetails>() {
-      @Override
-      public RecipientDetails call() throws Exception {
-        if (isGroupRecipient) return getGroupRecipientDetails(context, number);
-        else                  return getRecipientDetails(context, number);
-      }
-    };
-
-    ListenableFutureTask<RecipientDetails> future = new ListenableFutureTask<RecipientDetails>(task);
-
-    asyncRecipientResolver.submit(future);
+    if (isGroupRecipient) asyncAvatarResolver.execute(pending.future);
+    else                  enqueueLookup(context, pending);
 
     Bitmap contactPhoto;
 
@@ -112,19 +138,89 @@ public class RecipientProvider {
       contactPhoto        = ContactPhotoFactory.getDefaultContactPhoto(context);
     }
 
-    Recipient recipient = new Recipient(number, contactPhoto, recipientId, future);
+    Recipient recipient = new Recipient(number, contactPhoto, recipientId, pending.future);
     recipientCache.put(recipientId, recipient);
 
     return recipient;
   }
 
+  private void enqueueLookup(final Context context, PendingLookup pending) {
+    pendingLookups.addFirst(pending);
+
+    if (drainScheduled.compareAndSet(false, true)) {
+      asyncRecipientResolver.execute(new Runnable() {
+        @Override
+        public void run() {
+          drainScheduled.set(false);
+          drainLookups(context);
+        }
+      });
+    }
+  }
+
+  /**
+   * Resolves queued numbers in batches of {@link #LOOKUP_BATCH_SIZE}, one contacts query per
+   * batch, most recently requested first.  Photo decoding is handed to the avatar pool.
+   */
+  private void drainLookups(Context context) {
+    List<PendingLookup> batch = new LinkedList<>();
+    PendingLookup       pending;
+
+    while ((pending = pendingLookups.pollFirst()) != null) {
+      batch.add(pending);
+
+      if (batch.size() >= LOOKUP_BATCH_SIZE || pendingLookups.isEmpty()) {
+        resolveBatch(context, batch);
+
+        for (PendingLookup resolved : batch) {
+          asyncAvatarResolver.execute(resolved.future);
+        }
+
+        batch.clear();
+      }
+    }
+  }
+
+  private void resolveBatch(Context context, List<PendingLookup> batch) {
+    StringBuilder selection = new StringBuilder();
+    String[]      args      = new String[batch.size()];
+    int           i         = 0;
+
+    for (PendingLookup pending : batch) {
+      if (i > 0) selection.append(" OR ");
+      selection.append("PHONE_NUMBERS_EQUAL(").append(Phone.NUMBER).append(", ?)");
+      args[i++] = pending.number;
+    }
+
+    Cursor cursor = null;
+
+    try {
+      cursor = context.getContentResolver().query(Phone.CONTENT_URI, BATCH_PROJECTION,
+                                                  selection.toString(), args, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        String contactNumber = cursor.getString(3);
+
+        for (PendingLookup pending : batch) {
+          if (!pending.isResolved() && PhoneNumberUtils.compare(pending.number, contactNumber)) {
+            pending.setContact(cursor.getString(0), cursor.getString(1), cursor.getLong(2), contactNumber);
+          }
+        }
+      }
+    } catch (RuntimeException e) {
+      Log.w(TAG, "Batched contact lookup failed, falling back to individual lookups", e);
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
   public void clearCache() {
     recipientCache.clear();
   }
 
   public void clearCache(Recipient recipient) {
-    if (recipientCache.containsKey(recipient.getRecipientId()))
-      recipientCache.remove(recipient.getRecipientId());
+    recipientCache.remove(recipient.getRecipientId());
   }
 
   private RecipientDetails getRecipientDetails(Context context, String number) {
@@ -169,6 +265,48 @@ public class RecipientProvider {
     }
   }
 
+  private class PendingLookup implements Callable<RecipientDetails> {
+    private final Context                                context;
+    private final String                                 number;
+    private final boolean                                isGroupRecipient;
+    private final ListenableFutureTask<RecipientDetails> future;
+
+    private volatile String  name;
+    private volatile String  lookupKey;
+    private volatile long    contactId = -1;
+    private volatile String  contactNumber;
+
+    private PendingLookup(Context context, String number, boolean isGroupRecipient) {
+      this.context          = context;
+      this.number           = number;
+      this.isGroupRecipient = isGroupRecipient;
+      this.future           = new ListenableFutureTask<>(this);
+    }
+
+    private boolean isResolved() {
+      return contactId != -1;
+    }
+
+    private void setContact(String name, String lookupKey, long contactId, String contactNumber) {
+      this.name          = name;
+      this.lookupKey     = lookupKey;
+      this.contactNumber = contactNumber;
+      this.contactId     = contactId;
+    }
+
+    @Override
+    public RecipientDetails call() throws Exception {
+      if (isGroupRecipient) return getGroupRecipientDetails(context, number);
+      if (!isResolved())    return getRecipientDetails(context, number);
+
+      Uri    contactUri   = Contacts.getLookupUri(contactId, lookupKey);
+      Bitmap contactPhoto = ContactPhotoFactory.getContactPhoto(context, Uri.withAppendedPath(Contacts.CONTENT_URI,
+                                                                                              contactId + ""));
+
+      return new RecipientDetails(name, contactNumber, contactUri, contactPhoto);
+    }
+  }
+
   public static class RecipientDetails {
     public final String name;
     public final String number;
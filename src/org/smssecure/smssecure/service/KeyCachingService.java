@@ -38,8 +38,12 @@ import org.smssecure.smssecure.DummyActivity;
 import org.smssecure.smssecure.R;
 import org.smssecure.smssecure.RoutingActivity;
 import org.smssecure.smssecure.crypto.InvalidPassphraseException;
+import org.smssecure.smssecure.crypto.MasterCipher;
 import org.smssecure.smssecure.crypto.MasterSecret;
 import org.smssecure.smssecure.crypto.MasterSecretUtil;
+import org.smssecure.smssecure.crypto.storage.SessionRecordCache;
+import org.smssecure.smssecure.database.DecryptedBodyCache;
+import org.smssecure.smssecure.database.ThumbnailCache;
 import org.smssecure.smssecure.notifications.MessageNotifier;
 import org.smssecure.smssecure.util.DynamicLanguage;
 import org.smssecure.smssecure.util.ParcelUtil;
@@ -187,6 +191,10 @@ public class KeyCachingService extends Service {
 
   private void handleClearKey() {
     this.masterSecret = null;
+    MasterCipher.clearCachedInstances();
+    DecryptedBodyCache.getInstance().clear();
+    ThumbnailCache.getInstance(this).clearMemory();
+    SessionRecordCache.getInstance(this).clear();
     stopForeground(true);
 
     Intent intent = new Intent(CLEAR_KEY_EVENT);
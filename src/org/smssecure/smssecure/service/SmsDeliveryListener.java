@@ -7,8 +7,8 @@ import android.telephony.SmsMessage;
 import android.util.Log;
 
 import org.smssecure.smssecure.ApplicationContext;
+import org.smssecure.smssecure.jobs.LaneJobManager;
 import org.smssecure.smssecure.jobs.SmsSentJob;
-import org.whispersystems.jobqueue.JobManager;
 
 public class SmsDeliveryListener extends BroadcastReceiver {
 
@@ -19,8 +19,8 @@ public class SmsDeliveryListener extends BroadcastReceiver {
 
   @Override
   public void onReceive(Context context, Intent intent) {
-    JobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
-    long       messageId  = intent.getLongExtra("message_id", -1);
+    LaneJobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
+    long           messageId  = intent.getLongExtra("message_id", -1);
 
     switch (intent.getAction()) {
       case SENT_SMS_ACTION:
@@ -29,6 +29,7 @@ import org.smssecure.smssecure.database.NotInDirectoryException;
 import org.smssecure.smssecure.database.SMSSecureDirectory;
 import org.smssecure.smssecure.database.ThreadDatabase;
 import org.smssecure.smssecure.database.model.MessageRecord;
+import org.smssecure.smssecure.jobs.LaneJobManager;
 import org.smssecure.smssecure.jobs.MmsSendJob;
 import org.smssecure.smssecure.jobs.PushGroupSendJob;
 import org.smssecure.smssecure.jobs.PushMediaSendJob;
@@ -41,7 +42,6 @@ import org.smssecure.smssecure.recipients.Recipients;
 import org.smssecure.smssecure.util.GroupUtil;
 import org.smssecure.smssecure.util.SMSSecurePreferences;
 import org.smssecure.smssecure.util.Util;
-import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.libaxolotl.util.guava.Optional;
 import org.whispersystems.textsecure.api.TextSecureAccountManager;
 import org.whispersystems.textsecure.api.push.ContactTokenDetails;
@@ -184,27 +184,27 @@ public class MessageSender {
   }
 
   private static void sendTextPush(Context context, Recipients recipients, long messageId) {
-    JobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
+    LaneJobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
     jobManager.add(new PushTextSendJob(context, messageId, recipients.getPrimaryRecipient().getNumber()));
   }
 
   private static void sendMediaPush(Context context, Recipients recipients, long messageId) {
-    JobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
+    LaneJobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
     jobManager.add(new PushMediaSendJob(context, messageId, recipients.getPrimaryRecipient().getNumber()));
   }
 
   private static void sendGroupPush(Context context, Recipients recipients, long messageId, long filterRecipientId) {
-    JobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
+    LaneJobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
     jobManager.add(new PushGroupSendJob(context, messageId, recipients.getPrimaryRecipient().getNumber(), filterRecipientId));
   }
 
   private static void sendSms(Context context, Recipients recipients, long messageId) {
-    JobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
+    LaneJobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
     jobManager.add(new SmsSendJob(context, messageId, recipients.getPrimaryRecipient().getName()));
   }
 
   private static void sendMms(Context context, long messageId) {
-    JobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
+    LaneJobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
     jobManager.add(new MmsSendJob(context, messageId));
   }
 
@@ -22,38 +22,74 @@ import org.smssecure.smssecure.util.Base64;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Reassembles multipart transport messages, and splits outgoing ones.
+ *
+ * Fragments from different senders are reassembled concurrently; each partial message
+ * is only locked while a fragment is added to it.  Partial messages that never complete
+ * are dropped once they expire, by a sweep that runs at most every few minutes as
+ * fragments arrive, or sooner, oldest first, if the fragments held exceed a byte budget.
+ */
 public class MultipartSmsMessageHandler {
 
   private static final String TAG = MultipartSmsMessageHandler.class.getSimpleName();
 
-  private final HashMap<String, MultipartSmsTransportMessageFragments> partialMessages = new HashMap<>();
+  private static final long SWEEP_INTERVAL    = 5 * 60 * 1000;
+  private static final int  MAX_PENDING_BYTES = 256 * 1024;
+
+  private final ConcurrentHashMap<String, MultipartSmsTransportMessageFragments> partialMessages = new ConcurrentHashMap<>();
+
+  private final int           maxPendingBytes;
+  private final AtomicInteger pendingBytes      = new AtomicInteger();
+  private final AtomicLong    lastSweep         = new AtomicLong(System.currentTimeMillis());
+  private final AtomicLong    orphanedMessages  = new AtomicLong();
+  private final AtomicLong    orphanedFragments = new AtomicLong();
+
+  public MultipartSmsMessageHandler() {
+    this(MAX_PENDING_BYTES);
+  }
+
+  /*package*/ MultipartSmsMessageHandler(int maxPendingBytes) {
+    this.maxPendingBytes = maxPendingBytes;
+  }
 
   private IncomingTextMessage processMultipartMessage(MultipartSmsTransportMessage message) {
     Log.w(TAG, "Processing multipart message...");
     Log.w(TAG, "Multipart Count: " + message.getMultipartCount());
     Log.w(TAG, "Multipart ID: " + message.getIdentifier());
     Log.w(TAG, "Multipart Key: " + message.getKey());
-    MultipartSmsTransportMessageFragments container = partialMessages.get(message.getKey());
 
-    Log.w(TAG, "Found multipart container: " + container);
+    sweepIfDue(System.currentTimeMillis());
 
-    if (container == null || container.getSize() != message.getMultipartCount() || container.isExpired()) {
-      Log.w(TAG, "Constructing new container...");
-      container = new MultipartSmsTransportMessageFragments(message.getMultipartCount());
-      partialMessages.put(message.getKey(), container);
-    }
+    MultipartSmsTransportMessageFragments container;
+
+    while (true) {
+      container = getContainer(message);
 
-    container.add(message);
+      synchronized (container) {
+        if (container.isClosed()) continue;
 
-    Log.w(TAG, "Filled buffer at index: " + message.getMultipartIndex());
+        pendingBytes.addAndGet(container.add(message));
+        Log.w(TAG, "Filled buffer at index: " + message.getMultipartIndex());
 
-    if (!container.isComplete())
+        if (container.isComplete()) {
+          container.close();
+          partialMessages.remove(message.getKey(), container);
+          pendingBytes.addAndGet(-container.getByteSize());
+          break;
+        }
+      }
+
+      trimToBudget();
       return null;
+    }
 
-    partialMessages.remove(message.getKey());
-    String strippedMessage = Base64.encodeBytesWithoutPadding(container.getJoined());
+    String strippedMessage = container.getJoinedEncoded();
 
     if (message.getWireType() == MultipartSmsTransportMessage.WIRETYPE_KEY) {
       return new IncomingKeyExchangeMessage(message.getBaseMessage(), strippedMessage);
@@ -64,6 +100,100 @@ public class MultipartSmsMessageHandler {
     }
   }
 
+  private MultipartSmsTransportMessageFragments getContainer(MultipartSmsTransportMessage message) {
+    String key = message.getKey();
+
+    while (true) {
+      MultipartSmsTransportMessageFragments container = partialMessages.get(key);
+
+      Log.w(TAG, "Found multipart container: " + container);
+
+      if (container != null && container.getSize() == message.getMultipartCount() && !container.isExpired()) {
+        return container;
+      }
+
+      Log.w(TAG, "Constructing new container...");
+      MultipartSmsTransportMessageFragments replacement = new MultipartSmsTransportMessageFragments(message.getMultipartCount());
+
+      if (container == null) {
+        if (partialMessages.putIfAbsent(key, replacement) == null) {
+          return replacement;
+        }
+      } else if (partialMessages.replace(key, container, replacement)) {
+        orphan(container);
+        return replacement;
+      }
+    }
+  }
+
+  private void sweepIfDue(long now) {
+    long last = lastSweep.get();
+
+    if (now - last < SWEEP_INTERVAL || !lastSweep.compareAndSet(last, now)) {
+      return;
+    }
+
+    long orphanedBefore = orphanedMessages.get();
+
+    for (Map.Entry<String, MultipartSmsTransportMessageFragments> entry : partialMessages.entrySet()) {
+      if (entry.getValue().isExpired(now) && partialMessages.remove(entry.getKey(), entry.getValue())) {
+        orphan(entry.getValue());
+      }
+    }
+
+    Log.w(TAG, "Swept " + (orphanedMessages.get() - orphanedBefore) + " expired partial messages, " +
+               partialMessages.size() + " pending (" + pendingBytes.get() + " bytes), " +
+               orphanedMessages.get() + " orphaned with " + orphanedFragments.get() + " fragments in total");
+  }
+
+  private void trimToBudget() {
+    while (pendingBytes.get() > maxPendingBytes) {
+      Map.Entry<String, MultipartSmsTransportMessageFragments> oldest = null;
+
+      for (Map.Entry<String, MultipartSmsTransportMessageFragments> entry : partialMessages.entrySet()) {
+        if (oldest == null || entry.getValue().getInitializedTime() < oldest.getValue().getInitializedTime()) {
+          oldest = entry;
+        }
+      }
+
+      if (oldest == null) return;
+
+      if (partialMessages.remove(oldest.getKey(), oldest.getValue())) {
+        Log.w(TAG, "Over budget, dropping partial message: " + oldest.getValue());
+        orphan(oldest.getValue());
+      }
+    }
+  }
+
+  private void orphan(MultipartSmsTransportMessageFragments container) {
+    synchronized (container) {
+      if (container.isClosed()) return;
+
+      container.close();
+      pendingBytes.addAndGet(-container.getByteSize());
+      orphanedMessages.incrementAndGet();
+      orphanedFragments.addAndGet(container.getReceivedCount());
+    }
+  }
+
+  /**
+   * @return the number of partial messages dropped without completing
+   */
+  public long getOrphanedMessageCount() {
+    return orphanedMessages.get();
+  }
+
+  /**
+   * @return the number of fragments in partial messages dropped without completing
+   */
+  public long getOrphanedFragmentCount() {
+    return orphanedFragments.get();
+  }
+
+  public int getPendingByteCount() {
+    return pendingBytes.get();
+  }
+
   private IncomingTextMessage processSinglePartMessage(MultipartSmsTransportMessage message) {
     Log.w(TAG, "Processing single part message...");
     String strippedMessage = Base64.encodeBytesWithoutPadding(message.getStrippedMessage());
@@ -79,7 +209,7 @@ public class MultipartSmsMessageHandler {
     }
   }
 
-  public synchronized IncomingTextMessage processPotentialMultipartMessage(IncomingTextMessage message) {
+  public IncomingTextMessage processPotentialMultipartMessage(IncomingTextMessage message) {
     try {
       MultipartSmsTransportMessage transportMessage = new MultipartSmsTransportMessage(message);
 
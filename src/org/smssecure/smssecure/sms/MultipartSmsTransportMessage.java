@@ -11,7 +11,11 @@ import org.smssecure.smssecure.util.Base64;
 import org.smssecure.smssecure.util.Conversions;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 public class MultipartSmsTransportMessage {
   private static final String TAG = MultipartSmsTransportMessage.class.getName();
@@ -143,8 +147,26 @@ public class MultipartSmsTransportMessage {
 
   }
 
+  /*
+   * The same bytes as getStrippedMessageForMultiPart(), as views of the decoded message
+   * rather than a copy of it.  The first fragment needs its version byte put back, so
+   * that one is two views.
+   */
+  public List<ByteBuffer> getStrippedMessageBuffers() {
+    int headerLength = isDeprecatedTransport() ? 0 : (getMultipartCount() == 1 ? 2 : 3);
+
+    if (headerLength == 0) {
+      return Collections.singletonList(ByteBuffer.wrap(decodedMessage));
+    } else if (headerLength == 3 && getMultipartIndex() != 0) {
+      return Collections.singletonList(ByteBuffer.wrap(decodedMessage, 3, decodedMessage.length - 3));
+    } else {
+      return Arrays.asList(ByteBuffer.wrap(decodedMessage, VERSION_OFFSET, 1),
+                           ByteBuffer.wrap(decodedMessage, headerLength, decodedMessage.length - headerLength));
+    }
+  }
+
   public String getKey() {
-    return message.getSender() + getIdentifier();
+    return message.getSender() + "/" + getIdentifier();
   }
 
   public IncomingTextMessage getBaseMessage() {
@@ -155,7 +177,6 @@ public class MultipartSmsTransportMessage {
   {
     try {
       byte[] decoded = Base64.decodeWithoutPadding(message.getMessageBody());
-      int count      = new SmsTransportDetails().getMessageCountForBytes(decoded.length);
 
       WirePrefix prefix;
 
@@ -164,14 +185,19 @@ public class MultipartSmsTransportMessage {
       else if (message.isEndSession())   prefix = new EndSessionWirePrefix();
       else                               prefix = new SecureMessageWirePrefix();
 
-      if (count == 1) return getSingleEncoded(decoded, prefix);
-      else            return getMultiEncoded(decoded, prefix, count, identifier);
-
+      return getEncoded(decoded, prefix, identifier);
     } catch (IOException e) {
       throw new AssertionError(e);
     }
   }
 
+  /*package*/ static ArrayList<String> getEncoded(byte[] decoded, WirePrefix prefix, byte identifier) {
+    int count = new SmsTransportDetails().getMessageCountForBytes(decoded.length);
+
+    if (count == 1) return getSingleEncoded(decoded, prefix);
+    else            return getMultiEncoded(decoded, prefix, count, identifier);
+  }
+
   private static ArrayList<String> getSingleEncoded(byte[] decoded, WirePrefix prefix) {
     ArrayList<String> list            = new ArrayList<String>(1);
     byte[] messageWithMultipartHeader = new byte[decoded.length + 1];
@@ -1,57 +1,117 @@
 package org.smssecure.smssecure.sms;
 
+import org.smssecure.smssecure.util.Base64;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The fragments of one multipart message received so far.  Not thread safe; callers
+ * synchronize on the instance.
+ */
 public class MultipartSmsTransportMessageFragments {
 
   private static final long VALID_TIME = 60 * 60 * 1000; // 1 Hour
 
-  private final byte[][] fragments;
+  private final List<ByteBuffer>[] fragments;
   private final long initializedTime;
 
+  private int     received;
+  private int     byteSize;
+  private boolean closed;
+
+  @SuppressWarnings("unchecked")
   public MultipartSmsTransportMessageFragments(int count) {
-    this.fragments       = new byte[count][];
+    this.fragments       = new List[count];
     this.initializedTime = System.currentTimeMillis();
   }
 
-  public void add(MultipartSmsTransportMessage fragment) {
-    this.fragments[fragment.getMultipartIndex()] = fragment.getStrippedMessage();
+  /**
+   * @return the change in the number of bytes held
+   */
+  public int add(MultipartSmsTransportMessage fragment) {
+    List<ByteBuffer> data     = fragment.getStrippedMessageBuffers();
+    List<ByteBuffer> previous = fragments[fragment.getMultipartIndex()];
+    int              delta    = getByteSize(data) - getByteSize(previous);
+
+    if (previous == null) received++;
+
+    this.fragments[fragment.getMultipartIndex()] = data;
+    this.byteSize += delta;
+
+    return delta;
   }
 
   public int getSize() {
     return this.fragments.length;
   }
 
+  public int getReceivedCount() {
+    return received;
+  }
+
+  public int getByteSize() {
+    return byteSize;
+  }
+
+  public long getInitializedTime() {
+    return initializedTime;
+  }
+
   public boolean isExpired() {
-    return (System.currentTimeMillis() - initializedTime) >= VALID_TIME;
+    return isExpired(System.currentTimeMillis());
+  }
+
+  public boolean isExpired(long now) {
+    return (now - initializedTime) >= VALID_TIME;
   }
 
   public boolean isComplete() {
-    for (int i=0;i<fragments.length;i++)
-      if (fragments[i] == null) return false;
+    return received == fragments.length;
+  }
 
-    return true;
+  /**
+   * Marks these fragments as no longer accepting additions, because they've either been
+   * joined or dropped.
+   */
+  public void close() {
+    this.closed = true;
   }
 
-  public byte[] getJoined() {
-    int totalMessageLength = 0;
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * @return the joined message, Base64 encoded without padding, encoded straight from
+   *         the fragments rather than from a joined copy
+   */
+  public String getJoinedEncoded() {
+    List<ByteBuffer> joined = new ArrayList<>(fragments.length * 2);
 
-    for (int i=0;i<fragments.length;i++) {
-      totalMessageLength += fragments[i].length;
+    for (List<ByteBuffer> fragment : fragments) {
+      joined.addAll(fragment);
     }
 
-    byte[] totalMessage    = new byte[totalMessageLength];
-    int totalMessageOffset = 0;
+    return Base64.encodeBytesWithoutPadding(joined);
+  }
+
+  private static int getByteSize(List<ByteBuffer> fragment) {
+    int size = 0;
 
-    for (int i=0;i<fragments.length;i++) {
-      System.arraycopy(fragments[i], 0, totalMessage, totalMessageOffset, fragments[i].length);
-      totalMessageOffset += fragments[i].length;
+    if (fragment != null) {
+      for (ByteBuffer buffer : fragment) {
+        size += buffer.remaining();
+      }
     }
 
-    return totalMessage;
+    return size;
   }
 
   @Override
   public String toString() {
-    return String.format("[Size: %d, Initialized: %d, Exipired: %s, Complete: %s]",
-                         fragments.length, initializedTime, isExpired()+"", isComplete()+"");
+    return String.format("[Size: %d, Received: %d, Initialized: %d, Exipired: %s, Complete: %s]",
+                         fragments.length, received, initializedTime, isExpired()+"", isComplete()+"");
   }
 }
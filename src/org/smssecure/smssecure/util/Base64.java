@@ -750,6 +750,52 @@ public class Base64
     	return encodeBytesWithoutPadding(source, 0, source.length);
     }
 
+    /**
+     * Encodes the concatenation of <var>sources</var> without padding, exactly as
+     * {@link #encodeBytesWithoutPadding(byte[])} would encode them once joined,
+     * but without joining them first.  The buffers' positions are left untouched.
+     *
+     * @param sources the byte ranges to encode, in order
+     * @return the encoded data
+     */
+    public static String encodeBytesWithoutPadding( java.util.List<java.nio.ByteBuffer> sources ){
+        int length = 0;
+
+        for( java.nio.ByteBuffer source : sources ){
+            length += source.remaining();
+        }
+
+        char[] encoded  = new char[ getEncodedLengthWithoutPadding( length ) ];
+        byte[] raw3     = new byte[3];
+        byte[] enc4     = new byte[4];
+        int    rawCount = 0;
+        int    e        = 0;
+
+        for( java.nio.ByteBuffer source : sources ){
+            for( int i = source.position(); i < source.limit(); i++ ){
+                raw3[ rawCount++ ] = source.get( i );
+
+                if( rawCount == 3 ){
+                    encode3to4( enc4, raw3, 3, NO_OPTIONS );
+                    encoded[ e++ ] = (char)enc4[0];
+                    encoded[ e++ ] = (char)enc4[1];
+                    encoded[ e++ ] = (char)enc4[2];
+                    encoded[ e++ ] = (char)enc4[3];
+                    rawCount = 0;
+                }
+            }   // end for: each byte
+        }   // end for: each source
+
+        if( rawCount > 0 ){
+            encode3to4( enc4, raw3, rawCount, NO_OPTIONS );
+            for( int i = 0; i <= rawCount; i++ ){
+                encoded[ e++ ] = (char)enc4[i];
+            }
+        }   // end if: partial group
+
+        return new String( encoded );
+    }
+
 
     /**
      * Encodes a byte array into Base64 notation.
@@ -31,36 +31,88 @@ public class BitmapUtil {
 
   private static final int MAX_COMPRESSION_QUALITY  = 95;
   private static final int MIN_COMPRESSION_QUALITY  = 50;
-  private static final int MAX_COMPRESSION_ATTEMPTS = 4;
-
+  private static final int MAX_COMPRESSION_ATTEMPTS = 6;
+
+  private static final long MAX_DECODE_BYTES = Runtime.getRuntime().maxMemory() / 8;
+
+  /**
+   * Scales an image to fit within maxWidth x maxHeight and compresses it to a JPEG of at most
+   * maxSize bytes, at the highest quality that fits.
+   *
+   * The sample size is picked up front so that the decoded bitmap stays within
+   * {@link #MAX_DECODE_BYTES}, which keeps a few of these safe to run in parallel.  The quality
+   * is found with a binary search seeded from the size at maximum quality, compressing into a
+   * single reused buffer.
+   */
   public static byte[] createScaledBytes(Context context, MasterSecret masterSecret, Uri uri, int maxWidth, int maxHeight, int maxSize)
       throws IOException, BitmapDecodingException
   {
-    Bitmap bitmap;
+    InputStream measure = PartAuthority.getPartStream(context, masterSecret, uri);
+    if (measure == null) throw new IOException("Couldn't obtain InputStream");
+
+    BitmapFactory.Options options = getImageDimensions(measure);
+    Bitmap                bitmap  = createScaledBitmap(PartAuthority.getPartStream(context, masterSecret, uri),
+                                                       maxWidth, maxHeight, options, false, MAX_DECODE_BYTES);
+
+    bitmap = fixOrientation(bitmap, PartAuthority.getPartStream(context, masterSecret, uri));
+
     try {
-      bitmap = createScaledBitmap(context, masterSecret, uri, maxWidth, maxHeight, false);
-    } catch(OutOfMemoryError oome) {
-      Log.w(TAG, "OutOfMemoryError when scaling precisely, doing rough scale to save memory instead");
-      bitmap = createScaledBitmap(context, masterSecret, uri, maxWidth, maxHeight, true);
+      return compressToSize(uri, bitmap, maxSize);
+    } finally {
+      bitmap.recycle();
     }
-    int quality         = MAX_COMPRESSION_QUALITY;
-    int attempts        = 0;
+  }
 
-    ByteArrayOutputStream baos;
+  private static byte[] compressToSize(Uri uri, Bitmap bitmap, int maxSize) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(maxSize);
 
-    do {
-      baos = new ByteArrayOutputStream();
-      bitmap.compress(Bitmap.CompressFormat.JPEG, quality, baos);
+    bitmap.compress(CompressFormat.JPEG, MAX_COMPRESSION_QUALITY, out);
 
-      quality = Math.max((quality * maxSize) / baos.size(), MIN_COMPRESSION_QUALITY);
-    } while (baos.size() > maxSize && attempts++ < MAX_COMPRESSION_ATTEMPTS);
+    if (out.size() <= maxSize) {
+      Log.w(TAG, "createScaledBytes(" + uri + ") -> quality " + MAX_COMPRESSION_QUALITY + ", 1 attempt(s)");
+      return out.toByteArray();
+    }
+
+    byte[] best        = null;
+    int    bestQuality = 0;
+    int    low         = MIN_COMPRESSION_QUALITY;
+    int    high        = MAX_COMPRESSION_QUALITY - 1;
+    int    quality     = Math.max((MAX_COMPRESSION_QUALITY * maxSize) / out.size(), MIN_COMPRESSION_QUALITY);
+    int    attempts    = 1;
 
-    Log.w(TAG, "createScaledBytes(" + uri + ") -> quality " + Math.min(quality, MAX_COMPRESSION_QUALITY) + ", " + attempts + " attempt(s)");
+    while (low <= high && attempts < MAX_COMPRESSION_ATTEMPTS) {
+      quality = Math.min(Math.max(quality, low), high);
 
-    bitmap.recycle();
+      out.reset();
+      bitmap.compress(CompressFormat.JPEG, quality, out);
+      attempts++;
 
-    if (baos.size() <= maxSize) return baos.toByteArray();
-    else                        throw new IOException("Unable to scale image below: " + baos.size());
+      if (out.size() <= maxSize) {
+        best        = out.toByteArray();
+        bestQuality = quality;
+        low         = quality + 1;
+      } else {
+        high        = quality - 1;
+      }
+
+      quality = (low + high + 1) / 2;
+    }
+
+    if (best == null && low <= high) {
+      out.reset();
+      bitmap.compress(CompressFormat.JPEG, MIN_COMPRESSION_QUALITY, out);
+      attempts++;
+
+      if (out.size() <= maxSize) {
+        best        = out.toByteArray();
+        bestQuality = MIN_COMPRESSION_QUALITY;
+      }
+    }
+
+    Log.w(TAG, "createScaledBytes(" + uri + ") -> quality " + bestQuality + ", " + attempts + " attempt(s)");
+
+    if (best != null) return best;
+    else              throw new IOException("Unable to scale image below: " + out.size());
   }
 
   public static Bitmap createScaledBitmap(Context context, MasterSecret masterSecret, Uri uri, int maxWidth, int maxHeight)
@@ -101,7 +153,7 @@ public class BitmapUtil {
       throws BitmapDecodingException
   {
     final BitmapFactory.Options options = getImageDimensions(measure);
-    return createScaledBitmap(data, maxWidth, maxHeight, options, constrainedMemory);
+    return createScaledBitmap(data, maxWidth, maxHeight, options, constrainedMemory, Long.MAX_VALUE);
   }
 
   public static Bitmap createScaledBitmap(InputStream measure, InputStream data, float scale)
@@ -111,7 +163,7 @@ public class BitmapUtil {
     final int outWidth = (int)(options.outWidth * scale);
     final int outHeight = (int)(options.outHeight * scale);
     Log.w(TAG, "creating scaled bitmap with scale " + scale + " => " + outWidth + "x" + outHeight);
-    return createScaledBitmap(data, outWidth, outHeight, options, false);
+    return createScaledBitmap(data, outWidth, outHeight, options, false, Long.MAX_VALUE);
   }
 
   public static Bitmap createScaledBitmap(InputStream measure, InputStream data, int maxWidth, int maxHeight)
@@ -121,7 +173,8 @@ public class BitmapUtil {
   }
 
   private static Bitmap createScaledBitmap(InputStream data, int maxWidth, int maxHeight,
-                                           BitmapFactory.Options options, boolean constrainedMemory)
+                                           BitmapFactory.Options options, boolean constrainedMemory,
+                                           long maxDecodeBytes)
       throws BitmapDecodingException
   {
     final int imageWidth  = options.outWidth;
@@ -133,6 +186,10 @@ public class BitmapUtil {
       scaler *= 2;
     }
 
+    while (4L * (imageWidth / scaler) * (imageHeight / scaler) > maxDecodeBytes) {
+      scaler *= 2;
+    }
+
     options.inSampleSize       = scaler;
     options.inJustDecodeBounds = false;
 
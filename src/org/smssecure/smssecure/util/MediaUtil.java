@@ -2,14 +2,13 @@ package org.smssecure.smssecure.util;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.util.Log;
 
 import org.smssecure.smssecure.R;
 import org.smssecure.smssecure.crypto.MasterSecret;
-import org.smssecure.smssecure.database.DatabaseFactory;
 import org.smssecure.smssecure.database.PartDatabase;
+import org.smssecure.smssecure.database.ThumbnailCache;
 import org.smssecure.smssecure.mms.AudioSlide;
 import org.smssecure.smssecure.mms.ImageSlide;
 import org.smssecure.smssecure.mms.MediaConstraints;
@@ -53,10 +52,16 @@ public class MediaUtil {
 
   public static Bitmap getOrGenerateThumbnail(Context context, MasterSecret masterSecret, PduPart part)
       throws IOException, BitmapDecodingException
+  {
+    int maxSize = context.getResources().getDimensionPixelSize(R.dimen.thumbnail_max_size);
+    return getOrGenerateThumbnail(context, masterSecret, part, maxSize);
+  }
+
+  public static Bitmap getOrGenerateThumbnail(Context context, MasterSecret masterSecret, PduPart part, int maxSize)
+      throws IOException, BitmapDecodingException
   {
     if (part.getDataUri() != null && part.getId() > -1) {
-      return BitmapFactory.decodeStream(DatabaseFactory.getPartDatabase(context)
-                                                       .getThumbnailStream(masterSecret, part.getId()));
+      return ThumbnailCache.getInstance(context).get(masterSecret, part.getId(), maxSize);
     } else if (part.getDataUri() != null) {
       Log.w(TAG, "generating thumbnail for new part");
       Bitmap bitmap = MediaUtil.generateThumbnail(context, masterSecret, part.getDataUri(), Util.toIsoString(part.getContentType())).getBitmap();
@@ -0,0 +1,77 @@
+package org.smssecure.smssecure.util;
+
+/**
+ * An {@link LRUCache} split into independently locked stripes, so that concurrent readers
+ * of unrelated keys don't contend on a single lock.  Eviction is LRU within each stripe,
+ * which approximates global LRU order closely enough for lookup caches.
+ */
+public class StripedLRUCache<K,V> {
+
+  private static final int DEFAULT_STRIPES = 8;
+
+  private final LRUCache<K,V>[] stripes;
+
+  public StripedLRUCache(int maxSize) {
+    this(maxSize, DEFAULT_STRIPES);
+  }
+
+  @SuppressWarnings("unchecked")
+  public StripedLRUCache(int maxSize, int stripeCount) {
+    this.stripes = new LRUCache[stripeCount];
+
+    for (int i=0;i<stripeCount;i++) {
+      stripes[i] = new LRUCache<>(Math.max(1, (maxSize + stripeCount - 1) / stripeCount));
+    }
+  }
+
+  public V get(K key) {
+    LRUCache<K,V> stripe = stripeFor(key);
+
+    synchronized (stripe) {
+      return stripe.get(key);
+    }
+  }
+
+  public void put(K key, V value) {
+    LRUCache<K,V> stripe = stripeFor(key);
+
+    synchronized (stripe) {
+      stripe.put(key, value);
+    }
+  }
+
+  public V remove(K key) {
+    LRUCache<K,V> stripe = stripeFor(key);
+
+    synchronized (stripe) {
+      return stripe.remove(key);
+    }
+  }
+
+  public void clear() {
+    for (LRUCache<K,V> stripe : stripes) {
+      synchronized (stripe) {
+        stripe.clear();
+      }
+    }
+  }
+
+  public int size() {
+    int size = 0;
+
+    for (LRUCache<K,V> stripe : stripes) {
+      synchronized (stripe) {
+        size += stripe.size();
+      }
+    }
+
+    return size;
+  }
+
+  private LRUCache<K,V> stripeFor(K key) {
+    int hash = key.hashCode();
+    hash ^= (hash >>> 16);
+
+    return stripes[(hash & 0x7fffffff) % stripes.length];
+  }
+}
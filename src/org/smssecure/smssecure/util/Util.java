@@ -49,6 +49,7 @@ import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -85,6 +86,19 @@ public class Util {
     return executor;
   }
 
+  public static ExecutorService newLifoExecutor(int threads) {
+    return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                                  new LinkedBlockingLifoQueue<Runnable>(),
+                                  new ThreadFactory() {
+                                    @Override
+                                    public Thread newThread(Runnable runnable) {
+                                      Thread thread = new Thread(runnable);
+                                      thread.setPriority(Thread.MIN_PRIORITY);
+                                      return thread;
+                                    }
+                                  });
+  }
+
   public static boolean isEmpty(EncodedStringValue[] value) {
     return value == null || value.length == 0;
   }
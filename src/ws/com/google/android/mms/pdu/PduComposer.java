@@ -22,12 +22,19 @@ import android.content.Context;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
+import java.util.NoSuchElementException;
 
 public class PduComposer {
     /**
@@ -112,6 +119,16 @@ public class PduComposer {
      */
     private PduHeaders mPduHeader = null;
 
+    /**
+     * Source of part data that is streamed rather than composed in memory.
+     */
+    private PartDataSource mPartDataSource = null;
+
+    /**
+     * Parts whose data has been left out of mMessage, in order.
+     */
+    private List<DeferredPart> mDeferredParts = null;
+
     /**
      * Map of all content type
      */
@@ -183,6 +200,29 @@ public class PduComposer {
         return mMessage.toByteArray();
     }
 
+    /**
+     * Make the message without reading part data into memory.
+     *
+     * The first pass composes everything but the data of parts that only
+     * have a Uri, taking their lengths from the part sizes (or, failing that,
+     * from reading them once).  The returned pdu streams that data from the
+     * source, between the composed headers, each time it is written out.
+     *
+     * @param partDataSource where to read part data from
+     * @return the composed message, or null if the PDU is invalid
+     */
+    public ComposedPdu make(PartDataSource partDataSource) {
+        mPartDataSource = partDataSource;
+        mDeferredParts = new ArrayList<DeferredPart>();
+
+        byte[] message = make();
+        if (message == null) {
+            return null;
+        }
+
+        return new ComposedPdu(message, mDeferredParts, partDataSource);
+    }
+
     /**
      *  Copy buf to mMessage.
      */
@@ -985,10 +1025,18 @@ public class PduComposer {
 
             int dataLength = 0; // Just for safety...
             byte[] partData = part.getData();
+            boolean deferred = false;
 
             if (partData != null) {
                 arraycopy(partData, 0, partData.length);
                 dataLength = partData.length;
+            } else if (mPartDataSource != null) {
+                try {
+                    dataLength = getDeferredDataLength(part);
+                    deferred = true;
+                } catch (IOException e) {
+                    return PDU_COMPOSE_CONTENT_ERROR;
+                }
             } else {
                 InputStream cr;
                 try {
@@ -1009,7 +1057,7 @@ public class PduComposer {
                 }
             }
 
-            if (dataLength != (attachment.getLength() - headerLength)) {
+            if (!deferred && dataLength != (attachment.getLength() - headerLength)) {
                 throw new RuntimeException("BUG: Length sanity check failed");
             }
 
@@ -1017,11 +1065,229 @@ public class PduComposer {
             appendUintvarInteger(headerLength);
             appendUintvarInteger(dataLength);
             mStack.copy();
+
+            if (deferred) {
+                // The data goes right here, so this has to be the final buffer.
+                if (mStack.stackSize != 0) {
+                    throw new RuntimeException("BUG: Part data deferred in a nested buffer");
+                }
+                mDeferredParts.add(new DeferredPart(mPosition, part, dataLength));
+            }
         }
 
         return PDU_COMPOSE_SUCCESS;
     }
 
+    /**
+     * The length of a part's data, from its recorded size if it has one.
+     */
+    private int getDeferredDataLength(PduPart part) throws IOException {
+        if (part.getDataSize() > 0) {
+            if (part.getDataSize() > Integer.MAX_VALUE) {
+                throw new IOException("Part too large: " + part.getDataSize());
+            }
+            return (int) part.getDataSize();
+        }
+
+        InputStream in = mPartDataSource.getPartData(part);
+        try {
+            byte[] buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
+            long length = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                length += read;
+            }
+
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Part too large: " + length);
+            }
+            return (int) length;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Supplies the data of parts that are streamed into the pdu.
+     */
+    public interface PartDataSource {
+        /**
+         * @return a new stream over the part's data, which the caller closes
+         */
+        InputStream getPartData(PduPart part) throws IOException;
+    }
+
+    /**
+     * Where a part's data belongs in the composed headers.
+     */
+    static private class DeferredPart {
+        final int offset;
+        final PduPart part;
+        final int length;
+
+        DeferredPart(int offset, PduPart part, int length) {
+            this.offset = offset;
+            this.part = part;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A composed pdu whose part data is read from a {@link PartDataSource}
+     * as it is written.  It can be written any number of times.
+     */
+    public static class ComposedPdu {
+        private final byte[] mMessage;
+        private final List<DeferredPart> mDeferredParts;
+        private final PartDataSource mPartDataSource;
+        private final long mLength;
+
+        private ComposedPdu(byte[] message, List<DeferredPart> deferredParts,
+                PartDataSource partDataSource) {
+            long length = message.length;
+            for (DeferredPart deferred : deferredParts) {
+                length += deferred.length;
+            }
+
+            mMessage = message;
+            mDeferredParts = deferredParts;
+            mPartDataSource = partDataSource;
+            mLength = length;
+        }
+
+        /**
+         * @return the length of the pdu in bytes
+         */
+        public long getLength() {
+            return mLength;
+        }
+
+        /**
+         * Write the pdu, streaming each deferred part's data in place.
+         *
+         * @throws IOException if part data can't be read, or no longer has
+         *         the length it was composed with
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            byte[] buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
+            int offset = 0;
+
+            for (DeferredPart deferred : mDeferredParts) {
+                out.write(mMessage, offset, deferred.offset - offset);
+                offset = deferred.offset;
+
+                InputStream in = mPartDataSource.getPartData(deferred.part);
+                try {
+                    int remaining = deferred.length;
+                    while (remaining > 0) {
+                        int read = in.read(buffer, 0, Math.min(buffer.length, remaining));
+                        if (read == -1) {
+                            throw new IOException("Part data is shorter than composed");
+                        }
+                        out.write(buffer, 0, read);
+                        remaining -= read;
+                    }
+
+                    if (in.read() != -1) {
+                        throw new IOException("Part data is longer than composed");
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+
+            out.write(mMessage, offset, mMessage.length - offset);
+        }
+
+        /**
+         * Read the pdu as a stream, opening each deferred part's data only
+         * once the stream reaches it.  Every call returns a new stream.
+         */
+        public InputStream getInputStream() {
+            return new SequenceInputStream(new Enumeration<InputStream>() {
+                private int segment = 0;
+
+                @Override
+                public boolean hasMoreElements() {
+                    return segment <= mDeferredParts.size() * 2;
+                }
+
+                @Override
+                public InputStream nextElement() {
+                    if (!hasMoreElements()) {
+                        throw new NoSuchElementException();
+                    }
+
+                    int index = segment / 2;
+                    boolean header = segment % 2 == 0;
+                    segment++;
+
+                    if (!header) {
+                        return new DeferredPartInputStream(mPartDataSource, mDeferredParts.get(index));
+                    }
+
+                    int start = index == 0 ? 0 : mDeferredParts.get(index - 1).offset;
+                    int end = index < mDeferredParts.size()
+                            ? mDeferredParts.get(index).offset : mMessage.length;
+
+                    return new ByteArrayInputStream(mMessage, start, end - start);
+                }
+            });
+        }
+    }
+
+    /**
+     * A deferred part's data, opened on first read and checked against the
+     * length it was composed with.
+     */
+    static private class DeferredPartInputStream extends InputStream {
+        private final PartDataSource mPartDataSource;
+        private final DeferredPart mDeferred;
+        private InputStream mIn = null;
+        private int mRemaining;
+
+        DeferredPartInputStream(PartDataSource partDataSource, DeferredPart deferred) {
+            mPartDataSource = partDataSource;
+            mDeferred = deferred;
+            mRemaining = deferred.length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (mIn == null) {
+                mIn = mPartDataSource.getPartData(mDeferred.part);
+            }
+
+            if (mRemaining == 0) {
+                if (length > 0 && mIn.read() != -1) {
+                    throw new IOException("Part data is longer than composed");
+                }
+                return -1;
+            }
+
+            int read = mIn.read(buffer, offset, Math.min(length, mRemaining));
+            if (read == -1) {
+                throw new IOException("Part data is shorter than composed");
+            }
+
+            mRemaining -= read;
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mIn != null) {
+                mIn.close();
+            }
+        }
+    }
+
     /**
      *  Record current message informations.
      */
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.com.google.android.mms.pdu;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * A buffered stream with the parts of ByteArrayInputStream's behaviour that
+ * PduParser relies on, but over an arbitrary source of unknown size.
+ *
+ * PduParser measures how much it has consumed by differencing available(),
+ * so available() here counts down from an upper bound rather than reporting
+ * what can be read without blocking.  It only reports 0 once the source is
+ * exhausted, so when the length isn't known, differences taken across the
+ * end of the source are meaningless; a well formed pdu never needs one.
+ * PduParser also never passes a meaningful mark limit, so marks
+ * are honoured for up to MAX_MARK_SIZE bytes regardless of it, growing the
+ * buffer to hold them; the parser only ever resets across a header value.
+ * Bulk reads keep reading until the buffer is full or the source ends, and
+ * only bypass the buffer while no mark is set.
+ *
+ * Read errors from the source are rethrown as {@link PduStreamException}, as
+ * the parser's signatures don't allow for checked exceptions.
+ */
+public class PduInputStream extends InputStream {
+    private static final int BUFFER_SIZE = 4096;
+    private static final int MAX_MARK_SIZE = 64 * 1024;
+
+    private final InputStream mIn;
+    private final long mLength;
+
+    private byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mBufferPos = 0;
+    private int mBufferCount = 0;
+    private int mMarkPos = -1;
+    private long mPosition = 0;
+    private long mMarkPosition = 0;
+    private boolean mEof = false;
+
+    public PduInputStream(byte[] data) {
+        this(new ByteArrayInputStream(data), data.length);
+    }
+
+    /**
+     * @param in the source to parse
+     * @param length the number of bytes in the source, or -1 if unknown
+     */
+    public PduInputStream(InputStream in, long length) {
+        mIn = in;
+        mLength = length;
+    }
+
+    /**
+     * @return the number of bytes consumed so far
+     */
+    public long getPosition() {
+        return mPosition;
+    }
+
+    @Override
+    public int read() {
+        if (!fill()) {
+            return -1;
+        }
+
+        mPosition++;
+        return mBuffer[mBufferPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+        int total = 0;
+
+        while (total < length) {
+            if (mBufferPos == mBufferCount && mMarkPos < 0 && length - total >= BUFFER_SIZE) {
+                int read = readSource(buffer, offset + total, length - total);
+                if (read == -1) break;
+
+                total += read;
+                mPosition += read;
+                continue;
+            }
+
+            if (!fill()) {
+                break;
+            }
+
+            int count = Math.min(length - total, mBufferCount - mBufferPos);
+            System.arraycopy(mBuffer, mBufferPos, buffer, offset + total, count);
+
+            mBufferPos += count;
+            mPosition += count;
+            total += count;
+        }
+
+        return (total == 0 && length > 0) ? -1 : total;
+    }
+
+    @Override
+    public long skip(long count) {
+        long skipped = 0;
+
+        while (skipped < count && fill()) {
+            int step = (int) Math.min(count - skipped, mBufferCount - mBufferPos);
+            mBufferPos += step;
+            mPosition += step;
+            skipped += step;
+        }
+
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        if (mLength >= 0) {
+            return (int) Math.max(0, Math.min(Integer.MAX_VALUE, mLength - mPosition));
+        }
+
+        if (!fill()) {
+            return 0;
+        }
+
+        return (int) (Integer.MAX_VALUE - Math.min(mPosition, Integer.MAX_VALUE - 1));
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(int readLimit) {
+        mMarkPos = mBufferPos;
+        mMarkPosition = mPosition;
+    }
+
+    @Override
+    public void reset() {
+        if (mMarkPos < 0) {
+            throw new IllegalStateException("No mark set");
+        }
+
+        mBufferPos = mMarkPos;
+        mPosition = mMarkPosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    /**
+     * Returns a view of the next length bytes of this stream.  Reading the
+     * view advances this stream; closing it skips whatever was left unread.
+     */
+    public InputStream limit(final long length) {
+        return new InputStream() {
+            private long mRemaining = length;
+
+            @Override
+            public int read() {
+                if (mRemaining <= 0) return -1;
+
+                int value = PduInputStream.this.read();
+                if (value != -1) mRemaining--;
+                return value;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) {
+                if (mRemaining <= 0) return -1;
+
+                int read = PduInputStream.this.read(buffer, offset, (int) Math.min(count, mRemaining));
+                if (read > 0) mRemaining -= read;
+                return read;
+            }
+
+            @Override
+            public void close() {
+                mRemaining -= PduInputStream.this.skip(mRemaining);
+            }
+        };
+    }
+
+    /**
+     * Makes sure at least one unread byte is buffered, keeping everything
+     * since the current mark, and growing the buffer to do so, until that
+     * would take more than MAX_MARK_SIZE bytes.
+     *
+     * @return false if the source is exhausted
+     */
+    private boolean fill() {
+        if (mBufferPos < mBufferCount) {
+            return true;
+        }
+
+        if (mEof) {
+            return false;
+        }
+
+        if (mMarkPos < 0 || mBufferCount - mMarkPos >= MAX_MARK_SIZE) {
+            mMarkPos = -1;
+            mBufferPos = 0;
+            mBufferCount = 0;
+
+            if (mBuffer.length > BUFFER_SIZE) {
+                mBuffer = new byte[BUFFER_SIZE];
+            }
+        } else {
+            if (mMarkPos > 0) {
+                System.arraycopy(mBuffer, mMarkPos, mBuffer, 0, mBufferCount - mMarkPos);
+                mBufferCount -= mMarkPos;
+                mBufferPos -= mMarkPos;
+                mMarkPos = 0;
+            }
+
+            if (mBufferCount == mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, Math.min(mBuffer.length * 2, MAX_MARK_SIZE));
+            }
+        }
+
+        int read = readSource(mBuffer, mBufferCount, mBuffer.length - mBufferCount);
+
+        if (read == -1) {
+            mEof = true;
+            return false;
+        }
+
+        mBufferCount += read;
+        return true;
+    }
+
+    private int readSource(byte[] buffer, int offset, int length) {
+        try {
+            int read;
+
+            do {
+                read = mIn.read(buffer, offset, length);
+            } while (read == 0);
+
+            return read;
+        } catch (IOException e) {
+            throw new PduStreamException(e);
+        }
+    }
+
+    /**
+     * Wraps an IOException from the underlying source.
+     */
+    public static class PduStreamException extends RuntimeException {
+        public PduStreamException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
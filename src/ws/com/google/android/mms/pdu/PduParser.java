@@ -23,8 +23,9 @@ import android.util.Log;
 import ws.com.google.android.mms.ContentType;
 import ws.com.google.android.mms.InvalidHeaderValueException;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -57,7 +58,12 @@ public class PduParser {
     /**
      * The pdu data.
      */
-    private ByteArrayInputStream mPduDataStream = null;
+    private PduInputStream mPduDataStream = null;
+
+    /**
+     * Where part data is streamed to, if anywhere.
+     */
+    private PartDataSink mPartDataSink = null;
 
     /**
      * Store pdu headers
@@ -91,7 +97,41 @@ public class PduParser {
      * @param pduDataStream pdu data to be parsed
      */
     public PduParser(byte[] pduDataStream) {
-        mPduDataStream = new ByteArrayInputStream(pduDataStream);
+        mPduDataStream = new PduInputStream(pduDataStream);
+    }
+
+    /**
+     * Constructor for parsing a pdu as it arrives, e.g. from the network.
+     *
+     * Headers are read incrementally.  Parts that the sink accepts are
+     * streamed to it instead of being read into memory, so the parser only
+     * ever holds a small buffer of the pdu.
+     *
+     * @param pduDataStream pdu data to be parsed
+     * @param length length of the pdu, or -1 if unknown
+     * @param partDataSink where to stream part data, or null to keep it in memory
+     */
+    public PduParser(InputStream pduDataStream, long length, PartDataSink partDataSink) {
+        mPduDataStream = new PduInputStream(pduDataStream, length);
+        mPartDataSink = partDataSink;
+    }
+
+    /**
+     * Receives part data while a pdu is parsed.
+     */
+    public interface PartDataSink {
+        /**
+         * @param headers the pdu headers, which have already been parsed
+         * @param part the part, with its headers parsed but no data yet
+         * @return true to stream this part's data to {@link #write}, false
+         *         to have it read into the part as usual
+         */
+        boolean accepts(PduHeaders headers, PduPart part);
+
+        /**
+         * Consumes a part's data.  Any of it left unread is skipped afterwards.
+         */
+        void write(PduPart part, InputStream data) throws IOException;
     }
 
     /**
@@ -101,6 +141,30 @@ public class PduParser {
      *         null if parsing error happened or mandatory fields are not set.
      */
     public GenericPdu parse(){
+        try {
+            return parsePdu();
+        } catch (PduInputStream.PduStreamException e) {
+            Log.w(LOG_TAG, "Error reading pdu", e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Parse the pdu, passing on read errors from a streaming source.
+     *
+     * @return the pdu structure if parsing successfully.
+     *         null if parsing error happened or mandatory fields are not set.
+     * @throws IOException if the underlying stream fails, or the sink does
+     */
+    public GenericPdu parseOrThrow() throws IOException {
+        try {
+            return parsePdu();
+        } catch (PduInputStream.PduStreamException e) {
+            throw e.getCause();
+        }
+    }
+
+    private GenericPdu parsePdu() {
         Log.w("PduParser", "parse() called...");
         if (mPduDataStream == null) {
             return null;
@@ -127,7 +191,7 @@ public class PduParser {
                 (PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF == messageType)) {
             /* need to parse the parts */
             Log.w("PduParser", "Parsing parts...");
-            mBody = parseParts(mPduDataStream);
+            mBody = parseParts(mPduDataStream, mHeaders, mPartDataSink);
             if (null == mBody) {
                 // Parse parts failed.
                 return null;
@@ -202,7 +266,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return headers in PduHeaders structure, null when parse fail
      */
-    protected PduHeaders parseHeaders(ByteArrayInputStream pduDataStream){
+    protected PduHeaders parseHeaders(PduInputStream pduDataStream){
         if (pduDataStream == null) {
             return null;
         }
@@ -734,7 +798,20 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return parts in PduBody structure
      */
-    protected static PduBody parseParts(ByteArrayInputStream pduDataStream) {
+    protected static PduBody parseParts(PduInputStream pduDataStream) {
+        return parseParts(pduDataStream, null, null);
+    }
+
+    /**
+     * Parse pdu parts, streaming the data of parts the sink accepts to it.
+     *
+     * @param pduDataStream pdu data input stream
+     * @param headers the already parsed pdu headers, for the sink
+     * @param partDataSink where to stream part data, or null
+     * @return parts in PduBody structure
+     */
+    protected static PduBody parseParts(PduInputStream pduDataStream, PduHeaders headers,
+                                        PartDataSink partDataSink) {
         if (pduDataStream == null) {
             return null;
         }
@@ -798,13 +875,22 @@ public class PduParser {
             }
 
             /* get part's data */
-            if (dataLength > 0) {
+            if (dataLength > 0 && isStreamable(part) &&
+                    partDataSink != null && partDataSink.accepts(headers, part)) {
+                InputStream partData = pduDataStream.limit(dataLength);
+                try {
+                    partDataSink.write(part, partData);
+                    partData.close();
+                } catch (IOException e) {
+                    throw new PduInputStream.PduStreamException(e);
+                }
+            } else if (dataLength > 0) {
                 byte[] partData = new byte[dataLength];
                 String partContentType = new String(part.getContentType());
                 pduDataStream.read(partData, 0, dataLength);
                 if (partContentType.equalsIgnoreCase(ContentType.MULTIPART_ALTERNATIVE)) {
                     // parse "multipart/vnd.wap.multipart.alternative".
-                    PduBody childBody = parseParts(new ByteArrayInputStream(partData));
+                    PduBody childBody = parseParts(new PduInputStream(partData));
                     // take the first part of children.
                     part = childBody.getPart(0);
                 } else {
@@ -843,6 +929,21 @@ public class PduParser {
         return body;
     }
 
+    /**
+     * Whether a part's data can be used exactly as it appears in the pdu,
+     * i.e. it is neither a nested multipart nor transfer encoded.
+     */
+    private static boolean isStreamable(PduPart part) {
+        String contentType = new String(part.getContentType());
+        if (contentType.equalsIgnoreCase(ContentType.MULTIPART_ALTERNATIVE)) {
+            return false;
+        }
+
+        byte[] encoding = part.getContentTransferEncoding();
+        return encoding == null ||
+               PduPart.P_BINARY.equalsIgnoreCase(new String(encoding));
+    }
+
     /**
      * Log status.
      *
@@ -860,7 +961,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the integer, -1 when failed
      */
-    protected static int parseUnsignedInt(ByteArrayInputStream pduDataStream) {
+    protected static int parseUnsignedInt(PduInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * The maximum size of a uintvar is 32 bits.
@@ -894,7 +995,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the integer
      */
-    protected static int parseValueLength(ByteArrayInputStream pduDataStream) {
+    protected static int parseValueLength(PduInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Value-length = Short-length | (Length-quote Length)
@@ -923,7 +1024,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the EncodedStringValue
      */
-    protected static EncodedStringValue parseEncodedStringValue(ByteArrayInputStream pduDataStream){
+    protected static EncodedStringValue parseEncodedStringValue(PduInputStream pduDataStream){
         /**
          * From OMA-TS-MMS-ENC-V1_3-20050927-C.pdf
          * Encoded-string-value = Text-string | Value-length Char-set Text-string
@@ -968,7 +1069,7 @@ public class PduParser {
      * @param stringType TYPE_TEXT_STRING or TYPE_QUOTED_STRING
      * @return the string without End-of-string in byte array
      */
-    protected static byte[] parseWapString(ByteArrayInputStream pduDataStream,
+    protected static byte[] parseWapString(PduInputStream pduDataStream,
             int stringType) {
         assert(null != pduDataStream);
         /**
@@ -1090,7 +1191,7 @@ public class PduParser {
         return false;
     }
 
-    protected static byte[] getWapString(ByteArrayInputStream pduDataStream,
+    protected static byte[] getWapString(PduInputStream pduDataStream,
             int stringType) {
         assert(null != pduDataStream);
         ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -1125,7 +1226,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the byte
      */
-    protected static int extractByteValue(ByteArrayInputStream pduDataStream) {
+    protected static int extractByteValue(PduInputStream pduDataStream) {
         assert(null != pduDataStream);
         int temp = pduDataStream.read();
         assert(-1 != temp);
@@ -1138,7 +1239,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the byte
      */
-    protected static int parseShortInteger(ByteArrayInputStream pduDataStream) {
+    protected static int parseShortInteger(PduInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Short-integer = OCTET
@@ -1158,7 +1259,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return long integer
      */
-    protected static long parseLongInteger(ByteArrayInputStream pduDataStream) {
+    protected static long parseLongInteger(PduInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Long-integer = Short-length Multi-octet-integer
@@ -1196,7 +1297,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return long integer
      */
-    protected static long parseIntegerValue(ByteArrayInputStream pduDataStream) {
+    protected static long parseIntegerValue(PduInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Integer-Value = Short-integer | Long-integer
@@ -1220,7 +1321,7 @@ public class PduParser {
      * @param length area size
      * @return the values in this area
      */
-    protected static int skipWapValue(ByteArrayInputStream pduDataStream, int length) {
+    protected static int skipWapValue(PduInputStream pduDataStream, int length) {
         assert(null != pduDataStream);
         byte[] area = new byte[length];
         int readLen = pduDataStream.read(area, 0, length);
@@ -1239,7 +1340,7 @@ public class PduParser {
      * @param map to store parameters of Content-Type field
      * @param length length of all the parameters
      */
-    protected static void parseContentTypeParams(ByteArrayInputStream pduDataStream,
+    protected static void parseContentTypeParams(PduInputStream pduDataStream,
             HashMap<Integer, Object> map, Integer length) {
         /**
          * From wap-230-wsp-20010705-a.pdf
@@ -1422,7 +1523,7 @@ public class PduParser {
      * @param map to store parameters in Content-Type header field
      * @return Content-Type value
      */
-    protected static byte[] parseContentType(ByteArrayInputStream pduDataStream,
+    protected static byte[] parseContentType(PduInputStream pduDataStream,
             HashMap<Integer, Object> map) {
         /**
          * From wap-230-wsp-20010705-a.pdf
@@ -1493,7 +1594,7 @@ public class PduParser {
      * @param length length of the headers
      * @return true if parse successfully, false otherwise
      */
-    protected static boolean parsePartHeaders(ByteArrayInputStream pduDataStream,
+    protected static boolean parsePartHeaders(PduInputStream pduDataStream,
             PduPart part, int length) {
         assert(null != pduDataStream);
         assert(null != part);
@@ -20,18 +20,10 @@ package ws.com.google.android.mms.pdu;
 import android.graphics.Bitmap;
 import android.net.Uri;
 
-import org.smssecure.smssecure.crypto.MasterSecret;
-import org.smssecure.smssecure.mms.MediaConstraints;
-import org.smssecure.smssecure.util.BitmapDecodingException;
-import org.smssecure.smssecure.util.BitmapUtil;
-import org.smssecure.smssecure.util.Util;
-
-import java.io.IOException;
+import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
 
-import ws.com.google.android.mms.ContentType;
-
 /**
  * The pdu part.
  */
@@ -136,6 +128,7 @@ public class PduPart {
      private boolean isPendingPush;
      private long    dataSize;
      private Bitmap  thumbnail;
+     private File    dataFile;
      
      /**
       * Empty Constructor.
@@ -161,6 +154,24 @@ public class PduPart {
      }
 
 
+     /**
+      * Set a file the part data has already been written to, encrypted, while
+      * the PDU was being parsed.  The part data itself is not kept in memory.
+      *
+      * @param dataFile the encrypted part file
+      */
+     public void setDataFile(File dataFile) {
+       this.dataFile = dataFile;
+     }
+
+     /**
+      * @return The encrypted file the part data was spooled to, or null.
+      * @see #setDataFile
+      */
+     public File getDataFile() {
+       return dataFile;
+     }
+
      public void setPendingPush(boolean isPendingPush) {
        this.isPendingPush = isPendingPush;
      }